@@ -0,0 +1,208 @@
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Running adherence counts of one patient: taken, skipped and missed doses per
+ * medicine, per day of the week and per calendar day over the last
+ * {@value #WINDOW_DAYS} days.
+ *
+ * Every outcome is added once when it is recorded, so a {@link Summary} (all-time
+ * rate, 7- and 30-day rates and per-weekday rates) costs the same for ten doses or
+ * ten million and never rescans the {@link DoseLog}. The daily counts live in a ring
+ * of {@value #WINDOW_DAYS} buckets tagged with their day; a bucket is reset when a
+ * newer day reuses it, and outcomes of days that already left the ring only count
+ * towards the all-time and weekday totals.
+ *
+ * Two stats built from disjoint parts of a log can be merged, which is how
+ * {@link DoseLog#recompute} rebuilds them in parallel.
+ */
+public class AdherenceStats {
+    // Longest rolling window that can be read, in days
+    public static final int WINDOW_DAYS = 30;
+    private static final int OUTCOMES = DoseLog.Outcome.values().length;
+
+    /**
+     * Counts of one medicine (or of all medicines), indexed by outcome ordinal.
+     */
+    private static final class Counts {
+        final long[] total = new long[OUTCOMES];
+        // [day of week (Monday = 0) * OUTCOMES + outcome]
+        final long[] byWeekday = new long[7 * OUTCOMES];
+        // [ring slot * OUTCOMES + outcome]; the slot of a day is epochDay mod WINDOW_DAYS
+        final long[] byDay = new long[WINDOW_DAYS * OUTCOMES];
+        final long[] slotDay = new long[WINDOW_DAYS];
+
+        Counts() {
+            Arrays.fill(slotDay, Long.MIN_VALUE);
+        }
+
+        void add(int outcome, long epochDay, long count) {
+            total[outcome] += count;
+            byWeekday[weekday(epochDay) * OUTCOMES + outcome] += count;
+            int slot = (int) Math.floorMod(epochDay, (long) WINDOW_DAYS);
+            if (slotDay[slot] < epochDay) {
+                // The slot still holds an older day: reuse it
+                slotDay[slot] = epochDay;
+                Arrays.fill(byDay, slot * OUTCOMES, (slot + 1) * OUTCOMES, 0);
+            }
+            if (slotDay[slot] == epochDay) {
+                byDay[slot * OUTCOMES + outcome] += count;
+            }
+        }
+
+        void merge(Counts other) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] += other.total[i];
+            }
+            for (int i = 0; i < byWeekday.length; i++) {
+                byWeekday[i] += other.byWeekday[i];
+            }
+            for (int slot = 0; slot < WINDOW_DAYS; slot++) {
+                long day = other.slotDay[slot];
+                if (day == Long.MIN_VALUE || day < slotDay[slot]) {
+                    continue;
+                }
+                if (day > slotDay[slot]) {
+                    slotDay[slot] = day;
+                    Arrays.fill(byDay, slot * OUTCOMES, (slot + 1) * OUTCOMES, 0);
+                }
+                for (int outcome = 0; outcome < OUTCOMES; outcome++) {
+                    byDay[slot * OUTCOMES + outcome] += other.byDay[slot * OUTCOMES + outcome];
+                }
+            }
+        }
+
+        /**
+         * Sums the outcomes of the {@code days} days ending with {@code today}.
+         */
+        long[] window(long today, int days) {
+            long[] sums = new long[OUTCOMES];
+            for (int slot = 0; slot < WINDOW_DAYS; slot++) {
+                long day = slotDay[slot];
+                if (day <= today && day > today - days) {
+                    for (int outcome = 0; outcome < OUTCOMES; outcome++) {
+                        sums[outcome] += byDay[slot * OUTCOMES + outcome];
+                    }
+                }
+            }
+            return sums;
+        }
+    }
+
+    /**
+     * Adherence of one medicine, or of all medicines, as of a given day.
+     */
+    public static final class Summary {
+        private final long[] total;
+        private final long[] byWeekday;
+        private final long[] last7;
+        private final long[] last30;
+
+        Summary(long[] total, long[] byWeekday, long[] last7, long[] last30) {
+            this.total = total;
+            this.byWeekday = byWeekday;
+            this.last7 = last7;
+            this.last30 = last30;
+        }
+
+        public long getTaken() { return total[DoseLog.Outcome.TAKEN.ordinal()]; }
+        public long getSkipped() { return total[DoseLog.Outcome.SKIPPED.ordinal()]; }
+        public long getMissed() { return total[DoseLog.Outcome.MISSED.ordinal()]; }
+        public long getDoses() { return getTaken() + getSkipped() + getMissed(); }
+
+        /** Share of all recorded doses that were taken, or NaN if none were recorded. */
+        public double getRate() { return rate(total, 0); }
+        /** Share of the doses of the last 7 days (including today) that were taken, or NaN. */
+        public double getRate7() { return rate(last7, 0); }
+        /** Share of the doses of the last 30 days (including today) that were taken, or NaN. */
+        public double getRate30() { return rate(last30, 0); }
+        public long getDoses7() { return sum(last7, 0); }
+        public long getDoses30() { return sum(last30, 0); }
+
+        /** Share of the doses due on the given weekday that were taken, or NaN. */
+        public double getRate(DayOfWeek day) {
+            return rate(byWeekday, (day.getValue() - 1) * OUTCOMES);
+        }
+
+        private static double rate(long[] counts, int offset) {
+            long doses = sum(counts, offset);
+            return doses == 0 ? Double.NaN : (double) counts[offset + DoseLog.Outcome.TAKEN.ordinal()] / doses;
+        }
+
+        private static long sum(long[] counts, int offset) {
+            long doses = 0;
+            for (int outcome = 0; outcome < OUTCOMES; outcome++) {
+                doses += counts[offset + outcome];
+            }
+            return doses;
+        }
+    }
+
+    private final Map<String, Counts> byMedicine = new HashMap<>();
+    private final Counts all = new Counts();
+    private long recorded;
+
+    /**
+     * Adds one outcome.
+     *
+     * @param epochDay local day the dose was due ({@link LocalDate#toEpochDay})
+     */
+    public synchronized void record(String medicineName, DoseLog.Outcome outcome, long epochDay) {
+        byMedicine.computeIfAbsent(medicineName, name -> new Counts()).add(outcome.ordinal(), epochDay, 1);
+        all.add(outcome.ordinal(), epochDay, 1);
+        recorded++;
+    }
+
+    /**
+     * Returns the adherence of one medicine (or of all medicines if {@code medicineName}
+     * is null), or null if no dose of it was recorded.
+     *
+     * @param today last day of the rolling windows
+     */
+    public synchronized Summary summary(String medicineName, LocalDate today) {
+        Counts counts = medicineName == null ? all : byMedicine.get(medicineName);
+        if (counts == null) {
+            return null;
+        }
+        long day = today.toEpochDay();
+        return new Summary(counts.total.clone(), counts.byWeekday.clone(), counts.window(day, 7),
+                counts.window(day, WINDOW_DAYS));
+    }
+
+    /**
+     * Returns the names of the medicines with recorded doses, sorted.
+     */
+    public synchronized List<String> medicines() {
+        List<String> names = new ArrayList<>(byMedicine.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the number of outcomes counted.
+     */
+    public synchronized long size() {
+        return recorded;
+    }
+
+    /**
+     * Adds every count of {@code other}, which must cover different log entries.
+     */
+    synchronized void merge(AdherenceStats other) {
+        synchronized (other) {
+            for (Map.Entry<String, Counts> entry : other.byMedicine.entrySet()) {
+                byMedicine.computeIfAbsent(entry.getKey(), name -> new Counts()).merge(entry.getValue());
+            }
+            all.merge(other.all);
+            recorded += other.recorded;
+        }
+    }
+
+    /**
+     * Day of the week of an epoch day, Monday = 0 (1970-01-01 was a Thursday).
+     */
+    private static int weekday(long epochDay) {
+        return (int) Math.floorMod(epochDay + 3, 7L);
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity, lock-free queue for many producers and consumers.
+ *
+ * Every slot of the ring carries a sequence number telling whose turn it is: a
+ * producer may fill slot {@code i} when its sequence equals the producer's ticket,
+ * a consumer may empty it when the sequence is one past its ticket. Tickets are
+ * claimed with a single CAS on {@code tail} or {@code head}, so offering never
+ * blocks and never allocates; a full queue simply refuses the element and lets the
+ * caller decide what to drop.
+ */
+public class BoundedQueue<T> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity minimum number of elements; rounded up to a power of two
+     */
+    public BoundedQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element at the tail.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        long ticket = tail.get();
+        while (true) {
+            int index = (int) ticket & mask;
+            long diff = sequences.get(index) - ticket;
+            if (diff == 0) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    items[index] = item;
+                    sequences.set(index, ticket + 1); // publish to consumers
+                    return true;
+                }
+                ticket = tail.get();
+            } else if (diff < 0) {
+                return false; // the slot still holds an element from one lap ago
+            } else {
+                ticket = tail.get(); // another producer took this ticket
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the element at the head, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long ticket = head.get();
+        while (true) {
+            int index = (int) ticket & mask;
+            long diff = sequences.get(index) - (ticket + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(ticket, ticket + 1)) {
+                    T item = (T) items[index];
+                    items[index] = null;
+                    sequences.set(index, ticket + mask + 1); // free the slot for the next lap
+                    return item;
+                }
+                ticket = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                ticket = head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of elements, which may be stale by the time it is used.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,313 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process bus announcing every change made to a {@link MedicineRegistry}, so other
+ * components (reminders, slot bookkeeping, a UI, replication) can react instead of
+ * polling the registry or rescanning its history.
+ *
+ * Changes are written into a ring of pre-allocated {@link Change} slots by a single
+ * writer (the registry, under its write lock), so publishing never allocates and never
+ * waits. Every {@link Subscription} keeps its own sequence and reads the ring at its
+ * own pace. A subscriber that falls more than a lap behind does not hold the writer
+ * back: the changes it missed are overwritten, skipped and counted as lost, and it
+ * carries on with the oldest change still in the ring.
+ *
+ * Each slot carries the sequence it holds. The writer marks a slot as being written
+ * before filling it and publishes the sequence afterwards; a reader copies the slot
+ * and checks the sequence again, so a slot overwritten while it was being read is
+ * detected rather than delivered torn.
+ */
+public class ChangeBus {
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Idle workers re-check the ring at least this often
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Empty polls a worker spins through before it parks, so bursts need no wake-ups;
+    // spinning only helps if the writer has a core of its own
+    private static final int IDLE_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1_000 : 0;
+    // Sequence stored in a slot while the writer is filling it
+    private static final long WRITING = -1;
+
+    /**
+     * Kinds of registry changes.
+     */
+    public enum Kind {
+        /** A medicine was registered; carries its schedule. */
+        ADDED,
+        /** A medicine was removed. */
+        REMOVED,
+        /** A medicine was replaced by one with a new name; carries the new name and schedule. */
+        RENAMED,
+        /** The schedule of a medicine was replaced; carries the new schedule. */
+        SCHEDULE_REPLACED
+    }
+
+    /**
+     * One change. Instances are reused: the bus owns one per ring slot and every
+     * subscription copies into its own, so a change handed to a {@link Listener} is only
+     * valid until the listener returns.
+     */
+    public static final class Change {
+        private long sequence;
+        private Kind kind;
+        private long timestamp;
+        private String name;
+        private String newName;
+        private MedicineSchedule schedule;
+
+        /** Position of the change on the bus, counting from 0. */
+        public long getSequence() { return sequence; }
+        public Kind getKind() { return kind; }
+        /** When the change was made, in epoch millis (the time recorded in history). */
+        public long getTimestamp() { return timestamp; }
+        public String getName() { return name; }
+        /** New name for {@link Kind#RENAMED}, otherwise null. */
+        public String getNewName() { return newName; }
+        /** Schedule after the change, or null for {@link Kind#REMOVED}. */
+        public MedicineSchedule getSchedule() { return schedule; }
+
+        private void copyFrom(Change other) {
+            kind = other.kind;
+            timestamp = other.timestamp;
+            name = other.name;
+            newName = other.newName;
+            schedule = other.schedule;
+        }
+    }
+
+    /**
+     * Receives changes in the order they were published.
+     */
+    public interface Listener {
+        void onChange(Change change);
+    }
+
+    private final Change[] ring;
+    private final AtomicLongArray published;
+    private final int mask;
+    // Sequence of the last published change; written by the single writer only
+    private volatile long cursor = -1;
+    // Replaced, never mutated, when subscribers come and go, so publishing can iterate it freely
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param capacity changes kept for slow subscribers; rounded up to a power of two
+     */
+    public ChangeBus(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid change bus capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Change[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Change();
+            published.set(i, WRITING); // nothing published yet
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Publishes a change. Single writer only; never blocks and never allocates.
+     */
+    public void publish(Kind kind, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        long sequence = cursor + 1;
+        int index = (int) sequence & mask;
+        published.lazySet(index, WRITING);
+        VarHandle.storeStoreFence(); // the mark must be visible before any field changes
+        Change slot = ring[index];
+        slot.sequence = sequence;
+        slot.kind = kind;
+        slot.timestamp = timestamp;
+        slot.name = name;
+        slot.newName = newName;
+        slot.schedule = schedule;
+        published.lazySet(index, sequence); // ordered after the fields; the cursor write fences
+        cursor = sequence;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.idle) {
+                subscription.idle = false; // one wake-up is enough for a burst of changes
+                LockSupport.unpark(subscription.worker);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence of the last published change, or -1 if there was none.
+     */
+    public long cursor() {
+        return cursor;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Subscribes to the changes published from now on. The subscription is read with
+     * {@link Subscription#poll} or by a worker started with {@link Subscription#start}.
+     *
+     * @param name short name used for the worker thread
+     */
+    public synchronized Subscription subscribe(String name) {
+        Subscription subscription = new Subscription(name, cursor + 1);
+        Subscription[] current = subscriptions;
+        Subscription[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = subscription;
+        subscriptions = grown;
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] shrunk = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                subscriptions = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * One consumer's position on the bus. A subscription is read by one thread at a time.
+     */
+    public final class Subscription implements Runnable {
+        private final String name;
+        private final Change current = new Change();
+        // Sequence of the next change to read
+        private volatile long next;
+        private volatile long lost;
+        private volatile Listener listener;
+        private volatile Thread worker;
+        // Set while the worker is about to park, so the writer only unparks it then
+        private volatile boolean idle;
+        private volatile boolean closed;
+
+        private Subscription(String name, long next) {
+            this.name = name;
+            this.next = next;
+        }
+
+        public String getName() { return name; }
+
+        /**
+         * Hands up to {@code limit} waiting changes to the listener, oldest first.
+         *
+         * @return the number of changes delivered
+         */
+        public int poll(Listener listener, int limit) {
+            long sequence = next;
+            int delivered = 0;
+            while (delivered < limit) {
+                long last = cursor;
+                if (sequence > last) {
+                    break;
+                }
+                if (last - sequence >= ring.length) {
+                    // Lapped: everything before the oldest change still in the ring is gone
+                    long oldest = last - ring.length + 1;
+                    lost += oldest - sequence;
+                    sequence = oldest;
+                }
+                int index = (int) sequence & mask;
+                if (published.get(index) != sequence) {
+                    continue; // overwritten since the cursor was read; re-check the lap
+                }
+                current.copyFrom(ring[index]);
+                VarHandle.loadLoadFence(); // finish the copy before checking the slot again
+                if (published.get(index) != sequence) {
+                    continue;
+                }
+                current.sequence = sequence;
+                sequence++;
+                next = sequence;
+                listener.onChange(current);
+                delivered++;
+            }
+            return delivered;
+        }
+
+        /**
+         * Starts a daemon worker that hands every change to the listener until the
+         * subscription is closed. Calling it twice has no effect.
+         */
+        public synchronized void start(Listener listener) {
+            if (worker != null || closed) {
+                return;
+            }
+            this.listener = listener;
+            Thread thread = new Thread(this, "changes-" + name);
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            Listener target = listener;
+            int spins = 0;
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                try {
+                    if (poll(target, ring.length) > 0) {
+                        spins = 0;
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println(Medicine.RED + "Change listener " + name + " failed: " + e.getMessage() + Medicine.RESET);
+                    continue;
+                }
+                if (++spins < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                spins = 0;
+                // Announce the park before re-checking, so a change published in between is seen
+                idle = true;
+                if (next > cursor && !closed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+
+        /**
+         * Returns how many published changes this subscription has not read yet.
+         */
+        public long lag() {
+            return Math.max(0, cursor + 1 - next);
+        }
+
+        /**
+         * Returns how many changes were overwritten before this subscription read them.
+         */
+        public long lost() {
+            return lost;
+        }
+
+        /**
+         * Unsubscribes and stops the worker, if any, waiting for it up to {@code timeoutMillis}.
+         */
+        public void close(long timeoutMillis) {
+            closed = true;
+            unsubscribe(this);
+            Thread thread = worker;
+            if (thread != null && thread != Thread.currentThread()) {
+                LockSupport.unpark(thread);
+                try {
+                    thread.join(timeoutMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
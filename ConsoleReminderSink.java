@@ -0,0 +1,42 @@
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Prints reminders on the console, one write per batch. Stock alerts are printed in
+ * yellow, dose reminders in purple.
+ */
+public class ConsoleReminderSink implements ReminderSink {
+    private final PrintStream out;
+    private final boolean colors;
+
+    /**
+     * @param out    stream to print to
+     * @param colors whether to emit ANSI color codes
+     */
+    public ConsoleReminderSink(PrintStream out, boolean colors) {
+        this.out = out;
+        this.colors = colors;
+    }
+
+    @Override
+    public String name() {
+        return "console";
+    }
+
+    @Override
+    public void deliver(List<ReminderPipeline.Reminder> batch) {
+        StringBuilder sb = new StringBuilder(batch.size() * 80);
+        for (ReminderPipeline.Reminder reminder : batch) {
+            if (colors) {
+                sb.append(reminder.isAlert() ? Medicine.YELLOW : Medicine.PURPLE);
+            }
+            sb.append(reminder.isAlert() ? "" : "Reminder: ").append(reminder.message());
+            if (colors) {
+                sb.append(Medicine.RESET);
+            }
+            sb.append(System.lineSeparator());
+        }
+        out.print(sb);
+        out.flush();
+    }
+}
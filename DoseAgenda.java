@@ -0,0 +1,108 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Upcoming doses of a patient's medicines, in time order.
+ *
+ * Every medicine contributes a lazy sequence of occurrences
+ * ({@link MedicineSchedule#nextDoseAfter}); the sequences are merged through a heap
+ * keyed by each one's next occurrence. Taking the first N doses therefore costs
+ * O(N log M) for M medicines, and a week of doses is never built up front, so an
+ * agenda can be abandoned after the first page at no extra cost.
+ */
+public class DoseAgenda implements Iterator<DoseAgenda.Dose> {
+
+    /**
+     * One upcoming dose.
+     */
+    public static final class Dose {
+        private final String medicineName;
+        private final LocalDateTime time;
+
+        Dose(String medicineName, LocalDateTime time) {
+            this.medicineName = medicineName;
+            this.time = time;
+        }
+
+        public String getMedicineName() { return medicineName; }
+        public LocalDateTime getTime() { return time; }
+
+        @Override
+        public String toString() {
+            return medicineName + " at " + time;
+        }
+    }
+
+    /**
+     * The occurrences of one medicine, positioned on the next one not yet returned.
+     */
+    private static final class Occurrences implements Comparable<Occurrences> {
+        final String medicineName;
+        final MedicineSchedule schedule;
+        LocalDateTime next;
+
+        Occurrences(String medicineName, MedicineSchedule schedule, LocalDateTime next) {
+            this.medicineName = medicineName;
+            this.schedule = schedule;
+            this.next = next;
+        }
+
+        @Override
+        public int compareTo(Occurrences other) {
+            int byTime = next.compareTo(other.next);
+            return byTime != 0 ? byTime : medicineName.compareTo(other.medicineName);
+        }
+    }
+
+    private final PriorityQueue<Occurrences> heap;
+    private final LocalDateTime until;
+
+    /**
+     * Creates an agenda of the doses strictly after {@code from} (minute precision)
+     * and up to and including {@code until}. Schedules are read once, so later
+     * changes to the medicines do not affect an agenda in progress.
+     *
+     * @param entries medicines to include; entries without a schedule are skipped
+     */
+    public DoseAgenda(Collection<MedicineRegistry.Entry> entries, LocalDateTime from, LocalDateTime until) {
+        this.until = until;
+        List<Occurrences> first = new ArrayList<>(entries.size());
+        for (MedicineRegistry.Entry entry : entries) {
+            MedicineSchedule schedule = entry.getSchedule();
+            if (schedule == null) {
+                continue;
+            }
+            LocalDateTime next = schedule.nextDoseAfter(from);
+            if (next != null && !next.isAfter(until)) {
+                first.add(new Occurrences(entry.getName(), schedule, next));
+            }
+        }
+        // Heapify all first occurrences at once: O(M) instead of M inserts
+        this.heap = new PriorityQueue<>(first);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public Dose next() {
+        Occurrences head = heap.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        Dose dose = new Dose(head.medicineName, head.next);
+        LocalDateTime following = head.schedule.nextDoseAfter(head.next);
+        if (following != null && !following.isAfter(until)) {
+            head.next = following;
+            heap.add(head);
+        }
+        return dose;
+    }
+}
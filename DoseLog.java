@@ -0,0 +1,571 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the taken, skipped and missed doses of one patient.
+ *
+ * Every dose whose reminder fires becomes pending. The patient confirms it as taken
+ * or skipped; a dose still pending {@code grace} minutes after it was due is marked
+ * missed by the reminder engine. Outcomes are kept in primitive columns like
+ * {@link HistoryStore} (about 25 bytes per dose) and added to the running
+ * {@link AdherenceStats} as they are recorded, so reading adherence never rescans
+ * the log; {@link #recompute} rebuilds the stats from the whole log on a fork-join
+ * pool.
+ *
+ * When opened on a file, every outcome is appended as a checksummed record
+ * {@code [length][crc32][outcome][due millis][due day][recorded millis][name]} and
+ * synced before the call returns; a torn record at the end is truncated on load.
+ * Pending doses are kept in memory only.
+ */
+public class DoseLog implements Closeable {
+    public static final long DEFAULT_GRACE_MINUTES = 60;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 4096 doses per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // Recompute leaf tasks handle at most this many doses
+    private static final int RECOMPUTE_SLICE = 1 << 16;
+
+    /**
+     * What happened to a dose. The ordinal is the value stored in the outcome column.
+     */
+    public enum Outcome {
+        TAKEN("taken"), SKIPPED("skipped"), MISSED("missed");
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() { return label; }
+
+        private static final Outcome[] VALUES = values();
+
+        static Outcome of(byte code) {
+            return VALUES[code];
+        }
+
+        /**
+         * Parses "taken" or "skipped" (any case), the outcomes a patient can confirm.
+         *
+         * @throws IllegalArgumentException for anything else
+         */
+        public static Outcome confirmable(String value) {
+            if (value != null) {
+                if (value.trim().equalsIgnoreCase(TAKEN.label)) {
+                    return TAKEN;
+                }
+                if (value.trim().equalsIgnoreCase(SKIPPED.label)) {
+                    return SKIPPED;
+                }
+            }
+            throw new IllegalArgumentException("Outcome must be taken or skipped.");
+        }
+    }
+
+    /**
+     * One dose, materialized on demand. Pending doses have no outcome yet.
+     */
+    public static final class Dose {
+        private final String medicineName;
+        private final long dueMillis;
+        private final Outcome outcome;
+        private final long recordedMillis;
+
+        Dose(String medicineName, long dueMillis, Outcome outcome, long recordedMillis) {
+            this.medicineName = medicineName;
+            this.dueMillis = dueMillis;
+            this.outcome = outcome;
+            this.recordedMillis = recordedMillis;
+        }
+
+        public String getMedicineName() { return medicineName; }
+        /** When the dose was due, in epoch millis. */
+        public long getDueMillis() { return dueMillis; }
+        /** What happened to the dose, or null while it is pending. */
+        public Outcome getOutcome() { return outcome; }
+        /** When the outcome was recorded, in epoch millis (0 while pending). */
+        public long getRecordedMillis() { return recordedMillis; }
+
+        /**
+         * Returns the due time as "yyyy-MM-dd HH:mm".
+         */
+        public String getFormattedDueTime() {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(dueMillis), ZoneId.systemDefault());
+            return time.toLocalDate() + " " + MedicineSchedule.formatTime(time.getHour() * 60 + time.getMinute());
+        }
+    }
+
+    /**
+     * A fired dose waiting for its outcome.
+     */
+    private static final class Pending {
+        String medicineName;
+        final long dueMillis;
+        final long dueDay;
+        boolean resolved;
+
+        Pending(String medicineName, long dueMillis, long dueDay) {
+            this.medicineName = medicineName;
+            this.dueMillis = dueMillis;
+            this.dueDay = dueDay;
+        }
+    }
+
+    // Outcome columns; the outer arrays are replaced (never mutated in place) when they grow
+    private volatile long[][] dueMillis = new long[0][];
+    private volatile int[][] dueDays = new int[0][];
+    private volatile long[][] recordedMillis = new long[0][];
+    private volatile byte[][] outcomes = new byte[0][];
+    private volatile int[][] ids = new int[0][];
+    private volatile int size;
+    private final Map<String, Integer> idsByName = new HashMap<>();
+    private volatile String[] names = new String[16];
+    private int nameCount;
+
+    // Pending doses in the order they fired, which is also the order their grace ends
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final Map<String, ArrayDeque<Pending>> pendingByMedicine = new HashMap<>();
+    // End of the earliest unresolved grace window, read without the lock by the engine
+    private volatile long nextDeadline = Long.MAX_VALUE;
+    private volatile long graceMillis = TimeUnit.MINUTES.toMillis(DEFAULT_GRACE_MINUTES);
+
+    private volatile AdherenceStats stats = new AdherenceStats();
+
+    // Guarded by this
+    private FileChannel channel;
+    private Path file;
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(128);
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    // Framed records not yet written to the file
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream(256);
+    private final DataOutputStream unwrittenOut = new DataOutputStream(unwritten);
+    private final CRC32 crc = new CRC32();
+    private boolean writeFailed;
+
+    /**
+     * Loads the outcomes saved in {@code file}, if it exists, and appends every new
+     * one to it. Must be called before the log is used.
+     */
+    synchronized void open(Path file) throws IOException {
+        this.file = file;
+        long validEnd = 0;
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long fileSize = opened.size();
+            if (fileSize > 0) {
+                MappedByteBuffer buffer = opened.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                CRC32 check = new CRC32();
+                while (buffer.remaining() >= 8) {
+                    int length = buffer.getInt();
+                    int expected = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    ByteBuffer payload = buffer.slice().limit(length);
+                    check.reset();
+                    check.update(payload.duplicate());
+                    if ((int) check.getValue() != expected) {
+                        break;
+                    }
+                    buffer.position(buffer.position() + length);
+                    Outcome outcome = Outcome.of(payload.get());
+                    long due = payload.getLong();
+                    int day = payload.getInt();
+                    long recorded = payload.getLong();
+                    count(stats, append(MedicineJournal.readString(payload), outcome, due, day, recorded));
+                    validEnd = buffer.position();
+                }
+            }
+            if (validEnd < fileSize) {
+                System.out.println(Medicine.YELLOW + "Truncating incomplete dose log tail in " + file.getFileName() + Medicine.RESET);
+                opened.truncate(validEnd);
+            }
+            opened.position(validEnd);
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+    }
+
+    /**
+     * Sets how long a fired dose may stay unconfirmed before it counts as missed.
+     */
+    public void setGraceMinutes(long minutes) {
+        if (minutes < 1) {
+            throw new IllegalArgumentException("Grace period must be at least one minute.");
+        }
+        graceMillis = TimeUnit.MINUTES.toMillis(minutes);
+        synchronized (this) {
+            updateDeadline();
+        }
+    }
+
+    public long getGraceMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(graceMillis);
+    }
+
+    /**
+     * Registers a dose whose reminder just fired, so it can be confirmed.
+     *
+     * @param due       when the dose was due
+     * @param dueMillis the same moment in epoch millis
+     */
+    synchronized void fired(String medicineName, LocalDateTime due, long dueMillis) {
+        Pending dose = new Pending(medicineName, dueMillis, due.toLocalDate().toEpochDay());
+        pending.addLast(dose);
+        pendingByMedicine.computeIfAbsent(medicineName, name -> new ArrayDeque<>()).addLast(dose);
+        updateDeadline();
+    }
+
+    /**
+     * Records the outcome of the oldest pending dose of a medicine.
+     *
+     * @param outcome {@link Outcome#TAKEN} or {@link Outcome#SKIPPED}
+     * @return the confirmed dose
+     * @throws IllegalArgumentException if no dose of the medicine is pending
+     */
+    public synchronized Dose confirm(String medicineName, Outcome outcome, long nowMillis) {
+        if (outcome == Outcome.MISSED) {
+            throw new IllegalArgumentException("Outcome must be taken or skipped.");
+        }
+        ArrayDeque<Pending> doses = pendingByMedicine.get(medicineName);
+        if (doses == null || doses.isEmpty()) {
+            throw new IllegalArgumentException("No dose of " + medicineName + " is waiting for confirmation.");
+        }
+        Pending dose = doses.pollFirst();
+        if (doses.isEmpty()) {
+            pendingByMedicine.remove(medicineName);
+        }
+        dose.resolved = true;
+        resolve(dose, outcome, nowMillis);
+        flush();
+        updateDeadline();
+        return new Dose(medicineName, dose.dueMillis, outcome, nowMillis);
+    }
+
+    /**
+     * Marks every dose whose grace window ended at or before {@code nowMillis} as
+     * missed. Called by the reminder engine.
+     *
+     * @return the number of doses marked missed
+     */
+    synchronized int expire(long nowMillis) {
+        int missed = 0;
+        long grace = graceMillis;
+        Pending head;
+        while ((head = pending.peekFirst()) != null && (head.resolved || head.dueMillis + grace <= nowMillis)) {
+            pending.pollFirst();
+            if (head.resolved) {
+                continue;
+            }
+            head.resolved = true;
+            ArrayDeque<Pending> doses = pendingByMedicine.get(head.medicineName);
+            if (doses != null) {
+                doses.remove(head); // the oldest of its medicine, so at the front
+                if (doses.isEmpty()) {
+                    pendingByMedicine.remove(head.medicineName);
+                }
+            }
+            resolve(head, Outcome.MISSED, nowMillis);
+            missed++;
+        }
+        if (missed > 0) {
+            flush();
+        }
+        updateDeadline();
+        return missed;
+    }
+
+    /**
+     * Returns when the earliest pending dose turns missed (epoch millis), or
+     * Long.MAX_VALUE if nothing is pending. Does not lock.
+     */
+    long nextDeadline() {
+        return nextDeadline;
+    }
+
+    /**
+     * Returns the pending doses, oldest first.
+     */
+    public synchronized List<Dose> pending() {
+        List<Dose> result = new ArrayList<>(pending.size());
+        for (Pending dose : pending) {
+            if (!dose.resolved) {
+                result.add(new Dose(dose.medicineName, dose.dueMillis, null, 0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of pending doses.
+     */
+    public synchronized int pendingCount() {
+        int count = 0;
+        for (ArrayDeque<Pending> doses : pendingByMedicine.values()) {
+            count += doses.size();
+        }
+        return count;
+    }
+
+    /**
+     * Moves the pending doses of a renamed medicine to its new name. Recorded
+     * outcomes keep the name they were recorded under.
+     */
+    synchronized void renamed(String oldName, String newName) {
+        ArrayDeque<Pending> doses = pendingByMedicine.remove(oldName);
+        if (doses == null) {
+            return;
+        }
+        for (Pending dose : doses) {
+            dose.medicineName = newName;
+        }
+        ArrayDeque<Pending> existing = pendingByMedicine.get(newName);
+        if (existing == null) {
+            pendingByMedicine.put(newName, doses);
+        } else {
+            // Keep each medicine's queue in due order
+            List<Pending> merged = new ArrayList<>(existing);
+            merged.addAll(doses);
+            merged.sort(Comparator.comparingLong(dose -> dose.dueMillis));
+            pendingByMedicine.put(newName, new ArrayDeque<>(merged));
+        }
+    }
+
+    /**
+     * Drops the pending doses of a deleted medicine without recording them.
+     */
+    synchronized void forget(String medicineName) {
+        ArrayDeque<Pending> doses = pendingByMedicine.remove(medicineName);
+        if (doses != null) {
+            for (Pending dose : doses) {
+                dose.resolved = true;
+            }
+            updateDeadline();
+        }
+    }
+
+    /**
+     * Returns the number of recorded outcomes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the recorded dose at the given position (0 = oldest).
+     */
+    public Dose get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Dose " + index + " of " + size);
+        }
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+        return new Dose(names[ids[chunk][offset]], dueMillis[chunk][offset], Outcome.of(outcomes[chunk][offset]),
+                recordedMillis[chunk][offset]);
+    }
+
+    /**
+     * Returns the running adherence statistics.
+     */
+    public AdherenceStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Rebuilds the adherence statistics from every recorded outcome, splitting the
+     * log over the common fork-join pool, and replaces the running ones with them.
+     * Outcomes recorded meanwhile are added before the swap.
+     *
+     * @return the rebuilt statistics
+     */
+    public AdherenceStats recompute() {
+        int covered = size;
+        AdherenceStats rebuilt = new Slice(0, covered).invoke();
+        synchronized (this) {
+            for (int i = covered; i < size; i++) {
+                count(rebuilt, i);
+            }
+            stats = rebuilt;
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Closes the log file, if any.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // ---- Internals ----
+
+    /**
+     * Records an outcome in the columns, the stats and the metrics, and queues it
+     * for the file. Caller holds the lock.
+     */
+    private void resolve(Pending dose, Outcome outcome, long nowMillis) {
+        int index = append(dose.medicineName, outcome, dose.dueMillis, (int) dose.dueDay, nowMillis);
+        count(stats, index);
+        MedicineMetrics.get().recordDoseOutcome(outcome);
+        if (channel == null) {
+            return;
+        }
+        try {
+            scratch.reset();
+            scratchOut.writeByte(outcome.ordinal());
+            scratchOut.writeLong(dose.dueMillis);
+            scratchOut.writeInt((int) dose.dueDay);
+            scratchOut.writeLong(nowMillis);
+            MedicineJournal.writeString(scratchOut, dose.medicineName);
+            scratchOut.flush();
+            byte[] payload = scratch.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            unwrittenOut.writeInt(payload.length);
+            unwrittenOut.writeInt((int) crc.getValue());
+            unwrittenOut.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams do not throw
+        }
+    }
+
+    /**
+     * Writes and syncs the records queued by {@link #resolve}. A failure is reported
+     * once; the outcomes stay in memory.
+     */
+    private void flush() {
+        if (channel == null || unwritten.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(unwritten.toByteArray());
+        unwritten.reset();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            writeFailed = false;
+        } catch (IOException e) {
+            if (!writeFailed) {
+                writeFailed = true;
+                System.out.println(Medicine.RED + "Could not write to the dose log " + file + ": " + e.getMessage() + Medicine.RESET);
+            }
+        }
+    }
+
+    /**
+     * Appends an outcome to the columns. Caller holds the lock (or is loading).
+     *
+     * @return its position
+     */
+    private int append(String medicineName, Outcome outcome, long due, int dueDay, long recorded) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        if (chunk == ids.length) {
+            grow();
+        }
+        int offset = index & CHUNK_MASK;
+        Integer id = idsByName.get(medicineName);
+        if (id == null) {
+            id = nameCount;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+            }
+            names[id] = medicineName;
+            idsByName.put(medicineName, id);
+            nameCount++;
+        }
+        dueMillis[chunk][offset] = due;
+        dueDays[chunk][offset] = dueDay;
+        recordedMillis[chunk][offset] = recorded;
+        outcomes[chunk][offset] = (byte) outcome.ordinal();
+        ids[chunk][offset] = id;
+        size = index + 1; // publish
+        return index;
+    }
+
+    private void grow() {
+        int chunks = ids.length + 1;
+        long[][] newDue = Arrays.copyOf(dueMillis, chunks);
+        int[][] newDays = Arrays.copyOf(dueDays, chunks);
+        long[][] newRecorded = Arrays.copyOf(recordedMillis, chunks);
+        byte[][] newOutcomes = Arrays.copyOf(outcomes, chunks);
+        int[][] newIds = Arrays.copyOf(ids, chunks);
+        newDue[chunks - 1] = new long[CHUNK_SIZE];
+        newDays[chunks - 1] = new int[CHUNK_SIZE];
+        newRecorded[chunks - 1] = new long[CHUNK_SIZE];
+        newOutcomes[chunks - 1] = new byte[CHUNK_SIZE];
+        newIds[chunks - 1] = new int[CHUNK_SIZE];
+        dueMillis = newDue;
+        dueDays = newDays;
+        recordedMillis = newRecorded;
+        outcomes = newOutcomes;
+        ids = newIds;
+    }
+
+    private void count(AdherenceStats into, int index) {
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+        into.record(names[ids[chunk][offset]], Outcome.of(outcomes[chunk][offset]), dueDays[chunk][offset]);
+    }
+
+    private void updateDeadline() {
+        Pending head;
+        while ((head = pending.peekFirst()) != null && head.resolved) {
+            pending.pollFirst();
+        }
+        nextDeadline = head == null ? Long.MAX_VALUE : head.dueMillis + graceMillis;
+    }
+
+    /**
+     * Counts the outcomes in {@code [from, to)}, splitting the range in halves until
+     * it is at most {@value #RECOMPUTE_SLICE} outcomes.
+     */
+    private final class Slice extends RecursiveTask<AdherenceStats> {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        Slice(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected AdherenceStats compute() {
+            if (to - from <= RECOMPUTE_SLICE) {
+                AdherenceStats partial = new AdherenceStats();
+                for (int i = from; i < to; i++) {
+                    count(partial, i);
+                }
+                return partial;
+            }
+            int mid = (from + to) >>> 1;
+            Slice left = new Slice(from, mid);
+            left.fork();
+            AdherenceStats right = new Slice(mid, to).compute();
+            AdherenceStats merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+}
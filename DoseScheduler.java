@@ -0,0 +1,540 @@
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Event-driven dose reminder scheduler.
+ *
+ * Instead of waking up every minute and scanning every schedule, this class keeps
+ * one entry per medicine in a priority queue ordered by the next time a dose is due.
+ * The background thread sleeps until the earliest entry becomes due, fires it, and
+ * re-inserts it with its following fire time, so each fire costs O(log n).
+ *
+ * Schedule changes (add, update, delete) are applied with {@link #schedule} and
+ * {@link #cancel}. Replaced entries are marked cancelled and dropped lazily when
+ * they reach the head of the queue, which keeps updates O(log n) as well.
+ *
+ * Due doses are handed to a {@link ReminderPipeline} when one is set, so slow output
+ * never holds up the next fire; without one they are printed directly. Each fired
+ * dose is also taken off the medicine's {@link MedicineStock}, if one is set, and a
+ * resulting low-stock alert goes the same way as the reminder. Fired doses are also
+ * registered with the patient's {@link DoseLog}, if one is set, to await
+ * confirmation; the scheduler marks them missed once their grace window ends.
+ *
+ * With {@link DoseWatermarks} set, each dose fires exactly once. Before a batch of
+ * reminders is handed on, the due time of the last dose of each medicine in it is
+ * synced as that medicine's watermark; if that fails the batch is held back and
+ * tried again on a later pass. Schedules restored after a restart ({@link #resume})
+ * continue from their watermark instead of from now. An entry that is overdue
+ * (after a restart, a long pause or a stall) fires every dose it owes, oldest first
+ * and marked late, up to {@value #MAX_CATCH_UP_DOSES} per entry and batch. A
+ * {@link Ward} takes the batches of many patients ({@link #takeDue}), syncs the
+ * shared watermarks once and then fires them ({@link #fire}).
+ *
+ * A scheduler either runs its own thread ({@link #start}) or is driven from outside
+ * through {@link #fireDue} and {@link #nextFireMillis}, which is how a {@link Ward}
+ * evaluates many patients on a shared fork-join pool. Time comes from an
+ * {@link EngineClock}, so the same code runs against simulated time.
+ */
+public class DoseScheduler {
+    // Overdue doses of one entry fired per batch; further batches follow in the same pass
+    private static final int MAX_CATCH_UP_DOSES = 1024;
+    // Longest wait for a sink to make room for overdue doses before they may be dropped
+    private static final long CATCH_UP_WAIT_MILLIS = 10_000;
+    // Queue of pending entries ordered by their next fire time
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    // Current (non-cancelled) entry for each medicine
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Patient shown in reminders, or null for a single-patient setup
+    private final String patientId;
+    private final EngineClock clock;
+    // Told the new earliest fire time whenever a schedule is added (may be null)
+    private volatile LongConsumer wakeListener;
+    // Delivers fired reminders asynchronously (null: print them directly)
+    private volatile ReminderPipeline reminders;
+    // Stock of the patient's medicines (null: stock is not tracked)
+    private volatile MedicineStock stock;
+    // Dose log fired doses wait in for confirmation (null: not recorded)
+    private volatile DoseLog doses;
+    // Durable fired-up-to time of each medicine (null: doses owed before now are dropped)
+    private volatile DoseWatermarks marks;
+    // Patient the watermarks are kept under
+    private volatile String markKey;
+    private Thread worker;
+
+    public DoseScheduler() {
+        this(null);
+    }
+
+    /**
+     * @param patientId patient named in the reminders, or null to omit it
+     */
+    public DoseScheduler(String patientId) {
+        this(patientId, EngineClock.SYSTEM);
+    }
+
+    /**
+     * @param patientId patient named in the reminders, or null to omit it
+     * @param clock     source of the current time
+     */
+    public DoseScheduler(String patientId, EngineClock clock) {
+        this.patientId = patientId;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the callback that receives the fire time (epoch millis) of every newly
+     * scheduled entry, so an external driver can wake up earlier than planned.
+     */
+    public void setWakeListener(LongConsumer wakeListener) {
+        this.wakeListener = wakeListener;
+    }
+
+    /**
+     * Sets the pipeline fired reminders are handed to, or null to print them directly.
+     */
+    public void setReminderPipeline(ReminderPipeline reminders) {
+        this.reminders = reminders;
+    }
+
+    /**
+     * Sets the stock fired doses are taken from and told about schedule changes.
+     */
+    public void setStock(MedicineStock stock) {
+        this.stock = stock;
+    }
+
+    /**
+     * Sets the dose log fired doses are registered with and expired in.
+     */
+    public void setDoseLog(DoseLog doses) {
+        this.doses = doses;
+    }
+
+    /**
+     * Sets the watermarks fired doses are recorded in and restored schedules resume
+     * from, kept under the given patient id.
+     */
+    public void setWatermarks(DoseWatermarks marks, String patientId) {
+        this.markKey = patientId;
+        this.marks = marks;
+    }
+
+    /**
+     * One pending reminder: the medicine, its schedule and when it is next due.
+     */
+    private static class Entry implements Comparable<Entry> {
+        final String medicineName;
+        final MedicineSchedule schedule;
+        LocalDateTime nextFire;
+        // nextFire as epoch millis, so peeking never converts time zones
+        long nextFireMillis;
+        boolean cancelled;
+
+        Entry(String medicineName, MedicineSchedule schedule, LocalDateTime nextFire) {
+            this.medicineName = medicineName;
+            this.schedule = schedule;
+            setNextFire(nextFire);
+        }
+
+        void setNextFire(LocalDateTime nextFire) {
+            this.nextFire = nextFire;
+            this.nextFireMillis = toMillis(nextFire);
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Long.compare(nextFireMillis, other.nextFireMillis);
+        }
+    }
+
+    /**
+     * Starts the background reminder thread. Calling it twice has no effect.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::run, "dose-scheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the background reminder thread.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Registers or replaces the schedule of a medicine and recomputes its next fire time.
+     *
+     * @param medicineName name of the medicine
+     * @param schedule     the new schedule
+     */
+    public void schedule(String medicineName, MedicineSchedule schedule) {
+        LocalDateTime now = clock.now();
+        DoseWatermarks current = marks;
+        if (current != null) {
+            // Doses before a schedule was set are not owed, even after a restart
+            current.advance(markKey, medicineName, toMillis(now));
+            current.write();
+        }
+        schedule(medicineName, schedule, now);
+    }
+
+    /**
+     * Registers a schedule restored from disk. Its first dose is the first after the
+     * medicine's watermark, so doses that came due while reminders were not running
+     * fire, late, on the next pass; without a watermark it starts from now.
+     */
+    public void resume(String medicineName, MedicineSchedule schedule) {
+        DoseWatermarks current = marks;
+        long mark = current == null ? DoseWatermarks.NONE : current.get(markKey, medicineName);
+        if (mark == DoseWatermarks.NONE) {
+            schedule(medicineName, schedule);
+        } else {
+            schedule(medicineName, schedule, toDateTime(mark));
+        }
+    }
+
+    /**
+     * Registers or replaces the schedule of a medicine with its first dose after
+     * {@code after}, which may lie in the past: doses due since then fire, late, on
+     * the next pass. Doses at or before the medicine's watermark never fire again.
+     */
+    public synchronized void schedule(String medicineName, MedicineSchedule schedule, LocalDateTime after) {
+        cancelEntry(medicineName);
+        DoseWatermarks current = marks;
+        long mark = current == null ? DoseWatermarks.NONE : current.get(markKey, medicineName);
+        if (mark != DoseWatermarks.NONE && mark > toMillis(after)) {
+            after = toDateTime(mark);
+        }
+        MedicineStock currentStock = stock;
+        if (currentStock != null) {
+            currentStock.scheduleChanged(medicineName, schedule);
+        }
+        if (schedule == null) {
+            return;
+        }
+        LocalDateTime next = schedule.nextDoseAfter(after);
+        if (next == null) {
+            return; // schedule has no valid day/time combination
+        }
+        Entry entry = new Entry(medicineName, schedule, next);
+        entries.put(medicineName, entry);
+        queue.add(entry);
+        notifyAll(); // the new entry may be due earlier than the one we are sleeping on
+        LongConsumer listener = wakeListener;
+        if (listener != null) {
+            listener.accept(entry.nextFireMillis);
+        }
+    }
+
+    /**
+     * Removes a medicine from the scheduler so it no longer fires reminders.
+     *
+     * @param medicineName name of the medicine
+     */
+    public synchronized void cancel(String medicineName) {
+        if (cancelEntry(medicineName)) {
+            notifyAll();
+        }
+        DoseWatermarks current = marks;
+        if (current != null) {
+            current.forget(markKey, medicineName);
+        }
+    }
+
+    /**
+     * Returns the number of medicines currently scheduled.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean cancelEntry(String medicineName) {
+        Entry old = entries.remove(medicineName);
+        if (old == null) {
+            return false;
+        }
+        old.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Returns the time (epoch millis) the earliest entry is due or the earliest fired
+     * dose turns missed, or Long.MAX_VALUE if there is neither.
+     */
+    public synchronized long nextFireMillis() {
+        Entry head = peekLive();
+        DoseLog log = doses;
+        long deadline = log == null ? Long.MAX_VALUE : log.nextDeadline();
+        return Math.min(head == null ? Long.MAX_VALUE : head.nextFireMillis, deadline);
+    }
+
+    /**
+     * Fires every entry due at or before {@code now} and re-queues each one with its
+     * following occurrence, after marking fired doses whose grace window ended by
+     * {@code now} as missed. Reminders are printed outside the lock.
+     *
+     * An entry that is overdue fires every dose it owes up to {@code now} in the same
+     * call, rather than one per pass. If the watermarks cannot be synced, the due
+     * entries stay due and fire on a later call.
+     *
+     * @return the number of doses fired
+     */
+    public int fireDue(LocalDateTime now) {
+        expireMissed(now);
+        DoseWatermarks currentMarks = marks;
+        int fired = 0;
+        Batch batch;
+        while ((batch = takeDue(now)) != null) {
+            if (currentMarks != null && !currentMarks.sync()) {
+                putBack(batch);
+                break;
+            }
+            fired += fire(batch);
+        }
+        return fired;
+    }
+
+    /**
+     * Marks fired doses whose grace window ended by {@code now} as missed.
+     */
+    void expireMissed(LocalDateTime now) {
+        DoseLog log = doses;
+        if (log != null && log.nextDeadline() != Long.MAX_VALUE) {
+            log.expire(toMillis(now));
+        }
+    }
+
+    /**
+     * Takes the entries due at or before {@code now} off the queue with the doses
+     * they owe and advances their watermarks, which still have to be synced before
+     * the batch is passed to {@link #fire} (or back to {@link #putBack}).
+     *
+     * @return the batch, or null if nothing is due
+     */
+    Batch takeDue(LocalDateTime now) {
+        List<Entry> due = null; // only allocated when something is due
+        synchronized (this) {
+            Entry head;
+            while ((head = peekLive()) != null && !head.nextFire.isAfter(now)) {
+                if (due == null) {
+                    due = new ArrayList<>();
+                }
+                due.add(queue.poll());
+            }
+        }
+        if (due == null) {
+            return null;
+        }
+        // Every dose each entry owes up to now, and the dose after the last of them
+        List<Dose> owedDoses = new ArrayList<>(due.size());
+        LocalDateTime[] following = new LocalDateTime[due.size()];
+        boolean catchingUp = false;
+        for (int i = 0; i < due.size(); i++) {
+            Entry entry = due.get(i);
+            LocalDateTime time = entry.nextFire;
+            owedDoses.add(new Dose(entry, time, entry.nextFireMillis));
+            int owed = 1;
+            LocalDateTime next;
+            while ((next = entry.schedule.nextDoseAfter(time)) != null && !next.isAfter(now)
+                    && owed < MAX_CATCH_UP_DOSES) {
+                owedDoses.add(new Dose(entry, next, toMillis(next)));
+                time = next;
+                owed++;
+            }
+            following[i] = next;
+            catchingUp |= owed > 1;
+        }
+        if (catchingUp) {
+            owedDoses.sort(null); // oldest first across medicines, as the dose log expects
+        }
+        DoseWatermarks currentMarks = marks;
+        if (currentMarks != null) {
+            // Recorded as fired before they are handed on, so a restart never repeats them
+            synchronized (this) {
+                for (Dose dose : owedDoses) {
+                    if (!dose.entry.cancelled) {
+                        currentMarks.advance(markKey, dose.entry.medicineName, dose.millis);
+                    }
+                }
+            }
+        }
+        return new Batch(due, owedDoses, following, catchingUp);
+    }
+
+    /**
+     * Puts the entries of a batch whose watermarks could not be synced back on the
+     * queue unchanged, so they are due again on the next pass.
+     */
+    synchronized void putBack(Batch batch) {
+        for (Entry entry : batch.due) {
+            if (!entry.cancelled) {
+                queue.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Hands the doses of a batch on, once their watermarks are synced, and re-queues
+     * its entries after them. Reminders go out outside the lock, so slow output never
+     * blocks schedule changes.
+     *
+     * @return the number of doses fired
+     */
+    int fire(Batch batch) {
+        DoseLog log = doses;
+        MedicineMetrics metrics = MedicineMetrics.get();
+        ReminderPipeline pipeline = reminders;
+        MedicineStock currentStock = stock;
+        long firedMillis = clock.millis();
+        int room = 0;
+        for (Dose dose : batch.doses) {
+            String name = dose.entry.medicineName;
+            String alert = currentStock == null ? null : currentStock.consume(name, dose.time);
+            int needed = alert == null ? 1 : 2;
+            if (batch.catchingUp && pipeline != null && room < needed) {
+                // Hand overdue doses over no faster than the sinks take them
+                pipeline.awaitRoom(CATCH_UP_WAIT_MILLIS);
+                room = pipeline.room();
+            }
+            room -= needed;
+            if (pipeline != null) {
+                pipeline.offer(patientId, name, dose.time, dose.millis, firedMillis);
+                if (alert != null) {
+                    pipeline.offerAlert(patientId, name, dose.time, dose.millis, firedMillis, alert);
+                }
+            } else {
+                String label = patientId == null ? name : name + " (patient " + patientId + ")";
+                if (firedMillis - dose.millis >= ReminderPipeline.LATE_MILLIS) {
+                    System.out.println(Medicine.PURPLE + "Reminder: " + new ReminderPipeline.Reminder(patientId, name,
+                            dose.time, dose.millis, firedMillis, null).message() + Medicine.RESET);
+                } else {
+                    dose.entry.schedule.checkAndNotifyDose(label, dose.time);
+                }
+                if (alert != null) {
+                    System.out.println(Medicine.YELLOW + "Stock alert: " + label + ": " + alert + Medicine.RESET);
+                }
+            }
+            if (log != null) {
+                log.fired(name, dose.time, dose.millis);
+            }
+            metrics.recordFired(dose.millis, firedMillis);
+        }
+        synchronized (this) {
+            for (int i = 0; i < batch.due.size(); i++) {
+                Entry entry = batch.due.get(i);
+                if (entry.cancelled) {
+                    continue;
+                }
+                if (batch.following[i] == null) {
+                    entries.remove(entry.medicineName);
+                    continue;
+                }
+                entry.setNextFire(batch.following[i]);
+                queue.add(entry);
+            }
+        }
+        return batch.doses.size();
+    }
+
+    /**
+     * Entries taken off the queue by {@link #takeDue}, the doses they owe (oldest
+     * first when catching up) and the dose each entry is due next after them.
+     */
+    static final class Batch {
+        final List<Entry> due;
+        final List<Dose> doses;
+        final LocalDateTime[] following;
+        final boolean catchingUp;
+
+        Batch(List<Entry> due, List<Dose> doses, LocalDateTime[] following, boolean catchingUp) {
+            this.due = due;
+            this.doses = doses;
+            this.following = following;
+            this.catchingUp = catchingUp;
+        }
+    }
+
+    /**
+     * One dose owed by an entry, ordered by due time.
+     */
+    private static final class Dose implements Comparable<Dose> {
+        final Entry entry;
+        final LocalDateTime time;
+        final long millis;
+
+        Dose(Entry entry, LocalDateTime time, long millis) {
+            this.entry = entry;
+            this.time = time;
+            this.millis = millis;
+        }
+
+        @Override
+        public int compareTo(Dose other) {
+            return Long.compare(millis, other.millis);
+        }
+    }
+
+    /**
+     * Returns the earliest non-cancelled entry, dropping cancelled ones on the way.
+     */
+    private Entry peekLive() {
+        Entry head = queue.peek();
+        while (head != null && head.cancelled) {
+            queue.poll();
+            head = queue.peek();
+        }
+        return head;
+    }
+
+    /**
+     * Main loop of the reminder thread: waits for the earliest due entry, fires it
+     * and puts it back with its next occurrence.
+     */
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (this) {
+                    while (true) {
+                        long next = nextFireMillis();
+                        if (next == Long.MAX_VALUE) {
+                            wait();
+                            continue;
+                        }
+                        if (next > clock.millis()) {
+                            clock.await(this, next);
+                            continue;
+                        }
+                        break;
+                    }
+                }
+                fireDue(clock.now());
+                DoseWatermarks currentMarks = marks;
+                if (currentMarks != null && currentMarks.getFailure() != null) {
+                    Thread.sleep(DoseWatermarks.RETRY_MILLIS); // due doses are held back until the marks are written
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Reminder thread interrupted.");
+                return;
+            }
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
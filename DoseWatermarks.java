@@ -0,0 +1,409 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Durable "fired up to" mark of every scheduled medicine of every patient in a
+ * {@link Ward}: the due time of the last dose whose reminder fired, or the time its
+ * schedule was set if nothing has fired since. Every dose after the mark is still
+ * owed, every dose at or before it is not, so a {@link DoseScheduler} that resumes
+ * from the marks after a restart fires each dose that came due while it was down,
+ * and none twice.
+ *
+ * When opened on a file, every change is appended as a checksummed record
+ * {@code [length][crc32][millis][patient][medicine]}; a removed medicine gets a
+ * record with {@link #NONE}. On load the last record of each medicine wins and a
+ * torn record at the end is truncated. Fired doses are synced ({@link #sync}) before
+ * their reminders are handed on: a crash may lose the reminders of that one batch,
+ * but a restart never repeats them. All patients share the file, so one
+ * {@code force} covers every patient whose doses were marked meanwhile; a caller
+ * that finds its records already synced by another returns without syncing (group
+ * commit).
+ *
+ * Records stay queued until they are written. A failed write cuts the file back to
+ * the end of the last complete write, so a partial record never sits in front of
+ * later ones, and is retried at most every {@value #RETRY_MILLIS} ms; until then
+ * {@link #sync} returns false and the caller holds its reminders back. Once the file
+ * holds {@value #COMPACT_FACTOR} times more records than marks it is rewritten with
+ * one record each, to a temporary file that is synced and atomically renamed.
+ */
+public class DoseWatermarks implements Closeable {
+    /** Mark of a medicine that has none. */
+    public static final long NONE = Long.MIN_VALUE;
+    /** Shortest time between two attempts to write after a failure. */
+    static final long RETRY_MILLIS = 1_000;
+    private static final int COMPACT_FACTOR = 8;
+    // Files with fewer records than this are never compacted
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    // Marks by patient, then medicine
+    private final Map<String, Map<String, Long>> marks = new HashMap<>();
+    private final Object ioLock = new Object();
+
+    // Guarded by this
+    private Path file;
+    private int markCount;
+    private long records;
+    // Framed records not yet taken for writing, and the number queued so far
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream(256);
+    private final DataOutputStream unwrittenOut = new DataOutputStream(unwritten);
+    private long queued;
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(64);
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    private final CRC32 crc = new CRC32();
+    // Cause of the last failed write; null once a write succeeds
+    private IOException failure;
+
+    // Guarded by ioLock
+    private FileChannel channel;
+    // End of the last complete write
+    private long goodEnd;
+    // Records taken from unwritten but not yet written, and how many were queued by then
+    private byte[] taken;
+    private long takenUpTo;
+    private long writtenUpTo;
+    private long syncedUpTo;
+    private long nextRetryNanos;
+
+    /**
+     * Loads the marks saved in {@code file}, if it exists, and appends every change
+     * to it. Must be called before the marks are used.
+     */
+    void open(Path file) throws IOException {
+        synchronized (ioLock) {
+            synchronized (this) {
+                this.file = file;
+                long validEnd = 0;
+                FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                try {
+                    long fileSize = opened.size();
+                    if (fileSize > 0) {
+                        MappedByteBuffer buffer = opened.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                        CRC32 check = new CRC32();
+                        while (buffer.remaining() >= 8) {
+                            int length = buffer.getInt();
+                            int expected = buffer.getInt();
+                            if (length <= 0 || length > buffer.remaining()) {
+                                break;
+                            }
+                            ByteBuffer payload = buffer.slice().limit(length);
+                            check.reset();
+                            check.update(payload.duplicate());
+                            if ((int) check.getValue() != expected) {
+                                break;
+                            }
+                            buffer.position(buffer.position() + length);
+                            long millis = payload.getLong();
+                            String patientId = MedicineJournal.readString(payload);
+                            String medicineName = MedicineJournal.readString(payload);
+                            if (millis == NONE) {
+                                remove(patientId, medicineName);
+                            } else {
+                                put(patientId, medicineName, millis);
+                            }
+                            records++;
+                            validEnd = buffer.position();
+                        }
+                    }
+                    if (validEnd < fileSize) {
+                        System.out.println(Medicine.YELLOW + "Truncating incomplete reminder marks tail in " + file.getFileName() + Medicine.RESET);
+                        opened.truncate(validEnd);
+                    }
+                    opened.position(validEnd);
+                } catch (IOException | RuntimeException e) {
+                    opened.close();
+                    throw e;
+                }
+                channel = opened;
+                goodEnd = validEnd;
+            }
+        }
+    }
+
+    /**
+     * Returns the mark of a patient's medicine in epoch millis, or {@link #NONE}.
+     */
+    public synchronized long get(String patientId, String medicineName) {
+        Map<String, Long> ofPatient = marks.get(patientId);
+        Long millis = ofPatient == null ? null : ofPatient.get(medicineName);
+        return millis == null ? NONE : millis;
+    }
+
+    /**
+     * Returns the number of marks over all patients.
+     */
+    public synchronized int size() {
+        return markCount;
+    }
+
+    /**
+     * Moves the mark of a patient's medicine forward to {@code millis}; an earlier
+     * time is ignored. The record is queued until the next {@link #write} or {@link #sync}.
+     */
+    synchronized void advance(String patientId, String medicineName, long millis) {
+        Map<String, Long> ofPatient = marks.get(patientId);
+        Long current = ofPatient == null ? null : ofPatient.get(medicineName);
+        if (current != null && current >= millis) {
+            return;
+        }
+        put(patientId, medicineName, millis);
+        queue(patientId, medicineName, millis);
+    }
+
+    /**
+     * Drops the mark of a medicine that is no longer scheduled and writes that out.
+     */
+    void forget(String patientId, String medicineName) {
+        synchronized (this) {
+            if (!remove(patientId, medicineName)) {
+                return;
+            }
+            queue(patientId, medicineName, NONE);
+        }
+        write();
+    }
+
+    /**
+     * Returns the cause of the last failed write, or null if the last write succeeded.
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Writes the queued records without syncing, so they survive the process but
+     * not necessarily the machine. A failure is kept for {@link #sync} to report.
+     */
+    void write() {
+        synchronized (ioLock) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs every record queued so far, unless another caller already
+     * did. After a failure it tries again at most every {@value #RETRY_MILLIS} ms.
+     *
+     * @return false if the records could not be synced; they stay queued
+     */
+    boolean sync() {
+        long target;
+        synchronized (this) {
+            target = queued;
+        }
+        synchronized (ioLock) {
+            if (channel == null || syncedUpTo >= target) {
+                return true;
+            }
+            if (getFailure() != null && System.nanoTime() - nextRetryNanos < 0) {
+                return false;
+            }
+            try {
+                writeQueued();
+                channel.force(false);
+            } catch (IOException e) {
+                failed(e);
+                return false;
+            }
+            syncedUpTo = writtenUpTo;
+            synchronized (this) {
+                if (failure != null) {
+                    failure = null;
+                    System.out.println(Medicine.GREEN + "Reminder marks are written again; held reminders follow." + Medicine.RESET);
+                }
+            }
+            return true;
+        }
+    }
+
+    private void failed(IOException e) {
+        nextRetryNanos = System.nanoTime() + RETRY_MILLIS * 1_000_000;
+        synchronized (this) {
+            if (failure == null) {
+                System.out.println(Medicine.RED + "Could not write reminder marks to " + file + ", holding reminders back: "
+                        + e.getMessage() + Medicine.RESET);
+            }
+            failure = e;
+        }
+    }
+
+    private void put(String patientId, String medicineName, long millis) {
+        if (marks.computeIfAbsent(patientId, id -> new HashMap<>()).put(medicineName, millis) == null) {
+            markCount++;
+        }
+    }
+
+    private boolean remove(String patientId, String medicineName) {
+        Map<String, Long> ofPatient = marks.get(patientId);
+        if (ofPatient == null || ofPatient.remove(medicineName) == null) {
+            return false;
+        }
+        markCount--;
+        if (ofPatient.isEmpty()) {
+            marks.remove(patientId);
+        }
+        return true;
+    }
+
+    private void queue(String patientId, String medicineName, long millis) {
+        if (file == null) {
+            return; // kept in memory only
+        }
+        frame(unwrittenOut, patientId, medicineName, millis);
+        records++;
+        queued++;
+    }
+
+    private void frame(DataOutputStream to, String patientId, String medicineName, long millis) {
+        try {
+            scratch.reset();
+            scratchOut.writeLong(millis);
+            MedicineJournal.writeString(scratchOut, patientId);
+            MedicineJournal.writeString(scratchOut, medicineName);
+            scratchOut.flush();
+            byte[] payload = scratch.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            to.writeInt(payload.length);
+            to.writeInt((int) crc.getValue());
+            to.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams do not throw
+        }
+    }
+
+    /**
+     * Writes the queued records, compacting the file instead once it has grown too
+     * large. Records leave the queue only once written. Caller holds ioLock.
+     */
+    private void writeQueued() throws IOException {
+        boolean compact;
+        synchronized (this) {
+            compact = records >= COMPACT_MIN_RECORDS && records > (long) COMPACT_FACTOR * markCount;
+            if (!compact && unwritten.size() > 0) {
+                byte[] more = unwritten.toByteArray();
+                unwritten.reset();
+                if (taken == null) {
+                    taken = more;
+                } else {
+                    byte[] merged = Arrays.copyOf(taken, taken.length + more.length);
+                    System.arraycopy(more, 0, merged, taken.length, more.length);
+                    taken = merged;
+                }
+                takenUpTo = queued;
+            }
+        }
+        if (compact) {
+            compact();
+            return;
+        }
+        if (taken == null) {
+            return;
+        }
+        if (channel.size() != goodEnd) {
+            channel.truncate(goodEnd); // drop what a failed write left behind
+        }
+        channel.position(goodEnd);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(taken);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(goodEnd);
+            } catch (IOException ignored) {
+                // Retried before the next write
+            }
+            throw e;
+        }
+        goodEnd += taken.length;
+        writtenUpTo = takenUpTo;
+        taken = null;
+    }
+
+    /**
+     * Rewrites the file with one record per mark: temporary file, fsync, then atomic
+     * rename, after which appending continues on the new file. Caller holds ioLock.
+     */
+    private void compact() throws IOException {
+        ByteArrayOutputStream bytes;
+        long upTo;
+        int covered;
+        synchronized (this) {
+            bytes = new ByteArrayOutputStream(markCount * 40);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<String, Map<String, Long>> ofPatient : marks.entrySet()) {
+                for (Map.Entry<String, Long> mark : ofPatient.getValue().entrySet()) {
+                    frame(out, ofPatient.getKey(), mark.getKey(), mark.getValue());
+                }
+            }
+            upTo = queued;
+            covered = unwritten.size();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel compacted = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                compacted.write(buffer);
+            }
+            compacted.force(false);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            compacted.close();
+            throw e; // the queued records stay queued for the next attempt
+        }
+        channel.close();
+        channel = compacted;
+        goodEnd = bytes.size();
+        taken = null;
+        // The rewritten file is synced and holds every mark queued before it was built
+        writtenUpTo = upTo;
+        syncedUpTo = upTo;
+        synchronized (this) {
+            records = markCount;
+            byte[] rest = unwritten.toByteArray();
+            unwritten.reset();
+            unwritten.write(rest, covered, rest.length - covered);
+            records += queued - upTo;
+        }
+    }
+
+    /**
+     * Syncs what is still queued and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (ioLock) {
+            if (channel == null) {
+                return;
+            }
+            nextRetryNanos = System.nanoTime(); // one last attempt even right after a failure
+            boolean synced = sync();
+            channel.close();
+            channel = null;
+            if (!synced) {
+                throw new IOException("Reminder marks not saved: " + getFailure().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Read-only catalog of known drug names with prefix completion and typo-tolerant
+ * lookup, used to turn what is typed into the catalog's spelling of a medicine.
+ *
+ * Names are normalized (trimmed, lower case, single spaces) and stored in a trie
+ * flattened into parallel arrays: node 0 is the root, the children of a node sit
+ * next to each other sorted by their character, and each node costs a character,
+ * a child offset, a child count and a terminal bit, about 8 bytes. Names sharing a
+ * prefix share its nodes, so hundreds of thousands of names take a few megabytes
+ * and no per-name objects.
+ *
+ * Completion walks down the prefix with a binary search per character and lists
+ * the names below it in alphabetical order. Fuzzy matching walks the trie with one
+ * row of the edit-distance table per depth (insertions, deletions, substitutions
+ * and swaps of adjacent characters) and abandons a branch as soon as every entry
+ * of its row exceeds the allowed distance, so it only visits the few nodes within
+ * reach of the query.
+ */
+public class DrugCatalog {
+    public static final int DEFAULT_LIMIT = 10;
+    // Longest edit distance ever searched for
+    public static final int MAX_DISTANCE = 2;
+    // Longer lines are not drug names and would only deepen the trie
+    private static final int MAX_NAME_LENGTH = 200;
+
+    /**
+     * One fuzzy match with its edit distance from the query.
+     */
+    public static final class Match {
+        private final String name;
+        private final int distance;
+
+        Match(String name, int distance) {
+            this.name = name;
+            this.distance = distance;
+        }
+
+        public String getName() { return name; }
+        public int getDistance() { return distance; }
+    }
+
+    private final char[] labels;
+    private final int[] firstChild;
+    private final char[] childCount;
+    private final BitSet terminal;
+    private final int size;
+
+    private DrugCatalog(List<String> sorted) {
+        long nodes = 1;
+        for (int i = 0; i < sorted.size(); i++) {
+            String name = sorted.get(i);
+            nodes += name.length() - (i == 0 ? 0 : commonPrefix(sorted.get(i - 1), name));
+        }
+        if (nodes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Drug catalog is too large.");
+        }
+        labels = new char[(int) nodes];
+        firstChild = new int[(int) nodes];
+        childCount = new char[(int) nodes];
+        terminal = new BitSet((int) nodes);
+        size = sorted.size();
+        int[] next = {1};
+        build(sorted, 0, 0, sorted.size(), 0, next);
+    }
+
+    /**
+     * Builds a catalog from the given names. Blank names are skipped and
+     * duplicates (after normalization) are kept once.
+     */
+    public static DrugCatalog of(Collection<String> names) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String name : names) {
+            String normalized = normalize(name);
+            if (!normalized.isEmpty() && normalized.length() <= MAX_NAME_LENGTH) {
+                sorted.add(normalized);
+            }
+        }
+        return new DrugCatalog(new ArrayList<>(sorted));
+    }
+
+    /**
+     * Loads a catalog from a UTF-8 file with one drug name per line. Blank lines and
+     * lines starting with '#' are skipped.
+     */
+    public static DrugCatalog load(Path file) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        }
+        return of(names);
+    }
+
+    /**
+     * Returns a name trimmed, in lower case and with runs of whitespace replaced by
+     * one space.
+     */
+    public static String normalize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean space = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            sb.append(c);
+        }
+        return sb.toString().toLowerCase();
+    }
+
+    /**
+     * Returns the edit distance typos of a name of the given length are matched
+     * within: none up to 3 characters, 1 up to 6, otherwise {@value #MAX_DISTANCE}.
+     */
+    public static int allowedDistance(int length) {
+        return length <= 3 ? 0 : length <= 6 ? 1 : MAX_DISTANCE;
+    }
+
+    /**
+     * Returns the number of names in the catalog.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of trie nodes, including the root.
+     */
+    public int nodes() {
+        return labels.length;
+    }
+
+    public boolean contains(String name) {
+        String key = normalize(name);
+        int node = walk(key);
+        return node >= 0 && terminal.get(node);
+    }
+
+    /**
+     * Returns up to {@code limit} names starting with {@code prefix}, in alphabetical
+     * order (so a name comes before its longer variants).
+     */
+    public List<String> complete(String prefix, int limit) {
+        String key = normalize(prefix);
+        List<String> names = new ArrayList<>();
+        int node = walk(key);
+        if (node >= 0 && limit > 0) {
+            collect(node, new StringBuilder(key), names, limit);
+        }
+        return names;
+    }
+
+    /**
+     * Returns up to {@code limit} names within {@code maxDistance} edits of the query,
+     * closest first and alphabetically among equally close names.
+     */
+    public List<Match> fuzzy(String query, int maxDistance, int limit) {
+        String key = normalize(query);
+        int max = Math.max(0, Math.min(maxDistance, MAX_DISTANCE));
+        int m = key.length();
+        int depths = m + max + 1;
+        int[][] rows = new int[depths + 1][m + 1];
+        for (int j = 0; j <= m; j++) {
+            rows[0][j] = j;
+        }
+        List<Match> matches = new ArrayList<>();
+        search(0, 1, key.toCharArray(), max, rows, new char[depths + 1], matches);
+        matches.sort(Comparator.comparingInt(Match::getDistance)); // stable: alphabetical within a distance
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    /**
+     * Returns the catalog's spelling of {@code input}: the name itself if it is in the
+     * catalog, otherwise the one name closer to it than any other within
+     * {@link #allowedDistance}. Returns null if there is no such name or several are
+     * equally close.
+     */
+    public String canonical(String input) {
+        String key = normalize(input);
+        if (contains(key)) {
+            return key;
+        }
+        List<Match> matches = fuzzy(key, allowedDistance(key.length()), 2);
+        if (matches.isEmpty() || (matches.size() > 1 && matches.get(1).distance == matches.get(0).distance)) {
+            return null;
+        }
+        return matches.get(0).name;
+    }
+
+    /**
+     * Returns up to {@code limit} catalog names {@code input} may have meant: close
+     * misspellings first, then names it is a prefix of.
+     */
+    public List<String> suggest(String input, int limit) {
+        String key = normalize(input);
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (Match match : fuzzy(key, allowedDistance(key.length()), limit)) {
+            names.add(match.name);
+        }
+        if (names.size() < limit && !key.isEmpty()) {
+            names.addAll(complete(key, limit));
+        }
+        List<String> suggestions = new ArrayList<>(names);
+        return suggestions.size() > limit ? new ArrayList<>(suggestions.subList(0, limit)) : suggestions;
+    }
+
+    /**
+     * Returns the names among {@code candidates} within {@link #allowedDistance} edits of
+     * {@code input} or starting with it, closest first. For short lists such as a
+     * patient's own medicines, where no catalog is needed.
+     */
+    public static List<String> closest(String input, Collection<String> candidates, int limit) {
+        String key = normalize(input);
+        int max = allowedDistance(key.length());
+        List<Match> matches = new ArrayList<>();
+        for (String candidate : candidates) {
+            int distance = distance(key, candidate, max);
+            if (distance <= max) {
+                matches.add(new Match(candidate, distance));
+            } else if (!key.isEmpty() && candidate.startsWith(key)) {
+                matches.add(new Match(candidate, max + 1));
+            }
+        }
+        matches.sort(Comparator.comparingInt(Match::getDistance).thenComparing(Match::getName));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            names.add(matches.get(i).name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the edit distance between two strings counting insertions, deletions,
+     * substitutions and swaps of adjacent characters, or {@code max + 1} as soon as it
+     * is known to exceed {@code max}.
+     */
+    public static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] twoUp = new int[b.length() + 1];
+        int[] up = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            up[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            int best = row[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(up[j] + 1, row[j - 1] + 1), up[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, twoUp[j - 2] + 1);
+                }
+                row[j] = value;
+                best = Math.min(best, value);
+            }
+            if (best > max) {
+                return max + 1;
+            }
+            int[] recycled = twoUp;
+            twoUp = up;
+            up = row;
+            row = recycled;
+        }
+        return Math.min(up[b.length()], max + 1);
+    }
+
+    // ---- Trie ----
+
+    /**
+     * Lays out the children of {@code node}, which stands for the common prefix of
+     * length {@code depth} of the sorted names in [from, to), then recurses into them.
+     */
+    private void build(List<String> names, int node, int from, int to, int depth, int[] next) {
+        if (from < to && names.get(from).length() == depth) {
+            terminal.set(node); // the prefix itself is a name; it sorts first
+            from++;
+        }
+        int groups = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || names.get(i).charAt(depth) != names.get(i - 1).charAt(depth)) {
+                groups++;
+            }
+        }
+        int first = next[0];
+        firstChild[node] = first;
+        childCount[node] = (char) groups;
+        next[0] += groups;
+        int child = first;
+        int groupStart = from;
+        for (int i = from + 1; i <= to; i++) {
+            if (i == to || names.get(i).charAt(depth) != names.get(groupStart).charAt(depth)) {
+                labels[child] = names.get(groupStart).charAt(depth);
+                build(names, child, groupStart, i, depth + 1, next);
+                child++;
+                groupStart = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the node reached by following {@code key} from the root, or -1.
+     */
+    private int walk(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node >= 0; i++) {
+            node = child(node, key.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Binary search for the child of {@code node} labelled {@code c}, or -1.
+     */
+    private int child(int node, char c) {
+        int low = firstChild[node];
+        int high = low + childCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (labels[mid] < c) {
+                low = mid + 1;
+            } else if (labels[mid] > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the names at and below {@code node} in alphabetical order until
+     * {@code limit} names were found. Returns false once the limit is reached.
+     */
+    private boolean collect(int node, StringBuilder path, List<String> names, int limit) {
+        if (terminal.get(node)) {
+            names.add(path.toString());
+            if (names.size() >= limit) {
+                return false;
+            }
+        }
+        int first = firstChild[node];
+        for (int child = first; child < first + childCount[node]; child++) {
+            path.append(labels[child]);
+            boolean more = collect(child, path, names, limit);
+            path.setLength(path.length() - 1);
+            if (!more) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the children of the node whose row is {@code rows[depth - 1]}, computing
+     * row {@code depth} for each and descending while some entry is within reach.
+     * Only the band of columns within {@code max} of the diagonal is computed; the
+     * cells just outside it are set to max + 1, since nothing beyond can be in reach.
+     */
+    private void search(int node, int depth, char[] key, int max, int[][] rows, char[] path, List<Match> matches) {
+        if (depth >= rows.length) {
+            return;
+        }
+        int m = key.length;
+        int low = Math.max(1, depth - max);
+        int high = Math.min(m, depth + max);
+        int[] twoUp = depth > 1 ? rows[depth - 2] : null;
+        int[] up = rows[depth - 1];
+        int[] row = rows[depth];
+        row[0] = depth;
+        if (low > 1) {
+            row[low - 1] = max + 1;
+        }
+        if (high < m) {
+            row[high + 1] = max + 1;
+        }
+        int first = firstChild[node];
+        for (int child = first; child < first + childCount[node]; child++) {
+            char c = labels[child];
+            path[depth] = c;
+            int best = max + 1;
+            for (int j = low; j <= high; j++) {
+                int value = Math.min(Math.min(up[j] + 1, row[j - 1] + 1), up[j - 1] + (key[j - 1] == c ? 0 : 1));
+                if (twoUp != null && j > 1 && c == key[j - 2] && path[depth - 1] == key[j - 1]) {
+                    value = Math.min(value, twoUp[j - 2] + 1);
+                }
+                row[j] = value;
+                best = Math.min(best, value);
+            }
+            if (best > max) {
+                continue;
+            }
+            if (high == m && row[m] <= max && terminal.get(child)) {
+                matches.add(new Match(new String(path, 1, depth), row[m]));
+            }
+            search(child, depth + 1, key, max, rows, path, matches);
+        }
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
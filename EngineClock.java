@@ -0,0 +1,55 @@
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Time source of the reminder engine: what time it is and how to wait for the next
+ * due dose.
+ *
+ * The engine never calls {@code System.currentTimeMillis()} or {@code Object.wait}
+ * directly, so a simulated clock can replay weeks of reminders in seconds
+ * ({@link MedicineSimulation}). {@link #SYSTEM} is the wall clock used everywhere else.
+ */
+public interface EngineClock {
+    /**
+     * The wall clock in the system time zone, waiting with {@link Object#wait(long)}.
+     */
+    EngineClock SYSTEM = new EngineClock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public LocalDateTime now() {
+            return LocalDateTime.now();
+        }
+
+        @Override
+        public void await(Object monitor, long deadlineMillis) throws InterruptedException {
+            long delay = deadlineMillis - System.currentTimeMillis();
+            if (delay > 0) {
+                monitor.wait(delay);
+            }
+        }
+    };
+
+    /**
+     * Returns the current time in epoch millis.
+     */
+    long millis();
+
+    /**
+     * Returns the current local date and time in the system time zone.
+     */
+    default LocalDateTime now() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis()), ZoneId.systemDefault());
+    }
+
+    /**
+     * Waits on {@code monitor}, whose lock the caller holds, until it is notified or
+     * the clock reaches {@code deadlineMillis}. May return early; callers re-check
+     * their condition.
+     */
+    void await(Object monitor, long deadlineMillis) throws InterruptedException;
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Appends reminders to a log file, one line per reminder and one write per batch.
+ *
+ * When the file would grow past {@code maxBytes} it is rolled: {@code reminders.log}
+ * becomes {@code reminders.log.1}, {@code .1} becomes {@code .2} and so on, keeping
+ * at most {@code keep} old files.
+ */
+public class FileReminderSink implements ReminderSink {
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_KEEP = 3;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final Path file;
+    private final long maxBytes;
+    private final int keep;
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * @param file     log file; its directory is created if needed
+     * @param maxBytes size at which the file is rolled
+     * @param keep     number of rolled files to keep (at least 1)
+     */
+    public FileReminderSink(Path file, long maxBytes, int keep) {
+        if (maxBytes < 1 || keep < 1) {
+            throw new IllegalArgumentException("maxBytes and keep must be positive.");
+        }
+        this.file = file.toAbsolutePath();
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    @Override
+    public void deliver(List<ReminderPipeline.Reminder> batch) throws IOException {
+        StringBuilder sb = new StringBuilder(batch.size() * 100);
+        String delivered = LocalDateTime.now().format(TIMESTAMP);
+        for (ReminderPipeline.Reminder reminder : batch) {
+            sb.append(delivered).append(' ').append(reminder.message()).append('\n');
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (channel == null) {
+            open();
+        }
+        if (size > 0 && size + bytes.remaining() > maxBytes) {
+            roll();
+        }
+        int length = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        size += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * Shifts the rolled files up by one, dropping the oldest, and starts a new file.
+     */
+    private void roll() throws IOException {
+        close();
+        for (int i = keep - 1; i >= 1; i--) {
+            Path older = rolled(i);
+            if (Files.exists(older)) {
+                Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private Path rolled(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+}
@@ -0,0 +1,465 @@
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Columnar, append-only store for medicine history events.
+ *
+ * Each event is kept in primitive columns: epoch-millis {@code long}, an action
+ * {@code byte}, an interned medicine id {@code int} and an optional related id
+ * (the new name of a rename). Columns grow in fixed-size chunks, so appends never
+ * copy existing data and an event costs about 21 bytes instead of five Strings.
+ *
+ * Timestamps are kept non-decreasing, which makes time-range queries a binary
+ * search. Every medicine also has a posting list of its event positions, so
+ * "what changed for X last month" only touches X's own events.
+ *
+ * There is a single writer (the registry, under its write lock). Readers may run
+ * concurrently: they read the published size first and only look at events below it.
+ */
+public class HistoryStore {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 4096 events per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNK_SIZE = 8;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Kinds of history events. The ordinal is the value stored in the action column.
+     */
+    public enum Action {
+        ADDED("added"), DELETED("deleted"), UPDATED("updated"), RENAMED("renamed");
+
+        private final String label;
+
+        Action(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() { return label; }
+
+        private static final Action[] VALUES = values();
+
+        static Action of(byte code) {
+            return VALUES[code];
+        }
+    }
+
+    /**
+     * One history event, materialized on demand from the columns.
+     */
+    public static final class Event {
+        private final long timestamp;
+        private final Action action;
+        private final String name;
+        private final String newName;
+
+        Event(long timestamp, Action action, String name, String newName) {
+            this.timestamp = timestamp;
+            this.action = action;
+            this.name = name;
+            this.newName = newName;
+        }
+
+        public long getTimestamp() { return timestamp; }
+        public Action getAction() { return action; }
+        public String getName() { return name; }
+        /** New name for {@link Action#RENAMED} events, otherwise null. */
+        public String getNewName() { return newName; }
+
+        /**
+         * Returns the name as shown in listings ("old -> new" for renames).
+         */
+        public String getDisplayName() {
+            return newName == null ? name : name + " -> " + newName;
+        }
+
+        /**
+         * Returns the timestamp formatted as "yyyy-MM-dd HH:mm:ss".
+         */
+        public String getFormattedTime() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()).format(TIMESTAMP);
+        }
+    }
+
+    // Column chunks; the outer arrays are replaced (never mutated in place) when they grow
+    private volatile long[][] times = new long[1][];
+    private volatile byte[][] actions = new byte[1][];
+    private volatile int[][] ids = new int[1][];
+    private volatile int[][] related = new int[1][];
+    private volatile int size;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    // Interned medicine names and per-medicine event positions
+    private final Map<String, Integer> idsByName = new HashMap<>();
+    private volatile String[] names = new String[16];
+    private volatile PostingList[] postings = new PostingList[16];
+    private int nameCount;
+
+    /**
+     * Appends an event. Single writer only.
+     *
+     * @param timestamp epoch millis; clamped so the column stays sorted
+     * @param action    what happened
+     * @param name      medicine name
+     * @param newName   new name for renames, otherwise null
+     */
+    public void append(long timestamp, Action action, String name, String newName) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        ensureCapacity(chunk, index & CHUNK_MASK);
+        long ts = Math.max(timestamp, lastTimestamp);
+        lastTimestamp = ts;
+        int id = intern(name);
+        int relatedId = newName == null ? -1 : intern(newName);
+        int offset = index & CHUNK_MASK;
+        times[chunk][offset] = ts;
+        actions[chunk][offset] = (byte) action.ordinal();
+        ids[chunk][offset] = id;
+        related[chunk][offset] = relatedId;
+        postings[id].add(index);
+        if (relatedId >= 0) {
+            postings[relatedId].add(index);
+        }
+        size = index + 1; // publish
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the event at the given position (0 = oldest).
+     */
+    public Event get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Event " + index + " of " + size);
+        }
+        return eventAt(index);
+    }
+
+    private Event eventAt(int index) {
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+        int relatedId = related[chunk][offset];
+        return new Event(times[chunk][offset], Action.of(actions[chunk][offset]),
+                names[ids[chunk][offset]], relatedId < 0 ? null : names[relatedId]);
+    }
+
+    /**
+     * Returns the timestamp of the event at the given position.
+     */
+    public long timeAt(int index) {
+        return times[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * Returns the action of the event at the given position.
+     */
+    public Action actionAt(int index) {
+        return Action.of(actions[index >>> CHUNK_SHIFT][index & CHUNK_MASK]);
+    }
+
+    /**
+     * Returns the position of the first event at or after {@code timestamp}.
+     */
+    public int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeAt(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns events in {@code [from, to)} in time order, optionally limited to one
+     * medicine and a set of actions.
+     *
+     * @param medicine medicine name, or null for all medicines
+     * @param from     inclusive start in epoch millis
+     * @param to       exclusive end in epoch millis
+     * @param filter   actions to include, or null for all
+     * @param limit    maximum number of events to return
+     */
+    public List<Event> query(String medicine, long from, long to, Set<Action> filter, int limit) {
+        List<Event> result = new ArrayList<>();
+        Cursor cursor = cursor(medicine, from, to, filter, 0);
+        int position;
+        while (result.size() < limit && (position = cursor.next()) >= 0) {
+            result.add(eventAt(position));
+        }
+        return result;
+    }
+
+    /**
+     * Opens a cursor over the events matching the same criteria as {@link #query},
+     * starting at event position {@code start}. Positions never change, so a page can
+     * be resumed later (even after more events were appended) from
+     * {@link Cursor#resumePosition()}.
+     */
+    public Cursor cursor(String medicine, long from, long to, Set<Action> filter, int start) {
+        return new Cursor(medicine == null ? null : postingsFor(medicine), medicine != null,
+                Math.max(start, lowerBound(from)), to, filter);
+    }
+
+    /**
+     * Forward-only iterator over the positions of matching events. It never
+     * materializes more than the caller asks for: with a medicine it walks that
+     * medicine's posting list, otherwise it scans the columns from the start position.
+     */
+    public final class Cursor {
+        private final PostingList postings;
+        private final boolean byMedicine;
+        private final long to;
+        private final Set<Action> filter;
+        // Next event position (all events) or next posting index (one medicine)
+        private int index;
+        private int resume;
+        private boolean done;
+
+        private Cursor(PostingList postings, boolean byMedicine, int start, long to, Set<Action> filter) {
+            this.postings = postings;
+            this.byMedicine = byMedicine;
+            this.to = to;
+            this.filter = filter;
+            this.resume = start;
+            if (byMedicine) {
+                done = postings == null;
+                if (!done) {
+                    // Positions are ascending: binary search the first one at or after start
+                    int low = 0;
+                    int high = postings.count; // read before positions, see PostingList
+                    int[] positions = postings.positions;
+                    while (low < high) {
+                        int mid = (low + high) >>> 1;
+                        if (positions[mid] < start) {
+                            low = mid + 1;
+                        } else {
+                            high = mid;
+                        }
+                    }
+                    index = low;
+                }
+            } else {
+                index = start;
+            }
+        }
+
+        /**
+         * Returns the position of the next matching event, or -1 if there is none.
+         */
+        public int next() {
+            while (!done) {
+                int position;
+                if (byMedicine) {
+                    int count = postings.count;
+                    if (index >= count) {
+                        return -1; // more may be appended later
+                    }
+                    position = postings.positions[index++];
+                } else {
+                    if (index >= size) {
+                        return -1;
+                    }
+                    position = index++;
+                }
+                if (timeAt(position) >= to) {
+                    done = true;
+                    return -1;
+                }
+                if (filter == null || filter.contains(actionAt(position))) {
+                    resume = position + 1;
+                    return position;
+                }
+                resume = position + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the position to pass as {@code start} to continue after the last
+         * event this cursor looked at.
+         */
+        public int resumePosition() {
+            return resume;
+        }
+    }
+
+    /**
+     * Returns every event of one medicine in time order.
+     */
+    public List<Event> forMedicine(String medicine) {
+        return query(medicine, Long.MIN_VALUE, Long.MAX_VALUE, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of events recorded for one medicine.
+     */
+    public int countFor(String medicine) {
+        PostingList list = postingsFor(medicine);
+        return list == null ? 0 : list.count;
+    }
+
+    /**
+     * Returns an approximate number of heap bytes used by the columns and indexes.
+     */
+    public long estimatedBytes() {
+        long slots = 0;
+        for (long[] chunk : times) {
+            if (chunk != null) {
+                slots += chunk.length;
+            }
+        }
+        long columnBytes = slots * (8L + 1 + 4 + 4);
+        long postingBytes = 0;
+        for (int i = 0; i < nameCount; i++) {
+            postingBytes += 4L * postings[i].positions.length;
+        }
+        return columnBytes + postingBytes;
+    }
+
+    // ---- Bulk access used by MedicineSnapshot ----
+
+    int nameCount() {
+        return nameCount;
+    }
+
+    String nameAt(int id) {
+        return names[id];
+    }
+
+    int idAt(int index) {
+        return ids[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    int relatedAt(int index) {
+        return related[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * Interns a name and returns its id; used when restoring the dictionary.
+     */
+    int intern(String name) {
+        synchronized (idsByName) {
+            return internLocked(name);
+        }
+    }
+
+    private int internLocked(String name) {
+        Integer existing = idsByName.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        int id = nameCount;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            postings = Arrays.copyOf(postings, id * 2);
+        }
+        names[id] = name;
+        postings[id] = new PostingList();
+        idsByName.put(name, id);
+        nameCount = id + 1;
+        return id;
+    }
+
+    /**
+     * Appends an event whose name ids were already interned; used when restoring.
+     */
+    void appendRaw(long timestamp, byte action, int id, int relatedId) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        ensureCapacity(chunk, index & CHUNK_MASK);
+        long ts = Math.max(timestamp, lastTimestamp);
+        lastTimestamp = ts;
+        int offset = index & CHUNK_MASK;
+        times[chunk][offset] = ts;
+        actions[chunk][offset] = action;
+        ids[chunk][offset] = id;
+        related[chunk][offset] = relatedId;
+        postings[id].add(index);
+        if (relatedId >= 0) {
+            postings[relatedId].add(index);
+        }
+        size = index + 1;
+    }
+
+    private PostingList postingsFor(String medicine) {
+        Integer id;
+        synchronized (idsByName) {
+            id = idsByName.get(medicine);
+        }
+        return id == null ? null : postings[id];
+    }
+
+    /**
+     * Makes room for the event at {@code offset} of {@code chunk}. The first chunk
+     * starts small and doubles up to the full chunk size, so a store with only a few
+     * events (one per patient in a large ward) stays a few hundred bytes.
+     */
+    private void ensureCapacity(int chunk, int offset) {
+        if (chunk == times.length || times[chunk] == null) {
+            addChunk(chunk);
+        } else if (offset == times[chunk].length) {
+            // Only chunk 0 is ever short; readers holding the old arrays still see
+            // every published event because the copies are made before size moves
+            int grown = Math.min(offset * 2, CHUNK_SIZE);
+            times[chunk] = Arrays.copyOf(times[chunk], grown);
+            actions[chunk] = Arrays.copyOf(actions[chunk], grown);
+            ids[chunk] = Arrays.copyOf(ids[chunk], grown);
+            related[chunk] = Arrays.copyOf(related[chunk], grown);
+        }
+    }
+
+    private void addChunk(int chunk) {
+        int length = chunk == 0 ? INITIAL_CHUNK_SIZE : CHUNK_SIZE;
+        if (chunk == times.length) {
+            int grown = times.length * 2;
+            long[][] newTimes = Arrays.copyOf(times, grown);
+            byte[][] newActions = Arrays.copyOf(actions, grown);
+            int[][] newIds = Arrays.copyOf(ids, grown);
+            int[][] newRelated = Arrays.copyOf(related, grown);
+            newTimes[chunk] = new long[length];
+            newActions[chunk] = new byte[length];
+            newIds[chunk] = new int[length];
+            newRelated[chunk] = new int[length];
+            actions = newActions;
+            ids = newIds;
+            related = newRelated;
+            times = newTimes;
+        } else {
+            times[chunk] = new long[length];
+            actions[chunk] = new byte[length];
+            ids[chunk] = new int[length];
+            related[chunk] = new int[length];
+        }
+    }
+
+    /**
+     * Growable list of event positions for one medicine. The writer replaces the
+     * array before bumping the count, so readers must read {@code count} first.
+     */
+    private static final class PostingList {
+        volatile int[] positions = new int[4];
+        volatile int count;
+
+        void add(int position) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count] = position;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Read-only index of known drug-drug interactions, checked whenever a medicine is
+ * added or renamed.
+ *
+ * The source is a CSV of pairs, {@code drug,other drug,severity} per line, where the
+ * severity is minor, moderate, major or contraindicated (or 1-4). {@link #build}
+ * turns it into a compact binary file once; {@link #open} maps that file and answers
+ * every lookup straight from the mapping, so even an index of millions of pairs
+ * costs no heap beyond this object.
+ *
+ * Layout: magic, version, name count, entry count, then the start of each name in
+ * the name bytes, the start of each name's row of entries, the entries (the id of
+ * the other drug) and their severities as contiguous blocks, the names as UTF-8
+ * sorted by their bytes, and a trailing CRC32 of everything before it. Every pair is
+ * stored in the rows of both drugs and every row is sorted, so finding a name is a
+ * binary search over the names and checking a pair is a binary search in one row:
+ * checking a new medicine against a patient's other medicines takes microseconds.
+ */
+public class InteractionIndex {
+    private static final int MAGIC = 0x4D444958; // "MDIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    // Entries are packed as drug id << 34 | other id << 2 | severity while building
+    private static final int MAX_NAMES = 1 << 30;
+
+    /**
+     * How serious an interaction is, mildest first.
+     */
+    public enum Severity {
+        MINOR, MODERATE, MAJOR, CONTRAINDICATED;
+
+        /**
+         * Parses a severity name (any case) or its rank 1-4.
+         *
+         * @throws IllegalArgumentException if the text is neither
+         */
+        public static Severity parse(String text) {
+            String value = text.trim();
+            for (Severity severity : values()) {
+                if (severity.name().equalsIgnoreCase(value) || value.equals(String.valueOf(severity.ordinal() + 1))) {
+                    return severity;
+                }
+            }
+            throw new IllegalArgumentException("Unknown severity '" + value + "', use minor, moderate, major or contraindicated");
+        }
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * One interaction found between a medicine and another medicine of the patient.
+     */
+    public static final class Interaction {
+        private final String medicineName;
+        private final String otherName;
+        private final Severity severity;
+
+        Interaction(String medicineName, String otherName, Severity severity) {
+            this.medicineName = medicineName;
+            this.otherName = otherName;
+            this.severity = severity;
+        }
+
+        public String getMedicineName() { return medicineName; }
+        public String getOtherName() { return otherName; }
+        public Severity getSeverity() { return severity; }
+
+        /**
+         * Returns e.g. "warfarin interacts with aspirin (major)".
+         */
+        public String message() {
+            return medicineName + " interacts with " + otherName + " (" + severity.label() + ")";
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int nameCount;
+    private final int entryCount;
+    // Byte offsets of the blocks within the mapping
+    private final int nameStartsAt;
+    private final int rowStartsAt;
+    private final int othersAt;
+    private final int severitiesAt;
+    private final int namesAt;
+
+    private InteractionIndex(MappedByteBuffer buffer, int nameCount, int entryCount) {
+        this.buffer = buffer;
+        this.nameCount = nameCount;
+        this.entryCount = entryCount;
+        this.nameStartsAt = HEADER_BYTES;
+        this.rowStartsAt = nameStartsAt + 4 * (nameCount + 1);
+        this.othersAt = rowStartsAt + 4 * (nameCount + 1);
+        this.severitiesAt = othersAt + 4 * entryCount;
+        this.namesAt = severitiesAt + entryCount;
+    }
+
+    /**
+     * Returns the number of drugs in the index.
+     */
+    public int size() {
+        return nameCount;
+    }
+
+    /**
+     * Returns the number of distinct interacting pairs.
+     */
+    public int pairs() {
+        return entryCount / 2;
+    }
+
+    /**
+     * Returns the severity of the interaction between two drugs, or null if none is
+     * known. Names are compared trimmed and in lower case, like medicine names.
+     */
+    public Severity lookup(String medicineName, String otherName) {
+        int id = find(medicineName);
+        int other = id < 0 ? -1 : find(otherName);
+        return other < 0 ? null : severity(id, other);
+    }
+
+    /**
+     * Returns every known interaction between {@code medicineName} and the given
+     * medicines, most severe first. The medicine itself is skipped if listed.
+     */
+    public List<Interaction> check(String medicineName, Collection<String> otherNames) {
+        int id = find(medicineName);
+        if (id < 0 || rowStart(id) == rowStart(id + 1)) {
+            return Collections.emptyList();
+        }
+        List<Interaction> found = new ArrayList<>();
+        for (String otherName : otherNames) {
+            int other = find(otherName);
+            if (other < 0 || other == id) {
+                continue;
+            }
+            Severity severity = severity(id, other);
+            if (severity != null) {
+                found.add(new Interaction(normalize(medicineName), otherName, severity));
+            }
+        }
+        found.sort((a, b) -> b.severity.compareTo(a.severity));
+        return found;
+    }
+
+    /**
+     * Binary search for {@code other} in the row of {@code id}.
+     */
+    private Severity severity(int id, int other) {
+        int low = rowStart(id);
+        int high = rowStart(id + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buffer.getInt(othersAt + 4 * mid);
+            if (value < other) {
+                low = mid + 1;
+            } else if (value > other) {
+                high = mid - 1;
+            } else {
+                return Severity.values()[buffer.get(severitiesAt + mid)];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the id of a drug, or -1 if it is not in the index.
+     */
+    private int find(String name) {
+        byte[] key = normalize(name).getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = nameCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the stored name {@code id} with {@code key}, byte by byte unsigned.
+     */
+    private int compareName(int id, byte[] key) {
+        int from = namesAt + buffer.getInt(nameStartsAt + 4 * id);
+        int length = namesAt + buffer.getInt(nameStartsAt + 4 * (id + 1)) - from;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(from + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private int rowStart(int id) {
+        return buffer.getInt(rowStartsAt + 4 * id);
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase();
+    }
+
+    // ---- Files ----
+
+    /**
+     * Maps an index written by {@link #build} and verifies its checksum.
+     *
+     * @throws IOException if the file is truncated, corrupt or of an unknown version
+     */
+    public static InteractionIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + 16 || size > Integer.MAX_VALUE) {
+                throw new IOException("Interaction index " + file + " has invalid size " + size);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit((int) size - 8));
+            if (crc.getValue() != buffer.getLong((int) size - 8)) {
+                throw new IOException("Interaction index " + file + " failed checksum verification");
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Interaction index " + file + " has an unknown format");
+            }
+            int nameCount = buffer.getInt(8);
+            int entryCount = buffer.getInt(12);
+            long blocks = HEADER_BYTES + 8L * (nameCount + 1) + 5L * entryCount;
+            if (nameCount < 0 || entryCount < 0 || blocks + 8 > size
+                    || blocks + buffer.getInt(HEADER_BYTES + 4 * nameCount) + 8 != size) {
+                throw new IOException("Interaction index " + file + " is inconsistent");
+            }
+            return new InteractionIndex(buffer, nameCount, entryCount);
+        }
+    }
+
+    /**
+     * Opens the index of a CSV file, (re)building {@code indexFile} first if it is
+     * missing or older than the CSV.
+     */
+    public static InteractionIndex openOrBuild(Path csv, Path indexFile) throws IOException {
+        if (!Files.exists(indexFile)
+                || Files.getLastModifiedTime(indexFile).compareTo(Files.getLastModifiedTime(csv)) < 0) {
+            build(csv, indexFile);
+        }
+        return open(indexFile);
+    }
+
+    /**
+     * Builds an index from a CSV of {@code drug,other drug,severity} lines. Blank
+     * lines, lines starting with '#' and a header line are skipped; a pair listed
+     * twice keeps its highest severity. The file is written durably: temporary
+     * file, fsync, then atomic rename over {@code indexFile}.
+     *
+     * @return the number of distinct pairs written
+     * @throws IOException if the CSV cannot be read or has a malformed line
+     */
+    public static int build(Path csv, Path indexFile) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        long[] entries = new long[1024];
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                boolean header = first;
+                first = false;
+                String[] fields = trimmed.split(",", -1);
+                if (fields.length != 3 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+                    throw new IOException(csv + " line " + lineNumber + ": expected drug,other drug,severity");
+                }
+                Severity severity;
+                try {
+                    severity = Severity.parse(fields[2]);
+                } catch (IllegalArgumentException e) {
+                    if (header) {
+                        continue; // e.g. drug_a,drug_b,severity
+                    }
+                    throw new IOException(csv + " line " + lineNumber + ": " + e.getMessage());
+                }
+                int a = intern(ids, names, normalize(fields[0]));
+                int b = intern(ids, names, normalize(fields[1]));
+                if (a == b) {
+                    continue;
+                }
+                if (count + 2 > entries.length) {
+                    if (entries.length >= Integer.MAX_VALUE / 2) {
+                        throw new IOException(csv + " has too many interactions for one index");
+                    }
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                }
+                entries[count++] = pack(a, b, severity.ordinal());
+                entries[count++] = pack(b, a, severity.ordinal());
+            }
+        }
+
+        // Number names in byte order, so the name block can be binary searched
+        byte[][] encoded = new byte[names.size()][];
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Arrays.compareUnsigned(encoded[x], encoded[y]));
+        int[] newId = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            newId[order[i]] = i;
+        }
+        for (int i = 0; i < count; i++) {
+            long entry = entries[i];
+            entries[i] = pack(newId[(int) (entry >>> 34)], newId[(int) (entry >>> 2) & (MAX_NAMES - 1)], (int) entry & 3);
+        }
+        Arrays.parallelSort(entries, 0, count);
+        // Duplicates are now adjacent with the highest severity last
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (i + 1 < count && (entries[i] >>> 2) == (entries[i + 1] >>> 2)) {
+                continue;
+            }
+            entries[unique++] = entries[i];
+        }
+
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(order.length);
+            out.writeInt(unique);
+            int offset = 0;
+            for (Integer id : order) {
+                out.writeInt(offset);
+                offset += encoded[id].length;
+            }
+            out.writeInt(offset);
+            int row = 0;
+            for (int id = 0; id <= order.length; id++) {
+                while (row < unique && (entries[row] >>> 34) < id) {
+                    row++;
+                }
+                out.writeInt(row);
+            }
+            for (int i = 0; i < unique; i++) {
+                out.writeInt((int) (entries[i] >>> 2) & (MAX_NAMES - 1));
+            }
+            for (int i = 0; i < unique; i++) {
+                out.writeByte((int) entries[i] & 3);
+            }
+            for (Integer id : order) {
+                out.write(encoded[id]);
+            }
+            out.flush();
+            DataOutputStream trailer = new DataOutputStream(fos);
+            trailer.writeLong(crc.getValue());
+            trailer.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return unique / 2;
+    }
+
+    private static int intern(Map<String, Integer> ids, List<String> names, String name) throws IOException {
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (names.size() == MAX_NAMES) {
+                throw new IOException("Too many drug names for one index");
+            }
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    private static long pack(int id, int other, int severity) {
+        return (long) id << 34 | (long) other << 2 | severity;
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Iterator;
+
+/**
+ * Streams history and medicine listings to the console page by page.
+ *
+ * Rows are appended to one reusable buffer that is encoded and written to the
+ * underlying stream once per page, instead of one synchronized {@code println} (or
+ * synchronized writer call) per line. Rows are read straight from the stores
+ * through a {@link HistoryStore.Cursor} or an entry iterator, so memory use depends
+ * on the page size, not on the listing size. Colors can be turned off, e.g. when
+ * output is redirected to a file.
+ */
+public class ListingRenderer {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    // Flush early if a page gets this long (very long names)
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] DAY_ABBREVIATIONS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+
+    private final OutputStream stream;
+    private final Charset charset = Charset.defaultCharset();
+    private final StringBuilder out = new StringBuilder(BUFFER_SIZE);
+    private final boolean colors;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // Formatted "yyyy-MM-dd HH:" of the local hour starting at hourStart
+    private long hourStart = Long.MIN_VALUE;
+    private String hourPrefix;
+
+    /**
+     * One listing in progress.
+     */
+    public interface Pager {
+        /**
+         * Renders up to {@code pageSize} rows and flushes them.
+         *
+         * @return the number of rows rendered
+         */
+        int renderPage(int pageSize) throws IOException;
+
+        /**
+         * Returns true if at least one more row is available.
+         */
+        boolean hasMore();
+    }
+
+    /**
+     * @param stream stream to write to; it is flushed but never closed
+     * @param colors whether to emit ANSI color codes
+     */
+    public ListingRenderer(OutputStream stream, boolean colors) {
+        this.stream = stream;
+        this.colors = colors;
+    }
+
+    /**
+     * Writes one line in the given color (ignored when colors are off) and flushes.
+     */
+    public void line(String color, String text) throws IOException {
+        color(color);
+        out.append(text);
+        color(Medicine.RESET);
+        out.append('\n');
+        flush();
+    }
+
+    /**
+     * Returns a pager over the history events produced by {@code cursor}.
+     */
+    public Pager history(HistoryStore history, HistoryStore.Cursor cursor) {
+        return new Pager() {
+            private int pending = cursor.next();
+
+            @Override
+            public int renderPage(int pageSize) throws IOException {
+                int rows = 0;
+                while (rows < pageSize && pending >= 0) {
+                    writeEvent(history, pending);
+                    rows++;
+                    pending = cursor.next();
+                    if (out.length() >= BUFFER_SIZE) {
+                        flush();
+                    }
+                }
+                flush();
+                return rows;
+            }
+
+            @Override
+            public boolean hasMore() {
+                return pending >= 0;
+            }
+        };
+    }
+
+    /**
+     * Returns a pager over medicine names, in the order of {@code entries}.
+     */
+    public Pager medicines(Iterator<MedicineRegistry.Entry> entries) {
+        return new Pager() {
+            @Override
+            public int renderPage(int pageSize) throws IOException {
+                int rows = 0;
+                while (rows < pageSize && entries.hasNext()) {
+                    color(Medicine.BLUE);
+                    out.append("- ").append(entries.next().getName());
+                    color(Medicine.RESET);
+                    out.append('\n');
+                    rows++;
+                    if (out.length() >= BUFFER_SIZE) {
+                        flush();
+                    }
+                }
+                flush();
+                return rows;
+            }
+
+            @Override
+            public boolean hasMore() {
+                return entries.hasNext();
+            }
+        };
+    }
+
+    /**
+     * Returns a pager over upcoming doses, e.g. "- Mon 2025-08-04 08:00 aspirin".
+     */
+    public Pager agenda(Iterator<DoseAgenda.Dose> doses) {
+        return new Pager() {
+            @Override
+            public int renderPage(int pageSize) throws IOException {
+                int rows = 0;
+                while (rows < pageSize && doses.hasNext()) {
+                    DoseAgenda.Dose dose = doses.next();
+                    LocalDateTime time = dose.getTime();
+                    out.append("- ");
+                    color(Medicine.YELLOW);
+                    out.append(DAY_ABBREVIATIONS[time.getDayOfWeek().ordinal()]).append(' ')
+                            .append(time.toLocalDate()).append(' ')
+                            .append(MedicineSchedule.formatTime(time.getHour() * 60 + time.getMinute()));
+                    color(Medicine.RESET);
+                    out.append(' ');
+                    color(Medicine.BLUE);
+                    out.append(dose.getMedicineName());
+                    color(Medicine.RESET);
+                    out.append('\n');
+                    rows++;
+                    if (out.length() >= BUFFER_SIZE) {
+                        flush();
+                    }
+                }
+                flush();
+                return rows;
+            }
+
+            @Override
+            public boolean hasMore() {
+                return doses.hasNext();
+            }
+        };
+    }
+
+    /**
+     * Writes one history row, e.g. "- aspirin [Added on 2025-07-31 08:00:00]",
+     * reading the columns directly instead of materializing an event.
+     */
+    private void writeEvent(HistoryStore history, int position) {
+        color(Medicine.BLUE);
+        out.append("- ").append(history.nameAt(history.idAt(position)));
+        int related = history.relatedAt(position);
+        if (related >= 0) {
+            out.append(" -> ").append(history.nameAt(related));
+        }
+        color(Medicine.RESET);
+        switch (history.actionAt(position)) {
+            case ADDED:
+                color(Medicine.GREEN);
+                out.append(" [Added on ");
+                break;
+            case DELETED:
+                color(Medicine.RED);
+                out.append(" [Deleted on ");
+                break;
+            default:
+                color(Medicine.YELLOW);
+                out.append(" [Updated on ");
+        }
+        writeTimestamp(history.timeAt(position));
+        out.append(']');
+        color(Medicine.RESET);
+        out.append('\n');
+    }
+
+    /**
+     * Writes "yyyy-MM-dd HH:mm:ss". The date and hour are formatted once per local
+     * hour; minutes and seconds are plain arithmetic.
+     */
+    private void writeTimestamp(long millis) {
+        if (millis < hourStart || millis >= hourStart + 3_600_000) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+            hourStart = millis - (time.getMinute() * 60_000L + time.getSecond() * 1000L + time.getNano() / 1_000_000);
+            hourPrefix = String.format("%s %02d:", time.toLocalDate(), time.getHour());
+        }
+        int secondsIntoHour = (int) ((millis - hourStart) / 1000);
+        out.append(hourPrefix);
+        twoDigits(secondsIntoHour / 60);
+        out.append(':');
+        twoDigits(secondsIntoHour % 60);
+    }
+
+    private void twoDigits(int value) {
+        out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private void color(String code) {
+        if (colors) {
+            out.append(code);
+        }
+    }
+
+    /**
+     * Encodes the buffered rows and hands them to the stream in one write.
+     */
+    private void flush() throws IOException {
+        if (out.length() > 0) {
+            stream.write(out.toString().getBytes(charset));
+            stream.flush();
+            out.setLength(0);
+        }
+    }
+}
@@ -1,6 +1,17 @@
-import java.util.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.*;
+import javax.management.JMException;
 
 /**
  * Medicine Management System
@@ -13,12 +24,18 @@ import java.time.format.DateTimeFormatter;
  * Date: [2025-07-31]
  */
 public class Medicine {
-    // Map to store medicine names and their schedules
-    static Map<String, MedicineSchedule> medicineSchedules = new HashMap<>();
-    // List to store current medicines
-    static List<String> medicines = new ArrayList<>();
-    // List to store all medicine history events
-    static List<MedicineHistory> medicineHistories = new ArrayList<>();
+    // All patients served by this process and the engine firing their reminders
+    static Ward ward = new Ward(null);
+    // Patient the console is currently working on
+    static PatientStore patient;
+    // Whether listings use ANSI colors (off with --no-color or the NO_COLOR variable)
+    static boolean colors = System.getenv("NO_COLOR") == null;
+    // How long exiting waits for queued reminders to be delivered
+    private static final long REMINDER_DRAIN_MILLIS = 2_000;
+    // Index built from an interaction CSV, kept next to the journal
+    private static final String INTERACTION_INDEX_FILE = "interactions.idx";
+    // Most catalog or medicine names offered for a mistyped name
+    private static final int NAME_SUGGESTIONS = 5;
 
     // Console Color Codes for enhanced output readability
     public static final String RESET = "\u001B[0m";
@@ -35,30 +52,211 @@ public class Medicine {
      * Displays a menu and handles user input for various operations.
      */
     public static void main(String[] args) {
+        // Non-interactive mode: java Medicine --import <file.csv|file.jsonl>
+        // Any mode: --patient <id> selects the patient to work on (default: "default")
+        String patientId = Ward.DEFAULT_PATIENT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--patient") && i + 1 < args.length) {
+                patientId = args[i + 1];
+            } else if (args[i].equals("--no-color")) {
+                colors = false;
+            }
+        }
+        if (args.length > 0 && args[0].equals("--import")) {
+            if (args.length < 2) {
+                System.out.println(RED + "Usage: java Medicine --import <file.csv|file.jsonl> [--patient <id>]" + RESET);
+                return;
+            }
+            loadSavedState(Paths.get(System.getProperty("medicine.dataDir", "medicine-data")));
+            boolean ok = selectPatient(patientId) && importMedicines(Paths.get(args[1]));
+            closeJournal();
+            if (!ok) {
+                System.exit(1);
+            }
+            return;
+        }
+        // Non-interactive mode: java Medicine --export <history|schedules> <file> [--from <date>] [--to <date>] [--medicine <name>]
+        if (args.length > 0 && args[0].equals("--export")) {
+            if (args.length < 3 || !(args[1].equals("history") || args[1].equals("schedules"))) {
+                System.out.println(RED + "Usage: java Medicine --export <history|schedules> <file.csv|file.jsonl>[.gz]"
+                        + " [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--medicine <name>] [--patient <id>]" + RESET);
+                return;
+            }
+            String from = null;
+            String to = null;
+            String medicine = null;
+            for (int i = 3; i + 1 < args.length; i++) {
+                if (args[i].equals("--from")) {
+                    from = args[i + 1];
+                } else if (args[i].equals("--to")) {
+                    to = args[i + 1];
+                } else if (args[i].equals("--medicine")) {
+                    medicine = args[i + 1];
+                }
+            }
+            loadSavedState(Paths.get(System.getProperty("medicine.dataDir", "medicine-data")));
+            boolean ok = selectPatient(patientId)
+                    && exportData(args[1].equals("history"), Paths.get(args[2]), medicine, from, to);
+            closeJournal();
+            if (!ok) {
+                System.exit(1);
+            }
+            return;
+        }
+        // Non-interactive mode: java Medicine --build-interactions <pairs.csv> [index file]
+        if (args.length > 0 && args[0].equals("--build-interactions")) {
+            if (args.length < 2) {
+                System.out.println(RED + "Usage: java Medicine --build-interactions <pairs.csv> [interactions.idx]" + RESET);
+                return;
+            }
+            Path csv = Paths.get(args[1]);
+            Path index = args.length > 2 && !args[2].startsWith("--") ? Paths.get(args[2])
+                    : csv.resolveSibling(INTERACTION_INDEX_FILE);
+            try {
+                long start = System.nanoTime();
+                int pairs = InteractionIndex.build(csv, index);
+                System.out.println(GREEN + "Wrote " + pairs + " interactions to " + index + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms." + RESET);
+            } catch (IOException e) {
+                System.out.println(RED + "Could not build interaction index: " + e.getMessage() + RESET);
+                System.exit(1);
+            }
+            return;
+        }
         System.out.println("Welcome to Intelligent Medicine Management System");
         System.out.println("You can manage your medicines, view schedules, and track history.");
-        // Background thread for reminders
-    new Thread(() -> {
-    while (true) {
+        // Optional HTTP API next to the console: java Medicine --http <port>
+        // Optional metrics dump every n seconds: java Medicine --metrics <seconds>
+        // Optional reminder destinations: --reminder-log <file>, --webhook <url>
+        // Optional minutes before an unconfirmed dose counts as missed: --grace <minutes>
+        // Optional drug interactions to warn about: --interactions <pairs.csv|interactions.idx>
+        // Optional drug catalog to complete and correct names from: --catalog <names.txt>
+        // Optional warm standby: --replicate <port> on the primary, --standby <port> on the
+        // standby, which takes over after --takeover-after <ms> without a heartbeat
+        int httpPort = -1;
+        int replicatePort = -1;
+        int standbyPort = -1;
+        long takeoverMillis = MedicineReplication.DEFAULT_TAKEOVER_MILLIS;
+        int metricsSeconds = -1;
+        long graceMinutes = DoseLog.DEFAULT_GRACE_MINUTES;
+        String reminderLog = null;
+        String webhook = null;
+        String interactionFile = null;
+        String catalogFile = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--reminder-log")) {
+                reminderLog = args[i + 1];
+            } else if (args[i].equals("--interactions")) {
+                interactionFile = args[i + 1];
+            } else if (args[i].equals("--catalog")) {
+                catalogFile = args[i + 1];
+            } else if (args[i].equals("--webhook")) {
+                webhook = args[i + 1];
+            } else if (args[i].equals("--http") || args[i].equals("--metrics") || args[i].equals("--grace")
+                    || args[i].equals("--replicate") || args[i].equals("--standby") || args[i].equals("--takeover-after")) {
+                try {
+                    int value = Integer.parseInt(args[i + 1]);
+                    if (args[i].equals("--http")) {
+                        httpPort = value;
+                    } else if (args[i].equals("--metrics")) {
+                        metricsSeconds = value;
+                    } else if (args[i].equals("--replicate")) {
+                        replicatePort = value;
+                    } else if (args[i].equals("--standby")) {
+                        standbyPort = value;
+                    } else if (args[i].equals("--takeover-after")) {
+                        takeoverMillis = value;
+                    } else {
+                        graceMinutes = value;
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println(RED + "Invalid value for " + args[i] + ": " + args[i + 1] + RESET);
+                }
+            }
+        }
+        // Restore every patient's medicines, schedules and history saved by previous runs,
+        // or follow a primary and continue with its state once it stops
+        Path dataDir = Paths.get(System.getProperty("medicine.dataDir", "medicine-data"));
+        if (standbyPort >= 0) {
+            if (!followPrimary(standbyPort, takeoverMillis)) {
+                return;
+            }
+        } else {
+            loadSavedState(dataDir);
+        }
+        if (!selectPatient(patientId)) {
+            selectPatient(Ward.DEFAULT_PATIENT);
+        }
+        if (interactionFile != null) {
+            loadInteractions(Paths.get(interactionFile), dataDir);
+        }
+        if (catalogFile != null) {
+            loadCatalog(Paths.get(catalogFile));
+        }
+        // Due reminders are delivered by one worker per destination, never by the engine
+        ReminderPipeline reminders = new ReminderPipeline(ReminderPipeline.DEFAULT_CAPACITY,
+                ReminderPipeline.DEFAULT_BATCH_SIZE, ReminderPipeline.OverflowPolicy.DROP_OLDEST);
+        reminders.addSink(new ConsoleReminderSink(System.out, colors));
+        if (reminderLog != null) {
+            reminders.addSink(new FileReminderSink(Paths.get(reminderLog),
+                    FileReminderSink.DEFAULT_MAX_BYTES, FileReminderSink.DEFAULT_KEEP));
+        }
+        if (webhook != null) {
+            try {
+                reminders.addSink(new WebhookReminderSink(URI.create(webhook)));
+            } catch (IllegalArgumentException e) {
+                System.out.println(RED + "Invalid webhook URL " + webhook + ": " + e.getMessage() + RESET);
+            }
+        }
+        reminders.start();
+        ward.setReminderPipeline(reminders);
+        try {
+            ward.setGraceMinutes(graceMinutes);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + e.getMessage() + RESET);
+        }
+        // Background reminder engine: sleeps until the next due dose of any patient
+        ward.start();
+        // Runtime metrics over JMX (medicine:type=Metrics) and optionally in a text file
+        MedicineMetrics metrics = MedicineMetrics.get();
+        metrics.setWard(ward);
         try {
-            for (Map.Entry<String, MedicineSchedule> entry : medicineSchedules.entrySet()) {
-                String medicineName = entry.getKey();
-                MedicineSchedule schedule = entry.getValue();
-                schedule.checkAndNotifyDose(medicineName);
+            metrics.register();
+        } catch (JMException e) {
+            System.out.println(RED + "Could not register JMX metrics: " + e.getMessage() + RESET);
+        }
+        if (metricsSeconds > 0) {
+            Path metricsFile = dataDir.resolve("metrics.log");
+            metrics.startDump(metricsFile, metricsSeconds);
+            System.out.println(GREEN + "Writing metrics to " + metricsFile + " every " + metricsSeconds + " s" + RESET);
+        }
+        MedicineReplication.Primary replication = null;
+        if (replicatePort >= 0) {
+            try {
+                replication = MedicineReplication.Primary.start(ward, replicatePort);
+                System.out.println(GREEN + "Shipping changes to a standby on port " + replication.getPort() + RESET);
+            } catch (IOException e) {
+                System.out.println(RED + "Could not start replication: " + e.getMessage() + RESET);
+            }
+        }
+        MedicineHttpServer httpServer = null;
+        if (httpPort >= 0) {
+            try {
+                httpServer = MedicineHttpServer.start(httpPort, ward);
+                System.out.println(GREEN + "HTTP API listening on port " + httpServer.getPort() + RESET);
+            } catch (IOException e) {
+                System.out.println(RED + "Could not start HTTP API: " + e.getMessage() + RESET);
             }
-            Thread.sleep(60000); //  wait 1 minute
-        } catch (InterruptedException e) {
-            System.out.println("Reminder thread interrupted.");
-            return;
         }
-    }
-}).start();
 
         System.out.println("==========================================================");
         System.out.println("Please follow the prompts to manage your medicines.");
         System.out.println("==========================================================");
         Scanner scanner = new Scanner(System.in);
         while (true) {
+            if (!patient.getId().equals(Ward.DEFAULT_PATIENT)) {
+                System.out.println(CYAN + "Patient: " + patient.getId() + RESET);
+            }
             System.out.println(YELLOW + "Enter 1 to add medicines");
             System.out.println("Enter 2 to view medicines");
             System.out.println("Enter 3 to update medicines");
@@ -67,6 +265,12 @@ public class Medicine {
             System.out.println("Enter 6 to update schedule for an existing medicine ");
             System.out.println("Enter 7 to view the schedule of a medicine");
             System.out.println("Enter 8 to exit the system");
+            System.out.println("Enter 9 to switch patient");
+            System.out.println("Enter 10 to view upcoming doses");
+            System.out.println("Enter 11 to manage stock");
+            System.out.println("Enter 12 to confirm a dose");
+            System.out.println("Enter 13 to view adherence");
+            System.out.println("Enter 14 to export history or schedules");
             System.out.print(BLUE + "Your choice: " + RESET);
 
             int choice;
@@ -83,7 +287,7 @@ public class Medicine {
                     addMedicines(scanner);
                     break;
                 case 2:
-                    viewMedicines();
+                    viewMedicines(scanner);
                     break;
                 case 3:
                     updateMedicines(scanner);
@@ -92,7 +296,7 @@ public class Medicine {
                     deleteMedicines(scanner);
                     break;
                 case 5:
-                    viewMedicineHistory();
+                    viewMedicineHistory(scanner);
                     break;
                 case 6:
                     updateScheduleForExistingMedicine(scanner);
@@ -103,14 +307,295 @@ public class Medicine {
 
                 case 8:
                     System.out.println(GREEN + "Exiting the system. Goodbye!" + RESET);
+                    if (httpServer != null) {
+                        httpServer.stop();
+                    }
+                    if (replication != null) {
+                        replication.close();
+                    }
+                    metrics.stopDump();
+                    closeJournal();
                     scanner.close();
                     return;
+                case 9:
+                    switchPatient(scanner);
+                    break;
+                case 10:
+                    viewUpcomingDoses(scanner);
+                    break;
+                case 11:
+                    manageStock(scanner);
+                    break;
+                case 12:
+                    confirmDose(scanner);
+                    break;
+                case 13:
+                    viewAdherence(scanner);
+                    break;
+                case 14:
+                    exportData(scanner);
+                    break;
                 default:
                     System.out.println(RED + "Invalid choice. Please try again." + RESET);
             }
         }
     }
 
+    /**
+     * Recovers every patient saved in the data directory and re-arms slots and
+     * reminders for their schedules. If the directory cannot be used the system
+     * keeps running in memory only.
+     *
+     * @param dataDir directory holding the default patient and {@code patients/<id>}
+     */
+    static void loadSavedState(Path dataDir) {
+        long start = System.nanoTime();
+        ward = new Ward(dataDir);
+        List<String> patientIds;
+        try {
+            ward.getOrCreate(Ward.DEFAULT_PATIENT);
+            patientIds = ward.savedPatientIds();
+        } catch (IOException e) {
+            System.out.println(RED + "Could not load saved data from " + dataDir + ": " + e.getMessage() + RESET);
+            System.out.println(RED + "Changes made in this session will not be saved." + RESET);
+            ward = new Ward(null);
+            return;
+        }
+        for (String id : patientIds) {
+            try {
+                ward.getOrCreate(id);
+            } catch (IOException e) {
+                System.out.println(RED + "Could not load saved data of patient " + id + ": " + e.getMessage() + RESET);
+            }
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        int medicines = 0;
+        long events = 0;
+        for (String id : ward.patientIds()) {
+            MedicineRegistry registry = ward.get(id).getRegistry();
+            medicines += registry.size();
+            events += registry.history().size();
+        }
+        if (medicines > 0 || events > 0) {
+            System.out.println(GREEN + "Restored " + medicines + " medicines and " + events
+                    + " history events of " + ward.size() + " patient(s) in " + elapsedMs + " ms." + RESET);
+        }
+    }
+
+    /**
+     * Loads the drug interactions to warn about: an index file as is, or a CSV of
+     * pairs through an index in the data directory that is rebuilt whenever the CSV
+     * is newer. On failure the system keeps running without interaction checks.
+     */
+    static void loadInteractions(Path file, Path dataDir) {
+        long start = System.nanoTime();
+        try {
+            InteractionIndex index = file.getFileName().toString().endsWith(".idx") ? InteractionIndex.open(file)
+                    : InteractionIndex.openOrBuild(file, dataDir.resolve(INTERACTION_INDEX_FILE));
+            ward.setInteractions(index);
+            System.out.println(GREEN + "Loaded " + index.pairs() + " interactions between " + index.size()
+                    + " drugs in " + (System.nanoTime() - start) / 1_000_000 + " ms." + RESET);
+        } catch (IOException e) {
+            System.out.println(RED + "Could not load interactions from " + file + ": " + e.getMessage()
+                    + ". Interactions will not be checked." + RESET);
+        }
+    }
+
+    /**
+     * Loads the drug catalog new medicine names are completed and corrected from. On
+     * failure the system keeps running and takes names as typed.
+     */
+    static void loadCatalog(Path file) {
+        long start = System.nanoTime();
+        try {
+            DrugCatalog catalog = DrugCatalog.load(file);
+            ward.setCatalog(catalog);
+            System.out.println(GREEN + "Loaded " + catalog.size() + " drug names (" + catalog.nodes() + " nodes) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms." + RESET);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(RED + "Could not load the drug catalog from " + file + ": " + e.getMessage()
+                    + ". Names will be taken as typed." + RESET);
+        }
+    }
+
+    /**
+     * Runs as a warm standby of the primary on the given port until the primary stops,
+     * then keeps its medicines and history in memory and continues as the primary.
+     *
+     * @return false if the standby could not be started
+     */
+    static boolean followPrimary(int port, long takeoverMillis) {
+        ward = new Ward(null);
+        MedicineReplication.Standby standby;
+        try {
+            standby = MedicineReplication.Standby.start(ward, port, takeoverMillis);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + e.getMessage() + RESET);
+            return false;
+        }
+        System.out.println(CYAN + "Standing by for the primary on port " + port + "..." + RESET);
+        try {
+            standby.awaitTakeover();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            standby.close();
+            return false;
+        }
+        System.out.println(RED + "This instance keeps the replicated data in memory only; export it to keep it." + RESET);
+        return true;
+    }
+
+    /**
+     * Makes the given patient the one the console and import work on, creating the
+     * patient if needed.
+     *
+     * @return false if the patient id is invalid or the patient's data cannot be loaded
+     */
+    static boolean selectPatient(String patientId) {
+        try {
+            patient = ward.getOrCreate(patientId);
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(RED + "Could not open patient " + patientId + ": " + e.getMessage() + RESET);
+            return false;
+        }
+    }
+
+    /**
+     * Lists the known patients and switches the console to another (or a new) one.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void switchPatient(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        System.out.println(CYAN + "Patients:" + RESET);
+        for (String id : ward.patientIds()) {
+            String marker = id.equals(patient.getId()) ? " (current)" : "";
+            System.out.println(BLUE + "- " + id + " [" + ward.get(id).getRegistry().size() + " medicines]" + marker + RESET);
+        }
+        System.out.print(YELLOW + "Enter the patient id to switch to (new ids are created): " + RESET);
+        String id = sc.nextLine().trim();
+        if (id.isEmpty()) {
+            System.out.println(RED + "Patient id cannot be empty." + RESET);
+            return;
+        }
+        if (selectPatient(id)) {
+            System.out.println(GREEN + "Now managing medicines of patient " + id + "." + RESET);
+        }
+    }
+
+    /**
+     * Stops reminders and flushes and snapshots every patient's journal before exiting.
+     */
+    static void closeJournal() {
+        ReminderPipeline reminders = ward.getReminderPipeline();
+        try {
+            ward.close();
+        } catch (IOException e) {
+            System.out.println(RED + "Could not save data: " + e.getMessage() + RESET);
+        }
+        if (reminders != null) {
+            reminders.close(REMINDER_DRAIN_MILLIS); // deliver what the engine already fired
+        }
+    }
+
+    /**
+     * Imports medicines and schedules from a CSV or JSON-lines file, all or nothing,
+     * and prints a summary.
+     *
+     * @param file file to import
+     * @return true if every record was imported
+     */
+    static boolean importMedicines(Path file) {
+        MedicineImporter.Result result;
+        try {
+            result = MedicineImporter.importFile(file, patient);
+        } catch (IOException e) {
+            System.out.println(RED + "Could not read " + file + ": " + e.getMessage() + RESET);
+            return false;
+        }
+        if (!result.isSuccess()) {
+            System.out.println(RED + "Import failed with " + result.getErrorCount() + " error(s); nothing was imported." + RESET);
+            for (String error : result.getErrors()) {
+                System.out.println(RED + "- " + error + RESET);
+            }
+            return false;
+        }
+        double seconds = result.getElapsedNanos() / 1e9;
+        System.out.println(GREEN + "Imported " + result.getImported() + " medicines in "
+                + String.format("%.2f", seconds) + " s (" + result.getAdjusted() + " dose times adjusted for conflicts)." + RESET);
+        return true;
+    }
+
+    /**
+     * Writes the current patient's history or schedules to a CSV or JSON-lines file,
+     * gzipped if the name ends in .gz, and prints a summary.
+     *
+     * @param history  true for history, false for schedules
+     * @param medicine only export history of this medicine (null or empty for all)
+     * @param from     first day of history to export, yyyy-MM-dd (null for no limit)
+     * @param to       day after the last one to export, yyyy-MM-dd (null for no limit)
+     * @return true if the file was written
+     */
+    static boolean exportData(boolean history, Path file, String medicine, String from, String to) {
+        MedicineExporter.Result result;
+        try {
+            if (history) {
+                long fromMillis = from == null || from.isEmpty() ? Long.MIN_VALUE : startOfDay(from);
+                long toMillis = to == null || to.isEmpty() ? Long.MAX_VALUE : startOfDay(to);
+                String name = medicine == null || medicine.trim().isEmpty() ? null : medicine.trim().toLowerCase();
+                result = MedicineExporter.exportHistory(patient.getRegistry().history(), name, fromMillis, toMillis, file);
+            } else {
+                result = MedicineExporter.exportSchedules(patient.getRegistry(), file);
+            }
+        } catch (DateTimeParseException e) {
+            System.out.println(RED + "Invalid date '" + e.getParsedString() + "', use yyyy-MM-dd." + RESET);
+            return false;
+        } catch (IOException e) {
+            System.out.println(RED + "Could not write " + file + ": " + e.getMessage() + RESET);
+            return false;
+        }
+        double seconds = result.getElapsedNanos() / 1e9;
+        System.out.println(GREEN + "Exported " + result.getRows() + (history ? " history events" : " schedules") + " to "
+                + file + " (" + result.getBytes() + " bytes) in " + String.format("%.2f", seconds) + " s." + RESET);
+        return true;
+    }
+
+    /**
+     * Asks what to export and where, then exports it like {@code --export}.
+     */
+    public static void exportData(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        System.out.print(YELLOW + "Export history or schedules? (history/schedules): " + RESET);
+        String what = sc.nextLine().trim().toLowerCase();
+        if (!what.equals("history") && !what.equals("schedules")) {
+            System.out.println(RED + "Please answer with 'history' or 'schedules'." + RESET);
+            return;
+        }
+        System.out.print(YELLOW + "File (.csv or .jsonl, add .gz to compress): " + RESET);
+        String file = sc.nextLine().trim();
+        if (file.isEmpty()) {
+            System.out.println(RED + "File name cannot be empty." + RESET);
+            return;
+        }
+        String medicine = null;
+        String from = null;
+        String to = null;
+        if (what.equals("history")) {
+            System.out.print(YELLOW + "Only this medicine (press Enter for all): " + RESET);
+            medicine = sc.nextLine();
+            System.out.print(YELLOW + "From date, yyyy-MM-dd (press Enter for the beginning): " + RESET);
+            from = sc.nextLine().trim();
+            System.out.print(YELLOW + "Until date, exclusive, yyyy-MM-dd (press Enter for now): " + RESET);
+            to = sc.nextLine().trim();
+        }
+        exportData(what.equals("history"), Paths.get(file), medicine, from, to);
+    }
+
+    private static long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     /**
      * Adds new medicines to the list after validating input.
      * If a duplicate is entered, asks user if they want to skip or continue (for schedule).
@@ -144,8 +629,8 @@ public class Medicine {
                     System.out.println(RED + "Medicine name cannot be empty. Please try again." + RESET);
                     continue;
                 }
-                medicineName = medicineName.trim().toLowerCase();
-                if (medicines.contains(medicineName)) {
+                medicineName = canonicalName(sc, medicineName.trim().toLowerCase());
+                if (patient.getRegistry().contains(medicineName)) {
                     System.out.println(PURPLE + "Medicine " + medicineName + " is already in the list." + RESET);
                     while (true) {
                         System.out.print(YELLOW + "Do you want to skip adding this medicine? (yes/no): " + RESET);
@@ -162,8 +647,8 @@ public class Medicine {
                                     System.out.println(RED + "Medicine name cannot be empty. Please try again." + RESET);
                                     continue;
                                 }
-                                anotherName = anotherName.trim().toLowerCase();
-                                if (medicines.contains(anotherName)) {
+                                anotherName = canonicalName(sc, anotherName.trim().toLowerCase());
+                                if (patient.getRegistry().contains(anotherName)) {
                                     System.out.println(PURPLE + "Medicine " + anotherName + " is already in the list." + RESET);
                                     continue;
                                 }
@@ -175,7 +660,7 @@ public class Medicine {
                             System.out.println(RED + "Please answer with 'yes' or 'no'." + RESET);
                         }
                     }
-                    if (medicineName == null || medicineName.trim().isEmpty() || medicines.contains(medicineName)) {
+                    if (medicineName == null || medicineName.trim().isEmpty() || patient.getRegistry().contains(medicineName)) {
                         // If user chose to skip, or still duplicate, skip this iteration
                         medicineName = null;
                         break;
@@ -183,37 +668,369 @@ public class Medicine {
                 }
                 break;
             }
-            if (medicineName == null || medicineName.trim().isEmpty() || medicines.contains(medicineName)) {
+            if (medicineName == null || medicineName.trim().isEmpty() || patient.getRegistry().contains(medicineName)) {
                 // Skip to next medicine if user chose to skip or duplicate
                 continue;
             }
-            medicines.add(medicineName);
-            String dateAdded = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            medicineHistories.add(new MedicineHistory(medicineName, "added", dateAdded, null, null));
-            System.out.println(GREEN + "Medicine " + medicineName + " added successfully." + RESET);
-
-            // Prompt user for schedule details after successful addition
+            if (!confirmInteractions(sc, medicineName, null)) {
+                continue;
+            }
+            // Prompt user for schedule details, then register name and schedule together
             System.out.println(CYAN + "Enter schedule details for " + medicineName + ":" + RESET);
-            MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput();
-            medicineSchedules.put(medicineName, schedule); // Store the schedule for the medicine
+            MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput(patient.getSlots());
+            boolean added;
+            try {
+                added = patient.getRegistry().add(medicineName, schedule);
+            } catch (IllegalStateException e) {
+                schedule.releaseSlots(patient.getSlots());
+                System.out.println(RED + e.getMessage() + RESET);
+                continue;
+            } catch (UncheckedIOException e) {
+                System.out.println(RED + e.getMessage() + RESET); // added in memory only
+                added = true;
+            }
+            if (!added) {
+                schedule.releaseSlots(patient.getSlots());
+                System.out.println(PURPLE + "Medicine " + medicineName + " is already in the list." + RESET);
+                continue;
+            }
+            patient.getScheduler().schedule(medicineName, schedule);
+            System.out.println(GREEN + "Medicine " + medicineName + " added successfully." + RESET);
             System.out.println(GREEN + "Schedule for " + medicineName + " added successfully." + RESET);
-            // You may want to store or process the schedule as needed
 
             // After adding schedule, continue to next medicine
         }
     }
     /**
-     * Displays the current list of medicines.
+     * Warns about known interactions between a medicine and the patient's other
+     * medicines and asks whether to go ahead.
+     *
+     * @param replacing medicine being renamed to {@code medicineName}, left out of the
+     *                  check; null when adding
+     * @return true if no interaction is known or the user wants the medicine anyway
+     */
+    static boolean confirmInteractions(Scanner sc, String medicineName, String replacing) {
+        InteractionIndex index = ward.getInteractions();
+        if (index == null) {
+            return true;
+        }
+        List<String> others = patient.getRegistry().names();
+        others.remove(replacing);
+        List<InteractionIndex.Interaction> found = index.check(medicineName, others);
+        if (found.isEmpty()) {
+            return true;
+        }
+        for (InteractionIndex.Interaction interaction : found) {
+            boolean serious = interaction.getSeverity().compareTo(InteractionIndex.Severity.MAJOR) >= 0;
+            System.out.println((serious ? RED : YELLOW) + "Interaction warning: " + interaction.message() + RESET);
+        }
+        while (true) {
+            System.out.print(YELLOW + "Do you still want to add " + medicineName + "? (yes/no): " + RESET);
+            String answer = sc.nextLine().trim().toLowerCase();
+            if (answer.equals("yes")) {
+                return true;
+            } else if (answer.equals("no")) {
+                System.out.println(PURPLE + "Medicine " + medicineName + " was not added." + RESET);
+                return false;
+            }
+            System.out.println(RED + "Please answer with 'yes' or 'no'." + RESET);
+        }
+    }
+
+    /**
+     * Matches a typed medicine name against the drug catalog. A catalog name is taken
+     * as is; otherwise the closest catalog names and completions are offered and the
+     * user picks one or keeps what they typed. Without a catalog the name is returned
+     * unchanged.
      */
-    public static void viewMedicines() {
-        if (medicines.isEmpty()) {
+    static String canonicalName(Scanner sc, String typed) {
+        DrugCatalog catalog = ward.getCatalog();
+        if (catalog == null || typed.isEmpty()) {
+            return typed;
+        }
+        String name = DrugCatalog.normalize(typed);
+        if (catalog.contains(name)) {
+            return name;
+        }
+        List<String> suggestions = catalog.suggest(name, NAME_SUGGESTIONS);
+        if (suggestions.isEmpty()) {
+            System.out.println(PURPLE + name + " is not in the drug catalog." + RESET);
+            return name;
+        }
+        return chooseName(sc, name, suggestions, name + " is not in the drug catalog. Did you mean:");
+    }
+
+    /**
+     * Resolves the name of one of the patient's medicines, offering the closest
+     * names when it does not match any.
+     */
+    static String existingName(Scanner sc, String typed) {
+        List<String> names = patient.getRegistry().names();
+        if (typed.isEmpty() || names.contains(typed)) {
+            return typed;
+        }
+        List<String> suggestions = DrugCatalog.closest(typed, names, NAME_SUGGESTIONS);
+        if (suggestions.isEmpty()) {
+            return typed;
+        }
+        return chooseName(sc, typed, suggestions, "No medicine named " + typed + ". Did you mean:");
+    }
+
+    private static String chooseName(Scanner sc, String typed, List<String> suggestions, String question) {
+        System.out.println(PURPLE + question + RESET);
+        for (int i = 0; i < suggestions.size(); i++) {
+            System.out.println(BLUE + "  " + (i + 1) + ". " + suggestions.get(i) + RESET);
+        }
+        while (true) {
+            System.out.print(YELLOW + "Enter a number to use a suggestion, or press Enter to keep '" + typed + "': " + RESET);
+            String answer = sc.nextLine().trim();
+            if (answer.isEmpty()) {
+                return typed;
+            }
+            try {
+                int choice = Integer.parseInt(answer);
+                if (choice >= 1 && choice <= suggestions.size()) {
+                    return suggestions.get(choice - 1);
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the hint below
+            }
+            System.out.println(RED + "Please enter a number between 1 and " + suggestions.size() + "." + RESET);
+        }
+    }
+
+    /**
+     * Displays the current list of medicines, one page at a time.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void viewMedicines(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        MedicineRegistry registry = patient.getRegistry();
+        if (registry.isEmpty()) {
+            System.out.println(RED + "No medicines available to view." + RESET);
+            return;
+        }
+        ListingRenderer renderer = new ListingRenderer(System.out, colors);
+        try {
+            renderer.line(CYAN, "List of Medicines:");
+            page(sc, renderer.medicines(registry.entries().iterator()));
+        } catch (IOException e) {
+            System.out.println(RED + "Could not write the listing: " + e.getMessage() + RESET);
+        }
+    }
+
+    /**
+     * Lists the doses of all medicines due in the next 24 hours or 7 days, in time
+     * order, one page at a time.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void viewUpcomingDoses(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        MedicineRegistry registry = patient.getRegistry();
+        if (registry.isEmpty()) {
             System.out.println(RED + "No medicines available to view." + RESET);
+            return;
+        }
+        System.out.print(YELLOW + "Enter 1 for the next 24 hours or 2 for the next 7 days: " + RESET);
+        String answer = sc.nextLine().trim();
+        Duration window;
+        if (answer.equals("1")) {
+            window = Duration.ofHours(24);
+        } else if (answer.equals("2")) {
+            window = Duration.ofDays(7);
         } else {
-            System.out.println(CYAN + "List of Medicines:" + RESET);
-            for (String medicine : medicines) {
-                System.out.println(BLUE + "- " + medicine + RESET);
+            System.out.println(RED + "Invalid choice." + RESET);
+            return;
+        }
+        LocalDateTime now = ward.getClock().now();
+        DoseAgenda agenda = new DoseAgenda(registry.entries(), now, now.plus(window));
+        ListingRenderer renderer = new ListingRenderer(System.out, colors);
+        try {
+            if (!agenda.hasNext()) {
+                renderer.line(PURPLE, "No doses due in this period.");
+                return;
+            }
+            renderer.line(CYAN, "Upcoming Doses:");
+            page(sc, renderer.agenda(agenda));
+        } catch (IOException e) {
+            System.out.println(RED + "Could not write the listing: " + e.getMessage() + RESET);
+        }
+    }
+
+    /**
+     * Shows the stock and refill dates of every tracked medicine, then lets the user
+     * set a stock, record a refill, change the reorder lead time or stop tracking.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void manageStock(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        MedicineRegistry registry = patient.getRegistry();
+        MedicineStock stock = patient.getStock();
+        LocalDateTime now = ward.getClock().now();
+        boolean any = false;
+        for (MedicineRegistry.Entry entry : registry.entries()) {
+            MedicineStock.Forecast forecast = stock.forecast(entry.getName(), now);
+            if (forecast == null) {
+                continue;
+            }
+            if (!any) {
+                System.out.println(CYAN + "Stock:" + RESET);
+                any = true;
+            }
+            String line = entry.getName() + ": " + forecast.getOnHand() + " dose(s) on hand";
+            if (forecast.getRunsOut() != null) {
+                line += ", runs out " + forecast.getRunsOut() + ", reorder by " + forecast.getReorderBy();
+            } else {
+                line += ", no doses scheduled";
+            }
+            System.out.println((forecast.isLow() ? RED + line + " (LOW)" : GREEN + line) + RESET);
+        }
+        if (!any) {
+            System.out.println(PURPLE + "No medicine has its stock tracked yet." + RESET);
+        }
+        System.out.println(YELLOW + "Enter 1 to set the stock of a medicine");
+        System.out.println("Enter 2 to record a refill");
+        System.out.println("Enter 3 to change how many days ahead to reorder");
+        System.out.println("Enter 4 to stop tracking a medicine");
+        System.out.print("Enter anything else to go back: " + RESET);
+        String action = sc.nextLine().trim();
+        if (!action.equals("1") && !action.equals("2") && !action.equals("3") && !action.equals("4")) {
+            return;
+        }
+        System.out.print(YELLOW + "Enter the name of the medicine: " + RESET);
+        String medicineName = sc.nextLine().trim().toLowerCase();
+        if (!registry.contains(medicineName)) {
+            System.out.println(RED + "Medicine " + medicineName + " not found." + RESET);
+            return;
+        }
+        if (action.equals("4")) {
+            if (stock.untrack(medicineName)) {
+                patient.saveStock();
+                System.out.println(GREEN + "Stopped tracking the stock of " + medicineName + "." + RESET);
+            } else {
+                System.out.println(RED + "The stock of " + medicineName + " is not tracked." + RESET);
+            }
+            return;
+        }
+        String prompt = action.equals("1") ? "Enter the number of doses on hand: "
+                : action.equals("2") ? "Enter the number of doses added: "
+                : "Enter the number of days ahead to reorder (default " + MedicineStock.DEFAULT_LEAD_DAYS + "): ";
+        System.out.print(YELLOW + prompt + RESET);
+        long value;
+        try {
+            value = Long.parseLong(sc.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println(RED + "Invalid input. Please enter a number." + RESET);
+            return;
+        }
+        try {
+            if (action.equals("1")) {
+                stock.set(medicineName, value, registry.getSchedule(medicineName));
+            } else if (action.equals("2")) {
+                stock.refill(medicineName, value);
+            } else {
+                stock.setLeadDays(medicineName, (int) Math.max(-1, Math.min(value, Integer.MAX_VALUE)));
             }
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + e.getMessage() + RESET);
+            return;
         }
+        patient.saveStock();
+        MedicineStock.Forecast forecast = stock.forecast(medicineName, ward.getClock().now());
+        System.out.println(GREEN + "Stock of " + medicineName + " updated: " + forecast.getOnHand() + " dose(s) on hand"
+                + (forecast.getRunsOut() != null ? ", reorder by " + forecast.getReorderBy() : "") + "." + RESET);
+    }
+
+    /**
+     * Lists the doses waiting for confirmation and records the oldest one of the
+     * chosen medicine as taken or skipped.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void confirmDose(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        List<DoseLog.Dose> pending = patient.getDoses().pending();
+        if (pending.isEmpty()) {
+            System.out.println(PURPLE + "No dose is waiting for confirmation." + RESET);
+            return;
+        }
+        System.out.println(CYAN + "Doses waiting for confirmation (missed after "
+                + patient.getDoses().getGraceMinutes() + " min):" + RESET);
+        for (DoseLog.Dose dose : pending) {
+            System.out.println(dose.getMedicineName() + " at " + dose.getFormattedDueTime());
+        }
+        System.out.print(YELLOW + "Enter the name of the medicine: " + RESET);
+        String medicineName = sc.nextLine().trim().toLowerCase();
+        System.out.print(YELLOW + "Enter 1 if you took it or 2 if you skipped it: " + RESET);
+        String answer = sc.nextLine().trim();
+        DoseLog.Outcome outcome;
+        if (answer.equals("1")) {
+            outcome = DoseLog.Outcome.TAKEN;
+        } else if (answer.equals("2")) {
+            outcome = DoseLog.Outcome.SKIPPED;
+        } else {
+            System.out.println(RED + "Invalid choice." + RESET);
+            return;
+        }
+        try {
+            DoseLog.Dose dose = patient.confirmDose(medicineName, outcome);
+            System.out.println(GREEN + "Dose of " + medicineName + " due " + dose.getFormattedDueTime()
+                    + " recorded as " + outcome.getLabel() + "." + RESET);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + e.getMessage() + RESET);
+        }
+    }
+
+    /**
+     * Shows the share of doses taken per medicine and in total, all-time and over
+     * the last 7 and 30 days, plus per weekday in total. Optionally recomputes the
+     * figures from the whole dose log.
+     *
+     * @param sc Scanner object for user input
+     */
+    public static void viewAdherence(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        DoseLog doses = patient.getDoses();
+        AdherenceStats stats = doses.getStats();
+        LocalDate today = ward.getClock().now().toLocalDate();
+        AdherenceStats.Summary all = stats.summary(null, today);
+        if (all == null || all.getDoses() == 0) {
+            System.out.println(PURPLE + "No dose has been confirmed or missed yet." + RESET);
+            return;
+        }
+        System.out.println(CYAN + "Adherence (taken / skipped / missed):" + RESET);
+        for (String medicineName : stats.medicines()) {
+            System.out.println(adherenceLine(medicineName, stats.summary(medicineName, today)));
+        }
+        System.out.println(BOLD + adherenceLine("all medicines", all) + RESET);
+        StringBuilder weekdays = new StringBuilder("By weekday:");
+        for (DayOfWeek day : DayOfWeek.values()) {
+            weekdays.append(' ').append(day.getDisplayName(TextStyle.SHORT, Locale.ENGLISH)).append(' ')
+                    .append(percent(all.getRate(day)));
+        }
+        System.out.println(weekdays);
+        System.out.print(YELLOW + "Enter r to recompute from the full dose log, or press Enter to go back: " + RESET);
+        if (!sc.nextLine().trim().equalsIgnoreCase("r")) {
+            return;
+        }
+        long start = System.nanoTime();
+        AdherenceStats rebuilt = doses.recompute();
+        System.out.println(GREEN + "Recomputed from " + rebuilt.size() + " dose(s) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms: "
+                + adherenceLine("all medicines", rebuilt.summary(null, today)) + RESET);
+    }
+
+    private static String adherenceLine(String name, AdherenceStats.Summary summary) {
+        return name + ": " + percent(summary.getRate()) + " taken (" + summary.getTaken() + " / "
+                + summary.getSkipped() + " / " + summary.getMissed() + "), last 7 days " + percent(summary.getRate7())
+                + ", last 30 days " + percent(summary.getRate30());
+    }
+
+    private static String percent(double rate) {
+        return Double.isNaN(rate) ? "-" : Math.round(rate * 100) + "%";
     }
 
     /**
@@ -253,20 +1070,22 @@ public static void updateMedicines(Scanner sc) {
             while (continueUpdating) {
                 System.out.println(GREEN + "You chose to remove a medicine and add a new one." + RESET);
                 System.out.print(YELLOW + "Enter the name of the medicine to remove: " + RESET);
-                String oldMedicineName = sc.nextLine().trim().toLowerCase();
+                String oldMedicineName = existingName(sc, sc.nextLine().trim().toLowerCase());
 
-                if (!medicines.contains(oldMedicineName)) {
+                if (!patient.getRegistry().contains(oldMedicineName)) {
                     System.out.println(RED + "No matching medicine found." + RESET);
                     continue; // Ask for the medicine name again
                 }
-                medicines.remove(oldMedicineName);
-                String dateDeleted = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                medicineHistories.add(new MedicineHistory(oldMedicineName, "deleted", null, dateDeleted, null));
+                // Free the old slots so the replacement may reuse them
+                MedicineSchedule oldSchedule = patient.getRegistry().getSchedule(oldMedicineName);
+                if (oldSchedule != null) {
+                    oldSchedule.releaseSlots(patient.getSlots());
+                }
 
                 String newMedicineName;
                 while (true) {
                     System.out.print(YELLOW + "Enter the new name for the medicine: " + RESET);
-                    newMedicineName = sc.nextLine().trim().toLowerCase();
+                    newMedicineName = canonicalName(sc, sc.nextLine().trim().toLowerCase());
 
                     if (newMedicineName.isEmpty()) {
                         System.out.println(RED + "Invalid new medicine name. Please try again." + RESET);
@@ -276,23 +1095,38 @@ public static void updateMedicines(Scanner sc) {
                         System.out.println(RED + "New medicine name cannot be the same as the old one." + RESET);
                         continue;
                     }
-                    if (medicines.contains(newMedicineName)) {
+                    if (patient.getRegistry().contains(newMedicineName)) {
                         System.out.println(PURPLE + "Medicine " + newMedicineName + " already exists in your list." + RESET);
                         continue;
                     }
                     break; // Only break if all checks pass and name is entirely new
                 }
+                if (!confirmInteractions(sc, newMedicineName, oldMedicineName)) {
+                    if (oldSchedule != null) {
+                        oldSchedule.reserveSlots(patient.getSlots());
+                    }
+                    continue;
+                }
 
-                String dateAdded = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                medicines.add(newMedicineName);
-                medicineHistories.add(new MedicineHistory(newMedicineName, "added", dateAdded, null, null));
-                medicineHistories.add(new MedicineHistory(oldMedicineName + " -> " + newMedicineName, "updated", null, null, dateAdded));
-                System.out.println(GREEN + "Medicine updated successfully from " + oldMedicineName + " to " + newMedicineName + "." + RESET);
-
-                // Prompt for schedule details after update
+                // Prompt for schedule details, then swap old for new in one step
                 System.out.println(CYAN + "Enter schedule details for " + newMedicineName + ":" + RESET);
-                MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput();
-                medicineSchedules.put(newMedicineName, schedule); // Store the schedule for the new medicine    
+                MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput(patient.getSlots());
+                try {
+                    patient.getRegistry().rename(oldMedicineName, newMedicineName, schedule);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    schedule.releaseSlots(patient.getSlots());
+                    if (oldSchedule != null) {
+                        oldSchedule.reserveSlots(patient.getSlots());
+                    }
+                    System.out.println(RED + e.getMessage() + RESET);
+                    continue;
+                } catch (UncheckedIOException e) {
+                    System.out.println(RED + e.getMessage() + RESET); // renamed in memory only
+                }
+                patient.getScheduler().cancel(oldMedicineName);
+                patient.medicineRenamed(oldMedicineName, newMedicineName); // Stock and pending doses stay with it
+                patient.getScheduler().schedule(newMedicineName, schedule);
+                System.out.println(GREEN + "Medicine updated successfully from " + oldMedicineName + " to " + newMedicineName + "." + RESET);
                 System.out.println(GREEN + "Schedule for " + newMedicineName + " added successfully." + RESET); 
 
 
@@ -308,26 +1142,41 @@ public static void updateMedicines(Scanner sc) {
             while (true) {
                 System.out.println(GREEN + "You chose to add a new medicine while keeping others." + RESET);
                 System.out.print(YELLOW + "Enter the new medicine name: " + RESET);
-                newMedicineName = sc.nextLine().trim().toLowerCase();
+                newMedicineName = canonicalName(sc, sc.nextLine().trim().toLowerCase());
                 if (newMedicineName.isEmpty()) {
                     System.out.println(RED + "Invalid medicine name. Please try again." + RESET);
                     continue;
                 }
-                if (medicines.contains(newMedicineName)) {
+                if (patient.getRegistry().contains(newMedicineName)) {
                     System.out.println(PURPLE + "Medicine " + newMedicineName + " already exists." + RESET);
                     continue;
                 }
                 break; // Only break if name is entirely new
             }
-            String dateAdded = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            medicines.add(newMedicineName);
-            medicineHistories.add(new MedicineHistory(newMedicineName, "added", dateAdded, null, null));
-            System.out.println(GREEN + "Medicine " + newMedicineName + " added successfully." + RESET);
-
-            // Prompt for schedule details after addition
+            if (!confirmInteractions(sc, newMedicineName, null)) {
+                return;
+            }
+            // Prompt for schedule details, then register name and schedule together
             System.out.println(CYAN + "Enter schedule details for " + newMedicineName + ":" + RESET);
-            MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput();
-            medicineSchedules.put(newMedicineName, schedule); // Store the schedule for the new medicine
+            MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput(patient.getSlots());
+            boolean added;
+            try {
+                added = patient.getRegistry().add(newMedicineName, schedule);
+            } catch (IllegalStateException e) {
+                schedule.releaseSlots(patient.getSlots());
+                System.out.println(RED + e.getMessage() + RESET);
+                return;
+            } catch (UncheckedIOException e) {
+                System.out.println(RED + e.getMessage() + RESET); // added in memory only
+                added = true;
+            }
+            if (!added) {
+                schedule.releaseSlots(patient.getSlots());
+                System.out.println(PURPLE + "Medicine " + newMedicineName + " already exists." + RESET);
+                return;
+            }
+            patient.getScheduler().schedule(newMedicineName, schedule);
+            System.out.println(GREEN + "Medicine " + newMedicineName + " added successfully." + RESET);
             System.out.println(GREEN + "Schedule for " + newMedicineName + " added successfully." + RESET);
         } else {
             System.out.println(RED + "Invalid action. Please try again." + RESET);
@@ -347,19 +1196,31 @@ public static void updateMedicines(Scanner sc) {
 public static void updateScheduleForExistingMedicine(Scanner sc) {
     sc.nextLine(); // Consume leftover newline
     System.out.print(YELLOW + "Enter the name of the medicine to update schedule: " + RESET);
-    String medicineName = sc.nextLine().trim().toLowerCase();
-    if (!medicines.contains(medicineName)) {
+    String medicineName = existingName(sc, sc.nextLine().trim().toLowerCase());
+    if (!patient.getRegistry().contains(medicineName)) {
         System.out.println(RED + "Medicine " + medicineName + " not found." + RESET);
         return;
     }
+    // Free the old slots first so the medicine may keep its previous times
+    MedicineSchedule oldSchedule = patient.getRegistry().getSchedule(medicineName);
+    if (oldSchedule != null) {
+        oldSchedule.releaseSlots(patient.getSlots());
+    }
     System.out.println(CYAN + "Enter new schedule details for " + medicineName + ":" + RESET);
-    MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput();
-    medicineSchedules.put(medicineName, schedule); // Update the schedule for the medicine
-    System.out.println(GREEN + "Schedule for " + medicineName + " updated successfully." + RESET);
-    // Record the update in history
-    // You may want to store or update the schedule as needed
-    String dateUpdated = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    medicineHistories.add(new MedicineHistory(medicineName, "updated", null, null, dateUpdated));
+    MedicineSchedule schedule = MedicineSchedule.createScheduleFromInput(patient.getSlots());
+    try {
+        patient.getRegistry().replaceSchedule(medicineName, schedule); // Update the schedule and record it in history
+    } catch (IllegalArgumentException | IllegalStateException e) {
+        schedule.releaseSlots(patient.getSlots());
+        if (oldSchedule != null) {
+            oldSchedule.reserveSlots(patient.getSlots());
+        }
+        System.out.println(RED + e.getMessage() + RESET);
+        return;
+    } catch (UncheckedIOException e) {
+        System.out.println(RED + e.getMessage() + RESET); // replaced in memory only
+    }
+    patient.getScheduler().schedule(medicineName, schedule); // Recompute the next reminder
     System.out.println(GREEN + "Schedule for " + medicineName + " updated successfully." + RESET);
 }
 
@@ -371,49 +1232,118 @@ public static void updateScheduleForExistingMedicine(Scanner sc) {
     public static void deleteMedicines(Scanner sc) {
         sc.nextLine(); // Consume leftover newline
         System.out.print(YELLOW + "Enter the name of the medicine to delete: " + RESET);
-        String medicineName = sc.nextLine().trim().toLowerCase();
-        if (!medicines.contains(medicineName)) {
+        String medicineName = existingName(sc, sc.nextLine().trim().toLowerCase());
+        // Removing from the registry drops the schedule too, so it stops firing
+        MedicineSchedule current = patient.getRegistry().getSchedule(medicineName);
+        MedicineSchedule schedule;
+        try {
+            schedule = patient.getRegistry().remove(medicineName);
+        } catch (IllegalStateException e) {
+            System.out.println(RED + e.getMessage() + RESET);
+            return;
+        } catch (UncheckedIOException e) {
+            System.out.println(RED + e.getMessage() + RESET); // removed in memory only
+            schedule = current;
+        }
+        if (schedule == null) {
             System.out.println(RED + "Medicine " + medicineName + " not found." + RESET);
             return;
         }
-        medicines.remove(medicineName);
-        String dateDeleted = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        medicineHistories.add(new MedicineHistory(medicineName, "deleted", null, dateDeleted, null));
+        schedule.releaseSlots(patient.getSlots());
+        patient.getScheduler().cancel(medicineName); // Stop reminders for the deleted medicine
+        patient.medicineRemoved(medicineName);
         System.out.println(GREEN + "Medicine " + medicineName + " deleted successfully." + RESET);
     }
 
     /**
-     * Displays the complete history of medicines, including all add, update, and delete events with timestamps.
+     * Displays the history of medicines, including all add, update, and delete events
+     * with timestamps, one page at a time. The listing can be limited to one medicine
+     * and/or one kind of event.
+     *
+     * @param sc Scanner object for user input
      */
-    public static void viewMedicineHistory() {
-        if (medicineHistories.isEmpty()) {
+    public static void viewMedicineHistory(Scanner sc) {
+        sc.nextLine(); // Consume leftover newline
+        MedicineRegistry registry = patient.getRegistry();
+        HistoryStore history = registry.history();
+        if (history.isEmpty()) {
             System.out.println(RED + "No medicine history available." + RESET);
             return;
         }
-        System.out.println(BOLD + CYAN + "Medicine History:" + RESET);
-        for (MedicineHistory mh : medicineHistories) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(BLUE).append("- ").append(mh.name).append(RESET);
-            if ("added".equals(mh.action) && mh.dateAdded != null) {
-                sb.append(GREEN).append(" [Added on ").append(mh.dateAdded).append("]").append(RESET);
-            } else if ("deleted".equals(mh.action) && mh.dateDeleted != null) {
-                sb.append(RED).append(" [Deleted on ").append(mh.dateDeleted).append("]").append(RESET);
-            } else if ("updated".equals(mh.action) && mh.dateUpdated != null) {
-                sb.append(YELLOW).append(" [Updated on ").append(mh.dateUpdated).append("]").append(RESET);
-            } else if ("updated".equals(mh.action) && mh.dateAdded != null) {
-                sb.append(YELLOW).append(" [Updated on ").append(mh.dateAdded).append("]").append(RESET);
-            }
-            System.out.println(sb);
-        }
-        System.out.println(BOLD + CYAN + "Current Medicines:" + RESET);
-        if (medicines.isEmpty()) {
-            System.out.println(PURPLE + "No current medicines." + RESET);
-        } else {
-            for (String medicine : medicines) {
-                System.out.println(BLUE + "- " + medicine + RESET);
+        System.out.print(YELLOW + "Filter by medicine (press Enter for all): " + RESET);
+        String medicine = sc.nextLine().trim().toLowerCase();
+        System.out.print(YELLOW + "Filter by action - added, deleted, updated, renamed (press Enter for all): " + RESET);
+        String actionInput = sc.nextLine().trim().toUpperCase();
+        Set<HistoryStore.Action> actions = null;
+        if (!actionInput.isEmpty()) {
+            try {
+                actions = EnumSet.of(HistoryStore.Action.valueOf(actionInput));
+            } catch (IllegalArgumentException e) {
+                System.out.println(RED + "Unknown action " + actionInput.toLowerCase() + "." + RESET);
+                return;
+            }
+        }
+        HistoryStore.Cursor cursor = history.cursor(medicine.isEmpty() ? null : medicine,
+                Long.MIN_VALUE, Long.MAX_VALUE, actions, 0);
+
+        ListingRenderer renderer = new ListingRenderer(System.out, colors);
+        try {
+            ListingRenderer.Pager events = renderer.history(history, cursor);
+            if (!events.hasMore()) {
+                System.out.println(PURPLE + "No matching history events." + RESET);
+                return;
+            }
+            renderer.line(BOLD + CYAN, "Medicine History:");
+            if (!page(sc, events)) {
+                return;
+            }
+            renderer.line(BOLD + CYAN, "Current Medicines:");
+            if (registry.isEmpty()) {
+                renderer.line(PURPLE, "No current medicines.");
+                return;
+            }
+            // One page is enough here; option 2 pages through the full list
+            renderer.medicines(registry.entries().iterator()).renderPage(ListingRenderer.DEFAULT_PAGE_SIZE);
+            if (registry.size() > ListingRenderer.DEFAULT_PAGE_SIZE) {
+                renderer.line(PURPLE, "... and " + (registry.size() - ListingRenderer.DEFAULT_PAGE_SIZE)
+                        + " more (enter 2 to list them all).");
+            }
+        } catch (IOException e) {
+            System.out.println(RED + "Could not write the listing: " + e.getMessage() + RESET);
+        }
+    }
+
+    /**
+     * Renders a listing page by page, asking between pages whether to go on. The
+     * user may press Enter for the next page, type a number to change the page
+     * size, or type q to stop.
+     *
+     * @return true if the listing was shown to the end
+     */
+    static boolean page(Scanner sc, ListingRenderer.Pager pager) throws IOException {
+        int pageSize = ListingRenderer.DEFAULT_PAGE_SIZE;
+        int shown = 0;
+        while (true) {
+            shown += pager.renderPage(pageSize);
+            if (!pager.hasMore()) {
+                return true;
+            }
+            System.out.print(BLUE + "Shown " + shown + ". Press Enter for the next " + pageSize
+                    + ", a number for a different page size, or q to stop: " + RESET);
+            String answer = sc.nextLine().trim().toLowerCase();
+            if (answer.equals("q")) {
+                return false;
+            }
+            if (!answer.isEmpty()) {
+                try {
+                    pageSize = Math.max(1, Integer.parseInt(answer));
+                } catch (NumberFormatException e) {
+                    System.out.println(RED + "Invalid page size, keeping " + pageSize + "." + RESET);
+                }
             }
         }
     }
+
     /**
      * Displays the schedule for a specific medicine entered by the user.
      * It checks whether the medicine exists in the schedule map, and if found,
@@ -427,7 +1357,7 @@ public static void updateScheduleForExistingMedicine(Scanner sc) {
         Scanner sc = new Scanner(System.in);
         System.out.print(YELLOW + "Enter the name of the medicine to view schedule: " + RESET);
         String medicineName = sc.nextLine().trim().toLowerCase();
-        MedicineSchedule schedule = medicineSchedules.get(medicineName.toLowerCase());
+        MedicineSchedule schedule = patient.getRegistry().getSchedule(medicineName.toLowerCase());
         if (schedule == null) {
             System.out.println(RED + "No schedule found for " + medicineName + "." + RESET);
             return;
@@ -435,25 +1365,4 @@ public static void updateScheduleForExistingMedicine(Scanner sc) {
         System.out.println(CYAN + "Schedule for " + medicineName + ":" + RESET);
         System.out.println(schedule);
     }
-    
-    
-    /**
-     * Helper class to track all medicine history events (added, updated, deleted) with timestamps.
-     */
-    static class MedicineHistory {
-        String name;
-        String action; // "added", "deleted", "updated"
-        String dateAdded;
-        String dateDeleted;
-        String dateUpdated;
-
-        MedicineHistory(String name, String action, String dateAdded, String dateDeleted, String dateUpdated) {
-            this.name = name;
-            this.action = action;
-            this.dateAdded = dateAdded;
-            this.dateDeleted = dateDeleted;
-            this.dateUpdated = dateUpdated;
-        }
-    }
-    
 }
@@ -0,0 +1,781 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmarks for the hot paths of the system.
+ *
+ * <pre>
+ *   java MedicineBenchmark [--quick] [--filter text] [--json file]
+ *   java MedicineBenchmark --compare baseline.json current.json
+ * </pre>
+ *
+ * Every benchmark is measured like JMH's average-time mode: a few warmup iterations,
+ * then timed iterations that each run the operation in batches for a fixed time and
+ * report nanoseconds per operation. The score is the mean over the timed iterations
+ * and the error is the half-width of its 99.9% confidence interval. Results are
+ * printed as a table and written as JSON in the layout JMH uses (one result object
+ * per line), so two runs can be diffed with {@code --compare} or with JMH tooling.
+ *
+ * Console output produced by the measured code (reminders, history listings) is
+ * sent to a discarding stream while benchmarks run.
+ */
+public class MedicineBenchmark {
+    // Student t quantiles (two-sided 99.9%) for 1..9 degrees of freedom
+    private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781};
+    private static final String[] DAYS = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+
+    // Results of measured operations are folded into this so the JIT cannot drop them
+    static volatile long sink;
+
+    private static int warmupIterations = 5;
+    private static int measurementIterations = 5;
+    private static long warmupMillis = 200;
+    private static long measurementMillis = 500;
+
+    /**
+     * One operation to measure. Returns a value that is folded into {@link #sink}.
+     */
+    private interface Operation {
+        long run();
+    }
+
+    /**
+     * A benchmark with its parameters and the fixture-building code, run lazily so
+     * filtered-out benchmarks cost nothing.
+     */
+    private static final class Benchmark {
+        final String name;
+        final Map<String, String> params;
+        final Supplier<Operation> setup;
+
+        Benchmark(String name, Map<String, String> params, Supplier<Operation> setup) {
+            this.name = name;
+            this.params = params;
+            this.setup = setup;
+        }
+
+        String label() {
+            return params.isEmpty() ? name : name + params;
+        }
+    }
+
+    private static final class Result {
+        final Benchmark benchmark;
+        final double[] samples;
+        final double score;
+        final double error;
+
+        Result(Benchmark benchmark, double[] samples) {
+            this.benchmark = benchmark;
+            this.samples = samples;
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            score = sum / samples.length;
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - score) * (sample - score);
+            }
+            int df = samples.length - 1;
+            double t = df <= 0 ? 0 : df <= T_999.length ? T_999[df - 1] : 3.291;
+            error = df <= 0 ? Double.NaN : t * Math.sqrt(squares / df) / Math.sqrt(samples.length);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        Path json = Paths.get("benchmark-results.json");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--compare":
+                    if (i + 2 >= args.length) {
+                        System.out.println("Usage: java MedicineBenchmark --compare baseline.json current.json");
+                        return;
+                    }
+                    compare(Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+                    return;
+                case "--quick":
+                    warmupIterations = 2;
+                    measurementIterations = 3;
+                    warmupMillis = 100;
+                    measurementMillis = 200;
+                    break;
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--json":
+                    json = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        List<Result> results = new ArrayList<>();
+        console.printf("%-55s %14s %12s%n", "Benchmark", "Score", "Error");
+        for (Benchmark benchmark : benchmarks()) {
+            if (filter != null && !benchmark.label().contains(filter)) {
+                continue;
+            }
+            System.setOut(discard);
+            Result result;
+            try {
+                result = measure(benchmark);
+            } finally {
+                System.setOut(console);
+            }
+            results.add(result);
+            console.printf("%-55s %14.3f %12.3f  ns/op%n", benchmark.label(), result.score, result.error);
+        }
+        writeJson(json, results);
+        console.println("Results written to " + json);
+    }
+
+    // ---- Benchmarks ----
+
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        for (int size : new int[] {10, 1_000, 100_000}) {
+            list.add(new Benchmark("registryContains", Map.of("size", String.valueOf(size)), () -> registryContains(size)));
+        }
+        list.add(new Benchmark("conflictResolutionDense", Map.of(), MedicineBenchmark::conflictResolutionDense));
+        list.add(new Benchmark("doseAssignment", Map.of("doses", "50"), () -> doseAssignment(50)));
+        list.add(new Benchmark("doseDueCheck", Map.of(), MedicineBenchmark::doseDueCheck));
+        list.add(new Benchmark("reminderTick", Map.of("medicines", "1000"), () -> reminderTick(1_000, false)));
+        list.add(new Benchmark("reminderTickAsync", Map.of("medicines", "1000"), () -> reminderTick(1_000, true)));
+        list.add(new Benchmark("reminderEnqueue", Map.of(), MedicineBenchmark::reminderEnqueue));
+        list.add(new Benchmark("agendaFirstPage", Map.of("medicines", "1000"), () -> agendaFirstPage(1_000)));
+        list.add(new Benchmark("stockConsume", Map.of("medicines", "1000"), () -> stockConsume(1_000)));
+        list.add(new Benchmark("stockForecast", Map.of(), MedicineBenchmark::stockForecast));
+        list.add(new Benchmark("adherenceRead", Map.of("medicines", "100"), () -> adherenceRead(100)));
+        list.add(new Benchmark("adherenceRecompute", Map.of("doses", "1000000"), () -> adherenceRecompute(1_000_000)));
+        list.add(new Benchmark("interactionCheck", Map.of("pairs", "1000000"), () -> interactionCheck(1_000_000, 20)));
+        list.add(new Benchmark("catalogComplete", Map.of("names", "300000"), () -> catalogLookup(300_000, false)));
+        list.add(new Benchmark("catalogFuzzy", Map.of("names", "300000"), () -> catalogLookup(300_000, true)));
+        list.add(new Benchmark("recurrenceWeek", Map.of("rules", "10000"), () -> recurrenceWeek(10_000)));
+        list.add(new Benchmark("recurrenceNext", Map.of("years", "100"), MedicineBenchmark::recurrenceNext));
+        list.add(new Benchmark("changeBusBatch", Map.of("changes", "100000"), () -> changeBusBatch(100_000)));
+        list.add(new Benchmark("wardIdlePass", Map.of("patients", "10000"), () -> wardIdlePass(10_000)));
+        for (int events : new int[] {10_000, 100_000}) {
+            list.add(new Benchmark("historyRender", Map.of("events", String.valueOf(events)), () -> historyRender(events)));
+        }
+        list.add(new Benchmark("historyExport", Map.of("events", "100000"), () -> historyExport(100_000)));
+        return list;
+    }
+
+    /**
+     * Duplicate check on a registry of the given size, alternating hits and misses.
+     */
+    private static Operation registryContains(int size) {
+        MedicineRegistry registry = new MedicineRegistry();
+        for (int i = 0; i < size; i++) {
+            registry.add("medicine-" + i, null);
+        }
+        String[] queries = new String[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < queries.length; i++) {
+            int n = random.nextInt(size);
+            queries[i] = (i % 2 == 0 ? "medicine-" : "unknown-") + n;
+        }
+        int[] next = {0};
+        return () -> registry.contains(queries[next[0]++ & (queries.length - 1)]) ? 1 : 0;
+    }
+
+    /**
+     * Places one dose on Monday to Friday when every 10-minute slot but the last of
+     * each day is taken, so the search skips every window of the day, then frees it
+     * again.
+     */
+    private static Operation conflictResolutionDense() {
+        SlotIndex slots = new SlotIndex();
+        List<DayOfWeek> days = new ArrayList<>();
+        for (int d = 0; d < 5; d++) {
+            DayOfWeek day = DayOfWeek.valueOf(DAYS[d].toUpperCase());
+            days.add(day);
+            for (int minute = 0; minute < SlotIndex.MINUTES_PER_DAY - 10; minute += 10) {
+                slots.occupy(day, minute);
+            }
+        }
+        int dayMask = MedicineSchedule.dayMask(Arrays.asList(DAYS).subList(0, 5));
+        return () -> {
+            int minute = MedicineSchedule.placeDose(slots, dayMask, 0, SlotIndex.DEFAULT_SPACING);
+            for (DayOfWeek day : days) {
+                slots.release(day, minute);
+            }
+            return minute;
+        };
+    }
+
+    /**
+     * Places one dose with a 30-minute spacing on three days at a random time of a
+     * calendar already holding {@code doses} doses with mixed spacings (most requests
+     * conflict), then frees it again.
+     */
+    private static Operation doseAssignment(int doses) {
+        SlotIndex slots = new SlotIndex();
+        Random random = new Random(42);
+        DayOfWeek[] week = DayOfWeek.values();
+        int[] spacings = {SlotIndex.DEFAULT_SPACING, 30, 60};
+        for (int i = 0; i < doses; i++) {
+            slots.occupy(week[random.nextInt(7)], random.nextInt(SlotIndex.MINUTES_PER_DAY), spacings[i % spacings.length]);
+        }
+        int dayMask = MedicineSchedule.dayMask(List.of("Monday", "Wednesday", "Friday"));
+        int[] requested = new int[1024];
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = random.nextInt(SlotIndex.MINUTES_PER_DAY);
+        }
+        int[] next = {0};
+        return () -> {
+            int minute = MedicineSchedule.placeDose(slots, dayMask, requested[next[0]++ & (requested.length - 1)], 30);
+            if (minute >= 0) {
+                for (DayOfWeek day : new DayOfWeek[] {DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY, DayOfWeek.FRIDAY}) {
+                    slots.release(day, minute, 30);
+                }
+            }
+            return minute;
+        };
+    }
+
+    /**
+     * Checks whether a three-dose, three-day schedule is due, at a different minute
+     * of the week each call (almost always not due, like most reminder checks).
+     */
+    private static Operation doseDueCheck() {
+        MedicineSchedule schedule = new MedicineSchedule(3, List.of("08:00", "14:00", "20:00"),
+                List.of("Monday", "Wednesday", "Friday"));
+        LocalDateTime[] minutes = new LocalDateTime[1024];
+        LocalDateTime start = LocalDateTime.of(2025, 1, 6, 0, 0);
+        for (int i = 0; i < minutes.length; i++) {
+            minutes[i] = start.plusMinutes(i * 37L);
+        }
+        int[] next = {0};
+        return () -> {
+            schedule.checkAndNotifyDose("aspirin", minutes[next[0]++ & (minutes.length - 1)]);
+            return next[0];
+        };
+    }
+
+    /**
+     * One reminder tick in which every medicine of a patient is due. Each call moves
+     * a day ahead, so every call fires all of them again. With {@code async} the
+     * reminders are handed to a pipeline with a console sink instead of printed by
+     * the ticking thread.
+     */
+    private static Operation reminderTick(int medicines, boolean async) {
+        DoseScheduler scheduler = new DoseScheduler();
+        if (async) {
+            scheduler.setReminderPipeline(startPipeline(new ConsoleReminderSink(System.out, true)));
+        }
+        LocalDateTime start = LocalDateTime.now().withSecond(0).withNano(0).plusMinutes(1);
+        List<String> days = Arrays.asList(DAYS);
+        List<String> times = List.of(MedicineSchedule.formatTime(start.getHour() * 60 + start.getMinute()));
+        for (int i = 0; i < medicines; i++) {
+            scheduler.schedule("medicine-" + i, new MedicineSchedule(1, times, days));
+        }
+        LocalDateTime[] now = {start};
+        return () -> {
+            int fired = scheduler.fireDue(now[0]);
+            now[0] = now[0].plusDays(1);
+            return fired;
+        };
+    }
+
+    /**
+     * Hands one reminder to a pipeline whose sink discards it.
+     */
+    private static Operation reminderEnqueue() {
+        ReminderPipeline pipeline = startPipeline(new ReminderSink() {
+            @Override
+            public String name() {
+                return "discard";
+            }
+
+            @Override
+            public void deliver(List<ReminderPipeline.Reminder> batch) {
+            }
+        });
+        LocalDateTime time = LocalDateTime.of(2025, 1, 6, 8, 0);
+        return () -> pipeline.offer("patient-1", "aspirin", time, 0, 0) ? 1 : 0;
+    }
+
+    private static ReminderPipeline startPipeline(ReminderSink sink) {
+        ReminderPipeline pipeline = new ReminderPipeline(ReminderPipeline.DEFAULT_CAPACITY,
+                ReminderPipeline.DEFAULT_BATCH_SIZE, ReminderPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.addSink(sink);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * The first page (50 doses) of a 7-day agenda over medicines taken three times a
+     * day on every day of the week.
+     */
+    private static Operation agendaFirstPage(int medicines) {
+        MedicineRegistry registry = new MedicineRegistry();
+        List<String> days = Arrays.asList(DAYS);
+        for (int i = 0; i < medicines; i++) {
+            int minute = i % (SlotIndex.MINUTES_PER_DAY / 3);
+            List<String> times = List.of(MedicineSchedule.formatTime(minute),
+                    MedicineSchedule.formatTime(minute + 480), MedicineSchedule.formatTime(minute + 960));
+            registry.add("medicine-" + i, new MedicineSchedule(3, times, days));
+        }
+        LocalDateTime from = LocalDateTime.of(2025, 1, 6, 12, 0);
+        return () -> {
+            DoseAgenda agenda = new DoseAgenda(registry.entries(), from, from.plusDays(7));
+            int count = 0;
+            while (count < ListingRenderer.DEFAULT_PAGE_SIZE && agenda.hasNext()) {
+                agenda.next();
+                count++;
+            }
+            return count;
+        };
+    }
+
+    /**
+     * Takes one dose off the stock of a different one of {@code medicines} tracked
+     * medicines each call, as the reminder engine does for every fired dose.
+     */
+    private static Operation stockConsume(int medicines) {
+        MedicineStock stock = new MedicineStock();
+        MedicineSchedule schedule = new MedicineSchedule(2, List.of("08:00", "20:00"), Arrays.asList(DAYS));
+        String[] names = new String[medicines];
+        for (int i = 0; i < medicines; i++) {
+            names[i] = "medicine-" + i;
+            stock.set(names[i], Long.MAX_VALUE / 2, schedule);
+        }
+        LocalDateTime at = LocalDateTime.of(2025, 1, 6, 8, 0);
+        int[] next = {0};
+        return () -> {
+            String alert = stock.consume(names[next[0]++ % medicines], at);
+            return alert == null ? next[0] : 0;
+        };
+    }
+
+    /**
+     * Forecasts when a three-dose, three-day medicine runs out, from a different
+     * moment of the week each call.
+     */
+    private static Operation stockForecast() {
+        MedicineStock stock = new MedicineStock();
+        stock.set("aspirin", 250, new MedicineSchedule(3, List.of("08:00", "14:00", "20:00"),
+                List.of("Monday", "Wednesday", "Friday")));
+        LocalDateTime[] moments = new LocalDateTime[1024];
+        LocalDateTime start = LocalDateTime.of(2025, 1, 6, 0, 0);
+        for (int i = 0; i < moments.length; i++) {
+            moments[i] = start.plusMinutes(i * 37L);
+        }
+        int[] next = {0};
+        return () -> stock.forecast("aspirin", moments[next[0]++ & (moments.length - 1)]).getRunsOut().toEpochDay();
+    }
+
+    /**
+     * Reads the adherence summary of one of {@code medicines} medicines with 100,000
+     * recorded doses in total.
+     */
+    private static Operation adherenceRead(int medicines) {
+        DoseLog doses = doseLog(medicines, 100_000);
+        AdherenceStats stats = doses.getStats();
+        LocalDate today = LocalDate.of(2025, 6, 30);
+        int[] next = {0};
+        return () -> stats.summary("medicine-" + (next[0]++ % medicines), today).getTaken();
+    }
+
+    /**
+     * Rebuilds the adherence statistics from a dose log of the given size.
+     */
+    private static Operation adherenceRecompute(int count) {
+        DoseLog doses = doseLog(100, count);
+        return () -> doses.recompute().size();
+    }
+
+    /**
+     * Builds an in-memory dose log with one dose per medicine every 10 minutes from
+     * 2025-01-01 on, four of five taken and the rest skipped or missed.
+     */
+    private static DoseLog doseLog(int medicines, int count) {
+        DoseLog doses = new DoseLog();
+        LocalDateTime start = LocalDateTime.of(2025, 1, 1, 0, 0);
+        long startMillis = start.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        for (int i = 0; i < count; i++) {
+            String name = "medicine-" + (i % medicines);
+            long offset = (long) i * 10;
+            doses.fired(name, start.plusMinutes(offset), startMillis + offset * 60_000);
+            if (i % 5 == 4) {
+                doses.expire(Long.MAX_VALUE);
+            } else {
+                doses.confirm(name, i % 5 == 3 ? DoseLog.Outcome.SKIPPED : DoseLog.Outcome.TAKEN, startMillis);
+            }
+        }
+        return doses;
+    }
+
+    /**
+     * Checks a new medicine against a patient's 20 medicines in an index of random
+     * pairs over 50,000 drugs, built in a temporary directory.
+     */
+    private static Operation interactionCheck(int pairs, int medicines) {
+        InteractionIndex index;
+        try {
+            Path dir = Files.createTempDirectory("interactions");
+            Path csv = dir.resolve("pairs.csv");
+            Path file = dir.resolve("interactions.idx");
+            Random random = new Random(42);
+            try (PrintStream out = new PrintStream(Files.newOutputStream(csv), false, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < pairs; i++) {
+                    out.println("drug-" + random.nextInt(50_000) + ",drug-" + random.nextInt(50_000) + "," + (1 + random.nextInt(4)));
+                }
+            }
+            InteractionIndex.build(csv, file);
+            index = InteractionIndex.open(file); // the mapping outlives the file
+            Files.delete(csv);
+            Files.delete(file);
+            Files.delete(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<String> current = new ArrayList<>();
+        for (int i = 0; i < medicines; i++) {
+            current.add("drug-" + i * 997);
+        }
+        int[] next = {0};
+        return () -> index.check("drug-" + (next[0]++ % 50_000), current).size();
+    }
+
+    /**
+     * Completes a three-letter prefix, or looks up a name with one letter changed
+     * within the distance the console allows, in a catalog of made-up drug names.
+     */
+    private static Operation catalogLookup(int size, boolean fuzzy) {
+        String[] syllables = {"a", "ben", "cor", "da", "ex", "fen", "gli", "hy", "in", "lo", "mab", "ne", "ol",
+                "pra", "qui", "ril", "sar", "tan", "u", "vir", "xa", "zol"};
+        Random random = new Random(42);
+        Set<String> names = new HashSet<>();
+        while (names.size() < size) {
+            StringBuilder name = new StringBuilder();
+            for (int i = 2 + random.nextInt(4); i > 0; i--) {
+                name.append(syllables[random.nextInt(syllables.length)]);
+            }
+            names.add(name.toString());
+        }
+        DrugCatalog catalog = DrugCatalog.of(names);
+        List<String> queries = new ArrayList<>();
+        for (String name : names) {
+            if (queries.size() == 1_000) {
+                break;
+            }
+            char[] chars = name.toCharArray();
+            chars[random.nextInt(chars.length)] = (char) ('a' + random.nextInt(26));
+            queries.add(fuzzy ? new String(chars) : name.substring(0, 3));
+        }
+        int[] next = {0};
+        if (fuzzy) {
+            return () -> {
+                String query = queries.get(next[0]++ % queries.size());
+                return catalog.fuzzy(query, DrugCatalog.allowedDistance(query.length()), DrugCatalog.DEFAULT_LIMIT).size();
+            };
+        }
+        return () -> catalog.complete(queries.get(next[0]++ % queries.size()), DrugCatalog.DEFAULT_LIMIT).size();
+    }
+
+    /**
+     * Expands one week of doses for schedules with a mix of hourly, daily and weekly
+     * rules, bounded by end dates and dose counts, as an agenda for a ward would.
+     */
+    private static Operation recurrenceWeek(int rules) {
+        LocalDate today = LocalDate.of(2026, 1, 5);
+        String[] phrases = {"every 8 hours", "every 6 hours for 40 doses", "every other day", "daily until 2026-03-01",
+                "every 3 days for 30 days", "every 2 weeks", "weekly for 12 weeks", "every 36 hours from 2025-12-20"};
+        List<MedicineSchedule> schedules = new ArrayList<>(rules);
+        Random random = new Random(42);
+        for (int i = 0; i < rules; i++) {
+            RecurrenceRule rule = RecurrenceRule.parse(phrases[i % phrases.length], today.minusDays(random.nextInt(60)));
+            int minute = random.nextInt(SlotIndex.MINUTES_PER_DAY / 10) * 10;
+            if (rule.getUnit() == RecurrenceRule.Unit.HOURS) {
+                rule = rule.startingAt(minute);
+                schedules.add(new MedicineSchedule(1, rule.dayMask(0), rule.minutesOfDay(), SlotIndex.DEFAULT_SPACING, rule));
+            } else {
+                schedules.add(new MedicineSchedule(1, List.of(MedicineSchedule.formatTime(minute)),
+                        List.of(DAYS[i % 7], DAYS[(i + 3) % 7]), SlotIndex.DEFAULT_SPACING, rule));
+            }
+        }
+        LocalDateTime[] weeks = new LocalDateTime[16];
+        for (int w = 0; w < weeks.length; w++) {
+            weeks[w] = today.plusWeeks(w).atStartOfDay();
+        }
+        int[] next = {0};
+        return () -> {
+            LocalDateTime from = weeks[next[0]++ % weeks.length];
+            LocalDateTime to = from.plusWeeks(1);
+            long doses = 0;
+            for (MedicineSchedule schedule : schedules) {
+                doses += schedule.dosesBetween(from, to).size();
+            }
+            return doses;
+        };
+    }
+
+    /**
+     * Finds the 1000th next dose of an hourly rule from points up to a hundred years
+     * after it starts; the cost does not depend on the distance.
+     */
+    private static Operation recurrenceNext() {
+        RecurrenceRule rule = RecurrenceRule.parse("every 7 hours from 2026-01-05 09:00", LocalDate.of(2026, 1, 5));
+        MedicineSchedule schedule = new MedicineSchedule(3, rule.dayMask(0), rule.minutesOfDay(), SlotIndex.DEFAULT_SPACING, rule);
+        LocalDateTime[] points = new LocalDateTime[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < points.length; i++) {
+            points[i] = rule.getFrom().plusMinutes(random.nextInt(100 * 365 * SlotIndex.MINUTES_PER_DAY));
+        }
+        int[] next = {0};
+        return () -> schedule.nthDoseAfter(points[next[0]++ & (points.length - 1)], 1_000).getMinute();
+    }
+
+    /**
+     * One ward pass in which no patient has anything due.
+     */
+    private static Operation wardIdlePass(int patients) {
+        Ward ward = new Ward(null);
+        try {
+            for (int p = 0; p < patients; p++) {
+                PatientStore patient = ward.getOrCreate("patient-" + p);
+                for (int m = 0; m < 2; m++) {
+                    List<String> days = List.of(DAYS[(p + m) % 7]);
+                    List<String> times = List.of(MedicineSchedule.formatTime((p * 10 + m * 600) % SlotIndex.MINUTES_PER_DAY));
+                    patient.getScheduler().schedule("medicine-" + m, new MedicineSchedule(1, times, days));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        LocalDateTime past = LocalDateTime.now().minusDays(1);
+        return () -> ward.fireDue(past);
+    }
+
+    /**
+     * Publishes a batch of registry changes on a bus with one subscriber draining it
+     * on its own worker and one that never reads, so the writer keeps lapping it.
+     */
+    private static Operation changeBusBatch(int changes) {
+        ChangeBus bus = new ChangeBus(ChangeBus.DEFAULT_CAPACITY);
+        long[] seen = {0};
+        bus.subscribe("counter").start(change -> seen[0] += change.getTimestamp());
+        bus.subscribe("stalled");
+        MedicineSchedule schedule = new MedicineSchedule(1, List.of("08:00"), List.of("Monday"));
+        String[] names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "medicine-" + i;
+        }
+        return () -> {
+            for (int i = 0; i < changes; i++) {
+                bus.publish(ChangeBus.Kind.SCHEDULE_REPLACED, i, names[i & (names.length - 1)], null, schedule);
+            }
+            return bus.cursor();
+        };
+    }
+
+    /**
+     * Renders every page of a history listing with the given number of events.
+     */
+    private static Operation historyRender(int events) {
+        PatientStore patient;
+        try {
+            patient = new Ward(null).getOrCreate("benchmark");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        MedicineRegistry registry = patient.getRegistry();
+        for (int i = 0; registry.history().size() < events; i++) {
+            String name = "medicine-" + (i % 500);
+            if (!registry.add(name, null)) {
+                registry.remove(name);
+            }
+        }
+        HistoryStore history = registry.history();
+        return () -> {
+            ListingRenderer renderer = new ListingRenderer(System.out, true);
+            ListingRenderer.Pager pager = renderer.history(history,
+                    history.cursor(null, Long.MIN_VALUE, Long.MAX_VALUE, null, 0));
+            long rows = 0;
+            try {
+                while (pager.hasMore()) {
+                    rows += pager.renderPage(ListingRenderer.DEFAULT_PAGE_SIZE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return rows;
+        };
+    }
+
+    /**
+     * Exports a history with the given number of events to a CSV file.
+     */
+    private static Operation historyExport(int events) {
+        MedicineRegistry registry = new MedicineRegistry();
+        for (int i = 0; registry.history().size() < events; i++) {
+            String name = "medicine-" + (i % 500);
+            if (!registry.add(name, null)) {
+                registry.remove(name);
+            }
+        }
+        Path file;
+        try {
+            file = Files.createTempFile("history-export", ".csv");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.toFile().deleteOnExit();
+        return () -> {
+            try {
+                return MedicineExporter.exportHistory(registry.history(), null, Long.MIN_VALUE, Long.MAX_VALUE, file).getBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // ---- Measurement ----
+
+    private static Result measure(Benchmark benchmark) {
+        Operation operation = benchmark.setup.get();
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation, warmupMillis);
+        }
+        double[] samples = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            samples[i] = iteration(operation, measurementMillis);
+        }
+        return new Result(benchmark, samples);
+    }
+
+    /**
+     * Runs the operation in growing batches until the time is up and returns the
+     * average nanoseconds per operation.
+     */
+    private static double iteration(Operation operation, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long operations = 0;
+        long batch = 1;
+        long acc = 0;
+        long start = System.nanoTime();
+        long now = start;
+        while (now < deadline) {
+            for (long i = 0; i < batch; i++) {
+                acc += operation.run();
+            }
+            operations += batch;
+            now = System.nanoTime();
+            if (batch < 1 << 20 && now - start < millis * 100_000) {
+                batch *= 2; // keep clock reads rare for fast operations
+            }
+        }
+        sink += acc;
+        return (double) (now - start) / operations;
+    }
+
+    // ---- JSON results ----
+
+    private static void writeJson(Path file, List<Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            sb.append("  {\"benchmark\":").append(MedicineHttpServer.quote("MedicineBenchmark." + result.benchmark.name))
+                    .append(",\"mode\":\"avgt\",\"threads\":1,\"forks\":0")
+                    .append(",\"jdkVersion\":").append(MedicineHttpServer.quote(System.getProperty("java.version")))
+                    .append(",\"warmupIterations\":").append(warmupIterations)
+                    .append(",\"warmupTime\":\"").append(warmupMillis).append(" ms\"")
+                    .append(",\"measurementIterations\":").append(measurementIterations)
+                    .append(",\"measurementTime\":\"").append(measurementMillis).append(" ms\"")
+                    .append(",\"params\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> param : new TreeMap<>(result.benchmark.params).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(MedicineHttpServer.quote(param.getKey())).append(':').append(MedicineHttpServer.quote(param.getValue()));
+            }
+            sb.append("},\"primaryMetric\":{\"score\":").append(number(result.score))
+                    .append(",\"scoreError\":").append(number(result.error))
+                    .append(",\"scoreConfidence\":[").append(number(result.score - result.error)).append(',')
+                    .append(number(result.score + result.error)).append(']')
+                    .append(",\"scoreUnit\":\"ns/op\",\"rawData\":[[");
+            for (int i = 0; i < result.samples.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(number(result.samples[i]));
+            }
+            sb.append("]]}}").append(r + 1 < results.size() ? "," : "").append('\n');
+        }
+        sb.append("]\n");
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    // ---- Comparing runs ----
+
+    private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\":\"([^\"]+)\"");
+    private static final Pattern PARAMS = Pattern.compile("\"params\":\\{([^}]*)\\}");
+    private static final Pattern SCORE = Pattern.compile("\"score\":([-0-9.Ee]+)");
+
+    /**
+     * Prints the relative change of every benchmark found in both result files.
+     * Positive changes mean slower.
+     */
+    private static void compare(Path baseline, Path current) throws IOException {
+        Map<String, Double> before = readScores(baseline);
+        Map<String, Double> after = readScores(current);
+        System.out.printf("%-55s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double old = before.get(entry.getKey());
+            if (old == null) {
+                System.out.printf("%-55s %14s %14.3f %9s%n", entry.getKey(), "-", entry.getValue(), "new");
+                continue;
+            }
+            double change = (entry.getValue() - old) / old * 100;
+            String color = change > 10 ? Medicine.RED : change < -10 ? Medicine.GREEN : "";
+            System.out.printf("%s%-55s %14.3f %14.3f %+8.1f%%%s%n", color, entry.getKey(), old, entry.getValue(), change,
+                    color.isEmpty() ? "" : Medicine.RESET);
+        }
+    }
+
+    /**
+     * Reads "benchmark{params}" -> score from a file written by {@link #writeJson}.
+     */
+    private static Map<String, Double> readScores(Path file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Matcher name = BENCHMARK.matcher(line);
+            Matcher score = SCORE.matcher(line);
+            if (!name.find() || !score.find()) {
+                continue;
+            }
+            Matcher params = PARAMS.matcher(line);
+            String key = name.group(1) + (params.find() && !params.group(1).isEmpty() ? "{" + params.group(1).replace("\"", "") + "}" : "");
+            scores.put(key, Double.parseDouble(score.group(1)));
+        }
+        return scores;
+    }
+}
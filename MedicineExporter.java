@@ -0,0 +1,341 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a patient's history or current schedules to a file for auditing.
+ *
+ * Two formats are written, chosen by the file name like {@link MedicineImporter}
+ * chooses them: CSV, or JSON lines for {@code .jsonl}, {@code .ndjson} and
+ * {@code .json}. A trailing {@code .gz} compresses the file with gzip, e.g.
+ * {@code history.csv.gz}. Schedules are written in the import format, so an export
+ * can be imported into another patient or system as it is.
+ *
+ * History rows are read straight from the {@link HistoryStore} columns through a
+ * {@link HistoryStore.Cursor} and schedules from the registry's entries, appended to
+ * one reusable row buffer, encoded into one direct byte buffer and written to a
+ * {@link FileChannel} whenever it fills. Memory use therefore does not depend on the
+ * number of rows, and nothing is materialized per event.
+ */
+public class MedicineExporter {
+    // Bytes handed to the channel per write
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Rows are encoded once this many characters are buffered
+    private static final int FLUSH_CHARS = 32 * 1024;
+    private static final String HISTORY_HEADER = "timestamp,time,action,name,new_name";
+    private static final String SCHEDULE_HEADER = "name,days,times,spacing,repeat";
+
+    /**
+     * Outcome of an export run.
+     */
+    public static final class Result {
+        private long rows;
+        private long bytes;
+        private long elapsedNanos;
+
+        public long getRows() { return rows; }
+        /** Size of the written file (compressed, with gzip). */
+        public long getBytes() { return bytes; }
+        public long getElapsedNanos() { return elapsedNanos; }
+    }
+
+    /**
+     * Writes the history events of {@code [from, to)}, oldest first, optionally
+     * limited to one medicine. Renames are listed under both their old and new name.
+     *
+     * @param medicine medicine name, or null for all medicines
+     * @param from     inclusive start in epoch millis
+     * @param to       exclusive end in epoch millis
+     */
+    public static Result exportHistory(HistoryStore history, String medicine, long from, long to, Path file)
+            throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        HistoryStore.Cursor cursor = history.cursor(medicine, from, to, null, 0);
+        try (Output out = new Output(file)) {
+            if (!out.json) {
+                out.row.append(HISTORY_HEADER);
+                out.endRow();
+            }
+            int position;
+            while ((position = cursor.next()) >= 0) {
+                int related = history.relatedAt(position);
+                String name = history.nameAt(history.idAt(position));
+                String newName = related < 0 ? null : history.nameAt(related);
+                String action = history.actionAt(position).getLabel();
+                long millis = history.timeAt(position);
+                StringBuilder row = out.row;
+                if (out.json) {
+                    row.append("{\"name\":");
+                    out.string(name);
+                    row.append(",\"action\":\"").append(action).append('"');
+                    if (newName != null) {
+                        row.append(",\"newName\":");
+                        out.string(newName);
+                    }
+                    row.append(",\"timestamp\":").append(millis).append(",\"time\":\"");
+                    out.timestamp(millis);
+                    row.append("\"}");
+                } else {
+                    row.append(millis).append(',');
+                    out.timestamp(millis);
+                    row.append(',').append(action).append(',');
+                    out.field(name);
+                    row.append(',');
+                    if (newName != null) {
+                        out.field(newName);
+                    }
+                }
+                out.endRow();
+                result.rows++;
+            }
+            out.finish(result);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Writes every registered medicine with its current schedule, in insertion order,
+     * in the format {@link MedicineImporter} reads. Medicines without a schedule are
+     * left out.
+     */
+    public static Result exportSchedules(MedicineRegistry registry, Path file) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        try (Output out = new Output(file)) {
+            if (!out.json) {
+                out.row.append(SCHEDULE_HEADER);
+                out.endRow();
+            }
+            for (MedicineRegistry.Entry entry : registry.entries()) {
+                MedicineSchedule schedule = entry.getSchedule();
+                if (schedule == null) {
+                    continue;
+                }
+                RecurrenceRule rule = schedule.getRule();
+                List<String> days = schedule.getDays();
+                // An hourly rule repeats from its first dose; the importer expects only that time
+                List<String> times = rule != null && rule.getUnit() == RecurrenceRule.Unit.HOURS
+                        ? List.of(MedicineSchedule.formatTime(rule.getFrom().getHour() * 60 + rule.getFrom().getMinute()))
+                        : schedule.getDoseTimes();
+                StringBuilder row = out.row;
+                if (out.json) {
+                    row.append("{\"name\":");
+                    out.string(entry.getName());
+                    row.append(",\"days\":");
+                    out.strings(days);
+                    row.append(",\"times\":");
+                    out.strings(times);
+                    row.append(",\"spacing\":").append(schedule.getSpacing());
+                    if (rule != null) {
+                        row.append(",\"repeat\":");
+                        out.string(rule.toString());
+                    }
+                    row.append('}');
+                } else {
+                    out.field(entry.getName());
+                    row.append(',').append(String.join(";", days)).append(',')
+                            .append(String.join(";", times)).append(',').append(schedule.getSpacing()).append(',');
+                    if (rule != null) {
+                        row.append(rule);
+                    }
+                }
+                out.endRow();
+                result.rows++;
+            }
+            out.finish(result);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Returns true if the file gets JSON lines rather than CSV.
+     */
+    static boolean isJsonLines(Path file) {
+        String fileName = stripGzip(file.getFileName().toString().toLowerCase());
+        return fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson") || fileName.endsWith(".json");
+    }
+
+    private static boolean isGzip(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".gz");
+    }
+
+    private static String stripGzip(String fileName) {
+        return fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - 3) : fileName;
+    }
+
+    /**
+     * The open file with its row buffer, encoder and byte buffer.
+     */
+    private static final class Output implements Closeable {
+        final boolean json;
+        final StringBuilder row = new StringBuilder(FLUSH_CHARS + 1024);
+        private final FileChannel file;
+        private final WritableByteChannel channel;
+        private final GZIPOutputStream gzip;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ZoneId zone = ZoneId.systemDefault();
+        // Formatted "yyyy-MM-dd HH:" of the local hour starting at hourStart
+        private long hourStart = Long.MIN_VALUE;
+        private String hourPrefix;
+
+        Output(Path path) throws IOException {
+            json = isJsonLines(path);
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (isGzip(path)) {
+                gzip = new GZIPOutputStream(Channels.newOutputStream(file), BUFFER_SIZE);
+                channel = Channels.newChannel(gzip);
+            } else {
+                gzip = null;
+                channel = file;
+            }
+        }
+
+        void endRow() throws IOException {
+            row.append('\n');
+            if (row.length() >= FLUSH_CHARS) {
+                encodeRows();
+            }
+        }
+
+        /**
+         * Appends a CSV field, quoted if it holds a comma, quote or line break.
+         */
+        void field(String value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                row.append(value);
+                return;
+            }
+            row.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    row.append('"');
+                }
+                row.append(c);
+            }
+            row.append('"');
+        }
+
+        /**
+         * Appends a JSON string literal.
+         */
+        void string(String value) {
+            row.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': row.append("\\\""); break;
+                    case '\\': row.append("\\\\"); break;
+                    case '\n': row.append("\\n"); break;
+                    case '\r': row.append("\\r"); break;
+                    case '\t': row.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            row.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+                        } else {
+                            row.append(c);
+                        }
+                }
+            }
+            row.append('"');
+        }
+
+        void strings(List<String> values) {
+            row.append('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    row.append(',');
+                }
+                string(values.get(i));
+            }
+            row.append(']');
+        }
+
+        /**
+         * Appends "yyyy-MM-dd HH:mm:ss" in local time. The date and hour are formatted
+         * once per local hour; minutes and seconds are plain arithmetic.
+         */
+        void timestamp(long millis) {
+            if (millis < hourStart || millis >= hourStart + 3_600_000) {
+                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+                hourStart = millis - (time.getMinute() * 60_000L + time.getSecond() * 1000L + time.getNano() / 1_000_000);
+                hourPrefix = String.format("%s %02d:", time.toLocalDate(), time.getHour());
+            }
+            int secondsIntoHour = (int) ((millis - hourStart) / 1000);
+            row.append(hourPrefix);
+            twoDigits(secondsIntoHour / 60);
+            row.append(':');
+            twoDigits(secondsIntoHour % 60);
+        }
+
+        private void twoDigits(int value) {
+            row.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
+
+        /**
+         * Encodes the buffered rows into the byte buffer, writing it out whenever it fills.
+         */
+        private void encodeRows() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(row);
+            while (encoder.encode(chars, bytes, false) == CoderResult.OVERFLOW) {
+                writeBytes();
+            }
+            row.setLength(0);
+        }
+
+        private void writeBytes() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+
+        /**
+         * Writes everything still buffered and records the file size.
+         */
+        void finish(Result result) throws IOException {
+            encodeRows();
+            writeBytes();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            result.bytes = file.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (gzip != null) {
+                gzip.close(); // also closes the file
+            } else {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Failover test for {@link MedicineReplication}, with the primary and the standby in
+ * two processes on this machine.
+ *
+ * Usage: {@code java MedicineFailoverTest [--patients n] [--medicines n] [--changes n] [--rate n] [--seed n]}
+ *
+ * The test starts a primary in a child JVM, which seeds an in-memory ward with
+ * {@code patients x medicines} and starts replicating on a free port. This process
+ * follows it as a standby; once the state transfer is done the primary makes
+ * {@code changes} random adds, schedule replacements, renames and removals across its
+ * patients, as fast as it can or {@code rate} per second. The standby must end up with exactly the same medicines, schedules and
+ * history. Then the primary is killed and the time until the standby takes over
+ * is measured, and every scheduled medicine must have its reminder queued again.
+ *
+ * Catch-up throughput, replication lag percentiles and the takeover time are printed;
+ * the exit code is 1 if anything differs.
+ */
+public class MedicineFailoverTest {
+    private static final long TAKEOVER_MILLIS = 2_000;
+    private static final String[] DAYS = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+
+    public static void main(String[] args) throws Exception {
+        int patients = 20;
+        int medicines = 200;
+        int changes = 50_000;
+        int rate = 0;
+        long seed = 42;
+        boolean primary = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--primary")) {
+                primary = true;
+            } else if (i + 1 < args.length && args[i].equals("--patients")) {
+                patients = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--medicines")) {
+                medicines = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--changes")) {
+                changes = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--rate")) {
+                rate = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            }
+        }
+        if (primary) {
+            runPrimary(patients, medicines, changes, rate, seed);
+        } else {
+            System.exit(runStandby(patients, medicines, changes, rate, seed) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Child process: seeds a ward, replicates it and makes the changes once told to.
+     * Talks to the parent over stdin/stdout.
+     */
+    private static void runPrimary(int patients, int medicines, int changes, int rate, long seed) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(System.err, true)); // keep replication messages off the protocol
+        Random random = new Random(seed);
+        Ward ward = new Ward(null);
+        List<List<String>> names = new ArrayList<>();
+        for (int p = 0; p < patients; p++) {
+            MedicineRegistry registry = ward.getOrCreate("patient-" + p).getRegistry();
+            List<String> patientNames = new ArrayList<>();
+            for (int m = 0; m < medicines; m++) {
+                String name = "medicine-" + m;
+                registry.add(name, randomSchedule(random));
+                patientNames.add(name);
+            }
+            names.add(patientNames);
+        }
+        MedicineReplication.Primary replication = MedicineReplication.Primary.start(ward, 0);
+        out.println("PORT " + replication.getPort());
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        if (!"GO".equals(in.readLine())) {
+            return;
+        }
+        int next = medicines;
+        long start = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            if (rate > 0) {
+                long due = start + i * 1_000_000_000L / rate;
+                while (System.nanoTime() < due) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+            }
+            int p = random.nextInt(patients);
+            MedicineRegistry registry = ward.get("patient-" + p).getRegistry();
+            List<String> patientNames = names.get(p);
+            int pick = random.nextInt(10);
+            if (pick < 3 || patientNames.isEmpty()) {
+                String name = "medicine-" + next++;
+                registry.add(name, randomSchedule(random));
+                patientNames.add(name);
+            } else {
+                int index = random.nextInt(patientNames.size());
+                String name = patientNames.get(index);
+                if (pick < 7) {
+                    registry.replaceSchedule(name, randomSchedule(random));
+                } else if (pick < 9) {
+                    String newName = "medicine-" + next++;
+                    registry.rename(name, newName, randomSchedule(random));
+                    patientNames.set(index, newName);
+                } else {
+                    registry.remove(name);
+                    patientNames.set(index, patientNames.get(patientNames.size() - 1));
+                    patientNames.remove(patientNames.size() - 1);
+                }
+            }
+        }
+        out.println("DONE " + fingerprint(ward));
+        out.flush();
+        in.readLine(); // wait to be killed
+    }
+
+    /**
+     * Parent process: follows the child as a standby and checks the result.
+     */
+    private static boolean runStandby(int patients, int medicines, int changes, int rate, long seed) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MedicineFailoverTest.class.getName(), "--primary", "--patients", String.valueOf(patients),
+                "--medicines", String.valueOf(medicines), "--changes", String.valueOf(changes),
+                "--rate", String.valueOf(rate), "--seed", String.valueOf(seed))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream()));
+        PrintStream toChild = new PrintStream(child.getOutputStream(), true);
+        try {
+            String line = fromChild.readLine();
+            if (line == null || !line.startsWith("PORT ")) {
+                System.out.println("Primary did not start: " + line);
+                return false;
+            }
+            int port = Integer.parseInt(line.substring(5));
+            System.out.println("Failover test: " + patients + " patients x " + medicines + " medicines, then "
+                    + changes + " changes" + (rate > 0 ? " at " + rate + "/s" : "") + ", primary on port " + port);
+
+            Ward ward = new Ward(null);
+            MedicineMetrics metrics = MedicineMetrics.get();
+            MedicineReplication.Standby standby = MedicineReplication.Standby.start(ward, port, TAKEOVER_MILLIS);
+            while (!standby.isSynced()) {
+                Thread.sleep(10);
+            }
+            System.out.printf("State transfer: %d medicines and events in %d ms%n",
+                    metrics.getLastCatchUpEvents(), metrics.getLastCatchUpMillis());
+
+            long appliedBefore = metrics.getChangesApplied();
+            long start = System.nanoTime();
+            toChild.println("GO");
+            line = fromChild.readLine();
+            if (line == null || !line.startsWith("DONE ")) {
+                System.out.println("Primary failed: " + line);
+                return false;
+            }
+            String expected = line.substring(5);
+            // Everything was made before now; the second heartbeat after now follows it
+            long doneMillis = System.currentTimeMillis();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (System.nanoTime() < deadline && (standby.getPrimaryMillis() < doneMillis + MedicineReplication.HEARTBEAT_MILLIS
+                    || standby.getAppliedSequence() < standby.getPrimarySequence())) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long applied = metrics.getChangesApplied() - appliedBefore;
+            System.out.printf("Streamed: %d changes applied in %.2f s (%.0f/s), lag p50 %d ms, p99 %d ms, max %d ms%n",
+                    applied, seconds, applied / seconds, metrics.getReplicationLagP50Millis(),
+                    metrics.getReplicationLagP99Millis(), metrics.getMaxReplicationLagMillis());
+
+            String actual = fingerprint(ward);
+            boolean ok = expected.equals(actual);
+            System.out.println((ok ? "State matches: " : "State DIFFERS: expected " + expected + ", got ") + actual);
+
+            long killed = System.nanoTime();
+            child.destroyForcibly();
+            standby.awaitTakeover();
+            long takeoverMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - killed);
+            int scheduled = 0;
+            int queued = 0;
+            for (String id : ward.patientIds()) {
+                PatientStore store = ward.get(id);
+                for (MedicineRegistry.Entry entry : store.getRegistry().entries()) {
+                    if (entry.getSchedule() != null) {
+                        scheduled++;
+                    }
+                }
+                queued += store.getScheduler().size();
+            }
+            System.out.printf("Takeover %d ms after the primary was killed (timeout %d ms); %d of %d medicines queued%n",
+                    takeoverMillis, TAKEOVER_MILLIS, queued, scheduled);
+            ok &= queued == scheduled;
+            System.out.println(ok ? "PASSED" : "FAILED");
+            return ok;
+        } finally {
+            child.destroyForcibly();
+        }
+    }
+
+    private static MedicineSchedule randomSchedule(Random random) {
+        List<String> days = new ArrayList<>();
+        for (String day : DAYS) {
+            if (random.nextInt(3) > 0) {
+                days.add(day);
+            }
+        }
+        if (days.isEmpty()) {
+            days.add(DAYS[random.nextInt(DAYS.length)]);
+        }
+        List<String> times = new ArrayList<>();
+        int doses = 1 + random.nextInt(3);
+        for (int d = 0; d < doses; d++) {
+            times.add(MedicineSchedule.formatTime(d * 480 + random.nextInt(32) * 15));
+        }
+        return new MedicineSchedule(doses, times, days);
+    }
+
+    /**
+     * Summarizes every patient's medicines, schedules and history as counts and a hash.
+     */
+    private static String fingerprint(Ward ward) {
+        List<String> ids = new ArrayList<>(ward.patientIds());
+        Collections.sort(ids);
+        long medicineCount = 0;
+        long historyCount = 0;
+        long hash = 17;
+        for (String id : ids) {
+            MedicineRegistry registry = ward.get(id).getRegistry();
+            hash = hash * 31 + id.hashCode();
+            for (MedicineRegistry.Entry entry : registry.entries()) {
+                hash = hash * 31 + entry.getName().hashCode();
+                hash = hash * 31 + String.valueOf(entry.getSchedule()).hashCode();
+                medicineCount++;
+            }
+            HistoryStore history = registry.history();
+            for (int i = 0; i < history.size(); i++) {
+                int related = history.relatedAt(i);
+                hash = hash * 31 + history.timeAt(i);
+                hash = hash * 31 + history.actionAt(i).ordinal();
+                hash = hash * 31 + history.nameAt(history.idAt(i)).hashCode();
+                hash = hash * 31 + (related < 0 ? 0 : history.nameAt(related).hashCode());
+            }
+            historyCount += history.size();
+        }
+        return ids.size() + " patients, " + medicineCount + " medicines, " + historyCount + " events, hash "
+                + Long.toHexString(hash);
+    }
+}
@@ -0,0 +1,821 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded HTTP API exposing the same operations as the console menu.
+ *
+ * <pre>
+ *   GET    /health
+ *   GET    /patients                       patient ids with their medicine counts
+ *   GET    /medicines                      list medicines with schedules
+ *   POST   /medicines                      {"name":..,"days":[..],"times":[..],"repeat":..?}
+ *   GET    /medicines/{name}               one medicine's schedule
+ *   PUT    /medicines/{name}               {"newName":..?,"days":[..],"times":[..],"repeat":..?}
+ *   DELETE /medicines/{name}
+ *   GET    /history?medicine=&amp;action=&amp;from=&amp;to=&amp;limit=&amp;cursor=
+ *   GET    /agenda?hours=&amp;limit=           upcoming doses in time order
+ *   GET    /stock                          stock and refill dates of tracked medicines
+ *   PUT    /stock/{name}                   {"onHand":..?,"leadDays":..?} starts tracking
+ *   POST   /stock/{name}                   {"doses":..} records a refill
+ *   DELETE /stock/{name}                   stops tracking
+ *   GET    /doses                          doses waiting for confirmation
+ *   POST   /doses/{name}                   {"outcome":"taken"|"skipped"} confirms the oldest one
+ *   GET    /adherence?medicine=&amp;recompute=  taken/skipped/missed counts and rates
+ *   GET    /interactions?medicine=&amp;replacing=  known interactions with the patient's medicines
+ *   GET    /catalog?q=&amp;limit=             catalog spelling, close matches and completions of a name
+ * </pre>
+ *
+ * Adding or renaming a medicine does not check interactions or the drug catalog;
+ * clients ask {@code /interactions} and {@code /catalog} first and warn or correct
+ * before they commit the change.
+ *
+ * Every medicine, history, stock and dose request works on one patient of the {@link Ward},
+ * chosen with {@code ?patient=<id>} (the default patient if omitted). Writing to an
+ * unknown patient creates it; reading from one answers 404.
+ *
+ * Each request runs on its own virtual thread when the JVM supports them (Java 21+);
+ * on older JVMs a fixed pool of platform threads is used instead. All state goes
+ * through each patient's {@link MedicineRegistry}, slot index and {@link DoseScheduler},
+ * so the console and HTTP clients can be used at the same time.
+ */
+public class MedicineHttpServer {
+    private static final int DEFAULT_HISTORY_LIMIT = 100;
+    private static final int DEFAULT_AGENDA_HOURS = 24;
+    private static final int DEFAULT_AGENDA_LIMIT = 100;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Ward ward;
+
+    private MedicineHttpServer(HttpServer server, ExecutorService executor, Ward ward) {
+        this.server = server;
+        this.executor = executor;
+        this.ward = ward;
+    }
+
+    /**
+     * Starts the server on the given port (0 picks a free port).
+     *
+     * @param ward patients served by the API
+     */
+    public static MedicineHttpServer start(int port, Ward ward) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        ExecutorService executor = newRequestExecutor();
+        MedicineHttpServer api = new MedicineHttpServer(server, executor, ward);
+        server.createContext("/health", exchange -> api.handle(exchange, api::health));
+        server.createContext("/patients", exchange -> api.handle(exchange, api::patients));
+        server.createContext("/medicines", exchange -> api.handle(exchange, api::medicines));
+        server.createContext("/history", exchange -> api.handle(exchange, api::history));
+        server.createContext("/agenda", exchange -> api.handle(exchange, api::agenda));
+        server.createContext("/stock", exchange -> api.handle(exchange, api::stock));
+        server.createContext("/doses", exchange -> api.handle(exchange, api::doses));
+        server.createContext("/adherence", exchange -> api.handle(exchange, api::adherence));
+        server.createContext("/interactions", exchange -> api.handle(exchange, api::interactions));
+        server.createContext("/catalog", exchange -> api.handle(exchange, api::catalog));
+        server.setExecutor(executor);
+        server.start();
+        return api;
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests and waits briefly for running ones to finish.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor if the running JVM has one,
+     * otherwise a fixed pool of daemon platform threads.
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(16, Runtime.getRuntime().availableProcessors() * 8);
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "http-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // ---- Request handling ----
+
+    /**
+     * A handler returns the HTTP status and JSON body to send.
+     */
+    private interface Handler {
+        Response apply(HttpExchange exchange) throws IOException;
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        Response response;
+        try {
+            response = handler.apply(exchange);
+        } catch (IllegalArgumentException e) {
+            response = error(400, e.getMessage());
+        } catch (IllegalStateException e) {
+            response = error(503, e.getMessage()); // e.g. the journal cannot be written
+        } catch (RuntimeException e) {
+            response = error(500, String.valueOf(e.getMessage()));
+        }
+        byte[] bytes = response.body == null ? new byte[0] : response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+
+    private Response health(HttpExchange exchange) {
+        return new Response(200, "{\"status\":\"ok\",\"patients\":" + ward.size() + "}");
+    }
+
+    private Response patients(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        StringBuilder sb = new StringBuilder("{\"patients\":[");
+        List<String> ids = ward.patientIds();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(quote(ids.get(i)))
+                    .append(",\"medicines\":").append(ward.get(ids.get(i)).getRegistry().size()).append('}');
+        }
+        return new Response(200, sb.append("]}").toString());
+    }
+
+    private Response medicines(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String name = path.length() > "/medicines/".length()
+                ? URLDecoder.decode(path.substring("/medicines/".length()), StandardCharsets.UTF_8).trim().toLowerCase()
+                : null;
+        boolean write = method.equals("POST") || method.equals("PUT");
+        PatientStore patient = patient(exchange, write);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        if (name == null) {
+            switch (method) {
+                case "GET":
+                    return listMedicines(patient);
+                case "POST":
+                    return addMedicine(patient, readBody(exchange));
+                default:
+                    return error(405, "Method not allowed");
+            }
+        }
+        switch (method) {
+            case "GET":
+                MedicineSchedule schedule = patient.getRegistry().getSchedule(name);
+                return schedule == null ? error(404, "Medicine " + name + " not found.")
+                        : new Response(200, medicineJson(name, schedule));
+            case "PUT":
+                return updateMedicine(patient, name, readBody(exchange));
+            case "DELETE":
+                return deleteMedicine(patient, name);
+            default:
+                return error(405, "Method not allowed");
+        }
+    }
+
+    private Response listMedicines(PatientStore patient) {
+        StringBuilder sb = new StringBuilder("{\"medicines\":[");
+        boolean first = true;
+        for (MedicineRegistry.Entry entry : patient.getRegistry().entries()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(medicineJson(entry.getName(), entry.getSchedule()));
+        }
+        return new Response(200, sb.append("]}").toString());
+    }
+
+    private Response addMedicine(PatientStore patient, MedicineImporter.Record record) {
+        MedicineRegistry registry = patient.getRegistry();
+        if (record.name == null || record.name.trim().isEmpty()) {
+            return error(400, "Medicine name cannot be empty.");
+        }
+        String name = record.name.trim().toLowerCase();
+        String problem = MedicineImporter.validateSchedule(record);
+        if (problem != null) {
+            return error(400, problem);
+        }
+        if (registry.contains(name)) {
+            return error(409, "Medicine " + name + " already exists.");
+        }
+        MedicineSchedule schedule = MedicineSchedule.createSchedule(record.days, record.times, record.spacing, record.repeat,
+                patient.getSlots());
+        if (schedule == null) {
+            return error(409, "No free slot for every dose of " + name + ".");
+        }
+        boolean added;
+        try {
+            added = registry.add(name, schedule);
+        } catch (IllegalStateException e) {
+            schedule.releaseSlots(patient.getSlots());
+            throw e;
+        } catch (UncheckedIOException e) {
+            patient.getScheduler().schedule(name, schedule); // added in memory, so it still gets reminders
+            throw e;
+        }
+        if (!added) {
+            schedule.releaseSlots(patient.getSlots());
+            return error(409, "Medicine " + name + " already exists.");
+        }
+        patient.getScheduler().schedule(name, schedule);
+        return new Response(201, medicineJson(name, schedule));
+    }
+
+    private Response updateMedicine(PatientStore patient, String name, MedicineImporter.Record record) {
+        String problem = MedicineImporter.validateSchedule(record);
+        if (problem != null) {
+            return error(400, problem);
+        }
+        MedicineRegistry registry = patient.getRegistry();
+        SlotIndex slots = patient.getSlots();
+        MedicineSchedule old = registry.getSchedule(name);
+        if (old == null) {
+            return error(404, "Medicine " + name + " not found.");
+        }
+        String newName = record.newName == null || record.newName.trim().isEmpty()
+                ? name : record.newName.trim().toLowerCase();
+        if (!newName.equals(name) && registry.contains(newName)) {
+            return error(409, "Medicine " + newName + " already exists.");
+        }
+        // Free the old slots first so the medicine may keep its previous times
+        old.releaseSlots(slots);
+        MedicineSchedule schedule = MedicineSchedule.createSchedule(record.days, record.times, record.spacing, record.repeat, slots);
+        if (schedule == null) {
+            old.reserveSlots(slots);
+            return error(409, "No free slot for every dose of " + newName + ".");
+        }
+        UncheckedIOException unsaved = null;
+        try {
+            if (newName.equals(name)) {
+                registry.replaceSchedule(name, schedule);
+            } else {
+                registry.rename(name, newName, schedule);
+            }
+        } catch (IllegalArgumentException e) {
+            schedule.releaseSlots(slots);
+            old.reserveSlots(slots);
+            return error(409, e.getMessage());
+        } catch (IllegalStateException e) {
+            schedule.releaseSlots(slots);
+            old.reserveSlots(slots);
+            throw e;
+        } catch (UncheckedIOException e) {
+            unsaved = e; // changed in memory; finish the change before reporting it
+        }
+        if (!newName.equals(name)) {
+            patient.getScheduler().cancel(name);
+            patient.medicineRenamed(name, newName);
+        }
+        patient.getScheduler().schedule(newName, schedule);
+        if (unsaved != null) {
+            throw unsaved;
+        }
+        return new Response(200, medicineJson(newName, schedule));
+    }
+
+    private Response deleteMedicine(PatientStore patient, String name) {
+        MedicineSchedule current = patient.getRegistry().getSchedule(name);
+        MedicineSchedule removed;
+        UncheckedIOException unsaved = null;
+        try {
+            removed = patient.getRegistry().remove(name);
+        } catch (UncheckedIOException e) {
+            unsaved = e; // removed in memory; finish the removal before reporting it
+            removed = current;
+        }
+        if (removed == null) {
+            return error(404, "Medicine " + name + " not found.");
+        }
+        removed.releaseSlots(patient.getSlots());
+        patient.getScheduler().cancel(name);
+        patient.medicineRemoved(name);
+        if (unsaved != null) {
+            throw unsaved;
+        }
+        return new Response(204, null);
+    }
+
+    private Response stock(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String name = path.length() > "/stock/".length()
+                ? URLDecoder.decode(path.substring("/stock/".length()), StandardCharsets.UTF_8).trim().toLowerCase()
+                : null;
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        MedicineStock stock = patient.getStock();
+        LocalDateTime now = ward.getClock().now();
+        if (name == null) {
+            if (!method.equals("GET")) {
+                return error(405, "Method not allowed");
+            }
+            StringBuilder sb = new StringBuilder("{\"stock\":[");
+            boolean first = true;
+            for (MedicineRegistry.Entry entry : patient.getRegistry().entries()) {
+                MedicineStock.Forecast forecast = stock.forecast(entry.getName(), now);
+                if (forecast == null) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(stockJson(entry.getName(), forecast));
+            }
+            return new Response(200, sb.append("]}").toString());
+        }
+        MedicineSchedule schedule = patient.getRegistry().getSchedule(name);
+        if (schedule == null && !patient.getRegistry().contains(name)) {
+            return error(404, "Medicine " + name + " not found.");
+        }
+        switch (method) {
+            case "GET":
+                break;
+            case "PUT": {
+                MedicineImporter.Record record = readBody(exchange);
+                if (record.onHand == null && record.leadDays == null) {
+                    return error(400, "onHand or leadDays is required.");
+                }
+                if (record.onHand == null && !stock.isTracked(name)) {
+                    return error(400, "onHand is required to start tracking " + name + ".");
+                }
+                if (record.leadDays != null && (record.leadDays < 0 || record.leadDays > MedicineStock.MAX_LEAD_DAYS)) {
+                    return error(400, "Lead time must be between 0 and " + MedicineStock.MAX_LEAD_DAYS + " days.");
+                }
+                if (record.onHand != null) {
+                    stock.set(name, record.onHand, schedule);
+                }
+                if (record.leadDays != null) {
+                    stock.setLeadDays(name, record.leadDays.intValue());
+                }
+                patient.saveStock();
+                break;
+            }
+            case "POST": {
+                MedicineImporter.Record record = readBody(exchange);
+                if (record.doses == null) {
+                    return error(400, "doses is required.");
+                }
+                if (!stock.isTracked(name)) {
+                    return error(404, "The stock of " + name + " is not tracked.");
+                }
+                stock.refill(name, record.doses);
+                patient.saveStock();
+                break;
+            }
+            case "DELETE":
+                if (!stock.untrack(name)) {
+                    return error(404, "The stock of " + name + " is not tracked.");
+                }
+                patient.saveStock();
+                return new Response(204, null);
+            default:
+                return error(405, "Method not allowed");
+        }
+        MedicineStock.Forecast forecast = stock.forecast(name, now);
+        return forecast == null ? error(404, "The stock of " + name + " is not tracked.")
+                : new Response(200, stockJson(name, forecast));
+    }
+
+    private Response agenda(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        int hours = query.containsKey("hours") ? Integer.parseInt(query.get("hours")) : DEFAULT_AGENDA_HOURS;
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_AGENDA_LIMIT;
+        if (hours <= 0 || limit <= 0) {
+            return error(400, "hours and limit must be positive.");
+        }
+        LocalDateTime now = ward.getClock().now();
+        DoseAgenda agenda = new DoseAgenda(patient.getRegistry().entries(), now, now.plusHours(hours));
+        StringBuilder sb = new StringBuilder("{\"doses\":[");
+        for (int i = 0; i < limit && agenda.hasNext(); i++) {
+            DoseAgenda.Dose dose = agenda.next();
+            LocalDateTime time = dose.getTime();
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":").append(quote(dose.getMedicineName()))
+                    .append(",\"timestamp\":").append(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                    .append(",\"time\":").append(quote(time.toLocalDate() + " "
+                            + MedicineSchedule.formatTime(time.getHour() * 60 + time.getMinute()))).append('}');
+        }
+        return new Response(200, sb.append("],\"more\":").append(agenda.hasNext()).append('}').toString());
+    }
+
+    private Response history(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String medicine = query.get("medicine");
+        long from = parseTime(query.get("from"), Long.MIN_VALUE);
+        long to = parseTime(query.get("to"), Long.MAX_VALUE);
+        Set<HistoryStore.Action> actions = null;
+        if (query.containsKey("action")) {
+            actions = EnumSet.noneOf(HistoryStore.Action.class);
+            for (String action : query.get("action").split(",")) {
+                actions.add(HistoryStore.Action.valueOf(action.trim().toUpperCase()));
+            }
+        }
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_HISTORY_LIMIT;
+        int start = query.containsKey("cursor") ? Integer.parseInt(query.get("cursor")) : 0;
+        HistoryStore history = patient.getRegistry().history();
+        HistoryStore.Cursor cursor = history.cursor(
+                medicine == null ? null : medicine.trim().toLowerCase(), from, to, actions, start);
+        StringBuilder sb = new StringBuilder("{\"events\":[");
+        int position;
+        for (int i = 0; i < limit && (position = cursor.next()) >= 0; i++) {
+            HistoryStore.Event event = history.get(position);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":").append(quote(event.getName()))
+                    .append(",\"action\":").append(quote(event.getAction().getLabel()));
+            if (event.getNewName() != null) {
+                sb.append(",\"newName\":").append(quote(event.getNewName()));
+            }
+            sb.append(",\"timestamp\":").append(event.getTimestamp())
+                    .append(",\"time\":").append(quote(event.getFormattedTime())).append('}');
+        }
+        sb.append(']');
+        // Position of the first event of the next page, to pass back as ?cursor=
+        int next = cursor.next();
+        if (next >= 0) {
+            sb.append(",\"next\":").append(next);
+        }
+        return new Response(200, sb.append('}').toString());
+    }
+
+    // ---- Helpers ----
+
+    /**
+     * Resolves the patient named by the {@code patient} query parameter (the default
+     * patient if absent). Returns null if the patient is unknown and {@code create}
+     * is false.
+     */
+    private PatientStore patient(HttpExchange exchange, boolean create) throws IOException {
+        String id = parseQuery(exchange.getRequestURI().getRawQuery()).getOrDefault("patient", Ward.DEFAULT_PATIENT);
+        return create ? ward.getOrCreate(id) : ward.get(id);
+    }
+
+    private static MedicineImporter.Record readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (body.isEmpty()) {
+                throw new IllegalArgumentException("Request body is required.");
+            }
+            return MedicineImporter.parseJson(body.replace('\n', ' ').replace('\r', ' '));
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Accepts epoch millis or an ISO date (yyyy-MM-dd, start of that day).
+     */
+    private static long parseTime(String value, long fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        try {
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date '" + value + "', use yyyy-MM-dd or epoch millis.");
+        }
+    }
+
+    private static String medicineJson(String name, MedicineSchedule schedule) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":").append(quote(name));
+        if (schedule != null) {
+            sb.append(",\"dosesPerDay\":").append(schedule.getNumberOfDoses())
+                    .append(",\"days\":").append(quoteAll(schedule.getDays()))
+                    .append(",\"times\":").append(quoteAll(schedule.getDoseTimes()))
+                    .append(",\"spacing\":").append(schedule.getSpacing());
+            if (schedule.getRule() != null) {
+                sb.append(",\"repeat\":").append(quote(schedule.getRule().toString()));
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private Response doses(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String name = path.length() > "/doses/".length()
+                ? URLDecoder.decode(path.substring("/doses/".length()), StandardCharsets.UTF_8).trim().toLowerCase()
+                : null;
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        if (name == null) {
+            if (!method.equals("GET")) {
+                return error(405, "Method not allowed");
+            }
+            StringBuilder sb = new StringBuilder("{\"graceMinutes\":").append(patient.getDoses().getGraceMinutes())
+                    .append(",\"pending\":[");
+            List<DoseLog.Dose> pending = patient.getDoses().pending();
+            for (int i = 0; i < pending.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(doseJson(pending.get(i)));
+            }
+            return new Response(200, sb.append("]}").toString());
+        }
+        if (!method.equals("POST")) {
+            return error(405, "Method not allowed");
+        }
+        DoseLog.Outcome outcome = DoseLog.Outcome.confirmable(readBody(exchange).outcome);
+        DoseLog.Dose dose;
+        try {
+            dose = patient.confirmDose(name, outcome);
+        } catch (IllegalArgumentException e) {
+            return error(409, e.getMessage());
+        }
+        return new Response(200, doseJson(dose));
+    }
+
+    private Response adherence(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        AdherenceStats stats = Boolean.parseBoolean(query.get("recompute"))
+                ? patient.getDoses().recompute() : patient.getDoses().getStats();
+        LocalDate today = ward.getClock().now().toLocalDate();
+        String medicine = query.get("medicine");
+        if (medicine != null) {
+            String name = medicine.trim().toLowerCase();
+            AdherenceStats.Summary summary = stats.summary(name, today);
+            return summary == null ? error(404, "No dose of " + name + " has been recorded.")
+                    : new Response(200, adherenceJson(name, summary));
+        }
+        StringBuilder sb = new StringBuilder("{\"medicines\":[");
+        boolean first = true;
+        for (String name : stats.medicines()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(adherenceJson(name, stats.summary(name, today)));
+        }
+        sb.append("],\"all\":");
+        AdherenceStats.Summary all = stats.summary(null, today);
+        return new Response(200, sb.append(adherenceJson(null, all)).append('}').toString());
+    }
+
+    private Response interactions(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        InteractionIndex index = ward.getInteractions();
+        if (index == null) {
+            return error(503, "No interaction index is loaded.");
+        }
+        PatientStore patient = patient(exchange, false);
+        if (patient == null) {
+            return error(404, "Patient not found.");
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String medicine = query.get("medicine");
+        if (medicine == null || medicine.trim().isEmpty()) {
+            return error(400, "Query parameter medicine is required.");
+        }
+        String name = medicine.trim().toLowerCase();
+        List<String> others = patient.getRegistry().names();
+        String replacing = query.get("replacing");
+        if (replacing != null) {
+            others.remove(replacing.trim().toLowerCase());
+        }
+        StringBuilder sb = new StringBuilder("{\"medicine\":").append(quote(name)).append(",\"interactions\":[");
+        boolean first = true;
+        for (InteractionIndex.Interaction interaction : index.check(name, others)) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"medicine\":").append(quote(interaction.getOtherName()))
+                    .append(",\"severity\":").append(quote(interaction.getSeverity().label())).append('}');
+        }
+        return new Response(200, sb.append("]}").toString());
+    }
+
+    private Response catalog(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return error(405, "Method not allowed");
+        }
+        DrugCatalog catalog = ward.getCatalog();
+        if (catalog == null) {
+            return error(503, "No drug catalog is loaded.");
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String q = query.get("q");
+        if (q == null || q.trim().isEmpty()) {
+            return error(400, "Query parameter q is required.");
+        }
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DrugCatalog.DEFAULT_LIMIT;
+        if (limit <= 0) {
+            return error(400, "limit must be positive.");
+        }
+        String name = DrugCatalog.normalize(q);
+        String canonical = catalog.canonical(name);
+        StringBuilder sb = new StringBuilder("{\"query\":").append(quote(name))
+                .append(",\"canonical\":").append(canonical == null ? "null" : quote(canonical))
+                .append(",\"matches\":[");
+        boolean first = true;
+        for (DrugCatalog.Match match : catalog.fuzzy(name, DrugCatalog.allowedDistance(name.length()), limit)) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":").append(quote(match.getName()))
+                    .append(",\"distance\":").append(match.getDistance()).append('}');
+        }
+        sb.append("],\"completions\":").append(quoteAll(catalog.complete(name, limit)));
+        return new Response(200, sb.append('}').toString());
+    }
+
+    private static String doseJson(DoseLog.Dose dose) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":").append(quote(dose.getMedicineName()))
+                .append(",\"timestamp\":").append(dose.getDueMillis())
+                .append(",\"time\":").append(quote(dose.getFormattedDueTime()));
+        if (dose.getOutcome() != null) {
+            sb.append(",\"outcome\":").append(quote(dose.getOutcome().getLabel()))
+                    .append(",\"recorded\":").append(dose.getRecordedMillis());
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String adherenceJson(String name, AdherenceStats.Summary summary) {
+        StringBuilder sb = new StringBuilder("{");
+        if (name != null) {
+            sb.append("\"name\":").append(quote(name)).append(',');
+        }
+        sb.append("\"taken\":").append(summary.getTaken())
+                .append(",\"skipped\":").append(summary.getSkipped())
+                .append(",\"missed\":").append(summary.getMissed())
+                .append(",\"rate\":").append(rateJson(summary.getRate()))
+                .append(",\"doses7\":").append(summary.getDoses7())
+                .append(",\"rate7\":").append(rateJson(summary.getRate7()))
+                .append(",\"doses30\":").append(summary.getDoses30())
+                .append(",\"rate30\":").append(rateJson(summary.getRate30()))
+                .append(",\"byWeekday\":{");
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (day != DayOfWeek.MONDAY) {
+                sb.append(',');
+            }
+            sb.append(quote(day.getDisplayName(TextStyle.FULL, Locale.ENGLISH))).append(':')
+                    .append(rateJson(summary.getRate(day)));
+        }
+        return sb.append("}}").toString();
+    }
+
+    /**
+     * Rounds a rate to four decimals, or null if there is nothing to rate.
+     */
+    private static String rateJson(double rate) {
+        return Double.isNaN(rate) ? "null" : String.valueOf(Math.round(rate * 10_000) / 10_000.0);
+    }
+
+    private static String stockJson(String name, MedicineStock.Forecast forecast) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":").append(quote(name))
+                .append(",\"onHand\":").append(forecast.getOnHand())
+                .append(",\"leadDays\":").append(forecast.getLeadDays())
+                .append(",\"dosesPerWeek\":").append(forecast.getDosesPerWeek());
+        if (forecast.getRunsOut() != null) {
+            sb.append(",\"runsOut\":").append(quote(forecast.getRunsOut().toString()))
+                    .append(",\"reorderBy\":").append(quote(forecast.getReorderBy().toString()));
+        }
+        return sb.append(",\"low\":").append(forecast.isLow()).append('}').toString();
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, "{\"error\":" + quote(message) + "}");
+    }
+
+    private static String quoteAll(List<String> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(quote(values.get(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,512 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Non-interactive bulk import of medicines and their schedules.
+ *
+ * Two line-oriented formats are accepted:
+ * <ul>
+ *   <li>CSV ({@code name,days,times[,spacing[,repeat]]}), e.g. {@code aspirin,Monday;Friday,08:00;20:00},
+ *       {@code warfarin,Monday,18:00,120} for a medicine that keeps two hours to other doses, or
+ *       {@code amoxicillin,,08:00,,every 8 hours for 21 doses} (see {@link RecurrenceRule}).
+ *       An optional header line starting with {@code name} and {@code #} comments are skipped.
+ *       Fields may be double-quoted.</li>
+ *   <li>JSON lines ({@code .jsonl}, {@code .ndjson}, {@code .json}), one object per line, e.g.
+ *       {@code {"name":"aspirin","days":["Monday","Friday"],"times":["08:00","20:00"],"spacing":30}};
+ *       {@code spacing} and {@code repeat} are optional.</li>
+ * </ul>
+ *
+ * The file is streamed line by line. Each record is validated and its dose times are
+ * run through the same conflict resolution as console input, against a
+ * private copy of the patient's slot index. Only if every record is valid is the batch handed
+ * to {@link MedicineRegistry#addAll}, which applies it atomically with one history
+ * entry per medicine; otherwise nothing is changed.
+ */
+public class MedicineImporter {
+    // Stop collecting error messages after this many; the count keeps going
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    /**
+     * Outcome of an import run.
+     */
+    public static final class Result {
+        private int imported;
+        private int adjusted;
+        private int errorCount;
+        private final List<String> errors = new ArrayList<>();
+        private long elapsedNanos;
+
+        public int getImported() { return imported; }
+        /** Number of dose times moved because of a slot conflict. */
+        public int getAdjusted() { return adjusted; }
+        public int getErrorCount() { return errorCount; }
+        /** The first few error messages, prefixed with their line number where known. */
+        public List<String> getErrors() { return errors; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isSuccess() { return errorCount == 0; }
+
+        private void error(int lineNumber, String message) {
+            errorCount++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(lineNumber > 0 ? "Line " + lineNumber + ": " + message : message);
+            }
+        }
+    }
+
+    /**
+     * Imports every record of a file into a patient's registry, all or nothing. On
+     * success the new schedules also reserve their slots in the patient's slot index
+     * and are handed to the patient's reminder scheduler.
+     *
+     * @param file    CSV or JSON-lines file
+     * @param patient patient to add the medicines to
+     */
+    public static Result importFile(Path file, PatientStore patient) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        boolean json = isJsonLines(file);
+        MedicineRegistry registry = patient.getRegistry();
+        SlotIndex slots = patient.getSlots().copy();
+        Set<String> seen = new HashSet<>();
+        List<String> names = new ArrayList<>();
+        List<MedicineSchedule> schedules = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = json ? parseJson(trimmed) : parseCsv(trimmed);
+                } catch (IllegalArgumentException e) {
+                    result.error(lineNumber, e.getMessage());
+                    continue;
+                }
+                if (record == null) {
+                    continue; // CSV header
+                }
+                String problem = validate(record, registry, seen);
+                if (problem != null) {
+                    result.error(lineNumber, problem);
+                    continue;
+                }
+                MedicineSchedule schedule = resolve(record, slots, result);
+                if (schedule == null) {
+                    result.error(lineNumber, "no free slot for every dose of " + record.name);
+                    continue;
+                }
+                names.add(record.name);
+                schedules.add(schedule);
+            }
+        }
+
+        if (result.isSuccess() && !names.isEmpty()) {
+            UncheckedIOException unsaved = null;
+            try {
+                registry.addAll(names, schedules);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                result.error(0, e.getMessage());
+            } catch (UncheckedIOException e) {
+                unsaved = e; // imported in memory, so the medicines still need slots and reminders
+            }
+            if (result.isSuccess()) {
+                for (int i = 0; i < names.size(); i++) {
+                    schedules.get(i).reserveSlots(patient.getSlots());
+                    patient.getScheduler().schedule(names.get(i), schedules.get(i));
+                }
+                result.imported = names.size();
+                if (unsaved != null) {
+                    result.error(0, unsaved.getMessage());
+                }
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * One parsed line before validation. Also used for HTTP request bodies.
+     */
+    static final class Record {
+        String name;
+        String newName;
+        List<String> days = new ArrayList<>();
+        List<String> times = new ArrayList<>();
+        int spacing = SlotIndex.DEFAULT_SPACING;
+        // How the doses repeat (null: the days of every week)
+        RecurrenceRule repeat;
+        // Stock fields of HTTP request bodies (null if absent)
+        Long onHand;
+        Long doses;
+        Long leadDays;
+        // Dose confirmation of HTTP request bodies (null if absent)
+        String outcome;
+    }
+
+    private static boolean isJsonLines(Path file) {
+        String fileName = file.getFileName().toString().toLowerCase();
+        return fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson") || fileName.endsWith(".json");
+    }
+
+    /**
+     * Checks name, days and times of a record. Returns a message, or null if valid.
+     */
+    private static String validate(Record record, MedicineRegistry registry, Set<String> seen) {
+        if (record.name == null || record.name.trim().isEmpty()) {
+            return "medicine name cannot be empty";
+        }
+        record.name = record.name.trim().toLowerCase();
+        if (registry.contains(record.name) || !seen.add(record.name)) {
+            return "medicine " + record.name + " already exists";
+        }
+        return validateSchedule(record);
+    }
+
+    /**
+     * Checks the days and times of a record. Returns a message, or null if valid.
+     */
+    static String validateSchedule(Record record) {
+        RecurrenceRule.Unit unit = record.repeat == null ? RecurrenceRule.Unit.WEEKS : record.repeat.getUnit();
+        if (record.days.isEmpty() && unit == RecurrenceRule.Unit.WEEKS) {
+            return "no days given for " + record.name;
+        }
+        for (String day : record.days) {
+            if (MedicineSchedule.parseDay(day) == null) {
+                return "invalid day '" + day + "'";
+            }
+        }
+        if (record.times.isEmpty()) {
+            return "no dose times given for " + record.name;
+        }
+        if (unit == RecurrenceRule.Unit.HOURS && record.times.size() != 1) {
+            return "give only the first dose time for " + record.name + ", it repeats every "
+                    + record.repeat.getInterval() + " hour(s)";
+        }
+        for (String time : record.times) {
+            if (MedicineSchedule.parseTime(time) < 0) {
+                return "invalid time '" + time + "', use HH:mm";
+            }
+        }
+        if (record.spacing < 1 || record.spacing > SlotIndex.MAX_SPACING) {
+            return "spacing must be between 1 and " + SlotIndex.MAX_SPACING + " minutes";
+        }
+        return null;
+    }
+
+    /**
+     * Places every dose of the record on the batch slot index, moving conflicting
+     * doses to the nearest free time like console input does. Returns null if a dose cannot be placed.
+     */
+    private static MedicineSchedule resolve(Record record, SlotIndex slots, Result result) {
+        RecurrenceRule rule = record.repeat;
+        if (rule != null && rule.getUnit() == RecurrenceRule.Unit.HOURS) {
+            int requested = MedicineSchedule.parseTime(record.times.get(0));
+            MedicineSchedule schedule = MedicineSchedule.createRecurring(rule, requested, record.spacing, slots);
+            if (schedule != null && schedule.getRule().getFrom().toLocalTime().toSecondOfDay() / 60 != requested) {
+                result.adjusted++;
+            }
+            return schedule;
+        }
+        int dayMask = MedicineSchedule.dayMask(record.days);
+        if (rule != null) {
+            dayMask = rule.dayMask(dayMask);
+        }
+        int[] doseMinutes = new int[record.times.size()];
+        for (int i = 0; i < doseMinutes.length; i++) {
+            int requested = MedicineSchedule.parseTime(record.times.get(i));
+            int minute = MedicineSchedule.placeDose(slots, dayMask, requested, record.spacing);
+            if (minute < 0) {
+                return null;
+            }
+            if (minute != requested) {
+                result.adjusted++;
+            }
+            doseMinutes[i] = minute;
+        }
+        return new MedicineSchedule(doseMinutes.length, dayMask, doseMinutes, record.spacing, rule);
+    }
+
+    // ---- CSV ----
+
+    private static Record parseCsv(String line) {
+        List<String> fields = splitCsv(line);
+        if (fields.size() < 3 || fields.size() > 5) {
+            throw new IllegalArgumentException("expected 3 to 5 fields (name,days,times[,spacing[,repeat]]) but found " + fields.size());
+        }
+        if (fields.get(0).trim().equalsIgnoreCase("name")) {
+            return null;
+        }
+        Record record = new Record();
+        record.name = fields.get(0);
+        splitList(fields.get(1), record.days);
+        splitList(fields.get(2), record.times);
+        if (fields.size() >= 4 && !fields.get(3).trim().isEmpty()) {
+            record.spacing = parseSpacing(fields.get(3).trim());
+        }
+        if (fields.size() == 5) {
+            record.repeat = RecurrenceRule.parse(fields.get(4), LocalDate.now());
+        }
+        return record;
+    }
+
+    private static int parseSpacing(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid spacing '" + value + "', use minutes");
+        }
+    }
+
+    private static long parseCount(String key, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + key + " '" + value + "', use a whole number");
+        }
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(current.toString());
+        return fields;
+    }
+
+    /**
+     * Splits "Monday;Friday" or "08:00 20:00" into trimmed, non-empty parts.
+     */
+    private static void splitList(String value, List<String> into) {
+        int start = 0;
+        for (int i = 0; i <= value.length(); i++) {
+            if (i == value.length() || value.charAt(i) == ';' || value.charAt(i) == ' ' || value.charAt(i) == '|') {
+                String part = value.substring(start, i).trim();
+                if (!part.isEmpty()) {
+                    into.add(part);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    // ---- JSON lines ----
+
+    /**
+     * Parses one flat JSON object. Only "name", "days", "times", "spacing" and "repeat" (and for
+     * the stock and dose endpoints "onHand", "doses", "leadDays" and "outcome") are
+     * used; other keys are skipped. Days and times may be arrays or ';'-separated strings.
+     */
+    static Record parseJson(String line) {
+        JsonCursor in = new JsonCursor(line);
+        Record record = new Record();
+        in.expect('{');
+        if (!in.tryConsume('}')) {
+            do {
+                String key = in.readString();
+                in.expect(':');
+                switch (key) {
+                    case "name":
+                        record.name = in.readString();
+                        break;
+                    case "newName":
+                        record.newName = in.readString();
+                        break;
+                    case "days":
+                        in.readStringList(record.days);
+                        break;
+                    case "times":
+                        in.readStringList(record.times);
+                        break;
+                    case "spacing":
+                        record.spacing = parseSpacing(in.readScalar());
+                        break;
+                    case "repeat":
+                        record.repeat = RecurrenceRule.parse(in.readString(), LocalDate.now());
+                        break;
+                    case "onHand":
+                        record.onHand = parseCount(key, in.readScalar());
+                        break;
+                    case "doses":
+                        record.doses = parseCount(key, in.readScalar());
+                        break;
+                    case "leadDays":
+                        record.leadDays = parseCount(key, in.readScalar());
+                        break;
+                    case "outcome":
+                        record.outcome = in.readString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            } while (in.tryConsume(','));
+            in.expect('}');
+        }
+        in.expectEnd();
+        return record;
+    }
+
+    /**
+     * Minimal reader over one line of JSON.
+     */
+    private static final class JsonCursor {
+        private final String text;
+        private int pos;
+
+        JsonCursor(String text) {
+            this.text = text;
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        boolean tryConsume(char c) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!tryConsume(c)) {
+                throw new IllegalArgumentException("expected '" + c + "' at column " + (pos + 1));
+            }
+        }
+
+        void expectEnd() {
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException("unexpected text at column " + (pos + 1));
+            }
+        }
+
+        String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\' && pos < text.length()) {
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (pos + 4 > text.length()) {
+                                throw new IllegalArgumentException("bad unicode escape");
+                            }
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: sb.append(escaped);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            throw new IllegalArgumentException("unterminated string");
+        }
+
+        /**
+         * Reads a number, or a string holding one, as text.
+         */
+        String readScalar() {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                return readString().trim();
+            }
+            int start = pos;
+            skipValue();
+            return text.substring(start, pos);
+        }
+
+        void readStringList(List<String> into) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                splitList(readString(), into);
+                return;
+            }
+            expect('[');
+            if (tryConsume(']')) {
+                return;
+            }
+            do {
+                into.add(readString().trim());
+            } while (tryConsume(','));
+            expect(']');
+        }
+
+        void skipValue() {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("missing value");
+            }
+            char c = text.charAt(pos);
+            if (c == '"') {
+                readString();
+            } else if (c == '[' || c == '{') {
+                char close = c == '[' ? ']' : '}';
+                pos++;
+                if (tryConsume(close)) {
+                    return;
+                }
+                do {
+                    if (close == '}') {
+                        readString();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (tryConsume(','));
+                expect(close);
+            } else {
+                // number, true, false or null
+                while (pos < text.length() && ",}] \t".indexOf(text.charAt(pos)) < 0) {
+                    pos++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,594 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only journal of every registry mutation.
+ *
+ * Each record is written as {@code [length][crc32][type][timestamp][payload]} into
+ * numbered segment files ({@code journal-N.log}) inside the data directory. Appends
+ * only copy the record into an in-memory batch; a single flusher thread writes the
+ * batch and calls {@code force} once for all records that arrived meanwhile
+ * (group commit), then wakes every caller waiting in {@link #awaitDurable}.
+ *
+ * A batch that fails to be written stays queued: the segment is cut back to the end
+ * of the last synced batch, so a partly written record never sits in front of later
+ * ones, and the write is retried every {@value #RETRY_MILLIS} ms. Until it succeeds,
+ * waiting callers are told their record is not durable and new changes are refused
+ * ({@link #checkWritable}).
+ *
+ * Once enough records have accumulated, a background compactor switches to a new
+ * segment, writes a {@link MedicineSnapshot} of the registry and deletes the segments
+ * it covers. Recovery loads the snapshot and replays only the newer segments; a torn
+ * or corrupt record at the end of a segment is truncated away.
+ */
+public class MedicineJournal implements Closeable {
+    // Record types
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte RENAME = 3;
+    static final byte REPLACE = 4;
+    static final byte IMPORT = 5;
+
+    // Number of journal records after which a snapshot is taken in the background
+    private static final int COMPACT_THRESHOLD = 10_000;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final long RETRY_MILLIS = 1_000;
+
+    private final Path dir;
+    private final MedicineRegistry registry;
+    private final Object ioLock = new Object();
+    private final Object compactLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Thread flusher;
+
+    // Guarded by ioLock
+    private FileChannel channel;
+    private long segment;
+    // End of the last synced batch in the current segment
+    private long syncedEnd;
+    // Records taken from pending but not yet synced, and the ticket of the last one
+    private byte[] unsynced;
+    private long unsyncedUpTo;
+
+    // Guarded by this
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    private final CRC32 crc = new CRC32();
+    private long appended;
+    private long durable;
+    private int sinceSnapshot;
+    private boolean compacting;
+    private boolean closed;
+    // Cause of the last failed write; null once a write succeeds
+    private IOException failure;
+
+    private MedicineJournal(Path dir, MedicineRegistry registry, long segment) throws IOException {
+        this.dir = dir;
+        this.registry = registry;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+        this.syncedEnd = channel.size();
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Recovers the registry from the data directory (snapshot plus newer journal
+     * segments), then attaches a fresh journal to it.
+     *
+     * @param dir      data directory, created if missing
+     * @param registry empty registry to load into
+     * @return the open journal
+     */
+    public static MedicineJournal open(Path dir, MedicineRegistry registry) throws IOException {
+        Files.createDirectories(dir);
+        long covered = -1;
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            MedicineSnapshot snapshot = MedicineSnapshot.load(snapshotFile);
+            snapshot.applyTo(registry);
+            covered = snapshot.getSegment();
+        }
+        long last = covered;
+        for (long number : listSegments(dir)) {
+            if (number <= covered) {
+                // Left over from a compaction that stopped before cleaning up
+                Files.deleteIfExists(segmentPath(dir, number));
+                continue;
+            }
+            replaySegment(segmentPath(dir, number), registry);
+            last = number;
+        }
+        MedicineJournal journal = new MedicineJournal(dir, registry, last + 1);
+        registry.setJournal(journal);
+        journal.flusher.start();
+        return journal;
+    }
+
+    /**
+     * Appends one mutation to the in-memory batch. Must be called while the registry
+     * write lock is held so journal order matches registry order.
+     *
+     * @return ticket to pass to {@link #awaitDurable}
+     */
+    synchronized long append(byte type, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        try {
+            scratch.reset();
+            scratchOut.writeByte(type);
+            scratchOut.writeLong(timestamp);
+            writeString(scratchOut, name);
+            writeString(scratchOut, newName);
+            scratchOut.writeBoolean(schedule != null);
+            if (schedule != null) {
+                writeSchedule(scratchOut, schedule);
+            }
+            return frame();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams do not throw
+        }
+    }
+
+    /**
+     * Appends a whole import batch as a single record, so recovery applies either
+     * every medicine of the batch or none of them. Same locking rules as {@link #append}.
+     *
+     * @return ticket to pass to {@link #awaitDurable}
+     */
+    synchronized long appendImport(long timestamp, List<String> names, List<MedicineSchedule> schedules) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        try {
+            scratch.reset();
+            scratchOut.writeByte(IMPORT);
+            scratchOut.writeLong(timestamp);
+            scratchOut.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                writeString(scratchOut, names.get(i));
+                writeSchedule(scratchOut, schedules.get(i));
+            }
+            return frame();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves the record in the scratch buffer into the pending batch behind its
+     * length and checksum.
+     */
+    private long frame() throws IOException {
+        scratchOut.flush();
+        crc.reset();
+        byte[] payload = scratch.toByteArray();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        appended++;
+        sinceSnapshot++;
+        notifyAll();
+        return appended;
+    }
+
+    /**
+     * Throws if the last write failed, so a change can be refused before it is
+     * applied. Called under the registry write lock.
+     *
+     * @throws IllegalStateException while the journal cannot be written
+     */
+    synchronized void checkWritable() {
+        if (failure != null) {
+            throw new IllegalStateException("Changes cannot be saved: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Returns the cause of the last failed write, or null if the last write succeeded.
+     */
+    synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Blocks until the record with the given ticket has been written and synced.
+     *
+     * @return false if a write failed (or the journal closed) before that happened;
+     *         the record stays queued and is retried
+     */
+    synchronized boolean awaitDurable(long ticket) {
+        boolean interrupted = false;
+        while (durable < ticket && !closed && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return durable >= ticket;
+    }
+
+    /**
+     * Writes a snapshot of the registry and deletes the journal segments it covers.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            compactLocked();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        long[] covered = new long[1];
+        MedicineSnapshot snapshot;
+        try {
+            snapshot = registry.snapshot(() -> {
+                try {
+                    covered[0] = rotate();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        snapshot.setSegment(covered[0]);
+        snapshot.write(dir.resolve(SNAPSHOT_FILE));
+        for (long number : listSegments(dir)) {
+            if (number <= covered[0]) {
+                Files.deleteIfExists(segmentPath(dir, number));
+            }
+        }
+    }
+
+    /**
+     * Flushes outstanding records, writes a final snapshot and stops the background threads.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        compact();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        compactor.shutdown();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Flusher thread: writes each accumulated batch and syncs it with one force call.
+     * After a failure the same batch is retried every {@value #RETRY_MILLIS} ms.
+     */
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                while (pending.size() == 0 && failure == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0 && failure == null && closed) {
+                    return;
+                }
+            }
+            try {
+                synchronized (ioLock) {
+                    writeBatch();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        System.out.println(Medicine.RED + "Journal write failed, retrying: " + e.getMessage() + Medicine.RESET);
+                    }
+                    failure = e;
+                    notifyAll();
+                    if (closed) {
+                        return;
+                    }
+                    // Appends notify this monitor; keep waiting for the full back-off
+                    long deadline = System.nanoTime() + RETRY_MILLIS * 1_000_000;
+                    for (long left = RETRY_MILLIS; left > 0 && !closed; left = (deadline - System.nanoTime()) / 1_000_000) {
+                        try {
+                            wait(left);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                if (sinceSnapshot >= COMPACT_THRESHOLD && !compacting && !closed) {
+                    compacting = true;
+                    compactor.execute(this::compactInBackground);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs the records appended so far, together with any batch whose
+     * write failed before. On failure the segment is cut back to its last synced end
+     * and the records stay queued for the next call. Caller holds ioLock.
+     */
+    private void writeBatch() throws IOException {
+        long upTo;
+        synchronized (this) {
+            if (pending.size() > 0) {
+                byte[] taken = pending.toByteArray();
+                pending.reset();
+                if (unsynced == null) {
+                    unsynced = taken;
+                } else {
+                    byte[] merged = Arrays.copyOf(unsynced, unsynced.length + taken.length);
+                    System.arraycopy(taken, 0, merged, unsynced.length, taken.length);
+                    unsynced = merged;
+                }
+                unsyncedUpTo = appended;
+            }
+            upTo = unsyncedUpTo;
+        }
+        if (unsynced != null) {
+            try {
+                if (channel.size() != syncedEnd) {
+                    channel.truncate(syncedEnd); // drop what a failed write left behind
+                }
+                writeFully(channel, unsynced);
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(syncedEnd);
+                } catch (IOException ignored) {
+                    // Retried before the next write
+                }
+                throw e;
+            }
+            syncedEnd += unsynced.length;
+            unsynced = null;
+        }
+        synchronized (this) {
+            durable = Math.max(durable, upTo);
+            if (failure != null) {
+                failure = null;
+                System.out.println(Medicine.GREEN + "Journal writes resumed." + Medicine.RESET);
+            }
+            notifyAll();
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.out.println(Medicine.RED + "Journal compaction failed: " + e.getMessage() + Medicine.RESET);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Syncs everything appended so far into the current segment and switches to a new
+     * one. Runs under the registry write lock, so no appends happen concurrently.
+     *
+     * @return number of the segment that was closed
+     */
+    private long rotate() throws IOException {
+        synchronized (ioLock) {
+            writeBatch();
+            synchronized (this) {
+                sinceSnapshot = 0;
+            }
+            // Open the next segment first, so a failure leaves the current one usable
+            FileChannel next = openSegment(segment + 1);
+            channel.close();
+            long closedSegment = segment;
+            segment++;
+            channel = next;
+            syncedEnd = 0;
+            return closedSegment;
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(dir, number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Replays every valid record of one segment into the registry and truncates a
+     * torn or corrupt tail.
+     */
+    private static void replaySegment(Path file, MedicineRegistry registry) throws IOException {
+        long validEnd = 0;
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size == 0) {
+                return;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 check = new CRC32();
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = buffer.slice().limit(length);
+                check.reset();
+                check.update(payload.duplicate());
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                byte type = payload.get();
+                long timestamp = payload.getLong();
+                try {
+                    if (type == IMPORT) {
+                        int count = payload.getInt();
+                        List<String> names = new ArrayList<>(count);
+                        List<MedicineSchedule> schedules = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            names.add(readString(payload));
+                            schedules.add(readSchedule(payload));
+                        }
+                        registry.replayImport(timestamp, names, schedules);
+                    } else {
+                        String name = readString(payload);
+                        String newName = readString(payload);
+                        MedicineSchedule schedule = payload.get() != 0 ? readSchedule(payload) : null;
+                        registry.replay(type, timestamp, name, newName, schedule);
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.out.println(Medicine.RED + "Skipping journal record: " + e.getMessage() + Medicine.RESET);
+                }
+                validEnd = buffer.position();
+            }
+        }
+        if (validEnd < size) {
+            System.out.println(Medicine.YELLOW + "Truncating incomplete journal tail in " + file.getFileName() + Medicine.RESET);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+    }
+
+    private static List<Long> listSegments(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(fileName.substring(8, fileName.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static Path segmentPath(Path dir, long number) {
+        return dir.resolve(String.format("journal-%020d.log", number));
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // ---- Encoding helpers shared with MedicineSnapshot ----
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a schedule. A schedule with a non-default spacing stores its time count
+     * as {@code -count - 1} followed by the spacing, so schedules written before
+     * spacing existed read back unchanged. Likewise a schedule with a recurrence rule
+     * stores its day count as {@code -count - 1} and the rule's text after the days.
+     */
+    static void writeSchedule(DataOutput out, MedicineSchedule schedule) throws IOException {
+        out.writeInt(schedule.getNumberOfDoses());
+        int timeCount = schedule.getDoseTimes().size();
+        if (schedule.getSpacing() == SlotIndex.DEFAULT_SPACING) {
+            out.writeInt(timeCount);
+        } else {
+            out.writeInt(-timeCount - 1);
+            out.writeInt(schedule.getSpacing());
+        }
+        for (String time : schedule.getDoseTimes()) {
+            writeString(out, time);
+        }
+        RecurrenceRule rule = schedule.getRule();
+        out.writeInt(rule == null ? schedule.getDays().size() : -schedule.getDays().size() - 1);
+        for (String day : schedule.getDays()) {
+            writeString(out, day);
+        }
+        if (rule != null) {
+            writeString(out, rule.toString());
+        }
+    }
+
+    static MedicineSchedule readSchedule(ByteBuffer buffer) {
+        int numberOfDoses = buffer.getInt();
+        int timeCount = buffer.getInt();
+        int spacing = SlotIndex.DEFAULT_SPACING;
+        if (timeCount < 0) {
+            timeCount = -timeCount - 1;
+            spacing = buffer.getInt();
+        }
+        List<String> doseTimes = new ArrayList<>(timeCount);
+        for (int i = 0; i < timeCount; i++) {
+            doseTimes.add(readString(buffer));
+        }
+        int dayCount = buffer.getInt();
+        boolean hasRule = dayCount < 0;
+        if (hasRule) {
+            dayCount = -dayCount - 1;
+        }
+        List<String> days = new ArrayList<>(dayCount);
+        for (int i = 0; i < dayCount; i++) {
+            days.add(readString(buffer));
+        }
+        // The written text always has a start date, so "today" is never used
+        RecurrenceRule rule = hasRule ? RecurrenceRule.parse(readString(buffer), LocalDate.now()) : null;
+        return new MedicineSchedule(numberOfDoses, doseTimes, days, spacing, rule);
+    }
+}
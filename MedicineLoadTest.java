@@ -0,0 +1,147 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for {@link MedicineHttpServer}.
+ *
+ * Usage: {@code java MedicineLoadTest [clients] [seconds] [baseUrl]}
+ *
+ * Without a base URL an in-process server is started on a free port and its
+ * default patient is seeded with medicines (nothing is written to disk). Each client loops over a read-heavy
+ * mix of requests (single medicine, full list, history page) and records the
+ * latency of every request. At the end throughput and p50/p95/p99/max latency are
+ * printed, along with the number of non-2xx responses and transport errors.
+ */
+public class MedicineLoadTest {
+    private static final int SEEDED_MEDICINES = 200;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String baseUrl = args.length > 2 ? args[2] : null;
+
+        MedicineHttpServer server = null;
+        Ward ward = new Ward(null);
+        PatientStore patient = ward.getOrCreate(Ward.DEFAULT_PATIENT);
+        if (baseUrl == null) {
+            seed(patient);
+            server = MedicineHttpServer.start(0, ward);
+            baseUrl = "http://localhost:" + server.getPort();
+        }
+        System.out.println("Load test: " + clients + " clients for " + seconds + " s against " + baseUrl);
+
+        ExecutorService clientThreads = MedicineHttpServer.newRequestExecutor();
+        HttpClient http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(clientThreads)
+                .build();
+        List<String> names = patient.getRegistry().names();
+        AtomicLong failures = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        String target = baseUrl;
+
+        List<Thread> workers = new ArrayList<>(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread worker = new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    String path;
+                    int pick = random.nextInt(10);
+                    if (pick < 8 && !names.isEmpty()) {
+                        path = "/medicines/" + names.get(random.nextInt(names.size()));
+                    } else if (pick < 9) {
+                        path = "/medicines";
+                    } else {
+                        path = "/history?limit=50";
+                    }
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(target + path))
+                            .timeout(Duration.ofSeconds(10)).GET().build();
+                    long sent = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() >= 300) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    if (count == samples.length) {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = System.nanoTime() - sent;
+                }
+                latencies[client] = samples;
+                counts[client] = count;
+            }, "load-client-" + c);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, offset, counts[c]);
+            offset += counts[c];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("Requests:    %d (%d non-2xx, %d errors)%n", total, failures.get(), errors.get());
+        System.out.printf("Throughput:  %.0f req/s%n", total / (elapsed / 1e9));
+        System.out.printf("Latency ms:  p50=%.2f p95=%.2f p99=%.2f max=%.2f%n",
+                percentile(all, 50), percentile(all, 95), percentile(all, 99), total == 0 ? 0 : all[total - 1] / 1e6);
+
+        clientThreads.shutdownNow();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Fills the patient's in-memory registry with medicines spread over the week.
+     */
+    private static void seed(PatientStore patient) {
+        String[] days = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+        for (int i = 0; i < SEEDED_MEDICINES; i++) {
+            List<String> scheduleDays = new ArrayList<>(List.of(days[i % 7]));
+            List<String> times = new ArrayList<>(List.of(String.format("%02d:%02d", (i / 7) % 24, (i * 10) % 60)));
+            MedicineSchedule schedule = MedicineSchedule.createSchedule(scheduleDays, times, SlotIndex.DEFAULT_SPACING, patient.getSlots());
+            if (schedule != null) {
+                patient.getRegistry().add("medicine-" + i, schedule);
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
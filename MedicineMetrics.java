@@ -0,0 +1,571 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide runtime metrics for the reminder engine, conflict resolution and the
+ * patient stores.
+ *
+ * Counters on hot paths (every fired dose, every conflict probe) are {@link LongAdder}s
+ * and {@link LongAccumulator}s, which stripe contended updates across cells, so
+ * recording never blocks and never shows up in reminder latency. Store sizes are
+ * not counted at all; they are read from the {@link Ward} when someone asks.
+ *
+ * Reminder delivery is measured separately from firing: how many reminders were
+ * queued, delivered, retried, failed or dropped, and how long they waited between
+ * the engine handing them over and a sink accepting them.
+ *
+ * Replication is measured on both sides: changes shipped by a primary and how many
+ * its standby has yet to confirm, and on the standby the changes applied, how long
+ * after being made on the primary they were applied, and how long the last full
+ * state transfer took.
+ *
+ * The metrics are exposed as an MXBean ({@link #register}) and can be appended to a
+ * text file at a fixed interval ({@link #startDump}).
+ */
+public class MedicineMetrics implements MedicineMetricsMXBean {
+    public static final String OBJECT_NAME = "medicine:type=Metrics";
+    private static final MedicineMetrics INSTANCE = new MedicineMetrics();
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Counts samples in power-of-two millisecond buckets: {@code <1ms}, {@code <2ms},
+     * {@code <4ms} ... up to about a minute, plus one overflow bucket.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 18;
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis) {
+            long value = Math.max(0, millis);
+            int bucket = value == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+            counts[bucket].increment();
+            max.accumulate(value);
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile (never
+         * more than the maximum seen), or 0 if nothing was recorded.
+         */
+        long percentile(double percent) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percent / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? max() : Math.min(1L << i, max());
+                }
+            }
+            return max();
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS; i++) {
+                String label = i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) + "ms" : "<" + (1L << i) + "ms";
+                map.put(label, counts[i].sum());
+            }
+            return map;
+        }
+
+        void reset() {
+            for (LongAdder count : counts) {
+                count.reset();
+            }
+            max.reset();
+        }
+    }
+
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder passNanos = new LongAdder();
+    private final LongAccumulator maxPassNanos = new LongAccumulator(Long::max, 0);
+    private volatile long lastPassNanos;
+    private final Histogram passDurations = new Histogram();
+    private final LongAdder schedulesScanned = new LongAdder();
+    private volatile long lastPassSchedulesScanned;
+    private final LongAdder dosesFired = new LongAdder();
+    private final LongAdder lateDoses = new LongAdder();
+    private final Histogram lateness = new Histogram();
+    private final LongAdder conflictProbes = new LongAdder();
+    private final LongAdder dosesPlaced = new LongAdder();
+    private final LongAdder dosesAdjusted = new LongAdder();
+    private final LongAdder remindersEnqueued = new LongAdder();
+    private final LongAdder remindersDelivered = new LongAdder();
+    private final LongAdder remindersDropped = new LongAdder();
+    private final LongAdder remindersFailed = new LongAdder();
+    private final LongAdder deliveryRetries = new LongAdder();
+    private final Histogram deliveryLag = new Histogram();
+    private final LongAdder dosesDispensed = new LongAdder();
+    private final LongAdder stockAlerts = new LongAdder();
+    private final LongAdder dosesTaken = new LongAdder();
+    private final LongAdder dosesSkipped = new LongAdder();
+    private final LongAdder dosesMissed = new LongAdder();
+    private final LongAdder changesShipped = new LongAdder();
+    private final LongAdder changesApplied = new LongAdder();
+    private volatile long replicationBacklog;
+    private final Histogram replicationLag = new Histogram();
+    private final LongAdder stateTransfers = new LongAdder();
+    private volatile long lastCatchUpMillis;
+    private volatile long lastCatchUpEvents;
+
+    private volatile Ward ward;
+    private ScheduledExecutorService dumper;
+
+    private MedicineMetrics() {
+    }
+
+    public static MedicineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the ward whose patients are counted in the store metrics.
+     */
+    public void setWard(Ward ward) {
+        this.ward = ward;
+    }
+
+    // ---- Recording (hot paths) ----
+
+    /**
+     * Records one reminder pass over {@code scanned} schedulers.
+     */
+    void recordPass(long nanos, int scanned) {
+        passes.increment();
+        passNanos.add(nanos);
+        maxPassNanos.accumulate(nanos);
+        lastPassNanos = nanos;
+        passDurations.record(nanos / 1_000_000);
+        schedulesScanned.add(scanned);
+        lastPassSchedulesScanned = scanned;
+    }
+
+    /**
+     * Records a fired dose that was due at {@code scheduledMillis} and fired at
+     * {@code firedMillis} (both epoch millis).
+     */
+    void recordFired(long scheduledMillis, long firedMillis) {
+        dosesFired.increment();
+        lateness.record(firedMillis - scheduledMillis);
+        if (firedMillis - scheduledMillis >= ReminderPipeline.LATE_MILLIS) {
+            lateDoses.increment();
+        }
+    }
+
+    /**
+     * Records interval-tree searches made while looking for a free dose time.
+     */
+    void recordProbes(int probes) {
+        conflictProbes.add(probes);
+    }
+
+    /**
+     * Records a placed dose and whether it had to be moved because of a conflict.
+     */
+    void recordPlacement(boolean adjusted) {
+        dosesPlaced.increment();
+        if (adjusted) {
+            dosesAdjusted.increment();
+        }
+    }
+
+    /**
+     * Records a reminder handed to the delivery pipeline.
+     */
+    void recordEnqueued() {
+        remindersEnqueued.increment();
+    }
+
+    /**
+     * Records a reminder accepted by a sink {@code lagMillis} after it was queued.
+     */
+    void recordDelivered(long lagMillis) {
+        remindersDelivered.increment();
+        deliveryLag.record(lagMillis);
+    }
+
+    /**
+     * Records reminders dropped because a sink's queue was full or the pipeline stopped.
+     */
+    void recordDropped(int count) {
+        remindersDropped.add(count);
+    }
+
+    /**
+     * Records reminders a sink could not take even after retrying.
+     */
+    void recordFailed(int count) {
+        remindersFailed.add(count);
+    }
+
+    /**
+     * Records one retried delivery attempt.
+     */
+    void recordRetry() {
+        deliveryRetries.increment();
+    }
+
+    /**
+     * Records one dose taken off a tracked medicine's stock.
+     */
+    void recordDispensed() {
+        dosesDispensed.increment();
+    }
+
+    /**
+     * Records a low-stock or out-of-stock alert.
+     */
+    void recordStockAlert() {
+        stockAlerts.increment();
+    }
+
+    /**
+     * Records the outcome of one dose: confirmed taken or skipped, or missed.
+     */
+    void recordDoseOutcome(DoseLog.Outcome outcome) {
+        switch (outcome) {
+            case TAKEN:
+                dosesTaken.increment();
+                break;
+            case SKIPPED:
+                dosesSkipped.increment();
+                break;
+            default:
+                dosesMissed.increment();
+        }
+    }
+
+    /**
+     * Records changes sent to a standby, and how many sent or unsent changes it has not
+     * confirmed yet.
+     */
+    void recordShipped(int count, long backlog) {
+        changesShipped.add(count);
+        replicationBacklog = backlog;
+    }
+
+    /**
+     * Records how many changes a standby has not confirmed yet.
+     */
+    void recordBacklog(long backlog) {
+        replicationBacklog = backlog;
+    }
+
+    /**
+     * Records a change applied on a standby {@code lagMillis} after it was made on the primary.
+     */
+    void recordApplied(long lagMillis) {
+        changesApplied.increment();
+        replicationLag.record(lagMillis);
+    }
+
+    /**
+     * Records a full state transfer to a standby covering {@code events} medicines and
+     * history events.
+     */
+    void recordStateTransfer(long millis, long events) {
+        stateTransfers.increment();
+        lastCatchUpMillis = millis;
+        lastCatchUpEvents = events;
+    }
+
+    // ---- MXBean ----
+
+    @Override public long getPasses() { return passes.sum(); }
+    @Override public double getLastPassMillis() { return lastPassNanos / 1e6; }
+    @Override public double getMaxPassMillis() { return maxPassNanos.get() / 1e6; }
+    @Override public Map<String, Long> getPassDurationHistogram() { return passDurations.toMap(); }
+    @Override public long getSchedulesScanned() { return schedulesScanned.sum(); }
+    @Override public long getLastPassSchedulesScanned() { return lastPassSchedulesScanned; }
+    @Override public long getDosesFired() { return dosesFired.sum(); }
+    @Override public long getLateDoses() { return lateDoses.sum(); }
+    @Override public Map<String, Long> getLatenessHistogram() { return lateness.toMap(); }
+    @Override public long getLatenessP50Millis() { return lateness.percentile(50); }
+    @Override public long getLatenessP99Millis() { return lateness.percentile(99); }
+    @Override public long getMaxLatenessMillis() { return lateness.max(); }
+    @Override public long getConflictProbes() { return conflictProbes.sum(); }
+    @Override public long getDosesPlaced() { return dosesPlaced.sum(); }
+    @Override public long getDosesAdjusted() { return dosesAdjusted.sum(); }
+    @Override public long getRemindersEnqueued() { return remindersEnqueued.sum(); }
+    @Override public long getRemindersDelivered() { return remindersDelivered.sum(); }
+    @Override public long getRemindersDropped() { return remindersDropped.sum(); }
+    @Override public long getRemindersFailed() { return remindersFailed.sum(); }
+    @Override public long getDeliveryRetries() { return deliveryRetries.sum(); }
+    @Override public Map<String, Long> getDeliveryLagHistogram() { return deliveryLag.toMap(); }
+    @Override public long getDeliveryLagP50Millis() { return deliveryLag.percentile(50); }
+    @Override public long getDeliveryLagP99Millis() { return deliveryLag.percentile(99); }
+    @Override public long getMaxDeliveryLagMillis() { return deliveryLag.max(); }
+    @Override public long getDosesDispensed() { return dosesDispensed.sum(); }
+    @Override public long getStockAlerts() { return stockAlerts.sum(); }
+    @Override public long getDosesTaken() { return dosesTaken.sum(); }
+    @Override public long getDosesSkipped() { return dosesSkipped.sum(); }
+    @Override public long getDosesMissed() { return dosesMissed.sum(); }
+    @Override public long getChangesShipped() { return changesShipped.sum(); }
+    @Override public long getChangesApplied() { return changesApplied.sum(); }
+    @Override public long getReplicationBacklog() { return replicationBacklog; }
+    @Override public Map<String, Long> getReplicationLagHistogram() { return replicationLag.toMap(); }
+    @Override public long getReplicationLagP50Millis() { return replicationLag.percentile(50); }
+    @Override public long getReplicationLagP99Millis() { return replicationLag.percentile(99); }
+    @Override public long getMaxReplicationLagMillis() { return replicationLag.max(); }
+    @Override public long getStateTransfers() { return stateTransfers.sum(); }
+    @Override public long getLastCatchUpMillis() { return lastCatchUpMillis; }
+    @Override public long getLastCatchUpEvents() { return lastCatchUpEvents; }
+
+    @Override
+    public double getMeanPassMillis() {
+        long count = passes.sum();
+        return count == 0 ? 0 : passNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public int getRemindersQueued() {
+        Ward current = ward;
+        ReminderPipeline pipeline = current == null ? null : current.getReminderPipeline();
+        return pipeline == null ? 0 : pipeline.queued();
+    }
+
+    @Override
+    public int getPatients() {
+        Ward current = ward;
+        return current == null ? 0 : current.size();
+    }
+
+    @Override
+    public long getMedicines() {
+        long total = 0;
+        for (PatientStore patient : patients()) {
+            total += patient.getRegistry().size();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDosesPending() {
+        long total = 0;
+        for (PatientStore patient : patients()) {
+            total += patient.getDoses().pendingCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getStockTracked() {
+        long total = 0;
+        for (PatientStore patient : patients()) {
+            total += patient.getStock().size();
+        }
+        return total;
+    }
+
+    @Override
+    public long getHistoryEvents() {
+        long total = 0;
+        for (PatientStore patient : patients()) {
+            total += patient.getRegistry().history().size();
+        }
+        return total;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        long total = 0;
+        for (PatientStore patient : patients()) {
+            total += patient.getRegistry().history().estimatedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public void reset() {
+        passes.reset();
+        passNanos.reset();
+        maxPassNanos.reset();
+        lastPassNanos = 0;
+        passDurations.reset();
+        schedulesScanned.reset();
+        lastPassSchedulesScanned = 0;
+        dosesFired.reset();
+        lateDoses.reset();
+        lateness.reset();
+        conflictProbes.reset();
+        dosesPlaced.reset();
+        dosesAdjusted.reset();
+        remindersEnqueued.reset();
+        remindersDelivered.reset();
+        remindersDropped.reset();
+        remindersFailed.reset();
+        deliveryRetries.reset();
+        deliveryLag.reset();
+        dosesDispensed.reset();
+        stockAlerts.reset();
+        dosesTaken.reset();
+        dosesSkipped.reset();
+        dosesMissed.reset();
+        changesShipped.reset();
+        changesApplied.reset();
+        replicationLag.reset();
+        stateTransfers.reset();
+    }
+
+    private List<PatientStore> patients() {
+        Ward current = ward;
+        List<PatientStore> stores = new ArrayList<>();
+        if (current != null) {
+            for (String id : current.patientIds()) {
+                stores.add(current.get(id));
+            }
+        }
+        return stores;
+    }
+
+    // ---- Publishing ----
+
+    /**
+     * Registers the metrics with the platform MBean server. Registering twice has no
+     * effect.
+     *
+     * @throws JMException if the MBean server rejects the bean
+     */
+    public synchronized void register() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Appends {@link #dump()} to the given file every {@code seconds} seconds on a
+     * daemon thread. Write failures are reported once on the console.
+     */
+    public synchronized void startDump(Path file, long seconds) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        boolean[] reported = {false};
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                Files.write(file, dump().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                if (!reported[0]) {
+                    reported[0] = true;
+                    System.out.println(Medicine.RED + "Could not write metrics to " + file + ": " + e.getMessage() + Medicine.RESET);
+                }
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic dump.
+     */
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Returns all metrics as one block of "name value" lines.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ").append(LocalDateTime.now().format(TIMESTAMP)).append('\n');
+        line(sb, "passes", getPasses());
+        sb.append(String.format(Locale.ROOT, "pass.millis last=%.3f mean=%.3f max=%.3f%n",
+                getLastPassMillis(), getMeanPassMillis(), getMaxPassMillis()));
+        line(sb, "pass.histogram", nonEmpty(getPassDurationHistogram()));
+        line(sb, "schedules.scanned", getSchedulesScanned());
+        line(sb, "schedules.scanned.lastPass", getLastPassSchedulesScanned());
+        line(sb, "doses.fired", getDosesFired());
+        line(sb, "doses.late", getLateDoses());
+        sb.append("lateness.millis p50=").append(getLatenessP50Millis()).append(" p99=").append(getLatenessP99Millis())
+                .append(" max=").append(getMaxLatenessMillis()).append('\n');
+        line(sb, "lateness.histogram", nonEmpty(getLatenessHistogram()));
+        line(sb, "conflict.probes", getConflictProbes());
+        line(sb, "doses.placed", getDosesPlaced());
+        line(sb, "doses.adjusted", getDosesAdjusted());
+        line(sb, "reminders.enqueued", getRemindersEnqueued());
+        line(sb, "reminders.delivered", getRemindersDelivered());
+        line(sb, "reminders.queued", getRemindersQueued());
+        line(sb, "reminders.dropped", getRemindersDropped());
+        line(sb, "reminders.failed", getRemindersFailed());
+        line(sb, "reminders.retries", getDeliveryRetries());
+        sb.append("delivery.lag.millis p50=").append(getDeliveryLagP50Millis()).append(" p99=").append(getDeliveryLagP99Millis())
+                .append(" max=").append(getMaxDeliveryLagMillis()).append('\n');
+        line(sb, "delivery.lag.histogram", nonEmpty(getDeliveryLagHistogram()));
+        line(sb, "stock.tracked", getStockTracked());
+        line(sb, "stock.dispensed", getDosesDispensed());
+        line(sb, "stock.alerts", getStockAlerts());
+        line(sb, "doses.taken", getDosesTaken());
+        line(sb, "doses.skipped", getDosesSkipped());
+        line(sb, "doses.missed", getDosesMissed());
+        line(sb, "doses.pending", getDosesPending());
+        line(sb, "replication.shipped", getChangesShipped());
+        line(sb, "replication.applied", getChangesApplied());
+        line(sb, "replication.backlog", getReplicationBacklog());
+        sb.append("replication.lag.millis p50=").append(getReplicationLagP50Millis()).append(" p99=")
+                .append(getReplicationLagP99Millis()).append(" max=").append(getMaxReplicationLagMillis()).append('\n');
+        line(sb, "replication.lag.histogram", nonEmpty(getReplicationLagHistogram()));
+        sb.append("replication.catchup transfers=").append(getStateTransfers()).append(" millis=")
+                .append(getLastCatchUpMillis()).append(" events=").append(getLastCatchUpEvents()).append('\n');
+        line(sb, "patients", getPatients());
+        line(sb, "medicines", getMedicines());
+        line(sb, "history.events", getHistoryEvents());
+        line(sb, "history.bytes", getHistoryBytes());
+        line(sb, "heap.used.bytes", getHeapUsedBytes());
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static Map<String, Long> nonEmpty(Map<String, Long> histogram) {
+        histogram.values().removeIf(count -> count == 0);
+        return histogram;
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.Map;
+
+/**
+ * Management interface of {@link MedicineMetrics}, registered under
+ * {@code medicine:type=Metrics}. Durations are in milliseconds; histograms map a
+ * bucket's upper bound (e.g. {@code "<4ms"}) to the number of samples in it.
+ */
+public interface MedicineMetricsMXBean {
+    // Reminder engine
+    long getPasses();
+    double getLastPassMillis();
+    double getMeanPassMillis();
+    double getMaxPassMillis();
+    Map<String, Long> getPassDurationHistogram();
+    long getSchedulesScanned();
+    long getLastPassSchedulesScanned();
+    long getDosesFired();
+    /** Doses fired a minute or more after they were due, e.g. caught up after a restart. */
+    long getLateDoses();
+    Map<String, Long> getLatenessHistogram();
+    long getLatenessP50Millis();
+    long getLatenessP99Millis();
+    long getMaxLatenessMillis();
+
+    // Conflict resolution
+    long getConflictProbes();
+    long getDosesPlaced();
+    long getDosesAdjusted();
+
+    // Reminder delivery
+    long getRemindersEnqueued();
+    long getRemindersDelivered();
+    int getRemindersQueued();
+    long getRemindersDropped();
+    long getRemindersFailed();
+    long getDeliveryRetries();
+    Map<String, Long> getDeliveryLagHistogram();
+    long getDeliveryLagP50Millis();
+    long getDeliveryLagP99Millis();
+    long getMaxDeliveryLagMillis();
+
+    // Stock
+    long getStockTracked();
+    long getDosesDispensed();
+    long getStockAlerts();
+
+    // Adherence
+    long getDosesTaken();
+    long getDosesSkipped();
+    long getDosesMissed();
+    long getDosesPending();
+
+    // Replication
+    long getChangesShipped();
+    long getChangesApplied();
+    long getReplicationBacklog();
+    Map<String, Long> getReplicationLagHistogram();
+    long getReplicationLagP50Millis();
+    long getReplicationLagP99Millis();
+    long getMaxReplicationLagMillis();
+    long getStateTransfers();
+    long getLastCatchUpMillis();
+    long getLastCatchUpEvents();
+
+    // Store
+    int getPatients();
+    long getMedicines();
+    long getHistoryEvents();
+    long getHistoryBytes();
+    long getHeapUsedBytes();
+
+    /** Clears every counter and histogram (sizes are not affected). */
+    void reset();
+}
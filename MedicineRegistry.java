@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe registry that owns the current medicines, their schedules and the
+ * history of every change.
+ *
+ * Lookups go through a {@link ConcurrentHashMap} and are O(1) without locking.
+ * Insertion order is kept in a {@link ConcurrentSkipListMap} keyed by a sequence
+ * number, so listings come out in the order medicines were added. A rename keeps
+ * the old entry's place: the new entry is added to the name map but stays hidden
+ * until one volatile write retires the old entry and reveals it, so lock-free
+ * readers of either map see one of the two, never both or neither. Writers take a
+ * single lock so that rename and replace are atomic across names, schedules and
+ * history; readers never take it and iterate weakly consistent snapshots, so the
+ * reminder thread and the console never block each other.
+ *
+ * If a {@link MedicineJournal} is attached, every mutation is appended to it while
+ * the lock is held (so the journal order matches the in-memory order) and the
+ * caller then waits for the group commit outside the lock. While the journal cannot
+ * be written, changes are refused with an {@link IllegalStateException} before
+ * anything is applied; a change whose write fails after it was applied throws an
+ * {@link UncheckedIOException} and stays queued in the journal, which retries it.
+ *
+ * Every change is also published on a {@link ChangeBus} while the lock is held, so
+ * the bus sees changes in history order. The bus is only created once something asks
+ * for it, and a registry nobody listens to pays nothing for it.
+ */
+public class MedicineRegistry {
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Entry> byOrder = new ConcurrentSkipListMap<>();
+    private volatile HistoryStore history = new HistoryStore();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object writeLock = new Object();
+    private volatile MedicineJournal journal;
+    // Created on first use; null while nobody has subscribed
+    private volatile ChangeBus changes;
+
+    /**
+     * A registered medicine together with its current schedule.
+     */
+    public static final class Entry {
+        private final String name;
+        private final long order;
+        private volatile MedicineSchedule schedule;
+        // Entry this one was renamed from while the rename is being published; this
+        // one is live once that points here. Cleared afterwards so old entries can go
+        private volatile Entry renamedFrom;
+        // Entry this one was renamed to; set in the single step that publishes a rename
+        private volatile Entry renamedTo;
+
+        private Entry(String name, long order, MedicineSchedule schedule, Entry renamedFrom) {
+            this.name = name;
+            this.order = order;
+            this.schedule = schedule;
+            this.renamedFrom = renamedFrom;
+        }
+
+        private boolean isLive() {
+            Entry from = renamedFrom;
+            return renamedTo == null && (from == null || from.renamedTo == this);
+        }
+
+        private Entry current() {
+            Entry entry = this;
+            Entry next;
+            while ((next = entry.renamedTo) != null) {
+                entry = next;
+            }
+            return entry;
+        }
+
+        public String getName() { return name; }
+        public MedicineSchedule getSchedule() { return schedule; }
+    }
+
+    /**
+     * Attaches a journal that will receive every subsequent mutation.
+     */
+    public void setJournal(MedicineJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the bus announcing every change from now on, creating it on first use.
+     */
+    public ChangeBus changes() {
+        ChangeBus bus = changes;
+        if (bus == null) {
+            synchronized (writeLock) {
+                bus = changes;
+                if (bus == null) {
+                    bus = new ChangeBus(ChangeBus.DEFAULT_CAPACITY);
+                    changes = bus;
+                }
+            }
+        }
+        return bus;
+    }
+
+    /**
+     * Returns true if a medicine with this name is registered.
+     */
+    public boolean contains(String name) {
+        Entry entry = byName.get(name);
+        return entry != null && entry.isLive();
+    }
+
+    /**
+     * Returns the schedule of a medicine, or null if it is not registered.
+     */
+    public MedicineSchedule getSchedule(String name) {
+        Entry entry = byName.get(name);
+        return entry == null || !entry.isLive() ? null : entry.schedule;
+    }
+
+    /**
+     * Registers a new medicine with its schedule and records the addition in history.
+     *
+     * @return false if a medicine with this name already exists
+     */
+    public boolean add(String name, MedicineSchedule schedule) {
+        long ticket;
+        synchronized (writeLock) {
+            checkJournal();
+            long now = System.currentTimeMillis();
+            if (!applyAdd(name, schedule, now)) {
+                return false;
+            }
+            ticket = log(MedicineJournal.ADD, now, name, null, schedule);
+        }
+        sync(ticket);
+        return true;
+    }
+
+    /**
+     * Removes a medicine and its schedule and records the deletion in history.
+     *
+     * @return the removed schedule, or null if the medicine was not registered
+     */
+    public MedicineSchedule remove(String name) {
+        MedicineSchedule removed;
+        long ticket;
+        synchronized (writeLock) {
+            checkJournal();
+            long now = System.currentTimeMillis();
+            removed = applyRemove(name, now);
+            if (removed == null) {
+                return null;
+            }
+            ticket = log(MedicineJournal.REMOVE, now, name, null, null);
+        }
+        sync(ticket);
+        return removed;
+    }
+
+    /**
+     * Atomically replaces medicine {@code oldName} with {@code newName} and the given
+     * schedule. Readers see either the old medicine or the new one, never both or neither.
+     *
+     * @return the schedule that belonged to the old medicine
+     * @throws IllegalArgumentException if the old name is missing or the new name is taken
+     */
+    public MedicineSchedule rename(String oldName, String newName, MedicineSchedule schedule) {
+        MedicineSchedule previous;
+        long ticket;
+        synchronized (writeLock) {
+            checkJournal();
+            long now = System.currentTimeMillis();
+            previous = applyRename(oldName, newName, schedule, now);
+            ticket = log(MedicineJournal.RENAME, now, oldName, newName, schedule);
+        }
+        sync(ticket);
+        return previous;
+    }
+
+    /**
+     * Atomically replaces the schedule of an existing medicine and records the update.
+     *
+     * @return the previous schedule
+     * @throws IllegalArgumentException if the medicine is not registered
+     */
+    public MedicineSchedule replaceSchedule(String name, MedicineSchedule schedule) {
+        MedicineSchedule previous;
+        long ticket;
+        synchronized (writeLock) {
+            checkJournal();
+            long now = System.currentTimeMillis();
+            previous = applyReplace(name, schedule, now);
+            ticket = log(MedicineJournal.REPLACE, now, name, null, schedule);
+        }
+        sync(ticket);
+        return previous;
+    }
+
+    /**
+     * Registers a batch of new medicines atomically: either all of them are added
+     * (one "added" history event each) or, if any name is already registered or
+     * repeated in the batch, none are.
+     *
+     * @throws IllegalArgumentException naming the first conflicting medicine
+     */
+    public void addAll(List<String> names, List<MedicineSchedule> schedules) {
+        if (names.size() != schedules.size()) {
+            throw new IllegalArgumentException("Every medicine needs exactly one schedule.");
+        }
+        long ticket;
+        synchronized (writeLock) {
+            checkJournal();
+            long now = System.currentTimeMillis();
+            checkAllNew(names);
+            for (int i = 0; i < names.size(); i++) {
+                applyAdd(names.get(i), schedules.get(i), now);
+            }
+            MedicineJournal current = journal;
+            ticket = current == null ? -1 : current.appendImport(now, names, schedules);
+        }
+        sync(ticket);
+    }
+
+    /**
+     * Returns the registered medicines in insertion order. The returned list is a
+     * snapshot and is not affected by later changes.
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>(byOrder.size());
+        for (Entry entry : byOrder.values()) {
+            names.add(entry.current().name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns a weakly consistent, insertion-ordered view of all entries. Iterating it
+     * never blocks writers and never throws ConcurrentModificationException.
+     */
+    public Collection<Entry> entries() {
+        Collection<Entry> values = byOrder.values();
+        return new AbstractCollection<Entry>() {
+            @Override
+            public Iterator<Entry> iterator() {
+                Iterator<Entry> it = values.iterator();
+                return new Iterator<Entry>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry next() {
+                        return it.next().current(); // an entry renamed mid-iteration shows its new name
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the store holding all history events in the order they were recorded.
+     * Only the registry appends to it; callers may query it concurrently.
+     */
+    public HistoryStore history() {
+        return history;
+    }
+
+    public int size() {
+        return byOrder.size(); // the name map briefly holds both names during a rename
+    }
+
+    public boolean isEmpty() {
+        return byOrder.isEmpty();
+    }
+
+    /**
+     * Captures a consistent copy of all medicines and history for a snapshot. The
+     * given action runs under the write lock before the copy is taken, which lets the
+     * journal switch segments at exactly the point the snapshot covers.
+     */
+    MedicineSnapshot snapshot(Runnable atomically) {
+        synchronized (writeLock) {
+            atomically.run();
+            List<String> names = new ArrayList<>(byOrder.size());
+            List<MedicineSchedule> schedules = new ArrayList<>(byOrder.size());
+            for (Entry entry : byOrder.values()) {
+                names.add(entry.name);
+                schedules.add(entry.schedule);
+            }
+            // History is append-only, so its current size is enough to pin the snapshot
+            return new MedicineSnapshot(names, schedules, history, history.size());
+        }
+    }
+
+    /**
+     * Re-applies a journal record during recovery. Nothing is written back to the journal.
+     */
+    void replay(byte type, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        synchronized (writeLock) {
+            switch (type) {
+                case MedicineJournal.ADD:
+                    applyAdd(name, schedule, timestamp);
+                    break;
+                case MedicineJournal.REMOVE:
+                    applyRemove(name, timestamp);
+                    break;
+                case MedicineJournal.RENAME:
+                    applyRename(name, newName, schedule, timestamp);
+                    break;
+                case MedicineJournal.REPLACE:
+                    applyReplace(name, schedule, timestamp);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown journal record type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Re-applies an import batch during recovery.
+     */
+    void replayImport(long timestamp, List<String> names, List<MedicineSchedule> schedules) {
+        synchronized (writeLock) {
+            checkAllNew(names);
+            for (int i = 0; i < names.size(); i++) {
+                applyAdd(names.get(i), schedules.get(i), timestamp);
+            }
+        }
+    }
+
+    /**
+     * Installs the history loaded from a snapshot. Must be called before any mutation.
+     */
+    void restoreHistory(HistoryStore restored) {
+        synchronized (writeLock) {
+            history = restored;
+        }
+    }
+
+    /**
+     * Drops every medicine and all history without recording anything, so a standby
+     * can load a fresh copy of the primary's state. Not for use with a journal.
+     */
+    void clear() {
+        synchronized (writeLock) {
+            byName.clear();
+            byOrder.clear();
+            history = new HistoryStore();
+        }
+    }
+
+    /**
+     * Restores one medicine from a snapshot without recording history.
+     */
+    void restore(String name, MedicineSchedule schedule) {
+        synchronized (writeLock) {
+            insert(name, schedule);
+        }
+    }
+
+    private void checkAllNew(List<String> names) {
+        Set<String> seen = new HashSet<>();
+        for (String name : names) {
+            if (contains(name) || !seen.add(name)) {
+                throw new IllegalArgumentException("Medicine " + name + " already exists.");
+            }
+        }
+    }
+
+    private boolean applyAdd(String name, MedicineSchedule schedule, long timestamp) {
+        if (contains(name)) {
+            return false;
+        }
+        insert(name, schedule);
+        history.append(timestamp, HistoryStore.Action.ADDED, name, null);
+        publish(ChangeBus.Kind.ADDED, timestamp, name, null, schedule);
+        return true;
+    }
+
+    private MedicineSchedule applyRemove(String name, long timestamp) {
+        Entry entry = byName.remove(name);
+        if (entry == null) {
+            return null;
+        }
+        byOrder.remove(entry.order);
+        history.append(timestamp, HistoryStore.Action.DELETED, name, null);
+        publish(ChangeBus.Kind.REMOVED, timestamp, name, null, null);
+        return entry.schedule;
+    }
+
+    private MedicineSchedule applyRename(String oldName, String newName, MedicineSchedule schedule, long timestamp) {
+        Entry old = byName.get(oldName);
+        if (old == null) {
+            throw new IllegalArgumentException("Medicine " + oldName + " not found.");
+        }
+        if (contains(newName)) {
+            throw new IllegalArgumentException("Medicine " + newName + " already exists.");
+        }
+        // Hidden until the old entry points at it; that one write is the rename
+        Entry renamed = new Entry(newName, old.order, schedule, old);
+        byName.put(newName, renamed);
+        old.renamedTo = renamed;
+        byOrder.put(old.order, renamed);
+        byName.remove(oldName, old);
+        renamed.renamedFrom = null;
+        // One event; it is posted under both names, so queries for either find it
+        history.append(timestamp, HistoryStore.Action.RENAMED, oldName, newName);
+        publish(ChangeBus.Kind.RENAMED, timestamp, oldName, newName, schedule);
+        return old.schedule;
+    }
+
+    private MedicineSchedule applyReplace(String name, MedicineSchedule schedule, long timestamp) {
+        Entry entry = byName.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Medicine " + name + " not found.");
+        }
+        MedicineSchedule previous = entry.schedule;
+        entry.schedule = schedule;
+        history.append(timestamp, HistoryStore.Action.UPDATED, name, null);
+        publish(ChangeBus.Kind.SCHEDULE_REPLACED, timestamp, name, null, schedule);
+        return previous;
+    }
+
+    private void insert(String name, MedicineSchedule schedule) {
+        Entry entry = new Entry(name, sequence.incrementAndGet(), schedule, null);
+        byName.put(name, entry);
+        byOrder.put(entry.order, entry);
+    }
+
+    private void publish(ChangeBus.Kind kind, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        ChangeBus bus = changes;
+        if (bus != null) {
+            bus.publish(kind, timestamp, name, newName, schedule);
+        }
+    }
+
+    private long log(byte type, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        MedicineJournal current = journal;
+        return current == null ? -1 : current.append(type, timestamp, name, newName, schedule);
+    }
+
+    private void checkJournal() {
+        MedicineJournal current = journal;
+        if (current != null) {
+            current.checkWritable();
+        }
+    }
+
+    private void sync(long ticket) {
+        MedicineJournal current = journal;
+        if (current != null && ticket >= 0 && !current.awaitDurable(ticket)) {
+            IOException cause = current.getFailure();
+            if (cause == null) {
+                cause = new IOException("journal closed");
+            }
+            throw new UncheckedIOException("The change was made but not saved yet: " + cause.getMessage(), cause);
+        }
+    }
+}
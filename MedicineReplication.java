@@ -0,0 +1,604 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Warm standby for a {@link Ward}, fed by log shipping over a local socket.
+ *
+ * The {@link Primary} listens on a loopback port. When a standby connects it
+ * subscribes to the {@link ChangeBus} of every patient (and of patients created
+ * later), sends each patient's full state (medicines, schedules and history, in the
+ * snapshot layout) and from then on ships every change as it is published. The
+ * state is captured under the registry's write lock together with the bus position,
+ * so no change is missed or sent twice. A heartbeat goes out every
+ * {@value #HEARTBEAT_MILLIS} ms, and if a patient's subscription ever falls a whole
+ * ring behind, that patient's state is sent again instead of the lost changes.
+ *
+ * The {@link Standby} applies states and changes to its own in-memory ward, slot
+ * indexes and reminder queues as they arrive, with the primary's timestamps, but does
+ * not fire reminders. Once it has caught up, a heartbeat gap longer than the
+ * takeover timeout (a dead primary) makes it take over: it re-queues every medicine
+ * from the time of the primary's last heartbeat, so doses that came due in the gap
+ * fire late rather than not at all, and releases {@link Standby#awaitTakeover}.
+ * A primary that comes back before then simply sends its state again.
+ *
+ * Frames are {@code [length][type][payload]}. The standby acknowledges the sequence
+ * it has applied, which gives the primary its backlog; the standby measures how long
+ * after being made on the primary each change was applied, and how long catching up
+ * after connecting took. Both are reported in {@link MedicineMetrics}.
+ *
+ * Stock levels and dose confirmations are not shipped; only medicines, schedules and
+ * history are.
+ */
+public class MedicineReplication {
+    public static final long HEARTBEAT_MILLIS = 500;
+    public static final long DEFAULT_TAKEOVER_MILLIS = 3_000;
+    // Frame types
+    private static final byte STATE = 1;
+    private static final byte CHANGE = 2;
+    private static final byte HEARTBEAT = 3;
+    private static final byte ACK = 4;
+    // Largest frame accepted; a patient's state must fit in one
+    private static final int MAX_FRAME = 1 << 30;
+    // Changes taken from one subscription before moving on to the next patient
+    private static final int CHANGE_BATCH = 256;
+    private static final int SOCKET_BUFFER = 64 * 1024;
+    // The shipper re-checks the subscriptions at least this often while idle
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RECONNECT_MILLIS = 250;
+    private static final long MONITOR_MILLIS = 100;
+
+    /**
+     * Builds one frame at a time in a reusable buffer.
+     */
+    private static final class FrameWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        void begin(byte type) throws IOException {
+            bytes.reset();
+            out.writeByte(type);
+        }
+
+        void end(DataOutputStream to) throws IOException {
+            to.writeInt(bytes.size());
+            bytes.writeTo(to);
+        }
+    }
+
+    /**
+     * Reads one frame into a reusable buffer and returns it positioned after the type.
+     */
+    private static ByteBuffer readFrame(DataInputStream in, byte[][] buffer) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid replication frame length " + length);
+        }
+        if (buffer[0].length < length) {
+            buffer[0] = new byte[Math.max(length, buffer[0].length * 2)];
+        }
+        in.readFully(buffer[0], 0, length);
+        return ByteBuffer.wrap(buffer[0], 0, length);
+    }
+
+    // ---- Primary ----
+
+    /**
+     * Ships every change of a ward to one standby at a time.
+     */
+    public static final class Primary implements Closeable {
+        private final Ward ward;
+        private final ServerSocket server;
+        private final Thread thread;
+        private volatile Socket socket;
+        private volatile boolean closed;
+
+        private Primary(Ward ward, ServerSocket server) {
+            this.ward = ward;
+            this.server = server;
+            this.thread = new Thread(this::serve, "replication-primary");
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Starts listening for a standby on the given loopback port (0 for any free port).
+         */
+        public static Primary start(Ward ward, int port) throws IOException {
+            ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+            Primary primary = new Primary(ward, server);
+            primary.thread.start();
+            return primary;
+        }
+
+        public int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void serve() {
+            while (!closed) {
+                Socket accepted;
+                try {
+                    accepted = server.accept();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.out.println(Medicine.RED + "Replication stopped: " + e.getMessage() + Medicine.RESET);
+                    }
+                    return;
+                }
+                socket = accepted;
+                try {
+                    new Session(accepted).run();
+                } catch (IOException | UncheckedIOException e) {
+                    if (!closed) {
+                        System.out.println(Medicine.YELLOW + "Standby disconnected: " + e.getMessage() + Medicine.RESET);
+                    }
+                } finally {
+                    closeQuietly(accepted);
+                    socket = null;
+                }
+            }
+        }
+
+        /**
+         * Disconnects the standby and stops listening. The standby takes over once its
+         * timeout has passed.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            closeQuietly(server);
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+            try {
+                thread.join(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * One connected standby: its subscriptions, the shipping loop and the reader of
+         * its acknowledgements.
+         */
+        private final class Session {
+            private final Socket socket;
+            private final DataOutputStream out;
+            private final FrameWriter frames = new FrameWriter();
+            private final Map<String, Link> links = new HashMap<>();
+            private final List<Link> linkList = new ArrayList<>();
+            // Sequence of the last frame sent; states and changes each take one
+            private long shipped;
+            private volatile long acked;
+            private volatile boolean standbyGone;
+
+            Session(Socket socket) throws IOException {
+                this.socket = socket;
+                socket.setTcpNoDelay(true);
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER));
+            }
+
+            void run() throws IOException {
+                System.out.println(Medicine.GREEN + "Standby connected from " + socket.getRemoteSocketAddress() + Medicine.RESET);
+                Thread reader = new Thread(this::readAcks, "replication-acks");
+                reader.setDaemon(true);
+                reader.start();
+                MedicineMetrics metrics = MedicineMetrics.get();
+                long nextHeartbeat = 0;
+                try {
+                    while (!closed) {
+                        if (ward.size() > linkList.size()) {
+                            followNewPatients();
+                        }
+                        int sent = 0;
+                        long backlog = 0;
+                        for (Link link : linkList) {
+                            sent += link.ship();
+                            backlog += link.subscription.lag();
+                        }
+                        long now = System.currentTimeMillis();
+                        boolean heartbeat = now >= nextHeartbeat;
+                        if (heartbeat) {
+                            frames.begin(HEARTBEAT);
+                            frames.out.writeLong(shipped);
+                            frames.out.writeLong(now);
+                            frames.end(out);
+                            nextHeartbeat = now + HEARTBEAT_MILLIS;
+                        }
+                        if (sent > 0 || heartbeat) {
+                            out.flush();
+                        }
+                        metrics.recordShipped(sent, backlog + shipped - acked);
+                        if (standbyGone) {
+                            throw new EOFException("the standby closed the connection");
+                        }
+                        if (sent == 0) {
+                            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        }
+                    }
+                } finally {
+                    for (Link link : linkList) {
+                        link.subscription.close(0);
+                    }
+                }
+            }
+
+            private void followNewPatients() throws IOException {
+                for (String id : ward.patientIds()) {
+                    if (!links.containsKey(id)) {
+                        Link link = new Link(ward.get(id));
+                        links.put(id, link);
+                        linkList.add(link);
+                    }
+                }
+            }
+
+            private void readAcks() {
+                byte[][] buffer = {new byte[64]};
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                    while (true) {
+                        ByteBuffer frame = readFrame(in, buffer);
+                        if (frame.get() == ACK) {
+                            acked = frame.getLong();
+                        }
+                    }
+                } catch (IOException e) {
+                    standbyGone = true;
+                }
+            }
+
+            /**
+             * One patient followed by the standby.
+             */
+            private final class Link implements ChangeBus.Listener {
+                final PatientStore patient;
+                final ChangeBus.Subscription subscription;
+                // Bus position already contained in the last state sent
+                private long covered;
+                private long lostSeen;
+                private boolean resync;
+                private int sent;
+
+                Link(PatientStore patient) throws IOException {
+                    this.patient = patient;
+                    this.subscription = patient.getRegistry().changes().subscribe("replica-" + patient.getId());
+                    sendState();
+                }
+
+                /**
+                 * Sends the patient's whole state, captured together with the bus position it covers.
+                 */
+                private void sendState() throws IOException {
+                    MedicineRegistry registry = patient.getRegistry();
+                    long[] cursor = new long[1];
+                    MedicineSnapshot state = registry.snapshot(() -> cursor[0] = registry.changes().cursor());
+                    covered = cursor[0];
+                    lostSeen = subscription.lost();
+                    frames.begin(STATE);
+                    frames.out.writeLong(++shipped);
+                    MedicineJournal.writeString(frames.out, patient.getId());
+                    state.writeBody(frames.out);
+                    frames.end(out);
+                }
+
+                /**
+                 * Ships the changes waiting on the subscription.
+                 *
+                 * @return the number of frames sent
+                 */
+                int ship() throws IOException {
+                    sent = 0;
+                    try {
+                        while (subscription.poll(this, CHANGE_BATCH) == CHANGE_BATCH && !resync) {
+                            // keep draining a busy patient
+                        }
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    if (resync || subscription.lost() != lostSeen) {
+                        System.out.println(Medicine.YELLOW + "Standby fell behind on patient " + patient.getId()
+                                + "; sending its state again." + Medicine.RESET);
+                        resync = false;
+                        sendState();
+                        sent++;
+                    }
+                    return sent;
+                }
+
+                @Override
+                public void onChange(ChangeBus.Change change) {
+                    if (resync || change.getSequence() <= covered) {
+                        return;
+                    }
+                    if (subscription.lost() != lostSeen) {
+                        resync = true; // changes were skipped; the state replaces them
+                        return;
+                    }
+                    try {
+                        frames.begin(CHANGE);
+                        DataOutputStream frame = frames.out;
+                        frame.writeLong(++shipped);
+                        MedicineJournal.writeString(frame, patient.getId());
+                        frame.writeByte(change.getKind().ordinal());
+                        frame.writeLong(change.getTimestamp());
+                        MedicineJournal.writeString(frame, change.getName());
+                        MedicineJournal.writeString(frame, change.getNewName());
+                        frame.writeBoolean(change.getSchedule() != null);
+                        if (change.getSchedule() != null) {
+                            MedicineJournal.writeSchedule(frame, change.getSchedule());
+                        }
+                        frames.end(out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    sent++;
+                }
+            }
+        }
+    }
+
+    // ---- Standby ----
+
+    /**
+     * Follows a primary on this machine and takes over its reminders when it goes quiet.
+     */
+    public static final class Standby implements Closeable {
+        private static final ChangeBus.Kind[] KINDS = ChangeBus.Kind.values();
+
+        private final Ward ward;
+        private final int port;
+        private final long takeoverMillis;
+        private final CountDownLatch takenOver = new CountDownLatch(1);
+        private final Thread follower;
+        private final Thread monitor;
+        private volatile Socket socket;
+        private volatile boolean stopped;
+        // Set once the first heartbeat after a full catch-up arrived
+        private volatile boolean synced;
+        private volatile long lastHeardNanos;
+        // Time of the primary's last heartbeat, in its epoch millis
+        private volatile long primaryMillis;
+        private volatile long appliedSequence;
+        private volatile long primarySequence;
+
+        private Standby(Ward ward, int port, long takeoverMillis) {
+            this.ward = ward;
+            this.port = port;
+            this.takeoverMillis = takeoverMillis;
+            this.follower = new Thread(this::follow, "replication-standby");
+            this.follower.setDaemon(true);
+            this.monitor = new Thread(this::watch, "replication-monitor");
+            this.monitor.setDaemon(true);
+        }
+
+        /**
+         * Starts following the primary listening on the given loopback port.
+         *
+         * @param ward           in-memory ward to apply the primary's state to; its
+         *                       reminder engine must not be running
+         * @param takeoverMillis heartbeat gap after which the standby takes over
+         */
+        public static Standby start(Ward ward, int port, long takeoverMillis) {
+            if (takeoverMillis < 2 * HEARTBEAT_MILLIS) {
+                throw new IllegalArgumentException("Takeover timeout must be at least " + 2 * HEARTBEAT_MILLIS + " ms.");
+            }
+            Standby standby = new Standby(ward, port, takeoverMillis);
+            standby.follower.start();
+            standby.monitor.start();
+            return standby;
+        }
+
+        /**
+         * Blocks until the standby has taken over from the primary.
+         */
+        public void awaitTakeover() throws InterruptedException {
+            takenOver.await();
+        }
+
+        public boolean isTakenOver() {
+            return takenOver.getCount() == 0;
+        }
+
+        /**
+         * Returns true once the standby has received the primary's state and a heartbeat.
+         */
+        public boolean isSynced() {
+            return synced;
+        }
+
+        /** Sequence of the last state or change applied. */
+        public long getAppliedSequence() { return appliedSequence; }
+        /** Sequence the primary had shipped at its last heartbeat. */
+        public long getPrimarySequence() { return primarySequence; }
+        /** Time of the primary's last heartbeat (epoch millis), or 0 before the first one. */
+        public long getPrimaryMillis() { return primaryMillis; }
+
+        private void follow() {
+            boolean reported = false;
+            while (!stopped) {
+                try (Socket connected = new Socket()) {
+                    connected.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                    socket = connected;
+                    reported = false;
+                    receive(connected);
+                } catch (IOException e) {
+                    if (!stopped && !reported) {
+                        reported = true;
+                        String reason = e.getMessage() != null ? e.getMessage() : "connection closed";
+                        System.out.println(Medicine.YELLOW + "Primary on port " + port + " unavailable: "
+                                + reason + Medicine.RESET);
+                    }
+                }
+                socket = null;
+                if (!stopped) {
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Applies frames until the connection breaks. The first heartbeat of a
+         * connection follows the states of every patient, which ends the catch-up.
+         */
+        private void receive(Socket connected) throws IOException {
+            connected.setTcpNoDelay(true);
+            long connectedNanos = System.nanoTime();
+            lastHeardNanos = connectedNanos;
+            boolean caughtUp = false;
+            long caughtUpEvents = 0;
+            int patients = 0;
+            MedicineMetrics metrics = MedicineMetrics.get();
+            FrameWriter frames = new FrameWriter();
+            byte[][] buffer = {new byte[SOCKET_BUFFER]};
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connected.getInputStream(), SOCKET_BUFFER));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+            while (!stopped) {
+                ByteBuffer frame = readFrame(in, buffer);
+                lastHeardNanos = System.nanoTime();
+                byte type = frame.get();
+                switch (type) {
+                    case STATE: {
+                        long sequence = frame.getLong();
+                        PatientStore patient = ward.getOrCreate(MedicineJournal.readString(frame));
+                        MedicineSnapshot state = MedicineSnapshot.readBody(frame);
+                        patient.replaceState(state);
+                        appliedSequence = sequence;
+                        caughtUpEvents += state.getMedicineCount() + state.getHistoryCount();
+                        patients++;
+                        break;
+                    }
+                    case CHANGE: {
+                        long sequence = frame.getLong();
+                        PatientStore patient = ward.getOrCreate(MedicineJournal.readString(frame));
+                        ChangeBus.Kind kind = KINDS[frame.get()];
+                        long timestamp = frame.getLong();
+                        String name = MedicineJournal.readString(frame);
+                        String newName = MedicineJournal.readString(frame);
+                        MedicineSchedule schedule = frame.get() != 0 ? MedicineJournal.readSchedule(frame) : null;
+                        try {
+                            patient.applyReplicated(kind, timestamp, name, newName, schedule);
+                        } catch (IllegalArgumentException e) {
+                            // Reconnecting makes the primary send every state again
+                            throw new IOException("out of step with the primary: " + e.getMessage());
+                        }
+                        appliedSequence = sequence;
+                        caughtUpEvents++;
+                        metrics.recordApplied(System.currentTimeMillis() - timestamp);
+                        break;
+                    }
+                    case HEARTBEAT:
+                        primarySequence = frame.getLong();
+                        primaryMillis = frame.getLong();
+                        if (!caughtUp) {
+                            caughtUp = true;
+                            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedNanos);
+                            metrics.recordStateTransfer(millis, caughtUpEvents);
+                            System.out.println(Medicine.GREEN + "Caught up with the primary: " + patients + " patient(s), "
+                                    + caughtUpEvents + " medicines, events and changes in " + millis + " ms ("
+                                    + caughtUpEvents * 1000 / Math.max(1, millis) + "/s)." + Medicine.RESET);
+                            synced = true;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown replication frame type " + type);
+                }
+                if (in.available() == 0) {
+                    frames.begin(ACK);
+                    frames.out.writeLong(appliedSequence);
+                    frames.end(out);
+                    out.flush();
+                }
+            }
+        }
+
+        private void watch() {
+            while (!stopped) {
+                try {
+                    Thread.sleep(MONITOR_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeardNanos);
+                if (synced && silentMillis > takeoverMillis) {
+                    takeOver(silentMillis);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stops following and re-queues every patient's reminders from the primary's
+         * last heartbeat.
+         */
+        private void takeOver(long silentMillis) {
+            stop();
+            LocalDateTime after = LocalDateTime.ofInstant(Instant.ofEpochMilli(primaryMillis), ZoneId.systemDefault());
+            for (String id : ward.patientIds()) {
+                ward.get(id).resumeReminders(after);
+            }
+            MedicineMetrics metrics = MedicineMetrics.get();
+            System.out.println(Medicine.YELLOW + "No heartbeat from the primary for " + silentMillis
+                    + " ms; taking over reminders for " + ward.size() + " patient(s) (" + metrics.getChangesApplied()
+                    + " changes applied, lag p99 " + metrics.getReplicationLagP99Millis() + " ms)." + Medicine.RESET);
+            takenOver.countDown();
+        }
+
+        private void stop() {
+            stopped = true;
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+            if (Thread.currentThread() != follower) {
+                try {
+                    follower.join(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Stops following the primary without taking over.
+         */
+        @Override
+        public void close() {
+            stop();
+            monitor.interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+}
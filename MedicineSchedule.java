@@ -1,71 +1,249 @@
 import java.util.*; 
-import java.time.LocalTime;
+import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
+import java.time.LocalDateTime;
 
 
 /**
  * Represents the schedule for a medicine, including the number of doses,
  * the times for each dose, and the days when the medicine should be taken.
+ *
+ * Days are kept as a bitmask (bit 0 = Monday ... bit 6 = Sunday) and dose times as
+ * a sorted array of minutes since midnight, so checking whether a dose is due is a
+ * bit test plus a binary search, without parsing or allocating anything. Schedules
+ * are immutable.
+ *
+ * Each schedule also carries the minimum spacing, in minutes, that its doses keep
+ * to every other dose of the same patient (see {@link SlotIndex}).
+ *
+ * A schedule may have a {@link RecurrenceRule} ("every 8 hours", "every other day
+ * for 10 days"). Its days and times are then the weekly slots its doses may fall
+ * on, which is what the slot index reserves, and the rule decides which of them are
+ * due. Next dose, doses in a range and the n-th dose from now are answered by the
+ * schedule's {@link RecurrenceRule.Timeline} in constant time, with or without a rule.
  */
 public class MedicineSchedule {
-    private int numberOfDoses;
-    private List<String> doseTimes;
-    private List<String> days;
-    private static List<String> existingDayTimeSlots = new ArrayList<>();
+    private static final DayOfWeek[] DAYS = DayOfWeek.values();
+    private static final String[] DAY_NAMES = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+    // "HH:mm" of every minute of the day, so formatting a dose time never allocates
+    private static final String[] TIMES = new String[SlotIndex.MINUTES_PER_DAY];
 
+    static {
+        for (int minute = 0; minute < TIMES.length; minute++) {
+            TIMES[minute] = String.format("%02d:%02d", minute / 60, minute % 60);
+        }
+    }
+
+    private final int numberOfDoses;
+    private final byte dayMask;
+    // Distinct dose times in minutes since midnight, ascending
+    private final short[] minutes;
+    private final short spacing;
+    // How the doses repeat beyond every week (null: the days of every week)
+    private final RecurrenceRule rule;
+    private final RecurrenceRule.Timeline timeline;
+
+    /**
+     * Creates a schedule from "HH:mm" times and day names such as "Monday".
+     *
+     * @throws IllegalArgumentException if a time or day is malformed
+     */
     public MedicineSchedule(int numberOfDoses, List<String> doseTimes, List<String> days) {
+        this(numberOfDoses, doseTimes, days, SlotIndex.DEFAULT_SPACING);
+    }
+
+    /**
+     * Creates a schedule whose doses stay at least {@code spacing} minutes away from
+     * every other dose.
+     *
+     * @throws IllegalArgumentException if a time, day or the spacing is invalid
+     */
+    public MedicineSchedule(int numberOfDoses, List<String> doseTimes, List<String> days, int spacing) {
+        this(numberOfDoses, dayMask(days), toMinutes(doseTimes), spacing, null);
+    }
+
+    /**
+     * Creates a schedule whose doses repeat as {@code rule} says, on the given days
+     * and times (for a rule in hours, every time of day its doses may fall on).
+     *
+     * @throws IllegalArgumentException if a time, day or the spacing is invalid
+     */
+    public MedicineSchedule(int numberOfDoses, List<String> doseTimes, List<String> days, int spacing,
+                            RecurrenceRule rule) {
+        this(numberOfDoses, dayMask(days), toMinutes(doseTimes), spacing, rule);
+    }
+
+    /**
+     * Creates a schedule from a day bitmask and minutes since midnight (in any order).
+     */
+    MedicineSchedule(int numberOfDoses, int dayMask, int[] doseMinutes) {
+        this(numberOfDoses, dayMask, doseMinutes, SlotIndex.DEFAULT_SPACING);
+    }
+
+    MedicineSchedule(int numberOfDoses, int dayMask, int[] doseMinutes, int spacing) {
+        this(numberOfDoses, dayMask, doseMinutes, spacing, null);
+    }
+
+    MedicineSchedule(int numberOfDoses, int dayMask, int[] doseMinutes, int spacing, RecurrenceRule rule) {
+        SlotIndex.checkSpacing(spacing);
+        if ((dayMask & ~0x7F) != 0) {
+            throw new IllegalArgumentException("Invalid day mask: " + dayMask);
+        }
+        int[] sorted = doseMinutes.clone();
+        Arrays.sort(sorted);
+        short[] distinct = new short[sorted.length];
+        int count = 0;
+        for (int minute : sorted) {
+            if (minute < 0 || minute >= SlotIndex.MINUTES_PER_DAY) {
+                throw new IllegalArgumentException("Minute of day out of range: " + minute);
+            }
+            if (count == 0 || distinct[count - 1] != minute) {
+                distinct[count++] = (short) minute;
+            }
+        }
         this.numberOfDoses = numberOfDoses;
-        this.doseTimes = doseTimes;
-        this.days = days;
+        this.dayMask = (byte) dayMask;
+        this.minutes = count == distinct.length ? distinct : Arrays.copyOf(distinct, count);
+        this.spacing = (short) spacing;
+        this.rule = rule;
+        this.timeline = rule == null ? RecurrenceRule.weekly(dayMask, this.minutes) : rule.timeline(dayMask, this.minutes);
     }
 
     // Getters
     public int getNumberOfDoses() { return numberOfDoses; }
-    public List<String> getDoseTimes() { return doseTimes; }
-    public List<String> getDays() { return days; }
+    /** Days as a bitmask, bit {@code d - 1} standing for {@code DayOfWeek.of(d)}. */
+    public int getDayMask() { return dayMask; }
+    /** Number of distinct dose times. */
+    public int getDoseCount() { return minutes.length; }
+    /** The i-th dose time in minutes since midnight, in ascending order. */
+    public int getDoseMinute(int i) { return minutes[i]; }
+    /** Minimum minutes between a dose of this schedule and any other dose. */
+    public int getSpacing() { return spacing; }
+    /** How the doses repeat, or null if they fall on the days of every week. */
+    public RecurrenceRule getRule() { return rule; }
+
+    /**
+     * Returns the average number of doses per week (rounded up).
+     */
+    public int getDosesPerWeek() {
+        return (int) Math.ceil(timeline.perWeek() - 1e-9);
+    }
+
+    /**
+     * Returns the dose times as "HH:mm", in ascending order.
+     */
+    public List<String> getDoseTimes() {
+        List<String> times = new ArrayList<>(minutes.length);
+        for (short minute : minutes) {
+            times.add(TIMES[minute]);
+        }
+        return times;
+    }
 
-    // Setters
-    public void setNumberOfDoses(int numberOfDoses) { this.numberOfDoses = numberOfDoses; }
-    public void setDoseTimes(List<String> doseTimes) { this.doseTimes = doseTimes; }
-    public void setDays(List<String> days) { this.days = days; }
+    /**
+     * Returns the day names (e.g. "Monday"), from Monday to Sunday.
+     */
+    public List<String> getDays() {
+        return dayNames(dayMask);
+    }
 
     @Override
     public String toString() {
         return "Schedule {" +
                 "Doses per day = " + numberOfDoses +
-                // both days time will be printed in the format "Day-Time"
-                ", Existing Slots = " + existingDayTimeSlots +
+                ", Dose times = " + getDoseTimes() +
+                ", Days = " + getDays() +
+                ", Spacing = " + spacing + " min" +
+                (rule != null ? ", Repeats = " + rule : "") +
                 '}';
     }
 
     /**
-     * Adds 10 minutes to a given time in "HH:mm" format.
+     * Returns true if the medicine is taken on the given day.
+     */
+    public boolean isScheduledOn(DayOfWeek day) {
+        return (dayMask & bit(day)) != 0;
+    }
+
+    /**
+     * Returns true if the weekly slots of this schedule include the given day and
+     * minute of day. Without a rule that means a dose is due then; a rule may still
+     * leave the slot out in a given week (see {@link #isDueAt(LocalDateTime)}).
+     */
+    public boolean isDueAt(DayOfWeek day, int minuteOfDay) {
+        return (dayMask & bit(day)) != 0 && Arrays.binarySearch(minutes, (short) minuteOfDay) >= 0;
+    }
+
+    /**
+     * Returns true if a dose is due at the given date and time (minute precision).
      */
-    private static String addTenMinutes(String time) {
-        if (time == null || !time.matches("^([01]?\\d|2[0-3]):[0-5]\\d$")) {
-            throw new IllegalArgumentException("Invalid time format. Use HH:mm.");
+    public boolean isDueAt(LocalDateTime at) {
+        if (!isDueAt(at.getDayOfWeek(), at.getHour() * 60 + at.getMinute())) {
+            return false; // not even a weekly slot of this schedule
         }
-        String[] parts = time.split(":");
-        int hours = Integer.parseInt(parts[0]);
-        int minutes = Integer.parseInt(parts[1]);
+        return rule == null || timeline.isOccurrence(RecurrenceRule.toMinute(at));
+    }
 
-        minutes += 10;
-        if (minutes >= 60) {
-            minutes -= 60;
-            hours = (hours + 1) % 24;
+    /**
+     * Marks the day/time slots of this schedule as taken in the given patient's slot
+     * index. Used when schedules are restored from disk rather than entered through
+     * createScheduleFromInput().
+     *
+     * @param existingDayTimeSlots slot index of the patient owning this schedule
+     */
+    public void reserveSlots(SlotIndex existingDayTimeSlots) {
+        for (int day = 0; day < DAYS.length; day++) {
+            if ((dayMask & (1 << day)) != 0) {
+                for (short minute : minutes) {
+                    existingDayTimeSlots.occupy(DAYS[day], minute, spacing);
+                }
+            }
         }
+    }
 
-        return String.format("%02d:%02d", hours, minutes);
+    /**
+     * Releases the day/time slots held by this schedule so other medicines can use them.
+     * Called when the schedule is replaced or its medicine is deleted.
+     *
+     * @param existingDayTimeSlots slot index of the patient owning this schedule
+     */
+    public void releaseSlots(SlotIndex existingDayTimeSlots) {
+        for (int day = 0; day < DAYS.length; day++) {
+            if ((dayMask & (1 << day)) != 0) {
+                for (short minute : minutes) {
+                    existingDayTimeSlots.release(DAYS[day], minute, spacing);
+                }
+            }
+        }
     }
 
     /**
      * Creates a schedule with conflict resolution for overlapping time slots.
+     * Conflicts are only checked against the slots of the same patient.
+     *
+     * @param existingDayTimeSlots slot index of the patient the schedule is for
      */
-    public static MedicineSchedule createScheduleFromInput() {
+    public static MedicineSchedule createScheduleFromInput(SlotIndex existingDayTimeSlots) {
         Scanner scanner = new Scanner(System.in);
         int numberOfDoses = 0, numberOfDays = 0;
 
+        // How the doses repeat: the chosen weekdays of every week unless a rule says otherwise
+        RecurrenceRule rule;
+        while (true) {
+            System.out.print("Enter how often it is taken (Enter for every week on chosen days, "
+                    + "or e.g. 'every 8 hours', 'every other day for 10 days'): ");
+            try {
+                rule = RecurrenceRule.parse(scanner.nextLine(), LocalDate.now());
+                break;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        RecurrenceRule.Unit unit = rule == null ? RecurrenceRule.Unit.WEEKS : rule.getUnit();
+        if (unit == RecurrenceRule.Unit.HOURS) {
+            return createRecurringFromInput(scanner, rule, existingDayTimeSlots);
+        }
+
         // Number of doses per day
         while (true) {
             try {
@@ -81,8 +259,8 @@ public class MedicineSchedule {
             }
         }
 
-        // Number of days
-        while (true) {
+        // Number of days (a daily rule may fall on any day)
+        while (unit == RecurrenceRule.Unit.WEEKS) {
             try {
                 System.out.print("Enter number of days to take the medicine: ");
                 numberOfDays = Integer.parseInt(scanner.nextLine());
@@ -96,74 +274,374 @@ public class MedicineSchedule {
             }
         }
 
-        // Days list
-        List<String> days = new ArrayList<>();
+        // Days
+        int dayMask = 0;
         for (int i = 1; i <= numberOfDays; i++) {
             System.out.print("Enter day " + i + " (e.g., Monday): ");
             String day = scanner.nextLine().trim();
-            if(!day.matches("(?i)^(Monday|Tuesday|Wednesday|Thursday|Friday|Saturday|Sunday)$")) {
-                System.out.println("Invalid day. Please enter a valid day of the week.");
+            if (day.isEmpty()) {
+                System.out.println("Day cannot be empty. Please try again.");
                 i--;
                 continue;
             }
-            if (day.isEmpty()) {
-                System.out.println("Day cannot be empty. Please try again.");
+            DayOfWeek dayOfWeek = parseDay(day);
+            if (dayOfWeek == null) {
+                System.out.println("Invalid day. Please enter a valid day of the week.");
                 i--;
                 continue;
             }
-            days.add(day);
+            dayMask |= bit(dayOfWeek);
+        }
+        if (rule != null) {
+            dayMask = rule.dayMask(dayMask);
         }
 
+        // Minimum spacing to other doses
+        int spacing = readSpacing(scanner);
+
         // Dose times with conflict check
-        List<String> doseTimes = new ArrayList<>();
+        int[] doseMinutes = new int[numberOfDoses];
         for (int i = 1; i <= numberOfDoses; i++) {
             while (true) {
                 System.out.print("Enter time for dose " + i + " (HH:mm): ");
-                String time = scanner.nextLine().trim();
-
-                if (!time.matches("^([01]?\\d|2[0-3]):[0-5]\\d$")) {
+                int requested = parseTime(scanner.nextLine().trim());
+                if (requested < 0) {
                     System.out.println("Invalid time format. Use HH:mm.");
                     continue;
                 }
 
-                // Conflict resolution
-                for (String day : days) {
-                    String slot = day + "-" + time;
+                // Conflict resolution: move the dose to the nearest time that keeps its
+                // spacing on every selected day, then reserve it on all of them
+                int minute = placeDose(existingDayTimeSlots, dayMask, requested, spacing);
+                if (minute < 0) {
+                    System.out.println("No free slot found for this dose. Please enter another time.");
+                    continue;
+                }
+                if (minute != requested) {
+                    System.out.println("Conflict on " + dayNames(dayMask) + " at " + formatTime(requested));
+                    System.out.println("Adjusted to: " + formatTime(minute));
+                }
+                doseMinutes[i - 1] = minute;
+                break;
+            }
+        }
+
+        return new MedicineSchedule(numberOfDoses, dayMask, doseMinutes, spacing, rule);
+    }
 
-                    while (existingDayTimeSlots.contains(slot)) {
-                        System.out.println("Conflict on " + day + " at " + time);
-                        time = addTenMinutes(time);
-                        slot = day + "-" + time;
-                        System.out.println("Adjusted to: " + time);
-                    }
+    /**
+     * Asks for the spacing and first dose time of a medicine taken every few hours
+     * and places all of its doses.
+     */
+    private static MedicineSchedule createRecurringFromInput(Scanner scanner, RecurrenceRule rule,
+                                                             SlotIndex existingDayTimeSlots) {
+        int spacing = readSpacing(scanner);
+        while (true) {
+            System.out.print("Enter time of the first dose (HH:mm): ");
+            int requested = parseTime(scanner.nextLine().trim());
+            if (requested < 0) {
+                System.out.println("Invalid time format. Use HH:mm.");
+                continue;
+            }
+            MedicineSchedule schedule = createRecurring(rule, requested, spacing, existingDayTimeSlots);
+            if (schedule == null) {
+                System.out.println("No free slot found for these doses. Please enter another time.");
+                continue;
+            }
+            int minute = schedule.getRule().getFrom().getHour() * 60 + schedule.getRule().getFrom().getMinute();
+            if (minute != requested) {
+                System.out.println("Conflict with other doses at " + formatTime(requested));
+                System.out.println("Adjusted to: " + formatTime(minute));
+            }
+            return schedule;
+        }
+    }
 
-                    existingDayTimeSlots.add(slot);
+    private static int readSpacing(Scanner scanner) {
+        while (true) {
+            System.out.print("Enter minimum minutes between this medicine and other doses (Enter for "
+                    + SlotIndex.DEFAULT_SPACING + "): ");
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) {
+                return SlotIndex.DEFAULT_SPACING;
+            }
+            try {
+                int spacing = Integer.parseInt(line);
+                if (spacing < 1 || spacing > SlotIndex.MAX_SPACING) {
+                    System.out.println("Spacing must be between 1 and " + SlotIndex.MAX_SPACING + " minutes.");
+                    continue;
                 }
+                return spacing;
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a number.");
+            }
+        }
+    }
 
-                doseTimes.add(time);
-                break;
+    /**
+     * Checks whether a dose is due at the current minute and prints a reminder.
+     */
+    public void checkAndNotifyDose(String medicineName) {
+        checkAndNotifyDose(medicineName, LocalDateTime.now());
+    }
+
+    /**
+     * Checks whether a dose is due at the given date and time (minute precision)
+     * and prints a reminder for every matching dose.
+     */
+    public void checkAndNotifyDose(String medicineName, LocalDateTime at) {
+        int currentMinute = at.getHour() * 60 + at.getMinute();
+        if (isDueAt(at)) {
+            System.out.println(Medicine.PURPLE + "Reminder: It's time to take your medicine: " + medicineName + " at " + TIMES[currentMinute] + Medicine.RESET);
+        }
+    }
+
+    /**
+     * Computes the first dose time strictly after the given moment (minute
+     * precision). Returns null if the schedule has no dose left, e.g. it has no day
+     * or no dose time, or its rule has ended.
+     */
+    public LocalDateTime nextDoseAfter(LocalDateTime after) {
+        long next = timeline.nextAfter(RecurrenceRule.toMinute(after));
+        return next == RecurrenceRule.Timeline.NONE ? null : RecurrenceRule.toDateTime(next);
+    }
+
+    /**
+     * Returns the {@code n}-th dose (from 1) strictly after the given moment, or null
+     * if the schedule ends before it.
+     */
+    public LocalDateTime nthDoseAfter(LocalDateTime after, long n) {
+        long dose = timeline.occurrence(timeline.countBefore(RecurrenceRule.toMinute(after) + 1) + n - 1);
+        return dose == RecurrenceRule.Timeline.NONE ? null : RecurrenceRule.toDateTime(dose);
+    }
+
+    /**
+     * Returns the number of doses strictly after {@code from} and up to and including
+     * {@code to} (minute precision).
+     */
+    public long countDosesBetween(LocalDateTime from, LocalDateTime to) {
+        long first = timeline.countBefore(RecurrenceRule.toMinute(from) + 1);
+        long last = timeline.countBefore(RecurrenceRule.toMinute(to) + 1);
+        return Math.max(0, last - first);
+    }
+
+    /**
+     * Returns the doses strictly after {@code from} and up to and including {@code to},
+     * in time order.
+     */
+    public List<LocalDateTime> dosesBetween(LocalDateTime from, LocalDateTime to) {
+        long first = timeline.countBefore(RecurrenceRule.toMinute(from) + 1);
+        long last = timeline.countBefore(RecurrenceRule.toMinute(to) + 1);
+        List<LocalDateTime> doses = new ArrayList<>((int) Math.min(Math.max(0, last - first), 1 << 16));
+        for (long i = first; i < last; i++) {
+            doses.add(RecurrenceRule.toDateTime(timeline.occurrence(i)));
+        }
+        return doses;
+    }
+
+    /**
+     * Finds the time nearest to {@code minuteOfDay} that keeps {@code spacing} minutes
+     * to every other dose on all of the given days, and reserves it on every day in
+     * one step, so concurrent callers never receive the same slot.
+     *
+     * @return the reserved minute of day, or -1 if no slot is free
+     */
+    static int placeDose(SlotIndex index, int dayMask, int minuteOfDay, int spacing) {
+        synchronized (index) {
+            int minute = index.findNearestFree(dayMask, minuteOfDay, spacing);
+            if (minute >= 0) {
+                for (int day = 0; day < DAYS.length; day++) {
+                    if ((dayMask & (1 << day)) != 0) {
+                        index.occupy(DAYS[day], minute, spacing);
+                    }
+                }
+                MedicineMetrics.get().recordPlacement(minute != minuteOfDay);
             }
+            return minute;
         }
-        
-        
+    }
 
-        return new MedicineSchedule(numberOfDoses, doseTimes, days);
+    /**
+     * Finds the start time nearest to {@code firstMinute} at which every dose of a
+     * schedule repeating every few hours keeps its spacing, and reserves them all.
+     * The doses move together, so the time between them stays exact.
+     *
+     * @param minutes times of day the doses may fall on when starting at
+     *                {@code firstMinute}, {@code step} minutes apart
+     * @return the reserved start minute of day, or -1 if no start time is free
+     */
+    static int placeRecurring(SlotIndex index, int dayMask, int firstMinute, int[] minutes, int step, int spacing) {
+        synchronized (index) {
+            for (int shift = 0; shift <= step / 2; shift++) {
+                for (int sign = 1; sign >= -1; sign -= 2) {
+                    int delta = shift * sign;
+                    if (fitsEveryDay(index, dayMask, minutes, delta, spacing)) {
+                        for (int day = 0; day < DAYS.length; day++) {
+                            if ((dayMask & (1 << day)) != 0) {
+                                for (int minute : minutes) {
+                                    index.occupy(DAYS[day], Math.floorMod(minute + delta, SlotIndex.MINUTES_PER_DAY), spacing);
+                                }
+                            }
+                        }
+                        MedicineMetrics.get().recordPlacement(delta != 0);
+                        return Math.floorMod(firstMinute + delta, SlotIndex.MINUTES_PER_DAY);
+                    }
+                    if (shift == 0) {
+                        break;
+                    }
+                }
+            }
+            return -1;
+        }
     }
-    public void checkAndNotifyDose(String medicineName) {
-        DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
-        String currentTime = LocalTime.now().format(timeFormatter);
-        String today = LocalDate.now().getDayOfWeek().toString(); // e.g., MONDAY
-
-        boolean found = false;
-        for (String scheduledDay : days) {
-            if (scheduledDay.equalsIgnoreCase(today)) {
-                for (String doseTime : doseTimes) {
-                    if (doseTime.equals(currentTime)) {
-                        System.out.println("\u001B[Reminder: It's time to take your medicine: " + medicineName + " at " + doseTime + "\u001B[0m");
-                        found = true;
+
+    private static boolean fitsEveryDay(SlotIndex index, int dayMask, int[] minutes, int delta, int spacing) {
+        for (int day = 0; day < DAYS.length; day++) {
+            if ((dayMask & (1 << day)) != 0) {
+                for (int minute : minutes) {
+                    if (!index.isFree(DAYS[day], Math.floorMod(minute + delta, SlotIndex.MINUTES_PER_DAY), spacing)) {
+                        return false;
                     }
                 }
             }
         }
+        return true;
+    }
+
+    /**
+     * Builds the schedule of a rule in hours whose first dose is requested at
+     * {@code requested}, placing its doses in the slot index. Returns null if they
+     * do not fit at any nearby start time.
+     */
+    static MedicineSchedule createRecurring(RecurrenceRule rule, int requested, int spacing, SlotIndex existingDayTimeSlots) {
+        RecurrenceRule wanted = rule.startingAt(requested);
+        int dayMask = wanted.dayMask(0);
+        int first = placeRecurring(existingDayTimeSlots, dayMask, requested, wanted.minutesOfDay(), wanted.step(), spacing);
+        if (first < 0) {
+            return null;
+        }
+        RecurrenceRule placed = wanted.startingAt(first);
+        return new MedicineSchedule(Math.max(1, 24 / placed.getInterval()), dayMask, placed.minutesOfDay(), spacing, placed);
+    }
+
+    /**
+     * Builds a schedule from already validated days and "HH:mm" times, placing every
+     * dose in the given patient's slot index. If a dose cannot be placed, the doses
+     * placed so far are released again and null is returned.
+     */
+    static MedicineSchedule createSchedule(List<String> days, List<String> times, int spacing, SlotIndex existingDayTimeSlots) {
+        return createSchedule(days, times, spacing, null, existingDayTimeSlots);
+    }
+
+    /**
+     * Like {@link #createSchedule(List, List, int, SlotIndex)}, with doses repeating as
+     * {@code rule} says. A rule in hours takes only the first dose time; a rule in days
+     * ignores the days.
+     */
+    static MedicineSchedule createSchedule(List<String> days, List<String> times, int spacing, RecurrenceRule rule,
+                                           SlotIndex existingDayTimeSlots) {
+        if (rule != null && rule.getUnit() == RecurrenceRule.Unit.HOURS) {
+            return createRecurring(rule, parseTime(times.get(0)), spacing, existingDayTimeSlots);
+        }
+        int dayMask = rule == null ? dayMask(days) : rule.dayMask(dayMask(days));
+        int[] doseMinutes = new int[times.size()];
+        for (int i = 0; i < doseMinutes.length; i++) {
+            int minute = placeDose(existingDayTimeSlots, dayMask, parseTime(times.get(i)), spacing);
+            if (minute < 0) {
+                new MedicineSchedule(i, dayMask, Arrays.copyOf(doseMinutes, i), spacing).releaseSlots(existingDayTimeSlots);
+                return null;
+            }
+            doseMinutes[i] = minute;
+        }
+        return new MedicineSchedule(doseMinutes.length, dayMask, doseMinutes, spacing, rule);
+    }
+
+    /**
+     * Converts day names such as "monday" to a day bitmask.
+     *
+     * @throws IllegalArgumentException if a name is not a day of the week
+     */
+    static int dayMask(List<String> days) {
+        int mask = 0;
+        for (String day : days) {
+            DayOfWeek dayOfWeek = day == null ? null : parseDay(day);
+            if (dayOfWeek == null) {
+                throw new IllegalArgumentException("Invalid day: " + day);
+            }
+            mask |= bit(dayOfWeek);
+        }
+        return mask;
+    }
+
+    private static int[] toMinutes(List<String> times) {
+        int[] result = new int[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            String time = times.get(i);
+            result[i] = time == null ? -1 : parseTime(time);
+            if (result[i] < 0) {
+                throw new IllegalArgumentException("Invalid time format: " + time + ". Use HH:mm.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the day names of a bitmask, from Monday to Sunday.
+     */
+    static List<String> dayNames(int dayMask) {
+        List<String> names = new ArrayList<>(Integer.bitCount(dayMask));
+        for (int day = 0; day < DAY_NAMES.length; day++) {
+            if ((dayMask & (1 << day)) != 0) {
+                names.add(DAY_NAMES[day]);
+            }
+        }
+        return names;
+    }
+
+    private static int bit(DayOfWeek day) {
+        return 1 << (day.getValue() - 1);
+    }
+
+    /**
+     * Returns the day named e.g. "Monday" or "monday", or null if it is not a day of
+     * the week.
+     */
+    static DayOfWeek parseDay(String day) {
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equalsIgnoreCase(day)) {
+                return DAYS[i];
+            }
+        }
+        return null;
+    }
+
+    static String formatTime(int minuteOfDay) {
+        return TIMES[minuteOfDay];
+    }
+
+    /**
+     * Converts "H:mm" / "HH:mm" (00:00 to 23:59) to minutes since midnight, or -1 if
+     * malformed. Replaces a regex match plus split and parseInt.
+     */
+    static int parseTime(String time) {
+        int length = time.length();
+        int colon = length - 3;
+        if ((length != 4 && length != 5) || time.charAt(colon) != ':') {
+            return -1;
+        }
+        int hours = 0;
+        for (int i = 0; i < colon; i++) {
+            char c = time.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            hours = hours * 10 + (c - '0');
+        }
+        char tens = time.charAt(colon + 1);
+        char ones = time.charAt(colon + 2);
+        if (hours > 23 || tens < '0' || tens > '5' || ones < '0' || ones > '9') {
+            return -1;
+        }
+        return hours * 60 + (tens - '0') * 10 + (ones - '0');
     }
 }
@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Accelerated-time soak test for the reminder engine.
+ *
+ * <pre>
+ *   java MedicineSimulation [--patients n] [--medicines n] [--weeks n] [--seed n] [--tick minutes]
+ *                           [--outage hours]
+ * </pre>
+ *
+ * Generates random schedules for an in-memory {@link Ward} (1000 patients with 3
+ * medicines each by default) and runs the ward on a {@link VirtualClock} through
+ * several weeks of virtual time. Every time the engine would sleep, the clock jumps
+ * straight to the time it waits for, so four weeks take seconds. With {@code --tick}
+ * the engine is not started; instead {@link Ward#fireDue} is called every given
+ * number of virtual minutes, the way a polling loop would drive it. With
+ * {@code --outage} the ward is kept in a temporary data directory and closed halfway
+ * through; it is reopened from disk the given number of hours later, and must fire
+ * every dose that came due in between, late, and no dose twice.
+ *
+ * Each reminder is checked against the dose times computed independently from the
+ * schedules. The report lists doses fired against doses expected, missing,
+ * duplicate and unexpected doses, how many doses fired late and by how many
+ * minutes in total, and the wall-clock cost of each engine pass. The exit status is
+ * 1 if any dose was missing, duplicated or unexpected, so the simulation can guard
+ * scheduler changes.
+ */
+public class MedicineSimulation {
+    private static final String[] DAYS = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    // Wall time to wait for the engine to reach the end of the simulated span
+    private static final long TIMEOUT_MINUTES = 30;
+
+    /**
+     * Virtual time source. {@link #await} never blocks while the deadline lies within
+     * the simulated span: it moves the time to the deadline and returns, so the
+     * caller re-checks and finds its work due. A wait past the end of the span parks
+     * the caller on its monitor and reports that the span is done.
+     *
+     * Only meant for a single engine thread; the wall time between two waits, in
+     * which a pass ran, is recorded as the cost of that pass.
+     */
+    static final class VirtualClock implements EngineClock {
+        private final long endMillis;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile long now;
+        private long passes;
+        private long lastAwaitNanos;
+        private long[] passNanos = new long[1024];
+        private int passCount;
+
+        VirtualClock(long startMillis, long endMillis) {
+            this.now = startMillis;
+            this.endMillis = endMillis;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        /**
+         * Starts timing passes; called right before the engine starts.
+         */
+        void startTiming() {
+            lastAwaitNanos = System.nanoTime();
+        }
+
+        /**
+         * Moves the time forward (never back) to {@code millis}.
+         */
+        void advance(long millis) {
+            if (millis > now) {
+                now = millis;
+            }
+        }
+
+        @Override
+        public void await(Object monitor, long deadlineMillis) throws InterruptedException {
+            long passesNow = MedicineMetrics.get().getPasses();
+            if (passesNow != passes) {
+                passes = passesNow;
+                record(System.nanoTime() - lastAwaitNanos);
+            }
+            if (deadlineMillis <= endMillis) {
+                advance(deadlineMillis);
+                lastAwaitNanos = System.nanoTime();
+                return;
+            }
+            advance(endMillis);
+            finished.countDown();
+            monitor.wait();
+        }
+
+        void record(long nanos) {
+            if (passCount == passNanos.length) {
+                passNanos = Arrays.copyOf(passNanos, passCount * 2);
+            }
+            passNanos[passCount++] = nanos;
+        }
+
+        boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+            return finished.await(timeout, unit);
+        }
+
+        long[] sortedPassNanos() {
+            long[] sorted = Arrays.copyOf(passNanos, passCount);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * Checks every dose reminder against the expected doses as it is delivered.
+     * Keys are "patient medicine scheduledMillis".
+     */
+    private static final class CheckingSink implements ReminderSink {
+        final Set<String> expected;
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        final AtomicLong fired = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final AtomicLong unexpected = new AtomicLong();
+        final AtomicLong late = new AtomicLong();
+        final AtomicLong lateMillis = new AtomicLong();
+        final AtomicLong maxLateMillis = new AtomicLong();
+        final AtomicLong markedLate = new AtomicLong();
+
+        CheckingSink(Set<String> expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public String name() {
+            return "simulation";
+        }
+
+        @Override
+        public void deliver(List<ReminderPipeline.Reminder> batch) {
+            for (ReminderPipeline.Reminder reminder : batch) {
+                if (reminder.isAlert()) {
+                    continue;
+                }
+                fired.incrementAndGet();
+                String key = reminder.getPatientId() + " " + reminder.getMedicineName() + " " + reminder.getScheduledMillis();
+                if (!expected.contains(key)) {
+                    unexpected.incrementAndGet();
+                } else if (!seen.add(key)) {
+                    duplicates.incrementAndGet();
+                }
+                if (reminder.isLate()) {
+                    markedLate.incrementAndGet();
+                }
+                long lateness = reminder.getFiredMillis() - reminder.getScheduledMillis();
+                if (lateness > 0) {
+                    late.incrementAndGet();
+                    lateMillis.addAndGet(lateness);
+                    maxLateMillis.accumulateAndGet(lateness, Math::max);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int patients = 1000;
+        int medicines = 3;
+        int weeks = 4;
+        long seed = 42;
+        int tickMinutes = 0;
+        int outageHours = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--patients":
+                        patients = Integer.parseInt(args[++i]);
+                        break;
+                    case "--medicines":
+                        medicines = Integer.parseInt(args[++i]);
+                        break;
+                    case "--weeks":
+                        weeks = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--tick":
+                        tickMinutes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--outage":
+                        outageHours = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        System.out.println("Unknown option " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Usage: java MedicineSimulation [--patients n] [--medicines n] [--weeks n] [--seed n] [--tick minutes] [--outage hours]");
+            return;
+        }
+        if (patients < 1 || medicines < 1 || weeks < 1 || tickMinutes < 0 || outageHours < 0) {
+            System.out.println("Patients, medicines and weeks must be positive and the tick and outage not negative.");
+            return;
+        }
+        if (outageHours > 0 && (tickMinutes > 0 || outageHours >= weeks * 7 * 24 / 2)) {
+            System.out.println("An outage needs the engine (no --tick) and must be shorter than half the simulated span.");
+            return;
+        }
+
+        LocalDateTime start = LocalDate.now().atStartOfDay();
+        LocalDateTime end = start.plusWeeks(weeks);
+        long startMillis = toMillis(start);
+        long endMillis = toMillis(end);
+        // With an outage, the first run ends halfway and the second starts outageHours later
+        LocalDateTime outageStart = start.plusHours(weeks * 7L * 24 / 2);
+        LocalDateTime outageEnd = outageStart.plusHours(outageHours);
+        Path dataDir = outageHours > 0 ? Files.createTempDirectory("medicine-simulation") : null;
+        VirtualClock clock = new VirtualClock(startMillis, outageHours > 0 ? toMillis(outageStart) : endMillis);
+        Ward ward = new Ward(dataDir, clock);
+
+        long setupStart = System.nanoTime();
+        Set<String> expected = new HashSet<>();
+        int scheduled = generate(ward, patients, medicines, new Random(seed), start, end, expected);
+        System.out.printf("Simulating %d patients with %d schedules over %d week(s) from %s (%d doses expected, set up in %d ms)%n",
+                patients, scheduled, weeks, start.toLocalDate(), expected.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart));
+
+        CheckingSink checker = new CheckingSink(expected);
+        ReminderPipeline pipeline = new ReminderPipeline(1 << 16, ReminderPipeline.DEFAULT_BATCH_SIZE,
+                ReminderPipeline.OverflowPolicy.DROP_NEWEST);
+        pipeline.addSink(checker);
+        pipeline.start();
+        ward.setReminderPipeline(pipeline);
+        MedicineMetrics.get().reset();
+
+        long runStart = System.nanoTime();
+        long[] passNanos;
+        if (tickMinutes == 0) {
+            clock.startTiming();
+            ward.start();
+            if (!clock.awaitFinished(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                System.out.println(Medicine.RED + "The engine did not reach the end of the simulation." + Medicine.RESET);
+                System.exit(1);
+            }
+            ward.stop();
+            passNanos = clock.sortedPassNanos();
+            if (outageHours > 0) {
+                ward.close();
+                System.out.printf("Outage:      engine down from %s to %s%n", outageStart, outageEnd);
+                clock = new VirtualClock(toMillis(outageEnd), endMillis);
+                ward = reopen(dataDir, clock, patients, pipeline);
+                clock.startTiming();
+                ward.start();
+                if (!clock.awaitFinished(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                    System.out.println(Medicine.RED + "The engine did not reach the end of the simulation." + Medicine.RESET);
+                    System.exit(1);
+                }
+                ward.stop();
+                long[] after = clock.sortedPassNanos();
+                passNanos = Arrays.copyOf(passNanos, passNanos.length + after.length);
+                System.arraycopy(after, 0, passNanos, passNanos.length - after.length, after.length);
+                Arrays.sort(passNanos);
+            }
+        } else {
+            long step = TimeUnit.MINUTES.toMillis(tickMinutes);
+            passNanos = new long[(int) ((endMillis - startMillis + step - 1) / step)];
+            int ticks = 0;
+            for (long t = startMillis + step; ; t += step) {
+                clock.advance(Math.min(t, endMillis));
+                long passStart = System.nanoTime();
+                ward.fireDue(clock.now());
+                passNanos[ticks++] = System.nanoTime() - passStart;
+                if (t >= endMillis) {
+                    break;
+                }
+            }
+            Arrays.sort(passNanos);
+        }
+        long runNanos = System.nanoTime() - runStart;
+        pipeline.close(TimeUnit.MINUTES.toMillis(1));
+
+        long missing = expected.size() - checker.seen.size();
+        long missedDoses = 0;
+        long pending = 0;
+        for (String id : ward.patientIds()) {
+            DoseLog doses = ward.get(id).getDoses();
+            AdherenceStats.Summary summary = doses.getStats().summary(null, end.toLocalDate());
+            missedDoses += summary == null ? 0 : summary.getMissed();
+            pending += doses.pendingCount();
+        }
+        MedicineMetrics metrics = MedicineMetrics.get();
+
+        System.out.printf("Doses:       %d fired / %d expected (%d missing, %d duplicate, %d unexpected, %d dropped)%n",
+                checker.fired.get(), expected.size(), missing, checker.duplicates.get(), checker.unexpected.get(),
+                metrics.getRemindersDropped());
+        System.out.printf("Lateness:    %d late dose(s), %d missed minute(s), max %d min (%d marked late)%n",
+                checker.late.get(), TimeUnit.MILLISECONDS.toMinutes(checker.lateMillis.get()),
+                TimeUnit.MILLISECONDS.toMinutes(checker.maxLateMillis.get()), checker.markedLate.get());
+        System.out.printf("Passes:      %d, cost us mean=%.1f p50=%.1f p99=%.1f max=%.1f%n",
+                passNanos.length, mean(passNanos) / 1e3, percentile(passNanos, 50) / 1e3,
+                percentile(passNanos, 99) / 1e3, percentile(passNanos, 100) / 1e3);
+        System.out.printf("Outcomes:    %d marked missed, %d still pending%n", missedDoses, pending);
+        System.out.printf("Wall time:   %d ms for %d virtual day(s) (%.0fx real time)%n",
+                TimeUnit.NANOSECONDS.toMillis(runNanos), weeks * 7L,
+                (endMillis - startMillis) / (runNanos / 1e6));
+
+        if (dataDir != null) {
+            ward.close();
+            deleteRecursively(dataDir);
+        }
+
+        boolean failed = missing != 0 || checker.duplicates.get() != 0 || checker.unexpected.get() != 0
+                || metrics.getRemindersDropped() != 0;
+        if (failed) {
+            System.out.println(Medicine.RED + "Simulation FAILED." + Medicine.RESET);
+            System.exit(1);
+        }
+        System.out.println(Medicine.GREEN + "Simulation passed." + Medicine.RESET);
+    }
+
+    /**
+     * Gives every patient up to {@code medicines} random schedules of one to three
+     * daily doses on random days, and adds the dose times in (start, end] to
+     * {@code expected}.
+     *
+     * @return the number of schedules created
+     */
+    private static int generate(Ward ward, int patients, int medicines, Random random, LocalDateTime start,
+                                LocalDateTime end, Set<String> expected) throws IOException {
+        int scheduled = 0;
+        for (int p = 0; p < patients; p++) {
+            String id = "patient-" + p;
+            PatientStore patient = ward.getOrCreate(id);
+            for (int m = 0; m < medicines; m++) {
+                List<String> days = new ArrayList<>();
+                for (int d = 0; d < DAYS.length; d++) {
+                    if (random.nextInt(3) > 0) {
+                        days.add(DAYS[d]);
+                    }
+                }
+                if (days.isEmpty()) {
+                    days.add(DAYS[random.nextInt(DAYS.length)]);
+                }
+                int doses = 1 + random.nextInt(3);
+                List<String> times = new ArrayList<>(doses);
+                for (int d = 0; d < doses; d++) {
+                    times.add(MedicineSchedule.formatTime(random.nextInt(SlotIndex.MINUTES_PER_DAY)));
+                }
+                MedicineSchedule schedule = MedicineSchedule.createSchedule(days, times, SlotIndex.DEFAULT_SPACING,
+                        patient.getSlots());
+                String name = "medicine-" + m;
+                if (schedule == null || !patient.getRegistry().add(name, schedule)) {
+                    continue;
+                }
+                patient.getScheduler().schedule(name, schedule);
+                scheduled++;
+                for (LocalDate day = start.toLocalDate(); !day.isAfter(end.toLocalDate()); day = day.plusDays(1)) {
+                    if (!schedule.isScheduledOn(day.getDayOfWeek())) {
+                        continue;
+                    }
+                    for (int i = 0; i < schedule.getDoseCount(); i++) {
+                        int minute = schedule.getDoseMinute(i);
+                        LocalDateTime due = day.atTime(minute / 60, minute % 60);
+                        if (due.isAfter(start) && !due.isAfter(end)) {
+                            expected.add(id + " " + name + " " + toMillis(due));
+                        }
+                    }
+                }
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * Opens the patients saved in {@code dataDir} again, as a restarted process would.
+     */
+    private static Ward reopen(Path dataDir, VirtualClock clock, int patients, ReminderPipeline pipeline)
+            throws IOException {
+        Ward ward = new Ward(dataDir, clock);
+        ward.setReminderPipeline(pipeline);
+        for (int p = 0; p < patients; p++) {
+            ward.getOrCreate("patient-" + p);
+        }
+        return ward;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static double mean(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double percentile(long[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary image of the registry: every current medicine with its schedule
+ * and the full history, plus the number of the last journal segment it covers.
+ *
+ * Layout: magic, version, covered segment, medicine count, medicines, the history
+ * name dictionary, then the history columns (timestamps, actions, name ids, related
+ * ids) each as one contiguous block, and a trailing CRC32 of everything before it. Snapshots
+ * are written to a temporary file, synced and atomically renamed, and read back
+ * through a memory-mapped buffer so startup does not copy the file onto the heap
+ * before decoding it.
+ */
+public class MedicineSnapshot {
+    private static final int MAGIC = 0x4D454453; // "MEDS"
+    private static final int VERSION = 2;
+
+    private final List<String> names;
+    private final List<MedicineSchedule> schedules;
+    private final HistoryStore history;
+    private final int historyCount;
+    private long segment = -1;
+
+    MedicineSnapshot(List<String> names, List<MedicineSchedule> schedules, HistoryStore history, int historyCount) {
+        this.names = names;
+        this.schedules = schedules;
+        this.history = history;
+        this.historyCount = historyCount;
+    }
+
+    /**
+     * Returns the last journal segment whose records are already contained in this snapshot.
+     */
+    public long getSegment() { return segment; }
+    public void setSegment(long segment) { this.segment = segment; }
+
+    public int getMedicineCount() { return names.size(); }
+    public int getHistoryCount() { return historyCount; }
+
+    /**
+     * Loads every medicine and history event of this snapshot into the registry.
+     */
+    public void applyTo(MedicineRegistry registry) {
+        for (int i = 0; i < names.size(); i++) {
+            registry.restore(names.get(i), schedules.get(i));
+        }
+        registry.restoreHistory(history);
+    }
+
+    /**
+     * Writes the snapshot durably: temporary file, fsync, then atomic rename over {@code file}.
+     */
+    public void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segment);
+            writeBody(out);
+            out.flush();
+            // The checksum itself is written past the checked stream
+            DataOutputStream trailer = new DataOutputStream(fos);
+            trailer.writeLong(crc.getValue());
+            trailer.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot through a memory-mapped buffer and verifies its checksum.
+     *
+     * @throws IOException if the file is truncated, corrupt or of an unknown version
+     */
+    public static MedicineSnapshot load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 28 || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " has invalid size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit((int) size - 8));
+            if (crc.getValue() != buffer.getLong((int) size - 8)) {
+                throw new IOException("Snapshot " + file + " failed checksum verification");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Snapshot " + file + " has an unknown format");
+            }
+            long segment = buffer.getLong();
+            MedicineSnapshot snapshot = readBody(buffer);
+            snapshot.setSegment(segment);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Writes the medicines and history, without header or checksum. Shared with
+     * {@link MedicineReplication}, which ships the same body to a standby.
+     */
+    void writeBody(DataOutput out) throws IOException {
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            MedicineJournal.writeString(out, names.get(i));
+            MedicineJournal.writeSchedule(out, schedules.get(i));
+        }
+        // Names are interned before their first event, so ids below this count are enough
+        int nameCount = history.nameCount();
+        out.writeInt(nameCount);
+        for (int id = 0; id < nameCount; id++) {
+            MedicineJournal.writeString(out, history.nameAt(id));
+        }
+        out.writeInt(historyCount);
+        for (int i = 0; i < historyCount; i++) {
+            out.writeLong(history.timeAt(i));
+        }
+        for (int i = 0; i < historyCount; i++) {
+            out.writeByte(history.actionAt(i).ordinal());
+        }
+        for (int i = 0; i < historyCount; i++) {
+            out.writeInt(history.idAt(i));
+        }
+        for (int i = 0; i < historyCount; i++) {
+            out.writeInt(history.relatedAt(i));
+        }
+    }
+
+    /**
+     * Reads a body written by {@link #writeBody} from the buffer's position.
+     */
+    static MedicineSnapshot readBody(ByteBuffer buffer) {
+        StringCache strings = new StringCache();
+        int medicineCount = buffer.getInt();
+        List<String> names = new ArrayList<>(medicineCount);
+        List<MedicineSchedule> schedules = new ArrayList<>(medicineCount);
+        for (int i = 0; i < medicineCount; i++) {
+            names.add(strings.read(buffer));
+            schedules.add(MedicineJournal.readSchedule(buffer));
+        }
+        HistoryStore history = new HistoryStore();
+        int nameCount = buffer.getInt();
+        for (int id = 0; id < nameCount; id++) {
+            history.intern(strings.read(buffer));
+        }
+        int historyCount = buffer.getInt();
+        // Columns are stored back to back; read them through positioned views
+        int timesAt = buffer.position();
+        int actionsAt = timesAt + 8 * historyCount;
+        int idsAt = actionsAt + historyCount;
+        int relatedAt = idsAt + 4 * historyCount;
+        for (int i = 0; i < historyCount; i++) {
+            history.appendRaw(buffer.getLong(timesAt + 8 * i), buffer.get(actionsAt + i),
+                    buffer.getInt(idsAt + 4 * i), buffer.getInt(relatedAt + 4 * i));
+        }
+        buffer.position(relatedAt + 4 * historyCount);
+        return new MedicineSnapshot(names, schedules, history, historyCount);
+    }
+
+    /**
+     * Small direct-mapped cache that returns the same String instance for repeated
+     * byte sequences. History is full of identical actions and timestamps, so this
+     * avoids most string allocations while loading large snapshots.
+     */
+    private static final class StringCache {
+        private static final int SLOTS = 1024;
+        private final byte[][] keys = new byte[SLOTS][];
+        private final String[] values = new String[SLOTS];
+        private byte[] scratch = new byte[64];
+
+        String read(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(scratch, 0, length);
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + scratch[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+            byte[] key = keys[slot];
+            if (key != null && Arrays.equals(key, 0, key.length, scratch, 0, length)) {
+                return values[slot];
+            }
+            String value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            keys[slot] = Arrays.copyOf(scratch, length);
+            values[slot] = value;
+            return value;
+        }
+    }
+}
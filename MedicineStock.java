@@ -0,0 +1,383 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Doses on hand per medicine of one patient, with a refill forecast and low-stock
+ * alerts.
+ *
+ * Tracking is opt-in: a medicine is tracked once its stock has been set. Every fired
+ * dose of a tracked medicine takes one dose off its counter with a single atomic
+ * update, so the reminder engine never locks and medicines never contend with each
+ * other. The forecast only needs the weekly dose pattern, which is kept per medicine
+ * and updated whenever its schedule changes; answering "when does it run out" is a
+ * walk over at most one week, never a scan of history.
+ *
+ * A medicine is low once its stock has dropped to about {@code leadDays} days of
+ * doses. The fire that reaches that level, and the one that takes the last dose,
+ * return an alert for the caller to deliver like a reminder.
+ *
+ * Levels are saved to {@code stock.bin} in the patient's directory (temporary file,
+ * fsync, atomic rename) when they are changed by hand, when the patient is closed
+ * and, for doses taken by reminders, by the ward's periodic checkpoint.
+ */
+public class MedicineStock {
+    public static final int DEFAULT_LEAD_DAYS = 7;
+    public static final int MAX_LEAD_DAYS = 365;
+    private static final int MAGIC = 0x5354434B; // "STCK"
+    private static final int VERSION = 1;
+
+    /**
+     * Stock and forecast inputs of one tracked medicine.
+     */
+    private static final class Level {
+        final AtomicLong onHand;
+        volatile int leadDays;
+        volatile MedicineSchedule schedule;
+        // Stock at which the low-stock alert fires, derived from schedule and lead days
+        volatile long alertAt;
+
+        Level(long onHand, int leadDays, MedicineSchedule schedule) {
+            this.onHand = new AtomicLong(onHand);
+            this.leadDays = leadDays;
+            this.schedule = schedule;
+            this.alertAt = alertLevel(schedule, leadDays);
+        }
+
+        void update(MedicineSchedule schedule, int leadDays) {
+            this.schedule = schedule;
+            this.leadDays = leadDays;
+            this.alertAt = alertLevel(schedule, leadDays);
+        }
+    }
+
+    /**
+     * Stock and refill dates of one medicine at a given moment.
+     */
+    public static final class Forecast {
+        private final long onHand;
+        private final int leadDays;
+        private final int dosesPerWeek;
+        private final LocalDate runsOut;
+        private final LocalDate reorderBy;
+        private final boolean low;
+
+        Forecast(long onHand, int leadDays, int dosesPerWeek, LocalDate runsOut, LocalDate reorderBy, boolean low) {
+            this.onHand = onHand;
+            this.leadDays = leadDays;
+            this.dosesPerWeek = dosesPerWeek;
+            this.runsOut = runsOut;
+            this.reorderBy = reorderBy;
+            this.low = low;
+        }
+
+        public long getOnHand() { return onHand; }
+        public int getLeadDays() { return leadDays; }
+        public int getDosesPerWeek() { return dosesPerWeek; }
+        /** Day of the last dose the stock covers, or null if no dose is scheduled. */
+        public LocalDate getRunsOut() { return runsOut; }
+        /** {@code leadDays} before {@link #getRunsOut}, but not before today; null if no dose is scheduled. */
+        public LocalDate getReorderBy() { return reorderBy; }
+        /** Whether it is time to reorder: the reorder date has come or the low-stock alert has fired. */
+        public boolean isLow() { return low; }
+    }
+
+    private final Map<String, Level> levels = new ConcurrentHashMap<>();
+    // Set by every change, cleared by save()
+    private volatile boolean dirty;
+
+    /**
+     * Sets the number of doses on hand and starts tracking the medicine if needed.
+     *
+     * @param schedule the medicine's current schedule (may be null)
+     * @throws IllegalArgumentException if {@code doses} is negative
+     */
+    public void set(String name, long doses, MedicineSchedule schedule) {
+        if (doses < 0) {
+            throw new IllegalArgumentException("Stock cannot be negative.");
+        }
+        Level level = levels.get(name);
+        if (level == null) {
+            levels.put(name, new Level(doses, DEFAULT_LEAD_DAYS, schedule));
+        } else {
+            level.onHand.set(doses);
+            level.update(schedule, level.leadDays);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Adds refilled doses to a tracked medicine.
+     *
+     * @return the new number of doses on hand
+     * @throws IllegalArgumentException if the medicine is not tracked or {@code doses} is not positive
+     */
+    public long refill(String name, long doses) {
+        if (doses <= 0) {
+            throw new IllegalArgumentException("Refill must add at least one dose.");
+        }
+        long total = tracked(name).onHand.addAndGet(doses);
+        dirty = true;
+        return total;
+    }
+
+    /**
+     * Sets how many days before running out a medicine counts as low.
+     *
+     * @throws IllegalArgumentException if the medicine is not tracked or the days are out of range
+     */
+    public void setLeadDays(String name, int leadDays) {
+        if (leadDays < 0 || leadDays > MAX_LEAD_DAYS) {
+            throw new IllegalArgumentException("Lead time must be between 0 and " + MAX_LEAD_DAYS + " days.");
+        }
+        Level level = tracked(name);
+        level.update(level.schedule, leadDays);
+        dirty = true;
+    }
+
+    /**
+     * Stops tracking a medicine.
+     *
+     * @return false if it was not tracked
+     */
+    public boolean untrack(String name) {
+        boolean removed = levels.remove(name) != null;
+        dirty |= removed;
+        return removed;
+    }
+
+    public boolean isTracked(String name) {
+        return levels.containsKey(name);
+    }
+
+    /**
+     * Returns the number of tracked medicines.
+     */
+    public int size() {
+        return levels.size();
+    }
+
+    /**
+     * Updates the dose pattern of a tracked medicine after its schedule changed.
+     * Untracked medicines are ignored.
+     */
+    void scheduleChanged(String name, MedicineSchedule schedule) {
+        Level level = levels.get(name);
+        if (level != null) {
+            level.update(schedule, level.leadDays);
+        }
+    }
+
+    /**
+     * Moves the stock of a renamed medicine to its new name.
+     */
+    void renamed(String oldName, String newName) {
+        Level level = levels.remove(oldName);
+        if (level != null) {
+            levels.put(newName, level);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Puts one dose of a tracked medicine back, e.g. after it was skipped.
+     *
+     * @return false if the medicine is not tracked
+     */
+    boolean restore(String name) {
+        Level level = levels.get(name);
+        if (level == null) {
+            return false;
+        }
+        level.onHand.incrementAndGet();
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Takes one dose of a tracked medicine off its stock. Called for every fired dose.
+     *
+     * @param at when the dose was due
+     * @return alert text if this dose made the medicine low or used up the stock,
+     *         otherwise null (also for untracked or already empty medicines)
+     */
+    String consume(String name, LocalDateTime at) {
+        Level level = levels.get(name);
+        if (level == null) {
+            return null;
+        }
+        long left;
+        do {
+            left = level.onHand.get();
+            if (left <= 0) {
+                return null;
+            }
+        } while (!level.onHand.compareAndSet(left, left - 1));
+        left--;
+        dirty = true;
+        MedicineMetrics.get().recordDispensed();
+        if (left == 0) {
+            MedicineMetrics.get().recordStockAlert();
+            return "out of stock, that was the last dose; refill now";
+        }
+        if (left == level.alertAt) {
+            MedicineMetrics.get().recordStockAlert();
+            Forecast forecast = forecast(name, at);
+            return "low stock, " + left + " dose(s) left"
+                    + (forecast != null && forecast.getRunsOut() != null ? ", lasting until " + forecast.getRunsOut() : "")
+                    + "; reorder now";
+        }
+        return null;
+    }
+
+    /**
+     * Returns the stock and refill dates of a medicine, or null if it is not tracked.
+     *
+     * @param now the moment to forecast from; doses due later today still count
+     */
+    public Forecast forecast(String name, LocalDateTime now) {
+        Level level = levels.get(name);
+        if (level == null) {
+            return null;
+        }
+        long onHand = level.onHand.get();
+        int leadDays = level.leadDays;
+        long alertAt = level.alertAt;
+        MedicineSchedule schedule = level.schedule;
+        LocalDate today = now.toLocalDate();
+        LocalDate runsOut = runsOut(schedule, onHand, now);
+        if (runsOut == null) {
+            return new Forecast(onHand, leadDays, 0, null, null, false);
+        }
+        LocalDate reorderBy = runsOut.minusDays(leadDays);
+        if (reorderBy.isBefore(today)) {
+            reorderBy = today;
+        }
+        return new Forecast(onHand, leadDays, dosesPerWeek(schedule), runsOut, reorderBy,
+                onHand <= alertAt || !reorderBy.isAfter(today));
+    }
+
+    /**
+     * Returns the day on which the last of {@code onHand} doses is due, counting from
+     * {@code now}, or null if the schedule has no doses or ends before the stock runs
+     * out. An empty stock runs out today.
+     */
+    static LocalDate runsOut(MedicineSchedule schedule, long onHand, LocalDateTime now) {
+        if (dosesPerWeek(schedule) == 0) {
+            return null;
+        }
+        if (onHand <= 0) {
+            return now.toLocalDate();
+        }
+        LocalDateTime last = schedule.nthDoseAfter(now, onHand);
+        return last == null ? null : last.toLocalDate();
+    }
+
+    private static int dosesPerWeek(MedicineSchedule schedule) {
+        return schedule == null ? 0 : schedule.getDosesPerWeek();
+    }
+
+    /**
+     * Stock at which a medicine has about {@code leadDays} days of doses left
+     * (rounded up), or -1 if it has no doses.
+     */
+    private static long alertLevel(MedicineSchedule schedule, int leadDays) {
+        int weekly = dosesPerWeek(schedule);
+        return weekly == 0 ? -1 : ((long) weekly * leadDays + 6) / 7;
+    }
+
+    private Level tracked(String name) {
+        Level level = levels.get(name);
+        if (level == null) {
+            throw new IllegalArgumentException("Stock of " + name + " is not tracked; set it first.");
+        }
+        return level;
+    }
+
+    // ---- Persistence ----
+
+    /**
+     * Returns true if a level changed since the last {@link #save}.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Writes every level durably: temporary file, fsync, then atomic rename over
+     * {@code file}. Changes made while saving are kept for the next save.
+     */
+    public void save(Path file) throws IOException {
+        dirty = false;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Map<String, Level> copy = Map.copyOf(levels);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Level> entry : copy.entrySet()) {
+                MedicineJournal.writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().onHand.get());
+                out.writeInt(entry.getValue().leadDays);
+            }
+            out.flush();
+            DataOutputStream trailer = new DataOutputStream(fos);
+            trailer.writeLong(crc.getValue());
+            trailer.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the levels saved in {@code file}, if it exists. Schedules are attached
+     * afterwards through {@link #scheduleChanged}.
+     *
+     * @throws IOException if the file is truncated, corrupt or of an unknown version
+     */
+    public void load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 20 || size > Integer.MAX_VALUE) {
+                throw new IOException("Stock file " + file + " has invalid size " + size);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(buffer.limit() - 8));
+        if (crc.getValue() != buffer.getLong(buffer.limit() - 8)) {
+            throw new IOException("Stock file " + file + " failed checksum verification");
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Stock file " + file + " has an unknown format");
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = MedicineJournal.readString(buffer);
+            long onHand = buffer.getLong();
+            int leadDays = buffer.getInt();
+            levels.put(name, new Level(onHand, leadDays, null));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+/**
+ * Everything that belongs to one patient: their medicines and history
+ * ({@link MedicineRegistry}), the slot index used for dose conflict resolution, the
+ * {@link DoseScheduler} holding their pending reminders with the
+ * {@link DoseWatermarks} they fired up to, the {@link MedicineStock} of their
+ * medicines and the {@link DoseLog} of taken, skipped and missed doses.
+ *
+ * Patients never share slots, so two patients may take a dose at the same minute;
+ * conflicts are only resolved between the medicines of one patient. Stores are
+ * created and looked up through a {@link Ward}.
+ */
+public class PatientStore {
+    private static final String STOCK_FILE = "stock.bin";
+    private static final String DOSE_LOG_FILE = "doses.log";
+
+    private final String id;
+    private final EngineClock clock;
+    private final MedicineRegistry registry = new MedicineRegistry();
+    private final SlotIndex slots = new SlotIndex();
+    private final DoseScheduler scheduler;
+    private final MedicineStock stock = new MedicineStock();
+    private final DoseLog doses = new DoseLog();
+    private final DoseWatermarks fired;
+    // Journal persisting this patient's changes (null if kept in memory only)
+    private MedicineJournal journal;
+    // File the stock is saved to (null if kept in memory only)
+    private volatile Path stockFile;
+
+    /**
+     * @param id               patient id
+     * @param namedInReminders whether reminders should mention the patient id
+     */
+    PatientStore(String id, boolean namedInReminders) {
+        this(id, namedInReminders, EngineClock.SYSTEM);
+    }
+
+    /**
+     * @param id               patient id
+     * @param namedInReminders whether reminders should mention the patient id
+     * @param clock            time source of the patient's reminders and dose confirmations
+     */
+    PatientStore(String id, boolean namedInReminders, EngineClock clock) {
+        this(id, namedInReminders, clock, new DoseWatermarks());
+    }
+
+    /**
+     * @param id               patient id
+     * @param namedInReminders whether reminders should mention the patient id
+     * @param clock            time source of the patient's reminders and dose confirmations
+     * @param fired            watermarks shared by the ward, which keeps them open
+     */
+    PatientStore(String id, boolean namedInReminders, EngineClock clock, DoseWatermarks fired) {
+        this.id = id;
+        this.clock = clock;
+        this.fired = fired;
+        this.scheduler = new DoseScheduler(namedInReminders ? id : null, clock);
+        this.scheduler.setStock(stock);
+        this.scheduler.setDoseLog(doses);
+        this.scheduler.setWatermarks(fired, id);
+    }
+
+    public String getId() { return id; }
+    public MedicineRegistry getRegistry() { return registry; }
+    /** Slot index holding every occupied day/time of this patient. */
+    public SlotIndex getSlots() { return slots; }
+    public DoseScheduler getScheduler() { return scheduler; }
+    public MedicineJournal getJournal() { return journal; }
+    public MedicineStock getStock() { return stock; }
+    public DoseLog getDoses() { return doses; }
+    /** Time each scheduled medicine has fired up to, shared with the ward's other patients. */
+    public DoseWatermarks getWatermarks() { return fired; }
+
+    /**
+     * Recovers this patient's medicines and history from a data directory and keeps
+     * journaling to it. Must be called before the store is used.
+     */
+    void open(Path dataDir) throws IOException {
+        journal = MedicineJournal.open(dataDir, registry);
+        stockFile = dataDir.resolve(STOCK_FILE);
+        stock.load(stockFile);
+        doses.open(dataDir.resolve(DOSE_LOG_FILE));
+        rearm(); // also hands the schedules to the stock
+    }
+
+    /**
+     * Saves the stock if it changed since it was last saved. Failures are reported
+     * on the console and retried on the next call.
+     */
+    public void saveStock() {
+        Path file = stockFile;
+        if (file == null || !stock.isDirty()) {
+            return;
+        }
+        try {
+            stock.save(file);
+        } catch (IOException e) {
+            System.out.println(Medicine.RED + "Could not save the stock of patient " + id + ": " + e.getMessage() + Medicine.RESET);
+        }
+    }
+
+    /**
+     * Records the outcome of the oldest pending dose of a medicine. A skipped dose
+     * goes back into the stock it was taken from when its reminder fired.
+     *
+     * @throws IllegalArgumentException if no dose of the medicine is pending
+     */
+    public DoseLog.Dose confirmDose(String medicineName, DoseLog.Outcome outcome) {
+        DoseLog.Dose dose = doses.confirm(medicineName, outcome, clock.millis());
+        if (outcome == DoseLog.Outcome.SKIPPED && stock.restore(medicineName)) {
+            saveStock();
+        }
+        return dose;
+    }
+
+    /**
+     * Moves the stock and pending doses of a renamed medicine to its new name. Call
+     * after the registry rename and before scheduling the new name.
+     */
+    public void medicineRenamed(String oldName, String newName) {
+        stock.renamed(oldName, newName);
+        doses.renamed(oldName, newName);
+        saveStock();
+    }
+
+    /**
+     * Stops tracking the stock and pending doses of a deleted medicine.
+     */
+    public void medicineRemoved(String medicineName) {
+        doses.forget(medicineName);
+        if (stock.untrack(medicineName)) {
+            saveStock();
+        }
+    }
+
+    /**
+     * Reserves slots and schedules reminders for every registered medicine, e.g.
+     * after the registry has been restored from disk. Reminders resume from each
+     * medicine's watermark, so doses due while the patient was not loaded still fire.
+     */
+    void rearm() {
+        for (MedicineRegistry.Entry entry : registry.entries()) {
+            MedicineSchedule schedule = entry.getSchedule();
+            if (schedule != null) {
+                schedule.reserveSlots(slots);
+                scheduler.resume(entry.getName(), schedule);
+            }
+        }
+    }
+
+    /**
+     * Replaces every medicine, schedule and history event with a copy received from
+     * a primary, releasing the old slots and reminders first.
+     */
+    void replaceState(MedicineSnapshot state) {
+        for (MedicineRegistry.Entry entry : registry.entries()) {
+            if (entry.getSchedule() != null) {
+                entry.getSchedule().releaseSlots(slots);
+            }
+            scheduler.cancel(entry.getName());
+        }
+        registry.clear();
+        state.applyTo(registry);
+        rearm();
+    }
+
+    /**
+     * Applies one change made on a primary to the registry, slots and reminders,
+     * keeping the primary's timestamp in history.
+     *
+     * @throws IllegalArgumentException if the change does not fit the current state
+     */
+    void applyReplicated(ChangeBus.Kind kind, long timestamp, String name, String newName, MedicineSchedule schedule) {
+        MedicineSchedule previous = registry.getSchedule(name);
+        if (kind == ChangeBus.Kind.ADDED && registry.contains(name)) {
+            throw new IllegalArgumentException("Medicine " + name + " already exists.");
+        }
+        switch (kind) {
+            case ADDED:
+                registry.replay(MedicineJournal.ADD, timestamp, name, null, schedule);
+                break;
+            case REMOVED:
+                registry.replay(MedicineJournal.REMOVE, timestamp, name, null, null);
+                break;
+            case RENAMED:
+                registry.replay(MedicineJournal.RENAME, timestamp, name, newName, schedule);
+                break;
+            default:
+                registry.replay(MedicineJournal.REPLACE, timestamp, name, null, schedule);
+        }
+        if (previous != null && kind != ChangeBus.Kind.ADDED) {
+            previous.releaseSlots(slots);
+        }
+        if (kind == ChangeBus.Kind.REMOVED || kind == ChangeBus.Kind.RENAMED) {
+            scheduler.cancel(name);
+        }
+        String current = kind == ChangeBus.Kind.RENAMED ? newName : name;
+        if (schedule != null && kind != ChangeBus.Kind.REMOVED) {
+            schedule.reserveSlots(slots);
+            scheduler.schedule(current, schedule);
+        }
+    }
+
+    /**
+     * Re-queues every medicine's reminders with their first dose after {@code after},
+     * so doses that came due since then fire on the next pass.
+     */
+    void resumeReminders(LocalDateTime after) {
+        for (MedicineRegistry.Entry entry : registry.entries()) {
+            if (entry.getSchedule() != null) {
+                scheduler.schedule(entry.getName(), entry.getSchedule(), after);
+            }
+        }
+    }
+
+    /**
+     * Saves the stock, closes the dose log and flushes and snapshots the journal, if
+     * any. The watermarks are closed by the ward.
+     */
+    void close() throws IOException {
+        saveStock();
+        doses.close();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+}
@@ -0,0 +1,475 @@
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How often a medicine repeats beyond "these weekdays every week": every N hours,
+ * every N days or every N weeks, from a start date and optionally until a date or
+ * for a number of doses. Rules are immutable and are written as short phrases, e.g.
+ * {@code every 8 hours from 2026-10-16 08:00}, {@code every other day for 10 days}
+ * or {@code every 2 weeks from 2026-11-02 until 2026-12-31}; {@link #toString} gives
+ * the canonical phrase that {@link #parse} reads back.
+ *
+ * A rule only says which days (and, for hours, which times) doses fall on; the dose
+ * times of a daily or weekly rule and the weekdays of a weekly one come from the
+ * {@link MedicineSchedule} it belongs to. The schedule's days and times are the
+ * weekly slots its doses may use, and the rule picks which of them are due.
+ *
+ * Every rule, and every plain weekly schedule, boils down to a {@link Timeline}: a
+ * period, the minutes within one period at which doses fall, and where the first
+ * period starts. Finding the next dose, counting doses in a range or finding the n-th
+ * dose from now is then division and a binary search over one period, whatever the
+ * distance in time, so nothing ever walks the calendar day by day.
+ */
+public final class RecurrenceRule {
+    private static final int MINUTES_PER_DAY = SlotIndex.MINUTES_PER_DAY;
+    private static final int MINUTES_PER_WEEK = SlotIndex.MINUTES_PER_WEEK;
+    // Largest N of "every N hours/days/weeks" and of "for N doses/days/weeks"
+    static final int MAX_INTERVAL = 1_000;
+    static final int MAX_COUNT = 100_000;
+    private static final String EXAMPLES =
+            "Use e.g. 'every 8 hours', 'every other day for 10 days' or 'every 2 weeks from 2026-11-02 until 2026-12-31'.";
+
+    /**
+     * Unit of a rule's interval.
+     */
+    public enum Unit {
+        HOURS(60, "hour"),
+        DAYS(MINUTES_PER_DAY, "day"),
+        WEEKS(MINUTES_PER_WEEK, "week");
+
+        private final int minutes;
+        private final String word;
+
+        Unit(int minutes, String word) {
+            this.minutes = minutes;
+            this.word = word;
+        }
+
+        /**
+         * Returns the unit named e.g. "hour", "hours" or "h" (lower case), or null.
+         */
+        static Unit parse(String text) {
+            for (Unit unit : values()) {
+                if (text.equals(unit.word) || text.equals(unit.word + "s") || text.equals(unit.word.substring(0, 1))) {
+                    return unit;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Unit unit;
+    private final int interval;
+    // First day of the rule; for hours also the time of the first dose
+    private final LocalDateTime from;
+    // Last day on which doses may fall, or null
+    private final LocalDate until;
+    // Most doses the rule gives, or 0 for no limit
+    private final int count;
+
+    RecurrenceRule(Unit unit, int interval, LocalDateTime from, LocalDate until, int count) {
+        if (interval < 1 || interval > MAX_INTERVAL) {
+            throw new IllegalArgumentException("The interval must be between 1 and " + MAX_INTERVAL + ".");
+        }
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("The number of doses must be between 1 and " + MAX_COUNT + ".");
+        }
+        if (until != null && until.isBefore(from.toLocalDate())) {
+            throw new IllegalArgumentException("The rule ends on " + until + ", before it starts on " + from.toLocalDate() + ".");
+        }
+        this.unit = unit;
+        this.interval = interval;
+        this.from = unit == Unit.HOURS ? from : from.toLocalDate().atStartOfDay();
+        this.until = until;
+        this.count = count;
+    }
+
+    public Unit getUnit() { return unit; }
+    public int getInterval() { return interval; }
+    /** First day of the rule; for a rule in hours also the time of its first dose. */
+    public LocalDateTime getFrom() { return from; }
+    /** Last day doses may fall on, or null if the rule has no end date. */
+    public LocalDate getUntil() { return until; }
+    /** Most doses the rule gives, or 0 if there is no limit. */
+    public int getCount() { return count; }
+
+    /**
+     * Returns this rule with its first dose at the given minute of the start day.
+     * Only rules in hours have a start time; other rules are returned unchanged.
+     */
+    RecurrenceRule startingAt(int minuteOfDay) {
+        if (unit != Unit.HOURS) {
+            return this;
+        }
+        return new RecurrenceRule(unit, interval, from.toLocalDate().atTime(minuteOfDay / 60, minuteOfDay % 60), until, count);
+    }
+
+    /**
+     * Returns the weekdays doses of this rule may fall on, as a day bitmask:
+     * {@code chosenDays} for a weekly rule; for other rules every day, or only the
+     * start day when the interval is a whole number of weeks.
+     */
+    int dayMask(int chosenDays) {
+        if (unit == Unit.WEEKS) {
+            return chosenDays;
+        }
+        return period() % MINUTES_PER_WEEK == 0 ? 1 << (from.getDayOfWeek().getValue() - 1) : 0x7F;
+    }
+
+    /**
+     * Returns the times of day doses of a rule in hours may fall on, ascending: the
+     * start time and every multiple of gcd(interval, 24 hours) away from it.
+     */
+    int[] minutesOfDay() {
+        int step = step();
+        int first = from.getHour() * 60 + from.getMinute();
+        int[] minutes = new int[MINUTES_PER_DAY / step];
+        for (int i = 0; i < minutes.length; i++) {
+            minutes[i] = (first + i * step) % MINUTES_PER_DAY;
+        }
+        Arrays.sort(minutes);
+        return minutes;
+    }
+
+    /**
+     * Distance between the times of {@link #minutesOfDay}, in minutes.
+     */
+    int step() {
+        return gcd((int) Math.min(period(), Integer.MAX_VALUE), MINUTES_PER_DAY);
+    }
+
+    private long period() {
+        return (long) interval * unit.minutes;
+    }
+
+    /**
+     * Returns the timeline of this rule for a schedule's days and dose times.
+     */
+    Timeline timeline(int dayMask, short[] minutes) {
+        long end = until == null ? Timeline.NONE : (until.toEpochDay() + 1) * MINUTES_PER_DAY;
+        long limit = count == 0 ? Long.MAX_VALUE : count;
+        long start = toMinute(from);
+        switch (unit) {
+            case HOURS:
+                return new Timeline(start, period(), new int[] {0}, start, end, limit);
+            case DAYS:
+                int[] offsets = new int[minutes.length];
+                for (int i = 0; i < minutes.length; i++) {
+                    offsets[i] = minutes[i];
+                }
+                return new Timeline(start, period(), offsets, start, end, limit);
+            default:
+                LocalDate monday = from.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                return new Timeline(monday.toEpochDay() * MINUTES_PER_DAY, period(), weekOffsets(dayMask, minutes),
+                        start, end, limit);
+        }
+    }
+
+    /**
+     * Returns the timeline of a plain weekly schedule: the given days and times of
+     * every week, without start or end.
+     */
+    static Timeline weekly(int dayMask, short[] minutes) {
+        return new Timeline(Timeline.FIRST_MONDAY, MINUTES_PER_WEEK, weekOffsets(dayMask, minutes),
+                Timeline.FIRST_MONDAY, Timeline.NONE, Long.MAX_VALUE);
+    }
+
+    private static int[] weekOffsets(int dayMask, short[] minutes) {
+        int[] offsets = new int[Integer.bitCount(dayMask) * minutes.length];
+        int i = 0;
+        for (int day = 0; day < 7; day++) {
+            if ((dayMask & (1 << day)) != 0) {
+                for (short minute : minutes) {
+                    offsets[i++] = day * MINUTES_PER_DAY + minute;
+                }
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns e.g. "every 8 hours from 2026-10-16 08:00 until 2026-10-25 for 20 doses".
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("every ");
+        if (interval == 1) {
+            sb.append(unit.word);
+        } else {
+            sb.append(interval).append(' ').append(unit.word).append('s');
+        }
+        sb.append(" from ").append(from.toLocalDate());
+        if (unit == Unit.HOURS) {
+            sb.append(' ').append(MedicineSchedule.formatTime(from.getHour() * 60 + from.getMinute()));
+        }
+        if (until != null) {
+            sb.append(" until ").append(until);
+        }
+        if (count > 0) {
+            sb.append(" for ").append(count).append(count == 1 ? " dose" : " doses");
+        }
+        return sb.toString();
+    }
+
+    // ---- Parsing ----
+
+    /**
+     * Parses a rule such as "every 8 hours", "every other day for 10 days starting
+     * Tuesday", "daily until 2026-12-31" or "for 30 doses" (weekly on the chosen
+     * days). Start and end dates are yyyy-MM-dd, "today", "tomorrow" or a weekday
+     * (the next one from today, or today); the start defaults to today.
+     *
+     * @return the rule, or null if the text is blank
+     * @throws IllegalArgumentException if the text is not a valid rule
+     */
+    public static RecurrenceRule parse(String text, LocalDate today) {
+        String[] words = text.trim().toLowerCase(Locale.ROOT).replace(',', ' ').split("\\s+");
+        if (words.length == 1 && words[0].isEmpty()) {
+            return null;
+        }
+        Unit unit = null;
+        int interval = 1;
+        LocalDate fromDate = null;
+        int fromMinute = -1;
+        LocalDate until = null;
+        int forLength = 0;
+        Unit forUnit = null;
+        int count = 0;
+        int i = 0;
+        while (i < words.length) {
+            String word = words[i++];
+            switch (word) {
+                case "hourly":
+                case "daily":
+                case "weekly":
+                case "every":
+                    if (unit != null) {
+                        throw new IllegalArgumentException("Give only one 'every ...'. " + EXAMPLES);
+                    }
+                    if (!word.equals("every")) {
+                        unit = Unit.parse(word.equals("daily") ? "day" : word.substring(0, word.length() - 2));
+                        break;
+                    }
+                    String next = word(words, i++, "every");
+                    if (next.equals("other")) {
+                        interval = 2;
+                        next = word(words, i++, "every other");
+                    } else if (Character.isDigit(next.charAt(0))) {
+                        interval = number(next);
+                        next = word(words, i++, "every " + next);
+                    }
+                    unit = Unit.parse(next);
+                    if (unit == null) {
+                        throw new IllegalArgumentException("Unknown unit '" + next + "', use hours, days or weeks.");
+                    }
+                    break;
+                case "from":
+                case "starting":
+                case "start":
+                    fromDate = date(word(words, i++, word), today);
+                    if (i < words.length && MedicineSchedule.parseTime(words[i]) >= 0) {
+                        fromMinute = MedicineSchedule.parseTime(words[i++]);
+                    }
+                    break;
+                case "until":
+                case "till":
+                case "to":
+                    until = date(word(words, i++, word), today);
+                    break;
+                case "for":
+                    int length = number(word(words, i++, "for"));
+                    String what = word(words, i++, "for " + length);
+                    if (what.equals("dose") || what.equals("doses")) {
+                        if (length < 1) {
+                            throw new IllegalArgumentException("The number of doses must be between 1 and " + MAX_COUNT + ".");
+                        }
+                        count = length;
+                    } else if (Unit.parse(what) == Unit.DAYS || Unit.parse(what) == Unit.WEEKS) {
+                        forLength = length;
+                        forUnit = Unit.parse(what);
+                    } else {
+                        throw new IllegalArgumentException("Use 'for N days', 'for N weeks' or 'for N doses'.");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Could not understand '" + word + "'. " + EXAMPLES);
+            }
+        }
+        if (unit == null) {
+            unit = Unit.WEEKS; // bounds only: the chosen weekdays of every week
+        }
+        if (fromDate == null) {
+            fromDate = today;
+        }
+        if (fromMinute >= 0 && unit != Unit.HOURS) {
+            throw new IllegalArgumentException("A start time only applies to 'every N hours'; the dose times are asked for separately.");
+        }
+        if (forUnit != null) {
+            if (until != null) {
+                throw new IllegalArgumentException("Give either 'until' or 'for N days', not both.");
+            }
+            if (forLength < 1 || forLength > MAX_COUNT) {
+                throw new IllegalArgumentException("The length must be between 1 and " + MAX_COUNT + " " + forUnit.word + "s.");
+            }
+            until = fromDate.plusDays((long) forLength * (forUnit == Unit.WEEKS ? 7 : 1) - 1);
+        }
+        return new RecurrenceRule(unit, interval, fromDate.atTime(Math.max(fromMinute, 0) / 60, Math.max(fromMinute, 0) % 60),
+                until, count);
+    }
+
+    private static String word(String[] words, int i, String after) {
+        if (i >= words.length) {
+            throw new IllegalArgumentException("Incomplete rule after '" + after + "'. " + EXAMPLES);
+        }
+        return words[i];
+    }
+
+    private static int number(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number but found '" + text + "'. " + EXAMPLES);
+        }
+    }
+
+    private static LocalDate date(String text, LocalDate today) {
+        if (text.equals("today")) {
+            return today;
+        }
+        if (text.equals("tomorrow")) {
+            return today.plusDays(1);
+        }
+        DayOfWeek day = MedicineSchedule.parseDay(text);
+        if (day != null) {
+            return today.with(TemporalAdjusters.nextOrSame(day));
+        }
+        try {
+            return LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date '" + text + "', use yyyy-MM-dd, today, tomorrow or a weekday.");
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // ---- Time arithmetic ----
+
+    /**
+     * Converts a date and time to minutes since 1970-01-01 00:00 (local time, no zone).
+     */
+    static long toMinute(LocalDateTime time) {
+        return time.toLocalDate().toEpochDay() * MINUTES_PER_DAY + time.getHour() * 60 + time.getMinute();
+    }
+
+    static LocalDateTime toDateTime(long minute) {
+        int minuteOfDay = (int) Math.floorMod(minute, (long) MINUTES_PER_DAY);
+        return LocalDate.ofEpochDay(Math.floorDiv(minute, MINUTES_PER_DAY)).atTime(minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    /**
+     * The doses of a schedule as points in time, in minutes since 1970-01-01 00:00:
+     * {@code anchor + k * period + offset} for every period k and every offset, kept
+     * from {@code start} (inclusive) to {@code end} (exclusive) and up to
+     * {@code limit} of them. Dose number j (from 0) is therefore found directly from
+     * j, and the number of doses before a moment from the moment, so every query
+     * costs a division and a binary search over the offsets of one period.
+     */
+    static final class Timeline {
+        /** No such dose. */
+        static final long NONE = Long.MAX_VALUE;
+        // Monday 1970-01-05, the anchor of plain weekly schedules
+        static final long FIRST_MONDAY = 4L * MINUTES_PER_DAY;
+
+        private final long anchor;
+        private final long period;
+        // Minutes from the start of a period at which doses fall, ascending
+        private final int[] offsets;
+        private final long start;
+        private final long end;
+        private final long limit;
+        // Doses of the first period that fall before the start
+        private final long skipped;
+        private final long endIndex;
+
+        Timeline(long anchor, long period, int[] offsets, long start, long end, long limit) {
+            this.anchor = anchor;
+            this.period = period;
+            this.offsets = offsets;
+            this.start = start;
+            this.end = end;
+            this.limit = limit;
+            this.skipped = offsets.length == 0 ? 0 : patternIndex(start);
+            this.endIndex = offsets.length == 0 || end == NONE ? Long.MAX_VALUE : patternIndex(end) - skipped;
+        }
+
+        /**
+         * Returns the number of doses before {@code minute}.
+         */
+        long countBefore(long minute) {
+            if (offsets.length == 0 || minute <= start) {
+                return 0;
+            }
+            long n = minute >= end ? endIndex : patternIndex(minute) - skipped;
+            return Math.min(n, limit);
+        }
+
+        /**
+         * Returns dose number {@code index} (from 0), or {@link #NONE}.
+         */
+        long occurrence(long index) {
+            if (index < 0 || index >= limit || index >= endIndex || offsets.length == 0) {
+                return NONE;
+            }
+            long p = index + skipped;
+            long k = p / offsets.length;
+            if (k > (Long.MAX_VALUE / 2 - anchor) / period) {
+                return NONE; // beyond any representable date
+            }
+            return anchor + k * period + offsets[(int) (p % offsets.length)];
+        }
+
+        /**
+         * Returns the first dose strictly after {@code minute}, or {@link #NONE}.
+         */
+        long nextAfter(long minute) {
+            return minute == NONE ? NONE : occurrence(countBefore(minute + 1));
+        }
+
+        /**
+         * Returns true if a dose falls on {@code minute}.
+         */
+        boolean isOccurrence(long minute) {
+            return nextAfter(minute - 1) == minute;
+        }
+
+        /**
+         * Average number of doses per week, ignoring start and end.
+         */
+        double perWeek() {
+            return (double) offsets.length * MINUTES_PER_WEEK / period;
+        }
+
+        /**
+         * Number of pattern points in [anchor, minute), for minute &gt;= anchor.
+         */
+        private long patternIndex(long minute) {
+            long relative = minute - anchor;
+            long k = relative / period;
+            int within = (int) (relative - k * period);
+            int i = Arrays.binarySearch(offsets, within);
+            return k * offsets.length + (i >= 0 ? i : -i - 1);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers due-dose reminders and stock alerts asynchronously, so printing, logging
+ * or calling a webhook never delays the reminder engine.
+ *
+ * The engine only hands each reminder to {@link #offer}, which puts it on one
+ * {@link BoundedQueue} per sink and returns without blocking. Every sink has its own
+ * worker thread that drains its queue in batches of up to {@code batchSize} and
+ * retries a failed batch with exponential backoff. When a sink falls so far behind
+ * that its queue is full, the {@link OverflowPolicy} decides which reminder is
+ * dropped; drops, retries, failures and the time reminders spend queued are
+ * recorded in {@link MedicineMetrics}.
+ */
+public class ReminderPipeline {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    /** A dose fired this long or longer after it was due is marked late. */
+    public static final long LATE_MILLIS = 60_000;
+    // Attempts per batch before it is given up
+    static final int MAX_ATTEMPTS = 5;
+    static final long INITIAL_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 5_000;
+    // Idle workers re-check their queue at least this often
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Producers waiting for room re-check the queues this often
+    private static final long ROOM_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * What to do with a reminder when a sink's queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Keep the queued reminders and drop the new one. */
+        DROP_NEWEST,
+        /** Drop the oldest queued reminder to make room for the new one. */
+        DROP_OLDEST
+    }
+
+    /**
+     * One due dose, or one stock alert raised by a dose, on its way to the sinks.
+     */
+    public static final class Reminder {
+        private final String patientId;
+        private final String medicineName;
+        private final LocalDateTime doseTime;
+        private final long scheduledMillis;
+        private final long firedMillis;
+        private final String alert;
+        private final long enqueuedNanos;
+
+        Reminder(String patientId, String medicineName, LocalDateTime doseTime, long scheduledMillis, long firedMillis,
+                 String alert) {
+            this.patientId = patientId;
+            this.medicineName = medicineName;
+            this.doseTime = doseTime;
+            this.scheduledMillis = scheduledMillis;
+            this.firedMillis = firedMillis;
+            this.alert = alert;
+            this.enqueuedNanos = System.nanoTime();
+        }
+
+        /** Patient the dose belongs to, or null in a single-patient setup. */
+        public String getPatientId() { return patientId; }
+        public String getMedicineName() { return medicineName; }
+        public LocalDateTime getDoseTime() { return doseTime; }
+        /** When the dose was due, in epoch millis. */
+        public long getScheduledMillis() { return scheduledMillis; }
+        /** When the engine fired the dose, in epoch millis of the engine's {@link EngineClock}. */
+        public long getFiredMillis() { return firedMillis; }
+        /** Whether this is a stock alert rather than a dose reminder. */
+        public boolean isAlert() { return alert != null; }
+        /** Whether the dose fired {@link #LATE_MILLIS} or more after it was due, e.g. after a restart. */
+        public boolean isLate() { return firedMillis - scheduledMillis >= LATE_MILLIS; }
+
+        /**
+         * Returns e.g. "It's time to take your medicine: aspirin (patient bob) at 08:00",
+         * for a late dose "... aspirin (patient bob), due at 08:00 on 2026-03-02 (late)", or for
+         * an alert "Stock alert: aspirin (patient bob): low stock, ...".
+         */
+        public String message() {
+            String label = patientId == null ? medicineName : medicineName + " (patient " + patientId + ")";
+            if (alert != null) {
+                return "Stock alert: " + label + ": " + alert;
+            }
+            String time = MedicineSchedule.formatTime(doseTime.getHour() * 60 + doseTime.getMinute());
+            if (isLate()) {
+                return "It's time to take your medicine: " + label + ", due at " + time + " on "
+                        + doseTime.toLocalDate() + " (late)";
+            }
+            return "It's time to take your medicine: " + label + " at " + time;
+        }
+    }
+
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+    private final List<Channel> channels = new ArrayList<>();
+    private volatile boolean running;
+    private boolean started;
+
+    /**
+     * @param capacity  reminders each sink may have queued
+     * @param batchSize most reminders handed to a sink in one call
+     * @param policy    what to drop when a sink's queue is full
+     */
+    public ReminderPipeline(int capacity, int batchSize, OverflowPolicy policy) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a sink. Sinks must be added before {@link #start}.
+     */
+    public synchronized void addSink(ReminderSink sink) {
+        if (started) {
+            throw new IllegalStateException("Sinks must be added before the pipeline starts.");
+        }
+        channels.add(new Channel(sink, new BoundedQueue<>(capacity)));
+    }
+
+    /**
+     * Starts one daemon worker per sink. Calling it twice has no effect.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        running = true;
+        for (Channel channel : channels) {
+            Thread worker = new Thread(channel, "reminders-" + channel.sink.name());
+            worker.setDaemon(true);
+            channel.worker = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a reminder for every sink without blocking.
+     *
+     * @return false if a sink's queue was full and a reminder had to be dropped
+     */
+    public boolean offer(String patientId, String medicineName, LocalDateTime doseTime, long scheduledMillis,
+                         long firedMillis) {
+        return offer(new Reminder(patientId, medicineName, doseTime, scheduledMillis, firedMillis, null));
+    }
+
+    /**
+     * Queues a stock alert raised by the dose due at {@code doseTime}, like a reminder.
+     *
+     * @return false if a sink's queue was full and a reminder had to be dropped
+     */
+    public boolean offerAlert(String patientId, String medicineName, LocalDateTime doseTime, long scheduledMillis,
+                              long firedMillis, String alert) {
+        return offer(new Reminder(patientId, medicineName, doseTime, scheduledMillis, firedMillis, alert));
+    }
+
+    private boolean offer(Reminder reminder) {
+        MedicineMetrics.get().recordEnqueued();
+        boolean accepted = true;
+        for (Channel channel : channels) {
+            accepted &= channel.offer(reminder);
+        }
+        return accepted;
+    }
+
+    /**
+     * Returns how many reminders can be offered without dropping one, once
+     * {@link #awaitRoom} has returned true.
+     */
+    public int room() {
+        return Math.max(1, capacity / 2);
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} until every sink's queue is at most half full,
+     * so a burst of overdue doses can be handed over without dropping any.
+     *
+     * @return false if a sink was still more than half full at the deadline
+     */
+    public boolean awaitRoom(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Channel channel : channels) {
+            while (channel.queue.size() > capacity - room()) {
+                if (!running || System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, ROOM_PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of reminders waiting over all sinks.
+     */
+    public int queued() {
+        int total = 0;
+        for (Channel channel : channels) {
+            total += channel.queue.size();
+        }
+        return total;
+    }
+
+    /**
+     * Stops accepting work, gives the workers up to {@code timeoutMillis} to deliver
+     * what is queued, then closes the sinks. Reminders still queued after that are
+     * counted as dropped.
+     */
+    public void close(long timeoutMillis) {
+        List<Channel> stopping;
+        synchronized (this) {
+            running = false;
+            stopping = new ArrayList<>(channels);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Channel channel : stopping) {
+            Thread worker = channel.worker;
+            if (worker == null) {
+                continue;
+            }
+            LockSupport.unpark(worker);
+            try {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.isAlive()) {
+                worker.interrupt(); // cut short a backoff that outlived the deadline
+                try {
+                    worker.join(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        for (Channel channel : stopping) {
+            int left = 0;
+            while (channel.queue.poll() != null) {
+                left++;
+            }
+            MedicineMetrics.get().recordDropped(left);
+            try {
+                channel.sink.close();
+            } catch (Exception e) {
+                System.out.println(Medicine.RED + "Could not close reminder sink " + channel.sink.name() + ": " + e.getMessage() + Medicine.RESET);
+            }
+        }
+    }
+
+    /**
+     * One sink with its queue and worker.
+     */
+    private final class Channel implements Runnable {
+        final ReminderSink sink;
+        final BoundedQueue<Reminder> queue;
+        volatile Thread worker;
+        // Set while the worker is about to park, so producers only unpark it then
+        private volatile boolean idle;
+        // Whether the last batch failed for good, so failures are reported once
+        private boolean failing;
+        private volatile boolean overflowReported;
+
+        Channel(ReminderSink sink, BoundedQueue<Reminder> queue) {
+            this.sink = sink;
+            this.queue = queue;
+        }
+
+        boolean offer(Reminder reminder) {
+            if (queue.offer(reminder)) {
+                wakeWorker();
+                return true;
+            }
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                do {
+                    if (queue.poll() != null) {
+                        MedicineMetrics.get().recordDropped(1);
+                    }
+                } while (!queue.offer(reminder));
+                wakeWorker();
+            } else {
+                MedicineMetrics.get().recordDropped(1);
+            }
+            if (!overflowReported) {
+                overflowReported = true;
+                System.out.println(Medicine.RED + "Reminder sink " + sink.name() + " is falling behind; dropping "
+                        + (policy == OverflowPolicy.DROP_OLDEST ? "the oldest" : "new") + " reminders." + Medicine.RESET);
+            }
+            return false;
+        }
+
+        private void wakeWorker() {
+            if (idle) {
+                LockSupport.unpark(worker);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Reminder> batch = new ArrayList<>(batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                Reminder reminder;
+                while (batch.size() < batchSize && (reminder = queue.poll()) != null) {
+                    batch.add(reminder);
+                }
+                if (batch.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    // Announce the park before re-checking, so an offer in between is seen
+                    idle = true;
+                    if (queue.size() == 0 && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                deliver(batch);
+                batch.clear();
+            }
+        }
+
+        /**
+         * Hands a batch to the sink, retrying with exponential backoff.
+         */
+        private void deliver(List<Reminder> batch) {
+            MedicineMetrics metrics = MedicineMetrics.get();
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sink.deliver(batch);
+                    long now = System.nanoTime();
+                    for (Reminder reminder : batch) {
+                        metrics.recordDelivered(TimeUnit.NANOSECONDS.toMillis(now - reminder.enqueuedNanos));
+                    }
+                    if (failing) {
+                        failing = false;
+                        System.out.println(Medicine.GREEN + "Reminder sink " + sink.name() + " is delivering again." + Medicine.RESET);
+                    }
+                    return;
+                } catch (Exception e) {
+                    if (attempt < MAX_ATTEMPTS && !Thread.currentThread().isInterrupted()) {
+                        metrics.recordRetry();
+                        try {
+                            Thread.sleep(backoff);
+                            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                            continue;
+                        } catch (InterruptedException interrupted) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    metrics.recordFailed(batch.size());
+                    if (!failing) {
+                        failing = true;
+                        System.out.println(Medicine.RED + "Could not deliver " + batch.size() + " reminder(s) to "
+                                + sink.name() + ": " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName())
+                                + Medicine.RESET);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination for dose reminders, e.g. the console, a log file or a webhook.
+ *
+ * Each sink is called by its own worker thread of a {@link ReminderPipeline}, so an
+ * implementation needs no locking of its own and a slow sink only delays itself.
+ */
+public interface ReminderSink {
+
+    /**
+     * Short name used for the worker thread and in error messages.
+     */
+    String name();
+
+    /**
+     * Delivers a batch of reminders, in order. Throwing makes the pipeline retry the
+     * whole batch after a backoff, so delivery should be all or nothing where the
+     * destination allows it.
+     */
+    void deliver(List<ReminderPipeline.Reminder> batch) throws IOException;
+
+    /**
+     * Releases the sink's resources once the pipeline has stopped.
+     */
+    default void close() throws IOException {
+    }
+}
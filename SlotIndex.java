@@ -0,0 +1,450 @@
+import java.time.DayOfWeek;
+
+/**
+ * Occupied dose windows of one patient, used for dose conflict resolution.
+ *
+ * Every placed dose is a point on the week (minute 0 = Monday 00:00) together with
+ * the minimum spacing its medicine wants to every other dose. Two doses conflict
+ * when they are closer than the larger of their two spacings, so a medicine that
+ * must be taken two hours apart from everything else keeps other doses out of a
+ * window of &plusmn;2 hours, while ordinary doses only need to be
+ * {@link #DEFAULT_SPACING} minutes apart. Windows reach across midnight and wrap
+ * around the end of the week.
+ *
+ * The windows live in an interval tree: a treap ordered by dose minute where every
+ * node knows the extent of the windows below it and whether they form one solid
+ * run. Finding the first free minute past a conflict skips a whole run of
+ * back-to-back windows at once, so a dense calendar costs O(log n) per run instead
+ * of one probe per taken slot. The index only grows with the number of doses, not
+ * with the length of the week.
+ */
+public class SlotIndex {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int DAYS_PER_WEEK = 7;
+    public static final int MINUTES_PER_WEEK = DAYS_PER_WEEK * MINUTES_PER_DAY;
+    /** Spacing of medicines that do not ask for one, in minutes. */
+    public static final int DEFAULT_SPACING = 10;
+    /** Largest spacing a medicine may ask for, in minutes. */
+    public static final int MAX_SPACING = 12 * 60;
+
+    // Returned by conflictAt() when a minute is free
+    private static final int FREE = Integer.MIN_VALUE;
+
+    /**
+     * One or more doses at the same minute of week with the same spacing. The dose
+     * blocks the minutes {@code minute - spacing + 1} to {@code minute + spacing - 1}.
+     */
+    private static final class Node {
+        final int minute;
+        final int spacing;
+        final int priority;
+        int count = 1;
+        Node left;
+        Node right;
+        // Over this subtree: smallest and largest dose minute, first and last
+        // blocked minute, and whether every minute in between is blocked
+        int minMinute;
+        int maxMinute;
+        int from;
+        int to;
+        boolean solid;
+
+        Node(int minute, int spacing, int priority) {
+            this.minute = minute;
+            this.spacing = spacing;
+            this.priority = priority;
+            update(this);
+        }
+    }
+
+    private Node root;
+    private int size;
+    private int seed = 0x2545F491;
+
+    /**
+     * Returns true if a dose with the given spacing could be placed at the given
+     * minute of the given day without coming too close to another dose.
+     */
+    public synchronized boolean isFree(DayOfWeek day, int minuteOfDay, int spacing) {
+        return conflictAt(index(day, minuteOfDay), checkSpacing(spacing), true, new int[1]) == FREE;
+    }
+
+    /**
+     * Places a dose with the default spacing at the given minute of the given day.
+     */
+    public void occupy(DayOfWeek day, int minuteOfDay) {
+        occupy(day, minuteOfDay, DEFAULT_SPACING);
+    }
+
+    /**
+     * Places a dose at the given minute of the given day, keeping other doses at
+     * least {@code spacing} minutes away. Doses are not checked for conflicts here.
+     */
+    public synchronized void occupy(DayOfWeek day, int minuteOfDay, int spacing) {
+        int minute = index(day, minuteOfDay);
+        root = insert(root, minute, checkSpacing(spacing));
+        size++;
+    }
+
+    /**
+     * Removes a dose placed with the default spacing.
+     */
+    public void release(DayOfWeek day, int minuteOfDay) {
+        release(day, minuteOfDay, DEFAULT_SPACING);
+    }
+
+    /**
+     * Removes a dose placed with {@link #occupy(DayOfWeek, int, int)}. Releasing a
+     * dose that was never placed has no effect.
+     */
+    public synchronized void release(DayOfWeek day, int minuteOfDay, int spacing) {
+        int[] removed = new int[1];
+        root = remove(root, index(day, minuteOfDay), spacing, removed);
+        size -= removed[0];
+    }
+
+    /**
+     * Finds the time of day closest to {@code minuteOfDay} at which a dose with the
+     * given spacing is free on every day of {@code dayMask} (bit 0 = Monday). Both
+     * directions are searched, without crossing midnight; on a tie the later time
+     * wins. Each conflicting window is skipped as a whole, at O(log n) per window.
+     *
+     * @return the minute of day, or -1 if there is no such time
+     */
+    public synchronized int findNearestFree(int dayMask, int minuteOfDay, int spacing) {
+        if (minuteOfDay < 0 || minuteOfDay >= MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Minute of day out of range: " + minuteOfDay);
+        }
+        checkSpacing(spacing);
+        int[] probes = new int[1];
+        try {
+            int later = scan(dayMask, minuteOfDay, spacing, true, probes);
+            if (later == minuteOfDay) {
+                return later;
+            }
+            int earlier = scan(dayMask, minuteOfDay, spacing, false, probes);
+            if (later < 0) {
+                return earlier;
+            }
+            return earlier < 0 || later - minuteOfDay <= minuteOfDay - earlier ? later : earlier;
+        } finally {
+            MedicineMetrics.get().recordProbes(probes[0]);
+        }
+    }
+
+    /**
+     * Returns the number of placed doses.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns an independent copy of this index, e.g. to resolve a batch of
+     * schedules before committing them.
+     */
+    public synchronized SlotIndex copy() {
+        SlotIndex copy = new SlotIndex();
+        copy.root = copy(root);
+        copy.size = size;
+        copy.seed = seed;
+        return copy;
+    }
+
+    /**
+     * Removes every dose.
+     */
+    public synchronized void clear() {
+        root = null;
+        size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        appendTo(sb, root);
+        return sb.append(']').toString();
+    }
+
+    private static void appendTo(StringBuilder sb, Node node) {
+        if (node == null) {
+            return;
+        }
+        appendTo(sb, node.left);
+        for (int i = 0; i < node.count; i++) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            DayOfWeek day = DayOfWeek.of(node.minute / MINUTES_PER_DAY + 1);
+            int minute = node.minute % MINUTES_PER_DAY;
+            sb.append(day).append('-').append(String.format("%02d:%02d", minute / 60, minute % 60));
+        }
+        appendTo(sb, node.right);
+    }
+
+    /**
+     * Moves from {@code minuteOfDay} in one direction until a minute is free on every
+     * selected day. A conflict on one day moves the candidate past that conflict and
+     * the days are checked again from the start.
+     */
+    private int scan(int dayMask, int minuteOfDay, int spacing, boolean forward, int[] probes) {
+        int minute = minuteOfDay;
+        search:
+        while (minute >= 0 && minute < MINUTES_PER_DAY) {
+            for (int day = 0; day < DAYS_PER_WEEK; day++) {
+                if ((dayMask & (1 << day)) == 0) {
+                    continue;
+                }
+                int base = day * MINUTES_PER_DAY;
+                int past = conflictAt(base + minute, spacing, forward, probes);
+                if (past != FREE) {
+                    minute = past - base;
+                    continue search;
+                }
+            }
+            return minute;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks a dose at minute of week {@code w}. Returns FREE, or the first minute
+     * beyond the run of blocked minutes around w in the search direction; that
+     * minute may still be blocked on another day.
+     */
+    private int conflictAt(int w, int spacing, boolean forward, int[] probes) {
+        // Look at the week before and after too, so windows wrap around Sunday night
+        int reach = forward ? w - 1 : w + 1;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (int shift = -MINUTES_PER_WEEK; shift <= MINUTES_PER_WEEK; shift += MINUTES_PER_WEEK) {
+                probes[0]++;
+                int extended = forward
+                        ? extendForward(root, reach + shift, spacing) - shift
+                        : extendBackward(root, reach + shift, spacing) - shift;
+                if (extended != reach) {
+                    reach = extended;
+                    moved = true;
+                }
+            }
+        }
+        if (forward) {
+            return reach < w ? FREE : reach + 1;
+        }
+        return reach > w ? FREE : reach - 1;
+    }
+
+    /**
+     * Given that the minutes up to {@code reach} are blocked, returns the last
+     * minute of the blocked run that continues from there using the windows of
+     * this subtree, widened to at least {@code spacing}.
+     */
+    private static int extendForward(Node node, int reach, int spacing) {
+        if (node == null) {
+            return reach;
+        }
+        int from = Math.min(node.from, node.minMinute - spacing + 1);
+        int to = Math.max(node.to, node.maxMinute + spacing - 1);
+        if (to <= reach || from > reach + 1) {
+            return reach;
+        }
+        if (node.solid) {
+            return to;
+        }
+        reach = extendForward(node.left, reach, spacing);
+        int radius = Math.max(spacing, node.spacing);
+        if (node.minute - radius < reach + 1 && node.minute + radius - 1 > reach) {
+            reach = node.minute + radius - 1;
+        }
+        return extendForward(node.right, reach, spacing);
+    }
+
+    /**
+     * Mirror image of {@link #extendForward}: given that the minutes from
+     * {@code reach} on are blocked, returns the first minute of the blocked run.
+     */
+    private static int extendBackward(Node node, int reach, int spacing) {
+        if (node == null) {
+            return reach;
+        }
+        int from = Math.min(node.from, node.minMinute - spacing + 1);
+        int to = Math.max(node.to, node.maxMinute + spacing - 1);
+        if (from >= reach || to < reach - 1) {
+            return reach;
+        }
+        if (node.solid) {
+            return from;
+        }
+        reach = extendBackward(node.right, reach, spacing);
+        int radius = Math.max(spacing, node.spacing);
+        if (node.minute + radius > reach - 1 && node.minute - radius + 1 < reach) {
+            reach = node.minute - radius + 1;
+        }
+        return extendBackward(node.left, reach, spacing);
+    }
+
+    private Node insert(Node node, int minute, int spacing) {
+        if (node == null) {
+            return new Node(minute, spacing, nextPriority());
+        }
+        int order = compare(minute, spacing, node);
+        if (order == 0) {
+            node.count++;
+            return node;
+        }
+        if (order < 0) {
+            node.left = insert(node.left, minute, spacing);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, minute, spacing);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        update(node);
+        return node;
+    }
+
+    private static Node remove(Node node, int minute, int spacing, int[] removed) {
+        if (node == null) {
+            return null;
+        }
+        int order = compare(minute, spacing, node);
+        if (order < 0) {
+            node.left = remove(node.left, minute, spacing, removed);
+        } else if (order > 0) {
+            node.right = remove(node.right, minute, spacing, removed);
+        } else {
+            removed[0] = 1;
+            if (--node.count > 0) {
+                return node;
+            }
+            return merge(node.left, node.right);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Joins two treaps where every dose of {@code a} sorts before those of {@code b}.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        return right;
+    }
+
+    /**
+     * Recomputes the subtree summary of a node from its own window and its children.
+     */
+    private static void update(Node node) {
+        Node left = node.left;
+        Node right = node.right;
+        int from = node.minute - node.spacing + 1;
+        int to = node.minute + node.spacing - 1;
+        node.minMinute = left != null ? left.minMinute : node.minute;
+        node.maxMinute = right != null ? right.maxMinute : node.minute;
+        node.from = Math.min(from, Math.min(left != null ? left.from : from, right != null ? right.from : from));
+        node.to = Math.max(to, Math.max(left != null ? left.to : to, right != null ? right.to : to));
+        // A missing child stands in as a copy of the node's own window
+        node.solid = (left == null || left.solid) && (right == null || right.solid)
+                && joined(from, to, left != null ? left.from : from, left != null ? left.to : to,
+                        right != null ? right.from : from, right != null ? right.to : to);
+    }
+
+    /**
+     * Returns true if three runs of blocked minutes leave no free minute between them.
+     */
+    private static boolean joined(int aFrom, int aTo, int bFrom, int bTo, int cFrom, int cTo) {
+        // Order the runs by their first minute
+        if (bFrom < aFrom) {
+            int from = aFrom, to = aTo;
+            aFrom = bFrom; aTo = bTo; bFrom = from; bTo = to;
+        }
+        if (cFrom < bFrom) {
+            int from = bFrom, to = bTo;
+            bFrom = cFrom; bTo = cTo; cFrom = from; cTo = to;
+            if (bFrom < aFrom) {
+                from = aFrom; to = aTo;
+                aFrom = bFrom; aTo = bTo; bFrom = from; bTo = to;
+            }
+        }
+        int reach = aTo;
+        if (bFrom > reach + 1) {
+            return false;
+        }
+        reach = Math.max(reach, bTo);
+        return cFrom <= reach + 1;
+    }
+
+    private static int compare(int minute, int spacing, Node node) {
+        int order = Integer.compare(minute, node.minute);
+        return order != 0 ? order : Integer.compare(spacing, node.spacing);
+    }
+
+    private static Node copy(Node node) {
+        if (node == null) {
+            return null;
+        }
+        Node copy = new Node(node.minute, node.spacing, node.priority);
+        copy.count = node.count;
+        copy.left = copy(node.left);
+        copy.right = copy(node.right);
+        update(copy);
+        return copy;
+    }
+
+    // xorshift; treap priorities only need to look random
+    private int nextPriority() {
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return x;
+    }
+
+    static int checkSpacing(int spacing) {
+        if (spacing < 1 || spacing > MAX_SPACING) {
+            throw new IllegalArgumentException("Spacing must be between 1 and " + MAX_SPACING + " minutes: " + spacing);
+        }
+        return spacing;
+    }
+
+    private static int index(DayOfWeek day, int minuteOfDay) {
+        if (minuteOfDay < 0 || minuteOfDay >= MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Minute of day out of range: " + minuteOfDay);
+        }
+        return (day.getValue() - 1) * MINUTES_PER_DAY + minuteOfDay;
+    }
+}
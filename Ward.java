@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Directory of {@link PatientStore}s served by one JVM, plus the engine that fires
+ * their reminders.
+ *
+ * Instead of one reminder thread per patient, a single engine thread sleeps until
+ * the earliest dose of any patient is due and then evaluates all patients in
+ * parallel on a {@link ForkJoinPool}: the patient array is split into shards of
+ * {@value #SHARD_SIZE}, each shard fires its due doses and reports the earliest
+ * next fire time, and the minimum of those becomes the next wake-up. A patient
+ * with nothing due costs one peek at its queue, so a pass over 100k patients is
+ * bounded by the number of due doses divided by the pool's parallelism.
+ *
+ * All patients share one {@link DoseWatermarks} file ({@value #WATERMARK_FILE} in the
+ * data directory). A shard first takes the due doses of all its patients, then syncs
+ * the watermarks once (shards syncing at the same time share a single
+ * {@code force}) and only then hands the doses on, so the 08:00 peak costs at most
+ * one sync per shard instead of one per patient.
+ *
+ * The engine reads the time from an {@link EngineClock} and waits through it, so a
+ * simulated clock can run it through weeks of doses in seconds.
+ *
+ * The default patient is stored in the data directory itself (the layout used
+ * before patients existed); every other patient lives in {@code patients/<id>}.
+ */
+public class Ward {
+    public static final String DEFAULT_PATIENT = "default";
+    // Patient ids double as directory names
+    private static final Pattern PATIENT_ID = Pattern.compile("^[A-Za-z0-9_-]{1,64}$");
+    // Patients evaluated by one fork-join leaf task
+    private static final int SHARD_SIZE = 512;
+    // Re-check the clock at least this often while idle
+    private static final long MAX_SLEEP_MILLIS = 60_000;
+    // Doses taken off the stock by reminders are saved at most this often
+    private static final long STOCK_CHECKPOINT_MILLIS = 60_000;
+    private static final String WATERMARK_FILE = "fired.log";
+
+    private final Path dataDir;
+    private final EngineClock clock;
+    private final Map<String, PatientStore> patients = new ConcurrentHashMap<>();
+    // Fired-up-to time of every patient's medicines; opened with the first patient
+    private final DoseWatermarks watermarks = new DoseWatermarks();
+    private boolean watermarksOpen;
+    // All patients in creation order, iterated by the reminder engine. The array only
+    // grows by doubling; readers read the count first, then the array
+    private volatile PatientStore[] patientArray = new PatientStore[16];
+    private volatile int patientCount;
+
+    // Earliest fire time announced by a schedule change since the last pass
+    private final AtomicLong wakeHint = new AtomicLong(Long.MAX_VALUE);
+    // Delivers every patient's reminders (null: schedulers print them directly)
+    private volatile ReminderPipeline reminders;
+    // Minutes a fired dose may stay unconfirmed before it counts as missed
+    private volatile long graceMinutes = DoseLog.DEFAULT_GRACE_MINUTES;
+    // Known drug interactions checked when medicines are added (null: no checks)
+    private volatile InteractionIndex interactions;
+    // Known drug names that typed names are matched against (null: names taken as typed)
+    private volatile DrugCatalog catalog;
+    private final Object wakeLock = new Object();
+    private ForkJoinPool pool;
+    private Thread engine;
+
+    /**
+     * @param dataDir directory to persist patients in, or null to keep them in memory
+     */
+    public Ward(Path dataDir) {
+        this(dataDir, EngineClock.SYSTEM);
+    }
+
+    /**
+     * @param dataDir directory to persist patients in, or null to keep them in memory
+     * @param clock   time source of the engine and every patient's scheduler
+     */
+    public Ward(Path dataDir, EngineClock clock) {
+        this.dataDir = dataDir;
+        this.clock = clock;
+    }
+
+    public EngineClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the store of a patient, or null if the patient is unknown.
+     */
+    public PatientStore get(String patientId) {
+        return patients.get(patientId);
+    }
+
+    /**
+     * Returns the store of a patient, creating it (and loading its saved state) on
+     * first use.
+     *
+     * @throws IllegalArgumentException if the id is not 1-64 letters, digits, '-' or '_'
+     * @throws IOException              if the patient's saved state cannot be loaded
+     */
+    public PatientStore getOrCreate(String patientId) throws IOException {
+        PatientStore store = patients.get(patientId);
+        if (store != null) {
+            return store;
+        }
+        if (patientId == null || !PATIENT_ID.matcher(patientId).matches()) {
+            throw new IllegalArgumentException("Invalid patient id '" + patientId + "', use letters, digits, '-' or '_'.");
+        }
+        synchronized (patients) {
+            store = patients.get(patientId);
+            if (store != null) {
+                return store;
+            }
+            if (dataDir != null && !watermarksOpen) {
+                Files.createDirectories(dataDir);
+                watermarks.open(dataDir.resolve(WATERMARK_FILE));
+                watermarksOpen = true;
+            }
+            store = new PatientStore(patientId, !patientId.equals(DEFAULT_PATIENT), clock, watermarks);
+            if (dataDir != null) {
+                store.open(directoryOf(patientId));
+            }
+            store.getScheduler().setWakeListener(this::wake);
+            store.getScheduler().setReminderPipeline(reminders);
+            store.getDoses().setGraceMinutes(graceMinutes);
+            patients.put(patientId, store);
+            int count = patientCount;
+            if (count == patientArray.length) {
+                patientArray = Arrays.copyOf(patientArray, count * 2);
+            }
+            patientArray[count] = store;
+            patientCount = count + 1; // publish
+        }
+        wake(store.getScheduler().nextFireMillis());
+        return store;
+    }
+
+    /**
+     * Routes the reminders of all current and future patients through the given
+     * pipeline, or back to direct printing if null.
+     */
+    public void setReminderPipeline(ReminderPipeline reminders) {
+        synchronized (patients) {
+            this.reminders = reminders;
+            int count = patientCount;
+            PatientStore[] stores = patientArray;
+            for (int i = 0; i < count; i++) {
+                stores[i].getScheduler().setReminderPipeline(reminders);
+            }
+        }
+    }
+
+    public ReminderPipeline getReminderPipeline() {
+        return reminders;
+    }
+
+    /**
+     * Sets how many minutes a fired dose of any current or future patient may stay
+     * unconfirmed before it is marked missed.
+     *
+     * @throws IllegalArgumentException if {@code minutes} is below 1
+     */
+    public void setGraceMinutes(long minutes) {
+        if (minutes < 1) {
+            throw new IllegalArgumentException("Grace period must be at least one minute.");
+        }
+        synchronized (patients) {
+            this.graceMinutes = minutes;
+            int count = patientCount;
+            PatientStore[] stores = patientArray;
+            for (int i = 0; i < count; i++) {
+                stores[i].getDoses().setGraceMinutes(minutes);
+            }
+        }
+    }
+
+    /**
+     * Sets the interaction index that new and renamed medicines of every patient are
+     * checked against, or null to check nothing.
+     */
+    public void setInteractions(InteractionIndex interactions) {
+        this.interactions = interactions;
+    }
+
+    public InteractionIndex getInteractions() {
+        return interactions;
+    }
+
+    /**
+     * Sets the drug catalog new medicine names are completed and corrected from, or
+     * null to take names as typed.
+     */
+    public void setCatalog(DrugCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public DrugCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Returns the ids of all patients saved in the data directory, apart from the
+     * default patient.
+     */
+    public List<String> savedPatientIds() throws IOException {
+        List<String> ids = new ArrayList<>();
+        Path root = dataDir == null ? null : dataDir.resolve("patients");
+        if (root == null || !Files.isDirectory(root)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String id = dir.getFileName().toString();
+                if (PATIENT_ID.matcher(id).matches() && !id.equals(DEFAULT_PATIENT)) {
+                    ids.add(id);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Returns the ids of all loaded patients in the order they were created.
+     */
+    public List<String> patientIds() {
+        int count = patientCount;
+        PatientStore[] stores = patientArray;
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(stores[i].getId());
+        }
+        return ids;
+    }
+
+    public int size() {
+        return patientCount;
+    }
+
+    // ---- Reminder engine ----
+
+    /**
+     * Starts the reminder engine with one fork-join worker per processor. Calling it
+     * twice has no effect.
+     */
+    public synchronized void start() {
+        if (engine != null) {
+            return;
+        }
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        engine = new Thread(this::runEngine, "ward-reminders");
+        engine.setDaemon(true);
+        engine.start();
+    }
+
+    /**
+     * Stops the reminder engine.
+     */
+    public synchronized void stop() {
+        if (engine != null) {
+            engine.interrupt();
+            engine = null;
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Fires every dose of every patient that is due at or before {@code now}, using
+     * the engine's pool if it is running and the common pool otherwise.
+     *
+     * @return the earliest next fire time over all patients (epoch millis), or
+     *         Long.MAX_VALUE if nothing is scheduled
+     */
+    public long fireDue(LocalDateTime now) {
+        int count = patientCount;
+        PatientStore[] stores = patientArray;
+        if (count == 0) {
+            return Long.MAX_VALUE;
+        }
+        ForkJoinPool current;
+        synchronized (this) {
+            current = pool;
+        }
+        long start = System.nanoTime();
+        ReminderShard all = new ReminderShard(stores, 0, count, now);
+        long earliest = current == null ? all.invoke() : current.invoke(all);
+        MedicineMetrics.get().recordPass(System.nanoTime() - start, count);
+        return earliest;
+    }
+
+    /**
+     * Flushes and snapshots the journal of every patient and closes the watermarks.
+     * Stops the engine first.
+     *
+     * @throws IOException the first failure; the remaining patients are still closed
+     */
+    public void close() throws IOException {
+        stop();
+        IOException failure = null;
+        int count = patientCount;
+        PatientStore[] stores = patientArray;
+        for (int i = 0; i < count; i++) {
+            PatientStore store = stores[i];
+            try {
+                store.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException("Patient " + store.getId() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        try {
+            watermarks.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Called by a patient's scheduler when a dose is scheduled for {@code fireMillis};
+     * wakes the engine if that is earlier than its current plan.
+     */
+    private void wake(long fireMillis) {
+        if (fireMillis == Long.MAX_VALUE) {
+            return;
+        }
+        if (wakeHint.getAndAccumulate(fireMillis, Math::min) > fireMillis) {
+            synchronized (wakeLock) {
+                wakeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Main loop of the engine thread: sleeps until the earliest known fire time (or
+     * an earlier one announced through {@link #wake}), then runs one pass.
+     */
+    private void runEngine() {
+        long earliest = 0; // evaluate once right away
+        long nextCheckpoint = clock.millis() + STOCK_CHECKPOINT_MILLIS;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (wakeLock) {
+                    while (true) {
+                        long now = clock.millis();
+                        long wakeAt = Math.min(earliest, wakeHint.get());
+                        if (wakeAt <= now) {
+                            break;
+                        }
+                        clock.await(wakeLock, Math.min(wakeAt, now + MAX_SLEEP_MILLIS));
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Changes made during the pass are picked up by the pass or re-announced
+            wakeHint.set(Long.MAX_VALUE);
+            try {
+                earliest = fireDue(clock.now());
+                if (watermarks.getFailure() != null) {
+                    Thread.sleep(DoseWatermarks.RETRY_MILLIS); // due doses are held back until the marks are written
+                }
+            } catch (RejectedExecutionException | InterruptedException e) {
+                return; // stopped while a pass was starting
+            }
+            long now = clock.millis();
+            if (now >= nextCheckpoint) {
+                checkpointStock();
+                nextCheckpoint = now + STOCK_CHECKPOINT_MILLIS;
+            }
+            // Wake up for the next checkpoint even if no dose is due before it
+            earliest = Math.min(earliest, nextCheckpoint);
+        }
+    }
+
+    /**
+     * Saves the stock of every patient whose stock changed since it was last saved.
+     */
+    void checkpointStock() {
+        int count = patientCount;
+        PatientStore[] stores = patientArray;
+        for (int i = 0; i < count; i++) {
+            stores[i].saveStock();
+        }
+    }
+
+    private Path directoryOf(String patientId) {
+        return patientId.equals(DEFAULT_PATIENT) ? dataDir : dataDir.resolve("patients").resolve(patientId);
+    }
+
+    /**
+     * Fires the due doses of a range of patients, splitting it in halves until a
+     * range is at most {@value #SHARD_SIZE} patients. Returns the earliest next fire
+     * time in the range.
+     *
+     * A leaf takes the due doses of all its patients, syncs their watermarks once and
+     * then fires them, repeating while overdue entries still owe doses. If the sync
+     * fails the doses are put back and stay due.
+     */
+    private final class ReminderShard extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final PatientStore[] stores;
+        private final int from;
+        private final int to;
+        private final LocalDateTime now;
+
+        ReminderShard(PatientStore[] stores, int from, int to, LocalDateTime now) {
+            this.stores = stores;
+            this.from = from;
+            this.to = to;
+            this.now = now;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= SHARD_SIZE) {
+                for (int i = from; i < to; i++) {
+                    stores[i].getScheduler().expireMissed(now);
+                }
+                DoseScheduler.Batch[] batches = new DoseScheduler.Batch[to - from];
+                boolean due = true;
+                while (due) {
+                    due = false;
+                    for (int i = from; i < to; i++) {
+                        batches[i - from] = stores[i].getScheduler().takeDue(now);
+                        due |= batches[i - from] != null;
+                    }
+                    if (!due) {
+                        break;
+                    }
+                    boolean synced = watermarks.sync();
+                    for (int i = from; i < to; i++) {
+                        DoseScheduler.Batch batch = batches[i - from];
+                        if (batch == null) {
+                            continue;
+                        }
+                        if (synced) {
+                            stores[i].getScheduler().fire(batch);
+                        } else {
+                            stores[i].getScheduler().putBack(batch);
+                        }
+                    }
+                    due = synced;
+                }
+                long earliest = Long.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    earliest = Math.min(earliest, stores[i].getScheduler().nextFireMillis());
+                }
+                return earliest;
+            }
+            int mid = (from + to) >>> 1;
+            ReminderShard left = new ReminderShard(stores, from, mid, now);
+            left.fork();
+            long right = new ReminderShard(stores, mid, to, now).compute();
+            return Math.min(left.join(), right);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Posts each batch of reminders as one JSON array to an HTTP endpoint:
+ *
+ * <pre>
+ *   [{"type":"dose","patient":"bob","medicine":"aspirin","time":"2025-08-04 08:00","scheduled":1754287200000}, ...]
+ * </pre>
+ *
+ * Stock alerts have {@code "type":"stock"} and a {@code message}; their time is that
+ * of the dose that raised them. {@code patient} is null in a single-patient setup. Any answer other than 2xx, or
+ * no answer within the timeout, fails the batch so the pipeline retries it.
+ */
+public class WebhookReminderSink implements ReminderSink {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
+    private final URI endpoint;
+    private final HttpClient client;
+
+    /**
+     * @param endpoint http(s) URL to post reminders to
+     */
+    public WebhookReminderSink(URI endpoint) {
+        String scheme = endpoint.getScheme();
+        if (scheme == null || !(scheme.equals("http") || scheme.equals("https"))) {
+            throw new IllegalArgumentException("Webhook URL must start with http:// or https://");
+        }
+        this.endpoint = endpoint;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    @Override
+    public String name() {
+        return "webhook";
+    }
+
+    @Override
+    public void deliver(List<ReminderPipeline.Reminder> batch) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(toJson(batch)))
+                .build();
+        HttpResponse<Void> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while posting reminders");
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Webhook answered " + response.statusCode());
+        }
+    }
+
+    static String toJson(List<ReminderPipeline.Reminder> batch) {
+        StringBuilder sb = new StringBuilder(batch.size() * 100).append('[');
+        for (int i = 0; i < batch.size(); i++) {
+            ReminderPipeline.Reminder reminder = batch.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"type\":").append(reminder.isAlert() ? "\"stock\"" : "\"dose\"")
+                    .append(",\"patient\":")
+                    .append(reminder.getPatientId() == null ? "null" : MedicineHttpServer.quote(reminder.getPatientId()))
+                    .append(",\"medicine\":").append(MedicineHttpServer.quote(reminder.getMedicineName()))
+                    .append(",\"time\":").append(MedicineHttpServer.quote(reminder.getDoseTime().toLocalDate() + " "
+                            + MedicineSchedule.formatTime(reminder.getDoseTime().getHour() * 60 + reminder.getDoseTime().getMinute())))
+                    .append(",\"scheduled\":").append(reminder.getScheduledMillis())
+                    .append(",\"late\":").append(reminder.isLate());
+            if (reminder.isAlert()) {
+                sb.append(",\"message\":").append(MedicineHttpServer.quote(reminder.message()));
+            }
+            sb.append('}');
+        }
+        return sb.append(']').toString();
+    }
+}